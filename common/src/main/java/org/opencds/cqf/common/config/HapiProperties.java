@@ -77,6 +77,22 @@ public class HapiProperties {
     static final String CDSHOOKS_FHIRSERVER_SEARCHSTYLE= "cds_hooks.fhirServer.searchStyle";
     static final String CDSHOOKS_PREFETCH_MAXURILENGTH= "cds_hooks.prefetch.maxUriLength";
 
+    static final String MEASURE_EVALUATION_THREADS = "measure_evaluation.threads";
+    static final String MEASURE_EVALUATION_ASYNC_THREADS = "measure_evaluation.async.threads";
+    static final String MEASURE_EVALUATION_ASYNC_RETENTION_MINUTES = "measure_evaluation.async.retention_minutes";
+    static final String MEASURE_EVALUATION_REPORT_CACHE_MAX_SIZE = "measure_evaluation.report_cache.max_size";
+    static final String MEASURE_EVALUATION_EXACT_MEDIAN_LIMIT = "measure_evaluation.exact_median_limit";
+    static final String MEASURE_EVALUATION_EPISODE_OBSERVATIONS = "measure_evaluation.episode_observations";
+    static final String MEASURE_EVALUATION_SUMMARY_EVALUATED_RESOURCES = "measure_evaluation.summary_evaluated_resources";
+    static final String MEASURE_EVALUATION_INCREMENTAL = "measure_evaluation.incremental";
+    static final String MEASURE_EVALUATION_CARE_GAPS_THREADS = "measure_evaluation.care_gaps.threads";
+
+    static final String LIBRARY_CACHE_MAX_SIZE = "library_cache.max_size";
+    static final String LIBRARY_CACHE_EXPRESSION_MAX_SIZE = "library_cache.expression_max_size";
+
+    static final String TERMINOLOGY_EXPANSION_CACHE_TTL_SECONDS = "terminology.expansion_cache.ttl_seconds";
+    static final String TERMINOLOGY_EXPANSION_CACHE_MAX_SIZE = "terminology.expansion_cache.max_size";
+
     private static Properties properties;
 
     /*
@@ -479,4 +495,59 @@ public class HapiProperties {
         return SearchStyleEnum.GET;
     }
     public static Integer getCdsHooksPreFetchMaxUriLength() { return HapiProperties.getIntegerProperty(CDSHOOKS_PREFETCH_MAXURILENGTH, 8000);}
+
+    // ************************* MEASURE_EVALUATION ****************
+    public static Integer getMeasureEvaluationThreads() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_THREADS, 1);
+    }
+
+    public static Integer getMeasureEvaluationAsyncThreads() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_ASYNC_THREADS, 2);
+    }
+
+    public static Integer getMeasureEvaluationAsyncRetentionMinutes() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_ASYNC_RETENTION_MINUTES, 1440);
+    }
+
+    public static Integer getMeasureEvaluationReportCacheMaxSize() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_REPORT_CACHE_MAX_SIZE, 100);
+    }
+
+    public static Integer getMeasureEvaluationExactMedianLimit() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_EXACT_MEDIAN_LIMIT, 100000);
+    }
+
+    public static Boolean getMeasureEvaluationEpisodeObservations() {
+        return HapiProperties.getBooleanProperty(MEASURE_EVALUATION_EPISODE_OBSERVATIONS, false);
+    }
+
+    public static Boolean getMeasureEvaluationSummaryEvaluatedResources() {
+        return HapiProperties.getBooleanProperty(MEASURE_EVALUATION_SUMMARY_EVALUATED_RESOURCES, true);
+    }
+
+    public static Boolean getMeasureEvaluationIncremental() {
+        return HapiProperties.getBooleanProperty(MEASURE_EVALUATION_INCREMENTAL, false);
+    }
+
+    public static Integer getMeasureEvaluationCareGapsThreads() {
+        return HapiProperties.getIntegerProperty(MEASURE_EVALUATION_CARE_GAPS_THREADS, 4);
+    }
+
+    // ************************* LIBRARY_CACHE ****************
+    public static Integer getLibraryCacheMaxSize() {
+        return HapiProperties.getIntegerProperty(LIBRARY_CACHE_MAX_SIZE, 200);
+    }
+
+    public static Integer getLibraryCacheExpressionMaxSize() {
+        return HapiProperties.getIntegerProperty(LIBRARY_CACHE_EXPRESSION_MAX_SIZE, 50);
+    }
+
+    // ************************* TERMINOLOGY ****************
+    public static Integer getTerminologyExpansionCacheTtlSeconds() {
+        return HapiProperties.getIntegerProperty(TERMINOLOGY_EXPANSION_CACHE_TTL_SECONDS, 3600);
+    }
+
+    public static Integer getTerminologyExpansionCacheMaxSize() {
+        return HapiProperties.getIntegerProperty(TERMINOLOGY_EXPANSION_CACHE_MAX_SIZE, 1000);
+    }
 }
@@ -0,0 +1,199 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.opencds.cqf.common.config.HapiProperties;
+
+/**
+ * A server-wide cache of compiled (ELM) libraries shared by every LibraryLoader
+ * that reads libraries from the server. Entries are keyed by library name,
+ * version and the versionId of the stored Library they were compiled from, so
+ * the content never has to be read to find an entry. Entries are evicted
+ * explicitly when a Library is written, together with every cached library that
+ * includes it, and the least recently used entries are evicted once the cache
+ * holds library_cache.max_size libraries. Libraries translated from source that
+ * isn't stored (such as the libraries built for evaluateInContext expressions)
+ * are keyed by a hash of the source and kept apart, in a smaller LRU bounded by
+ * library_cache.expression_max_size, so one-off expressions can't evict stored
+ * libraries. Lookups take no lock, since every library a request evaluates is
+ * looked up (often from several worker threads); only adding and evicting
+ * entries is serialized.
+ */
+public class CompiledLibraryCache {
+
+    private static final CompiledLibraryCache sharedInstance = new CompiledLibraryCache(
+            HapiProperties.getLibraryCacheMaxSize(), HapiProperties.getLibraryCacheExpressionMaxSize());
+
+    public static CompiledLibraryCache getSharedInstance() {
+        return sharedInstance;
+    }
+
+    private final LruMap libraries;
+    private final LruMap sourceLibraries;
+
+    // Orders entries by their last use, for eviction
+    private final AtomicLong clock = new AtomicLong();
+
+    public CompiledLibraryCache(int maxSize, int maxSourceSize) {
+        this.libraries = new LruMap(maxSize);
+        this.sourceLibraries = new LruMap(maxSourceSize);
+    }
+
+    public Library get(String name, String version, String versionId) {
+        return get(this.libraries, getKey(name, version, versionId));
+    }
+
+    public void put(String name, String version, String versionId, Library library) {
+        put(this.libraries, getKey(name, version, versionId), name, library);
+    }
+
+    /**
+     * @param contentHash the hash of the source (see getContentHash)
+     */
+    public Library getSource(String name, String contentHash) {
+        return get(this.sourceLibraries, getKey(name, null, contentHash));
+    }
+
+    public void putSource(String name, String contentHash, Library library) {
+        put(this.sourceLibraries, getKey(name, null, contentHash), name, library);
+    }
+
+    private Library get(LruMap cache, String key) {
+        CachedLibrary cached = cache.entries.get(key);
+        if (cached == null) {
+            return null;
+        }
+
+        cached.lastUsed = this.clock.incrementAndGet();
+        return cached.library;
+    }
+
+    private void put(LruMap cache, String key, String name, Library library) {
+        CachedLibrary cached = new CachedLibrary(name, library, this.clock.incrementAndGet());
+        synchronized (cache) {
+            cache.entries.put(key, cached);
+
+            // Puts follow a translation, so a scan for the least recently used
+            // entry costs little in comparison
+            while (cache.entries.size() > cache.maxSize) {
+                cache.entries.entrySet().stream().min(Comparator.comparingLong(x -> x.getValue().lastUsed))
+                        .ifPresent(x -> cache.entries.remove(x.getKey()));
+            }
+        }
+    }
+
+    /**
+     * Evicts every version of the named library, and every library that
+     * (directly or transitively) includes it.
+     */
+    public void invalidate(String name) {
+        if (name == null) {
+            return;
+        }
+
+        Set<String> invalidated = new HashSet<>();
+        invalidated.add(name);
+        invalidate(this.libraries, invalidated);
+
+        // Source libraries can include stored libraries, but not each other
+        invalidate(this.sourceLibraries, invalidated);
+    }
+
+    private static void invalidate(LruMap cache, Set<String> invalidated) {
+        synchronized (cache) {
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                Iterator<CachedLibrary> iterator = cache.entries.values().iterator();
+                while (iterator.hasNext()) {
+                    CachedLibrary cached = iterator.next();
+                    if (invalidated.contains(cached.name) || !Collections.disjoint(invalidated, cached.includes)) {
+                        iterator.remove();
+                        changed |= invalidated.add(cached.name);
+                    }
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        synchronized (this.libraries) {
+            this.libraries.entries.clear();
+        }
+        synchronized (this.sourceLibraries) {
+            this.sourceLibraries.entries.clear();
+        }
+    }
+
+    public int size() {
+        return this.libraries.entries.size();
+    }
+
+    /**
+     * Returns a hash over all the given content (ELM and/or CQL). Null elements
+     * are skipped.
+     */
+    public static String getContentHash(byte[]... contents) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+
+        for (byte[] content : contents) {
+            if (content != null) {
+                digest.update(content);
+            }
+        }
+
+        StringBuilder hash = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hash.append(String.format("%02x", b));
+        }
+
+        return hash.toString();
+    }
+
+    private static String getKey(String name, String version, String versionId) {
+        return name + "|" + (version != null ? version : "") + "|" + versionId;
+    }
+
+    private static class LruMap {
+        private final Map<String, CachedLibrary> entries = new ConcurrentHashMap<>();
+        private final int maxSize;
+
+        private LruMap(int maxSize) {
+            this.maxSize = maxSize;
+        }
+    }
+
+    private static class CachedLibrary {
+        private String name;
+        private Library library;
+        private Set<String> includes = new HashSet<>();
+        private volatile long lastUsed;
+
+        private CachedLibrary(String name, Library library, long lastUsed) {
+            this.name = name;
+            this.library = library;
+            this.lastUsed = lastUsed;
+            if (library.getIncludes() != null) {
+                for (IncludeDef include : library.getIncludes().getDef()) {
+                    this.includes.add(include.getPath());
+                }
+            }
+        }
+    }
+}
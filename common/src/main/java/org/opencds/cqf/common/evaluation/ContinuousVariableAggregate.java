@@ -0,0 +1,228 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aggregates the measure observations of a continuous variable measure as they
+ * are evaluated, so the observations themselves don't have to be kept. Count,
+ * sum, minimum and maximum are exact. The median is exact up to a configured
+ * number of observations; beyond that the values are folded into a quantile
+ * sketch whose median is within 1% of the true value. Aggregates computed for
+ * disjoint sets of patients can be merged.
+ */
+public class ContinuousVariableAggregate {
+
+    private final int exactLimit;
+
+    private long count;
+    private double sum;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    // The values while there are no more than exactLimit; null once they are
+    // kept in the sketch instead
+    private double[] values = new double[16];
+    private QuantileSketch sketch;
+
+    /**
+     * @param exactLimit the number of values up to which the median is exact
+     */
+    public ContinuousVariableAggregate(int exactLimit) {
+        this.exactLimit = exactLimit;
+    }
+
+    public void add(double value) {
+        this.count++;
+        this.sum += value;
+        this.min = Math.min(this.min, value);
+        this.max = Math.max(this.max, value);
+
+        if (this.values != null && this.count <= this.exactLimit) {
+            if (this.count > this.values.length) {
+                this.values = Arrays.copyOf(this.values, this.values.length * 2);
+            }
+            this.values[(int) this.count - 1] = value;
+        } else {
+            getSketch().add(value);
+        }
+    }
+
+    public void merge(ContinuousVariableAggregate other) {
+        if (other.values != null) {
+            for (int i = 0; i < other.count; i++) {
+                add(other.values[i]);
+            }
+            return;
+        }
+
+        long exactCount = this.count;
+        this.count += other.count;
+        this.sum += other.sum;
+        this.min = Math.min(this.min, other.min);
+        this.max = Math.max(this.max, other.max);
+        if (this.values != null) {
+            this.sketch = new QuantileSketch();
+            for (int i = 0; i < exactCount; i++) {
+                this.sketch.add(this.values[i]);
+            }
+            this.values = null;
+        }
+        this.sketch.merge(other.sketch);
+    }
+
+    public long getCount() {
+        return this.count;
+    }
+
+    public double getSum() {
+        return this.sum;
+    }
+
+    public Double getMean() {
+        return this.count > 0 ? this.sum / this.count : null;
+    }
+
+    public Double getMin() {
+        return this.count > 0 ? this.min : null;
+    }
+
+    public Double getMax() {
+        return this.count > 0 ? this.max : null;
+    }
+
+    public Double getMedian() {
+        if (this.count == 0) {
+            return null;
+        }
+
+        if (this.values == null) {
+            return this.sketch.getQuantile(0.5);
+        }
+
+        double[] sorted = Arrays.copyOf(this.values, (int) this.count);
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+
+    /**
+     * Returns the aggregate with the given cqfm-aggregateMethod code (sum,
+     * average, median, minimum, maximum or count), or null if there are no
+     * values or the method is unknown.
+     */
+    public Double getAggregate(String aggregateMethod) {
+        if (this.count == 0 || aggregateMethod == null) {
+            return null;
+        }
+
+        switch (aggregateMethod) {
+            case "sum":
+                return getSum();
+            case "average":
+                return getMean();
+            case "median":
+                return getMedian();
+            case "minimum":
+                return getMin();
+            case "maximum":
+                return getMax();
+            case "count":
+                return (double) getCount();
+            default:
+                return null;
+        }
+    }
+
+    // Moves the exact values into the sketch the first time it's needed
+    private QuantileSketch getSketch() {
+        if (this.sketch == null) {
+            this.sketch = new QuantileSketch();
+        }
+
+        if (this.values != null) {
+            for (int i = 0; i < this.count - 1; i++) {
+                this.sketch.add(this.values[i]);
+            }
+            this.values = null;
+        }
+
+        return this.sketch;
+    }
+
+    /**
+     * Counts values in logarithmically sized buckets, so any quantile is within
+     * the relative accuracy of the true value whatever the number of values.
+     */
+    private static class QuantileSketch {
+        private static final double RELATIVE_ACCURACY = 0.01;
+        private static final double GAMMA = (1 + RELATIVE_ACCURACY) / (1 - RELATIVE_ACCURACY);
+        private static final double LOG_GAMMA = Math.log(GAMMA);
+
+        private final TreeMap<Integer, Long> positive = new TreeMap<>();
+        private final TreeMap<Integer, Long> negative = new TreeMap<>();
+        private long zeros;
+        private long count;
+
+        void add(double value) {
+            if (value > 0) {
+                this.positive.merge(getIndex(value), 1L, Long::sum);
+            } else if (value < 0) {
+                this.negative.merge(getIndex(-value), 1L, Long::sum);
+            } else {
+                this.zeros++;
+            }
+            this.count++;
+        }
+
+        void merge(QuantileSketch other) {
+            other.positive.forEach((index, count) -> this.positive.merge(index, count, Long::sum));
+            other.negative.forEach((index, count) -> this.negative.merge(index, count, Long::sum));
+            this.zeros += other.zeros;
+            this.count += other.count;
+        }
+
+        // Interpolates between the values at the ranks either side, as the exact
+        // median of an even number of values does
+        double getQuantile(double quantile) {
+            double position = quantile * (this.count - 1);
+            long rank = (long) Math.floor(position);
+            double value = getValueAtRank(rank);
+            double fraction = position - rank;
+            return fraction > 0 ? value + fraction * (getValueAtRank(rank + 1) - value) : value;
+        }
+
+        private double getValueAtRank(long rank) {
+            long seen = 0;
+            for (Map.Entry<Integer, Long> bucket : this.negative.descendingMap().entrySet()) {
+                seen += bucket.getValue();
+                if (seen > rank) {
+                    return -getValue(bucket.getKey());
+                }
+            }
+
+            seen += this.zeros;
+            if (seen > rank) {
+                return 0;
+            }
+
+            for (Map.Entry<Integer, Long> bucket : this.positive.entrySet()) {
+                seen += bucket.getValue();
+                if (seen > rank) {
+                    return getValue(bucket.getKey());
+                }
+            }
+
+            return this.positive.isEmpty() ? 0 : getValue(this.positive.lastKey());
+        }
+
+        private static int getIndex(double value) {
+            return (int) Math.ceil(Math.log(value) / LOG_GAMMA);
+        }
+
+        private static double getValue(int index) {
+            return 2 * Math.pow(GAMMA, index) / (GAMMA + 1);
+        }
+    }
+}
@@ -1,34 +1,39 @@
 package org.opencds.cqf.common.evaluation;
 
 import static org.opencds.cqf.common.helpers.TranslatorHelper.errorsToString;
-import static org.opencds.cqf.common.helpers.TranslatorHelper.getTranslator;
 import static org.opencds.cqf.common.helpers.TranslatorHelper.readLibrary;
+import static org.opencds.cqf.common.helpers.TranslatorHelper.toExecutionLibrary;
 
 import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
-import javax.xml.bind.JAXBException;
-
-import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.apache.commons.io.IOUtils;
 import org.cqframework.cql.cql2elm.CqlTranslatorException;
 import org.cqframework.cql.cql2elm.CqlTranslatorOptions;
 import org.cqframework.cql.cql2elm.LibraryManager;
 import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+import org.opencds.cqf.common.providers.ElmLibrarySourceProvider;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 public class LibraryLoader implements org.opencds.cqf.cql.engine.execution.LibraryLoader {
 
     private LibraryManager libraryManager;
     private ModelManager modelManager;
-    private Map<String, Library> libraries = new HashMap<>();
+    private Map<String, Library> libraries = new ConcurrentHashMap<>();
+    private CompiledLibraryCache libraryCache;
+    private ElmLibrarySourceProvider elmProvider;
 
-    // private static final Logger logger =
-    // LoggerFactory.getLogger(LibraryLoader.class);
+    private static final Logger logger = LoggerFactory.getLogger(LibraryLoader.class);
 
     public Collection<Library> getLibraries() {
         return this.libraries.values();
@@ -43,8 +48,33 @@ public class LibraryLoader implements org.opencds.cqf.cql.engine.execution.Libra
     }
 
     public LibraryLoader(LibraryManager libraryManager, ModelManager modelManager) {
+        this(libraryManager, modelManager, null);
+    }
+
+    /**
+     * @param libraryCache a cache of compiled libraries shared with other
+     *                     loaders. Only pass a shared cache when every source
+     *                     provider registered with the libraryManager reads from
+     *                     the server, since entries are visible to all requests.
+     *                     Libraries are only cached when they are loaded through
+     *                     an ElmLibrarySourceProvider that identifies their
+     *                     version.
+     */
+    public LibraryLoader(LibraryManager libraryManager, ModelManager modelManager,
+            CompiledLibraryCache libraryCache) {
+        this(libraryManager, modelManager, libraryCache, null);
+    }
+
+    /**
+     * @param elmProvider if not null, libraries with ELM content in this provider
+     *                    are read from that ELM rather than translated from CQL
+     */
+    public LibraryLoader(LibraryManager libraryManager, ModelManager modelManager,
+            CompiledLibraryCache libraryCache, ElmLibrarySourceProvider elmProvider) {
         this.libraryManager = libraryManager;
         this.modelManager = modelManager;
+        this.libraryCache = libraryCache;
+        this.elmProvider = elmProvider;
     }
 
     private Library resolveLibrary(VersionedIdentifier libraryIdentifier) {
@@ -58,10 +88,18 @@ public class LibraryLoader implements org.opencds.cqf.cql.engine.execution.Libra
 
         String mangledId = this.mangleIdentifer(libraryIdentifier);
 
+        // Measure evaluation shares a single loader across worker contexts, so
+        // libraries already loaded are returned without a lock. The
+        // LibraryManager isn't thread-safe, so loading is serialized.
         Library library = libraries.get(mangledId);
         if (library == null) {
-            library = loadLibrary(libraryIdentifier);
-            libraries.put(mangledId, library);
+            synchronized (this) {
+                library = libraries.get(mangledId);
+                if (library == null) {
+                    library = loadLibrary(libraryIdentifier);
+                    libraries.put(mangledId, library);
+                }
+            }
         }
 
         return library;
@@ -75,29 +113,113 @@ public class LibraryLoader implements org.opencds.cqf.cql.engine.execution.Libra
     }
 
     private Library loadLibrary(VersionedIdentifier libraryIdentifier) {
-        org.hl7.elm.r1.VersionedIdentifier identifier = new org.hl7.elm.r1.VersionedIdentifier()
-                .withId(libraryIdentifier.getId()).withSystem(libraryIdentifier.getSystem())
-                .withVersion(libraryIdentifier.getVersion());
+        org.hl7.elm.r1.VersionedIdentifier identifier = toElmIdentifier(libraryIdentifier);
+
+        // The stored Library's versionId identifies its content, so a cached
+        // library is found without reading the content. Writes to a Library evict
+        // it (see LibraryCacheInvalidationInterceptor).
+        String versionId = null;
+        if (this.libraryCache != null && this.elmProvider != null) {
+            versionId = this.elmProvider.getLibraryVersionId(identifier);
+            if (versionId != null) {
+                Library library = this.libraryCache.get(libraryIdentifier.getId(), libraryIdentifier.getVersion(),
+                        versionId);
+                if (library != null) {
+                    return library;
+                }
+            }
+        }
+
+        byte[] elm = this.elmProvider != null ? readContent(this.elmProvider.getLibraryElm(identifier)) : null;
+        Library library = elm != null ? readElm(libraryIdentifier, elm) : null;
+        if (library == null) {
+            library = translateLibrary(identifier);
+        }
+
+        if (versionId != null) {
+            this.libraryCache.put(libraryIdentifier.getId(), libraryIdentifier.getVersion(), versionId, library);
+        }
+
+        return library;
+    }
+
+    // Returns null if the ELM can't be read or is stale (i.e. it was compiled
+    // from a different library or version), so the library is translated instead
+    private Library readElm(VersionedIdentifier libraryIdentifier, byte[] elm) {
+        Library library;
+        try {
+            library = readLibrary(new ByteArrayInputStream(elm));
+        } catch (Exception e) {
+            logger.warn(String.format("Unable to read ELM for library %s, translating CQL instead: %s",
+                    this.mangleIdentifer(libraryIdentifier), e.getMessage()));
+            return null;
+        }
 
+        VersionedIdentifier elmIdentifier = library.getIdentifier();
+        if (elmIdentifier == null || !libraryIdentifier.getId().equals(elmIdentifier.getId())
+                || (libraryIdentifier.getVersion() != null
+                        && !libraryIdentifier.getVersion().equals(elmIdentifier.getVersion()))) {
+            logger.warn(String.format("ELM for library %s does not match the library identifier, translating CQL instead",
+                    this.mangleIdentifer(libraryIdentifier)));
+            return null;
+        }
+
+        return library;
+    }
+
+    private byte[] readContent(InputStream content) {
+        if (content == null) {
+            return null;
+        }
+
+        try (InputStream stream = content) {
+            return IOUtils.toByteArray(stream);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private org.hl7.elm.r1.VersionedIdentifier toElmIdentifier(VersionedIdentifier libraryIdentifier) {
+        return new org.hl7.elm.r1.VersionedIdentifier().withId(libraryIdentifier.getId())
+                .withSystem(libraryIdentifier.getSystem()).withVersion(libraryIdentifier.getVersion());
+    }
+
+    private Library translateLibrary(org.hl7.elm.r1.VersionedIdentifier identifier) {
         ArrayList<CqlTranslatorException> errors = new ArrayList<>();
         org.hl7.elm.r1.Library translatedLibrary = libraryManager.resolveLibrary(identifier, CqlTranslatorOptions.defaultOptions(), errors).getLibrary();
 
         if (CqlTranslatorException.HasErrors(errors)) {
             throw new IllegalArgumentException(errorsToString(errors));
         }
-        try {
-            CqlTranslator translator = getTranslator("", libraryManager, modelManager);
 
-            if (translator.getErrors().size() > 0) {
-                throw new IllegalArgumentException(errorsToString(translator.getErrors()));
+        return toExecutionLibrary(translatedLibrary);
+    }
+
+    /**
+     * Translates a library from CQL source that isn't stored on the server, such
+     * as the libraries built to evaluate a single expression. When this loader
+     * has a shared cache, a library translated from the same source before is
+     * reused; it is evicted from the cache along with any library it includes,
+     * or when it is the least recently used of library_cache.expression_max_size
+     * such libraries.
+     */
+    public Library translateSource(String name, String source) {
+        String contentHash = null;
+        if (this.libraryCache != null) {
+            contentHash = CompiledLibraryCache.getContentHash(source.getBytes(StandardCharsets.UTF_8));
+            Library library = this.libraryCache.getSource(name, contentHash);
+            if (library != null) {
+                return library;
             }
+        }
+
+        Library library = TranslatorHelper.translateLibrary(source, this.libraryManager, this.modelManager);
 
-            return readLibrary(new ByteArrayInputStream(
-                    translator.convertToXml(translatedLibrary).getBytes(StandardCharsets.UTF_8)));
-        } catch (JAXBException e) {
-            throw new IllegalArgumentException(String.format("Errors occurred translating library %s%s.",
-                    identifier.getId(), identifier.getVersion() != null ? ("-" + identifier.getVersion()) : ""));
+        if (contentHash != null) {
+            this.libraryCache.putSource(name, contentHash, library);
         }
+
+        return library;
     }
 
     @Override
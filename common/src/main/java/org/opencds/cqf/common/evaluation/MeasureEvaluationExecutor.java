@@ -0,0 +1,65 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PreDestroy;
+
+import org.opencds.cqf.common.config.HapiProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * The worker pool shared by every measure evaluation, sized by
+ * measure_evaluation.threads. Evaluations submit partitions of their patients
+ * to it (and wait for them) from their own threads, so the number of threads
+ * evaluating measures is bounded however many requests are running. Work run
+ * on the pool must not submit more work to it and wait for it, since every
+ * worker could then be waiting.
+ */
+@Component
+public class MeasureEvaluationExecutor {
+
+    private final int threads;
+    private final ExecutorService executor;
+
+    public MeasureEvaluationExecutor() {
+        this(HapiProperties.getMeasureEvaluationThreads());
+    }
+
+    public MeasureEvaluationExecutor(int threads) {
+        this.threads = Math.max(1, threads);
+        this.executor = Executors.newFixedThreadPool(this.threads, new WorkerThreadFactory());
+    }
+
+    /**
+     * @return the number of worker threads. With a single thread evaluations run
+     *         serially on the calling thread instead.
+     */
+    public int getThreads() {
+        return this.threads;
+    }
+
+    public <T> Future<T> submit(Callable<T> task) {
+        return this.executor.submit(task);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    private static class WorkerThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "measure-evaluation-" + this.count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
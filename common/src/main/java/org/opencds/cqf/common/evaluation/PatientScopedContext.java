@@ -0,0 +1,330 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+import org.cqframework.cql.elm.execution.AggregateExpression;
+import org.cqframework.cql.elm.execution.BinaryExpression;
+import org.cqframework.cql.elm.execution.Case;
+import org.cqframework.cql.elm.execution.CaseItem;
+import org.cqframework.cql.elm.execution.Code;
+import org.cqframework.cql.elm.execution.CodeRef;
+import org.cqframework.cql.elm.execution.CodeSystemRef;
+import org.cqframework.cql.elm.execution.Concept;
+import org.cqframework.cql.elm.execution.ConceptRef;
+import org.cqframework.cql.elm.execution.Expression;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.ExpressionRef;
+import org.cqframework.cql.elm.execution.FunctionDef;
+import org.cqframework.cql.elm.execution.FunctionRef;
+import org.cqframework.cql.elm.execution.If;
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Interval;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.Literal;
+import org.cqframework.cql.elm.execution.NaryExpression;
+import org.cqframework.cql.elm.execution.Now;
+import org.cqframework.cql.elm.execution.Null;
+import org.cqframework.cql.elm.execution.OperandRef;
+import org.cqframework.cql.elm.execution.ParameterRef;
+import org.cqframework.cql.elm.execution.Quantity;
+import org.cqframework.cql.elm.execution.Ratio;
+import org.cqframework.cql.elm.execution.TernaryExpression;
+import org.cqframework.cql.elm.execution.Today;
+import org.cqframework.cql.elm.execution.Tuple;
+import org.cqframework.cql.elm.execution.TupleElement;
+import org.cqframework.cql.elm.execution.UnaryExpression;
+import org.cqframework.cql.elm.execution.ValueSetRef;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A Context whose expression cache is scoped to the Patient context value. When
+ * the patient changes, the cached results of patient-dependent definitions are
+ * evicted, while the results of definitions that don't depend on the patient
+ * are kept, so they are evaluated once per run rather than once per patient.
+ *
+ * The engine doesn't expose its expression cache, so eviction reads it
+ * reflectively. If that isn't possible, expression caching is disabled rather
+ * than risk returning another patient's results.
+ */
+public class PatientScopedContext extends Context {
+
+    private static final Logger logger = LoggerFactory.getLogger(PatientScopedContext.class);
+
+    private static final Field expressionsField = getExpressionsField();
+
+    private Set<String> patientIndependentDefs;
+    private String libraryName;
+    private Object patientId;
+
+    /**
+     * @param patientIndependentDefs the definitions whose results don't depend on
+     *                               the patient, as returned by
+     *                               getPatientIndependentDefs()
+     */
+    public PatientScopedContext(Library library, Set<String> patientIndependentDefs) {
+        super(library);
+        this.patientIndependentDefs = patientIndependentDefs;
+        this.libraryName = library.getIdentifier() != null ? library.getIdentifier().getId() : null;
+    }
+
+    /**
+     * Returns the definitions of the given libraries whose results don't depend
+     * on the patient, in the form expected by the constructor. These are the
+     * Unfiltered (or Population) context definitions, and the definitions that
+     * neither retrieve data nor (transitively) reference a patient-dependent
+     * definition, such as intervals computed from parameters. Expressions the
+     * analysis doesn't recognise are assumed to depend on the patient.
+     */
+    public static Set<String> getPatientIndependentDefs(Iterable<Library> libraries) {
+        return Collections.unmodifiableSet(new DependencyAnalysis(libraries).getPatientIndependentDefs());
+    }
+
+    @Override
+    public void setContextValue(String context, Object contextValue) {
+        // The engine may set context values while this class is still being
+        // constructed
+        if (this.patientIndependentDefs != null && "Patient".equals(context)
+                && !Objects.equals(contextValue, this.patientId)) {
+            evictPatientExpressions();
+            this.patientId = contextValue;
+        }
+
+        super.setContextValue(context, contextValue);
+    }
+
+    @Override
+    public void setExpressionCaching(boolean expressionCaching) {
+        super.setExpressionCaching(expressionCaching && expressionsField != null);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void evictPatientExpressions() {
+        if (expressionsField == null) {
+            return;
+        }
+
+        try {
+            Map<Object, Object> expressions = (Map<Object, Object>) expressionsField.get(this);
+            Iterator<Map.Entry<Object, Object>> entries = expressions.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<Object, Object> entry = entries.next();
+                if (entry.getKey() instanceof VersionedIdentifier && entry.getValue() instanceof Map) {
+                    // Results cached per library
+                    String name = ((VersionedIdentifier) entry.getKey()).getId();
+                    ((Map<String, Object>) entry.getValue()).keySet()
+                            .removeIf(def -> !this.patientIndependentDefs.contains(getKey(name, def)));
+                } else if (!(entry.getKey() instanceof String)
+                        || !this.patientIndependentDefs.contains(getKey(this.libraryName, (String) entry.getKey()))) {
+                    entries.remove();
+                }
+            }
+        } catch (Exception e) {
+            logger.warn("Unable to evict patient expressions, disabling expression caching", e);
+            super.setExpressionCaching(false);
+        }
+    }
+
+    private static String getKey(String libraryName, String defName) {
+        return libraryName + "|" + defName;
+    }
+
+    private static Field getExpressionsField() {
+        try {
+            Field field = Context.class.getDeclaredField("expressions");
+            if (!Map.class.isAssignableFrom(field.getType())) {
+                logger.warn("Unexpected expression cache type, expression caching will be disabled");
+                return null;
+            }
+
+            field.setAccessible(true);
+            return field;
+        } catch (Exception e) {
+            logger.warn("Unable to access the expression cache, expression caching will be disabled", e);
+            return null;
+        }
+    }
+
+    private static class DependencyAnalysis {
+        // Functions can be overloaded, so a key can have several definitions
+        private Map<String, List<ExpressionDef>> defs = new HashMap<>();
+        // Library id by include alias, per library id
+        private Map<String, Map<String, String>> includes = new HashMap<>();
+        private Map<String, Boolean> independent = new HashMap<>();
+        private Set<String> visiting = new HashSet<>();
+
+        private DependencyAnalysis(Iterable<Library> libraries) {
+            for (Library library : libraries) {
+                if (library.getIdentifier() == null) {
+                    continue;
+                }
+
+                String libraryId = library.getIdentifier().getId();
+                Map<String, String> aliases = new HashMap<>();
+                if (library.getIncludes() != null) {
+                    for (IncludeDef include : library.getIncludes().getDef()) {
+                        aliases.put(include.getLocalIdentifier(), include.getPath());
+                    }
+                }
+                this.includes.put(libraryId, aliases);
+
+                if (library.getStatements() != null) {
+                    for (ExpressionDef def : library.getStatements().getDef()) {
+                        this.defs.computeIfAbsent(getKey(libraryId, def.getName()), x -> new ArrayList<>()).add(def);
+                    }
+                }
+            }
+        }
+
+        private Set<String> getPatientIndependentDefs() {
+            Set<String> result = new HashSet<>();
+            for (Map.Entry<String, List<ExpressionDef>> entry : this.defs.entrySet()) {
+                // Function results depend on their arguments, so they're never kept
+                if (entry.getValue().stream().anyMatch(x -> x instanceof FunctionDef)) {
+                    continue;
+                }
+
+                String key = entry.getKey();
+                if (isIndependent(key)) {
+                    result.add(key);
+                }
+            }
+
+            return result;
+        }
+
+        private boolean isIndependent(String key) {
+            Boolean cached = this.independent.get(key);
+            if (cached != null) {
+                return cached;
+            }
+
+            List<ExpressionDef> keyDefs = this.defs.get(key);
+            // Unknown definitions, and definitions that reference themselves
+            if (keyDefs == null || !this.visiting.add(key)) {
+                return false;
+            }
+
+            String libraryId = key.substring(0, key.indexOf('|'));
+            boolean result = true;
+            for (ExpressionDef def : keyDefs) {
+                if ("Unfiltered".equals(def.getContext()) || "Population".equals(def.getContext())) {
+                    continue;
+                }
+
+                if (def.getExpression() == null || !isIndependent(def.getExpression(), libraryId)) {
+                    result = false;
+                    break;
+                }
+            }
+
+            this.visiting.remove(key);
+            this.independent.put(key, result);
+            return result;
+        }
+
+        private boolean isIndependent(Expression expression, String libraryId) {
+            if (expression == null || expression instanceof Literal || expression instanceof Null
+                    || expression instanceof Quantity || expression instanceof Ratio
+                    || expression instanceof ParameterRef || expression instanceof OperandRef
+                    || expression instanceof CodeSystemRef || expression instanceof ValueSetRef
+                    || expression instanceof CodeRef || expression instanceof ConceptRef
+                    || expression instanceof Code || expression instanceof Concept || expression instanceof Now
+                    || expression instanceof Today) {
+                return true;
+            }
+
+            if (expression instanceof ExpressionRef) {
+                ExpressionRef ref = (ExpressionRef) expression;
+                String refLibraryId = libraryId;
+                if (ref.getLibraryName() != null) {
+                    Map<String, String> aliases = this.includes.get(libraryId);
+                    refLibraryId = aliases != null ? aliases.get(ref.getLibraryName()) : null;
+                    if (refLibraryId == null) {
+                        return false;
+                    }
+                }
+
+                if (!isIndependent(getKey(refLibraryId, ref.getName()))) {
+                    return false;
+                }
+
+                return !(ref instanceof FunctionRef) || areIndependent(((FunctionRef) ref).getOperand(), libraryId);
+            }
+
+            if (expression instanceof UnaryExpression) {
+                return isIndependent(((UnaryExpression) expression).getOperand(), libraryId);
+            }
+            if (expression instanceof BinaryExpression) {
+                return areIndependent(((BinaryExpression) expression).getOperand(), libraryId);
+            }
+            if (expression instanceof TernaryExpression) {
+                return areIndependent(((TernaryExpression) expression).getOperand(), libraryId);
+            }
+            if (expression instanceof NaryExpression) {
+                return areIndependent(((NaryExpression) expression).getOperand(), libraryId);
+            }
+            if (expression instanceof AggregateExpression) {
+                return isIndependent(((AggregateExpression) expression).getSource(), libraryId);
+            }
+            if (expression instanceof Interval) {
+                Interval interval = (Interval) expression;
+                return isIndependent(interval.getLow(), libraryId) && isIndependent(interval.getHigh(), libraryId)
+                        && isIndependent(interval.getLowClosedExpression(), libraryId)
+                        && isIndependent(interval.getHighClosedExpression(), libraryId);
+            }
+            if (expression instanceof If) {
+                If ifExpression = (If) expression;
+                return isIndependent(ifExpression.getCondition(), libraryId)
+                        && isIndependent(ifExpression.getThen(), libraryId)
+                        && isIndependent(ifExpression.getElse(), libraryId);
+            }
+            if (expression instanceof Case) {
+                Case caseExpression = (Case) expression;
+                for (CaseItem item : caseExpression.getCaseItem()) {
+                    if (!isIndependent(item.getWhen(), libraryId) || !isIndependent(item.getThen(), libraryId)) {
+                        return false;
+                    }
+                }
+                return isIndependent(caseExpression.getComparand(), libraryId)
+                        && isIndependent(caseExpression.getElse(), libraryId);
+            }
+            if (expression instanceof Tuple) {
+                for (TupleElement element : ((Tuple) expression).getElement()) {
+                    if (!isIndependent(element.getValue(), libraryId)) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+            if (expression instanceof org.cqframework.cql.elm.execution.List) {
+                return areIndependent(((org.cqframework.cql.elm.execution.List) expression).getElement(), libraryId);
+            }
+
+            // Retrieves, queries (whose aliases are only known in scope) and
+            // anything else
+            return false;
+        }
+
+        private boolean areIndependent(List<Expression> expressions, String libraryId) {
+            for (Expression expression : expressions) {
+                if (!isIndependent(expression, libraryId)) {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Counts the values of a Measure's supplemental data elements over a set of
+ * patients in a single pass. The system and display of each code are captured
+ * when the value is added, so the report can be built without visiting the
+ * patients again. Accumulators filled for disjoint sets of patients can be
+ * merged.
+ */
+public class SupplementalDataAccumulator {
+
+    // SDE key -> system|code -> value, in the order values were first seen
+    private final Map<String, Map<String, Value>> values = new LinkedHashMap<>();
+
+    public void add(String sdeKey, String system, String code, String display) {
+        if (code == null) {
+            return;
+        }
+
+        Value value = this.values.computeIfAbsent(sdeKey, x -> new LinkedHashMap<>())
+                .computeIfAbsent(system + "|" + code, x -> new Value(system, code));
+        value.count++;
+        if (value.display == null) {
+            value.display = display;
+        }
+    }
+
+    public void merge(SupplementalDataAccumulator other) {
+        other.values.forEach((sdeKey, otherValues) -> {
+            Map<String, Value> sdeValues = this.values.computeIfAbsent(sdeKey, x -> new LinkedHashMap<>());
+            otherValues.forEach((key, otherValue) -> {
+                Value value = sdeValues.computeIfAbsent(key, x -> new Value(otherValue.system, otherValue.code));
+                value.count += otherValue.count;
+                if (value.display == null) {
+                    value.display = otherValue.display;
+                }
+            });
+        });
+    }
+
+    public boolean isEmpty() {
+        return this.values.isEmpty();
+    }
+
+    /**
+     * Calls the action with each SDE key and each value counted for it.
+     */
+    public void forEach(BiConsumer<String, Value> action) {
+        this.values.forEach((sdeKey, sdeValues) -> sdeValues.values().forEach(value -> action.accept(sdeKey, value)));
+    }
+
+    public static class Value {
+        private final String system;
+        private final String code;
+        private String display;
+        private int count;
+
+        private Value(String system, String code) {
+            this.system = system;
+            this.code = code;
+        }
+
+        public String getSystem() {
+            return this.system;
+        }
+
+        public String getCode() {
+            return this.code;
+        }
+
+        public String getDisplay() {
+            return this.display;
+        }
+
+        public int getCount() {
+            return this.count;
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package org.opencds.cqf.common.exceptions;
+
+import org.hl7.fhir.instance.model.api.IBaseOperationOutcome;
+
+import ca.uhn.fhir.rest.server.exceptions.BaseServerResponseException;
+
+/**
+ * Responds with 202 Accepted to a request that is being processed
+ * asynchronously. The response headers (e.g. Content-Location) tell the client
+ * where to poll for the result.
+ */
+public class AcceptedException extends BaseServerResponseException {
+    private static final long serialVersionUID = 1L;
+
+    public static final int STATUS_CODE = 202;
+
+    public AcceptedException(String message, IBaseOperationOutcome operationOutcome) {
+        super(STATUS_CODE, message, operationOutcome);
+    }
+}
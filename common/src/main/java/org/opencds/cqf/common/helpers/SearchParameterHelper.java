@@ -0,0 +1,41 @@
+package org.opencds.cqf.common.helpers;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.rest.api.RestSearchParameterTypeEnum;
+
+public class SearchParameterHelper {
+
+    // Returns the FHIR paths of a reference search parameter for the given
+    // resource type, or null if they can't all be followed with the terser
+    public static List<String> getReferencePaths(String dataType, RuntimeSearchParam searchParam) {
+        if (searchParam == null || searchParam.getParamType() != RestSearchParameterTypeEnum.REFERENCE) {
+            return null;
+        }
+
+        List<String> paths = new ArrayList<>();
+        for (String path : searchParam.getPathsSplit()) {
+            path = path.trim();
+            if (!path.contains(dataType + ".")) {
+                continue;
+            }
+
+            // e.g. Observation.subject.where(resolve() is Patient); only Patient
+            // references are of interest anyway
+            int where = path.indexOf(".where(");
+            if (where >= 0) {
+                path = path.substring(0, where);
+            }
+
+            if (!path.startsWith(dataType + ".") || path.contains("(") || path.contains(" ")) {
+                return null;
+            }
+
+            paths.add(path);
+        }
+
+        return paths.isEmpty() ? null : paths;
+    }
+}
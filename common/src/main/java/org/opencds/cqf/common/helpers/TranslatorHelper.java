@@ -1,12 +1,15 @@
 package org.opencds.cqf.common.helpers;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 
+import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
 
 import org.cqframework.cql.cql2elm.CqlTranslator;
 import org.cqframework.cql.cql2elm.CqlTranslatorException;
@@ -18,6 +21,40 @@ import org.opencds.cqf.cql.engine.execution.CqlLibraryReader;
 
 public class TranslatorHelper {
 
+    // Building a JAXBContext is far more expensive than marshalling a library,
+    // and the context itself is thread-safe, so it is created once.
+    private static JAXBContext elmContext;
+
+    private static synchronized JAXBContext getElmContext() throws JAXBException {
+        if (elmContext == null) {
+            elmContext = JAXBContext.newInstance(org.hl7.elm.r1.Library.class,
+                    org.hl7.cql_annotations.r1.Annotation.class);
+        }
+
+        return elmContext;
+    }
+
+    /**
+     * Converts a translated library to the engine's execution model. The library
+     * is marshalled straight into a byte buffer with a shared JAXBContext and read
+     * back from that buffer, rather than going through a String and a fresh
+     * JAXBContext (and, in LibraryLoader, a throwaway translator) on every call.
+     * The XML round trip itself remains: the engine's execution classes are
+     * created by its own JAXB factory while reading, and there is no direct
+     * mapping from the translator's model. See TranslatorHelperBenchmark.
+     */
+    public static Library toExecutionLibrary(org.hl7.elm.r1.Library library) {
+        ElmBuffer elm = new ElmBuffer();
+        try {
+            Marshaller marshaller = getElmContext().createMarshaller();
+            marshaller.marshal(new org.hl7.elm.r1.ObjectFactory().createLibrary(library), elm);
+        } catch (JAXBException e) {
+            throw new IllegalArgumentException("Error encountered while converting ELM: " + e.getMessage());
+        }
+
+        return readLibrary(elm.toInputStream());
+    }
+
     public static Library readLibrary(InputStream xmlStream) {
         try {
             return CqlLibraryReader.read(xmlStream);
@@ -75,10 +112,17 @@ public class TranslatorHelper {
     public static Library translateLibrary(InputStream cqlStream, LibraryManager libraryManager,
             ModelManager modelManager) {
         CqlTranslator translator = getTranslator(cqlStream, libraryManager, modelManager);
-        return readLibrary(new ByteArrayInputStream(translator.toXml().getBytes(StandardCharsets.UTF_8)));
+        return translateLibrary(translator);
     }
 
     public static Library translateLibrary(CqlTranslator translator) {
-        return readLibrary(new ByteArrayInputStream(translator.toXml().getBytes(StandardCharsets.UTF_8)));
+        return toExecutionLibrary(translator.toELM());
+    }
+
+    // Exposes the written bytes for reading without copying them
+    private static class ElmBuffer extends ByteArrayOutputStream {
+        private InputStream toInputStream() {
+            return new ByteArrayInputStream(this.buf, 0, this.count);
+        }
     }
 }
\ No newline at end of file
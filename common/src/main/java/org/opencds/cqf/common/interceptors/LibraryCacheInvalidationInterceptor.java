@@ -0,0 +1,56 @@
+package org.opencds.cqf.common.interceptors;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/**
+ * Evicts compiled libraries from the CompiledLibraryCache when a Library
+ * resource is created, updated or deleted through the JPA DAOs. Must be
+ * registered with the JPA interceptor service (not the RestfulServer) so that
+ * writes made internally by operations are seen as well.
+ */
+@Interceptor
+public class LibraryCacheInvalidationInterceptor {
+
+    private FhirContext fhirContext;
+    private CompiledLibraryCache libraryCache;
+
+    public LibraryCacheInvalidationInterceptor(FhirContext fhirContext, CompiledLibraryCache libraryCache) {
+        this.fhirContext = fhirContext;
+        this.libraryCache = libraryCache;
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource theResource) {
+        invalidate(theResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+        invalidate(theOldResource);
+        invalidate(theNewResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource theResource) {
+        invalidate(theResource);
+    }
+
+    private void invalidate(IBaseResource resource) {
+        if (resource == null || !"Library".equals(this.fhirContext.getResourceDefinition(resource).getName())) {
+            return;
+        }
+
+        IPrimitiveType<?> name = this.fhirContext.newTerser().getSingleValueOrNull(resource, "name",
+                IPrimitiveType.class);
+        if (name != null) {
+            this.libraryCache.invalidate(name.getValueAsString());
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package org.opencds.cqf.common.interceptors;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import javax.inject.Inject;
+
+import org.hl7.fhir.instance.model.api.IBaseReference;
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.common.helpers.SearchParameterHelper;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.context.RuntimeResourceDefinition;
+import ca.uhn.fhir.context.RuntimeSearchParam;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+import ca.uhn.fhir.util.FhirTerser;
+
+/**
+ * Records which patients had resources in their compartment created, updated or
+ * deleted through the JPA DAOs, so incremental measure evaluation can re-evaluate
+ * only those patients. Every change is stamped with a sequence number; callers
+ * remember the watermark they last evaluated at and ask for the patients changed
+ * since. Writes to the artifacts a measure is evaluated with (Measure, Library,
+ * ValueSet, CodeSystem) bump a separate artifact version instead, since they can
+ * change the result for every patient. MeasureReports are the output of
+ * evaluation rather than its input, so writing them isn't recorded at all.
+ *
+ * Changes are recorded before the transaction commits and again after it
+ * commits, so a patient evaluated in between is still seen as changed by the
+ * next run. Changes are held in memory only, so a restart starts every
+ * incremental evaluation over, and callers trim the changes they no longer need
+ * with trimChanges.
+ */
+@Component
+@Interceptor
+public class PatientChangeTracker {
+
+    private static final Set<String> artifactTypes = new HashSet<>(
+            Arrays.asList("Measure", "Library", "ValueSet", "CodeSystem"));
+
+    private static final Set<String> ignoredTypes = Collections.singleton("MeasureReport");
+
+    private FhirContext fhirContext;
+
+    private final AtomicLong sequence = new AtomicLong();
+    private final AtomicLong artifactVersion = new AtomicLong();
+    private final AtomicLong sharedWatermark = new AtomicLong();
+    private final AtomicLong trimmedWatermark = new AtomicLong();
+    private final Map<String, Long> changes = new ConcurrentHashMap<>();
+    private final Map<String, List<String>> compartmentPaths = new ConcurrentHashMap<>();
+
+    @Inject
+    public PatientChangeTracker(FhirContext fhirContext) {
+        this.fhirContext = fhirContext;
+    }
+
+    /**
+     * @return the sequence number of the latest change to any resource other than
+     *         an artifact. Changes made after this call have a greater sequence
+     *         number.
+     */
+    public long getWatermark() {
+        return this.sequence.get();
+    }
+
+    /**
+     * @return the sequence number of the latest change to the given patient. If
+     *         the patient's changes were trimmed, or none were recorded, the
+     *         watermark changes were last trimmed at is returned instead.
+     */
+    public long getWatermark(String patientId) {
+        // Read first, so a change trimmed after this read is still covered
+        long trimmed = this.trimmedWatermark.get();
+        Long changed = this.changes.get(patientId);
+        return changed != null ? Math.max(changed, trimmed) : trimmed;
+    }
+
+    /**
+     * @return the sequence number of the latest change to a resource outside
+     *         every patient's compartment (such as a Medication or Organization).
+     *         Such a change can affect any patient, so it can't be evaluated
+     *         incrementally.
+     */
+    public long getSharedWatermark() {
+        return this.sharedWatermark.get();
+    }
+
+    public long getArtifactVersion() {
+        return this.artifactVersion.get();
+    }
+
+    /**
+     * @return the ids of the patients changed after the given watermark
+     */
+    public Set<String> getChangedPatients(long watermark) {
+        return this.changes.entrySet().stream().filter(x -> x.getValue() > watermark).map(Map.Entry::getKey)
+                .collect(Collectors.toSet());
+    }
+
+    /**
+     * Forgets the patient changes made at or before the given watermark.
+     * getChangedPatients must not be called with a watermark below it afterwards.
+     */
+    public void trimChanges(long watermark) {
+        this.trimmedWatermark.accumulateAndGet(watermark, Math::max);
+        this.changes.values().removeIf(x -> x <= watermark);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource theResource) {
+        record(theResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+        // The old version may have been in another patient's compartment
+        record(theOldResource);
+        record(theNewResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource theResource) {
+        record(theResource);
+    }
+
+    private void record(IBaseResource resource) {
+        if (resource == null) {
+            return;
+        }
+
+        recordChange(resource);
+
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                @Override
+                public void afterCommit() {
+                    recordChange(resource);
+                }
+            });
+        }
+    }
+
+    private void recordChange(IBaseResource resource) {
+        String type = this.fhirContext.getResourceDefinition(resource).getName();
+        if (ignoredTypes.contains(type)) {
+            return;
+        }
+
+        if (artifactTypes.contains(type)) {
+            this.artifactVersion.incrementAndGet();
+            return;
+        }
+
+        // Every write moves the watermark, including writes of resources outside
+        // any patient's compartment (Medication, Practitioner, Organization, ...)
+        // that population reports may still depend on
+        long changed = this.sequence.incrementAndGet();
+        Set<String> patientIds = getPatientIds(type, resource);
+        if (patientIds.isEmpty()) {
+            this.sharedWatermark.accumulateAndGet(changed, Math::max);
+        }
+        for (String patientId : patientIds) {
+            this.changes.put(patientId, changed);
+        }
+    }
+
+    private Set<String> getPatientIds(String type, IBaseResource resource) {
+        if ("Patient".equals(type)) {
+            return resource.getIdElement().getIdPart() != null
+                    ? Collections.singleton(resource.getIdElement().getIdPart())
+                    : Collections.emptySet();
+        }
+
+        Set<String> patients = new HashSet<>();
+        FhirTerser terser = this.fhirContext.newTerser();
+        for (String path : this.compartmentPaths.computeIfAbsent(type, this::getCompartmentPaths)) {
+            for (IBaseReference reference : terser.getValues(resource, path, IBaseReference.class)) {
+                IIdType id = reference.getReferenceElement();
+                if (id != null && "Patient".equals(id.getResourceType()) && id.getIdPart() != null) {
+                    patients.add(id.getIdPart());
+                }
+            }
+        }
+
+        return patients;
+    }
+
+    // The paths of the Patient compartment search parameters of a resource type
+    private List<String> getCompartmentPaths(String type) {
+        RuntimeResourceDefinition definition = this.fhirContext.getResourceDefinition(type);
+        List<RuntimeSearchParam> searchParams = definition.getSearchParamsForCompartmentName("Patient");
+        if (searchParams == null) {
+            return Collections.emptyList();
+        }
+
+        Set<String> paths = new HashSet<>();
+        for (RuntimeSearchParam searchParam : searchParams) {
+            List<String> referencePaths = SearchParameterHelper.getReferencePaths(type, searchParam);
+            if (referencePaths != null) {
+                paths.addAll(referencePaths);
+            }
+        }
+
+        return Collections.unmodifiableList(new ArrayList<>(paths));
+    }
+}
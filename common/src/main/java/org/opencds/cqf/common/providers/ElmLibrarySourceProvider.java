@@ -0,0 +1,33 @@
+package org.opencds.cqf.common.providers;
+
+import java.io.InputStream;
+
+import org.hl7.elm.r1.VersionedIdentifier;
+
+/**
+ * A LibrarySourceProvider that can also supply precompiled ELM for a library,
+ * so the library can be loaded without translating its CQL.
+ */
+public interface ElmLibrarySourceProvider extends org.cqframework.cql.cql2elm.LibrarySourceProvider {
+
+    String ELM_XML_CONTENT_TYPE = "application/elm+xml";
+
+    /**
+     * The version id of libraries that aren't stored, whose source is one of the
+     * translator's built-in libraries (such as FHIRHelpers).
+     */
+    String BUILT_IN_VERSION_ID = "built-in";
+
+    /**
+     * Returns the ELM XML content of the library, or null if the library has no
+     * ELM content.
+     */
+    InputStream getLibraryElm(VersionedIdentifier versionedIdentifier);
+
+    /**
+     * Returns the meta versionId of the stored Library, BUILT_IN_VERSION_ID if
+     * there is no stored Library, or null if the version of the stored Library
+     * can't be identified. Compiled libraries are cached by this id.
+     */
+    String getLibraryVersionId(VersionedIdentifier versionedIdentifier);
+}
@@ -6,12 +6,12 @@ import java.util.function.Function;
 
 import org.cqframework.cql.cql2elm.FhirLibrarySourceProvider;
 import org.hl7.elm.r1.VersionedIdentifier;
+import org.hl7.fhir.instance.model.api.IBaseResource;
 
 /**
  * Created by Christopher on 1/12/2017.
  */
-public class LibrarySourceProvider<LibraryType, AttachmentType>
-        implements org.cqframework.cql.cql2elm.LibrarySourceProvider {
+public class LibrarySourceProvider<LibraryType, AttachmentType> implements ElmLibrarySourceProvider {
 
     private FhirLibrarySourceProvider innerProvider;
     private LibraryResolutionProvider<LibraryType> provider;
@@ -33,17 +33,52 @@ public class LibrarySourceProvider<LibraryType, AttachmentType>
 
     @Override
     public InputStream getLibrarySource(VersionedIdentifier versionedIdentifier) {
+        InputStream source = this.getAttachmentContent(versionedIdentifier, "text/cql");
+        if (source != null) {
+            return source;
+        }
+
+        return this.innerProvider.getLibrarySource(versionedIdentifier);
+    }
+
+    @Override
+    public InputStream getLibraryElm(VersionedIdentifier versionedIdentifier) {
+        return this.getAttachmentContent(versionedIdentifier, ELM_XML_CONTENT_TYPE);
+    }
+
+    @Override
+    public String getLibraryVersionId(VersionedIdentifier versionedIdentifier) {
+        LibraryType lib = this.resolveLibrary(versionedIdentifier);
+        if (lib == null) {
+            return BUILT_IN_VERSION_ID;
+        }
+
+        if (lib instanceof IBaseResource && ((IBaseResource) lib).getMeta() != null) {
+            return ((IBaseResource) lib).getMeta().getVersionId();
+        }
+
+        return null;
+    }
+
+    private InputStream getAttachmentContent(VersionedIdentifier versionedIdentifier, String contentType) {
         try {
-            LibraryType lib = this.provider.resolveLibraryByName(versionedIdentifier.getId(),
-                    versionedIdentifier.getVersion());
+            LibraryType lib = this.resolveLibrary(versionedIdentifier);
             for (AttachmentType attachment : this.getAttachments.apply(lib)) {
-                if (this.getContentType.apply(attachment).equals("text/cql")) {
+                if (this.getContentType.apply(attachment).equals(contentType)) {
                     return new ByteArrayInputStream(this.getContent.apply(attachment));
                 }
             }
         } catch (Exception e) {
         }
 
-        return this.innerProvider.getLibrarySource(versionedIdentifier);
+        return null;
+    }
+
+    private LibraryType resolveLibrary(VersionedIdentifier versionedIdentifier) {
+        try {
+            return this.provider.resolveLibraryByName(versionedIdentifier.getId(), versionedIdentifier.getVersion());
+        } catch (Exception e) {
+            return null;
+        }
     }
 }
\ No newline at end of file
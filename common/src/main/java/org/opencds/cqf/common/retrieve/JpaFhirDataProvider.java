@@ -0,0 +1,23 @@
+package org.opencds.cqf.common.retrieve;
+
+import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
+import org.opencds.cqf.cql.engine.model.ModelResolver;
+
+/**
+ * A CompositeDataProvider whose retrieves are served by a JpaFhirRetrieveProvider,
+ * so callers holding the DataProvider can reach the retrieve provider (e.g. to
+ * prefetch data for a page of patients).
+ */
+public class JpaFhirDataProvider extends CompositeDataProvider {
+
+    private JpaFhirRetrieveProvider retrieveProvider;
+
+    public JpaFhirDataProvider(ModelResolver modelResolver, JpaFhirRetrieveProvider retrieveProvider) {
+        super(modelResolver, retrieveProvider);
+        this.retrieveProvider = retrieveProvider;
+    }
+
+    public JpaFhirRetrieveProvider getRetrieveProvider() {
+        return this.retrieveProvider;
+    }
+}
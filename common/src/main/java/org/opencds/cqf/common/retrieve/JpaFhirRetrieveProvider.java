@@ -1,96 +1,400 @@
 package org.opencds.cqf.common.retrieve;
 
-import java.lang.reflect.Method;
+import java.util.AbstractMap;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.TreeMap;
 
 import javax.inject.Inject;
 
+import org.hl7.fhir.instance.model.api.IBaseReference;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.opencds.cqf.common.helpers.SearchParameterHelper;
 import org.opencds.cqf.cql.engine.fhir.retrieve.SearchParamFhirRetrieveProvider;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.runtime.Interval;
 import org.springframework.stereotype.Component;
 
+import com.google.common.collect.Iterables;
+
+import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.model.api.IQueryParameterOr;
 import ca.uhn.fhir.model.api.IQueryParameterType;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.BaseOrListParam;
+import ca.uhn.fhir.rest.param.DateOrListParam;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.NumberOrListParam;
+import ca.uhn.fhir.rest.param.NumberParam;
+import ca.uhn.fhir.rest.param.QuantityOrListParam;
+import ca.uhn.fhir.rest.param.QuantityParam;
+import ca.uhn.fhir.rest.param.ReferenceOrListParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringOrListParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.param.UriOrListParam;
+import ca.uhn.fhir.rest.param.UriParam;
+import ca.uhn.fhir.util.FhirTerser;
 
 @Component
 public class JpaFhirRetrieveProvider extends SearchParamFhirRetrieveProvider {
 
-    private static final Logger logger = LoggerFactory.getLogger(JpaFhirRetrieveProvider.class);
-
     DaoRegistry registry;
 
+    private Set<String> prefetchPatientIds = Collections.emptySet();
+    private Map<String, Map<String, List<Object>>> prefetched = new HashMap<>();
+
+    private boolean retrieveCaching = false;
+    private Object retrieveCacheContextValue;
+    private Map<String, Iterable<Object>> retrieveCache = new HashMap<>();
+
     @Inject
     public JpaFhirRetrieveProvider(DaoRegistry registry, SearchParameterResolver searchParameterResolver) {
         super(searchParameterResolver);
         this.registry = registry;
     }
 
+    /**
+     * Serves retrieves for the given patients from batched searches. The first
+     * retrieve of a given type and filter for any of these patients searches for
+     * all of them at once, and the results are grouped by patient in memory for
+     * the retrieves that follow. Replaces any earlier prefetch. Prefetched data is
+     * held until clearPrefetch() is called, so a provider that is prefetching must
+     * not be shared between threads.
+     */
+    public void prefetchPatients(Collection<String> patientIds) {
+        this.prefetchPatientIds = new HashSet<>(patientIds);
+        this.prefetched.clear();
+    }
+
+    public void clearPrefetch() {
+        this.prefetchPatientIds = Collections.emptySet();
+        this.prefetched.clear();
+    }
+
+    /**
+     * When enabled, identical retrieves for the same patient return the same
+     * results without searching again. Cached results are dropped when a retrieve
+     * is made for a different patient, so they are scoped to one patient's
+     * evaluation. A provider that caches retrieves must not be shared between
+     * threads.
+     */
+    public void setRetrieveCaching(boolean retrieveCaching) {
+        this.retrieveCaching = retrieveCaching;
+        clearRetrieveCache();
+    }
+
+    public void clearRetrieveCache() {
+        this.retrieveCache.clear();
+        this.retrieveCacheContextValue = null;
+    }
+
+    @Override
+    public Iterable<Object> retrieve(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        if (!this.retrieveCaching) {
+            return super.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes, valueSet,
+                    datePath, dateLowPath, dateHighPath, dateRange);
+        }
+
+        if (contextValue != null && !contextValue.equals(this.retrieveCacheContextValue)) {
+            this.retrieveCache.clear();
+            this.retrieveCacheContextValue = contextValue;
+        }
+
+        String key = getRetrieveKey(context, contextPath, contextValue, dataType, templateId, codePath, codes,
+                valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+        Iterable<Object> results = this.retrieveCache.get(key);
+        if (results == null) {
+            results = super.retrieve(context, contextPath, contextValue, dataType, templateId, codePath, codes,
+                    valueSet, datePath, dateLowPath, dateHighPath, dateRange);
+            this.retrieveCache.put(key, results);
+        }
+
+        return results;
+    }
+
+    private static String getRetrieveKey(String context, String contextPath, Object contextValue, String dataType,
+            String templateId, String codePath, Iterable<Code> codes, String valueSet, String datePath,
+            String dateLowPath, String dateHighPath, Interval dateRange) {
+        StringBuilder key = new StringBuilder();
+        key.append(dataType).append('|').append(context).append('|').append(contextPath).append('|')
+                .append(contextValue).append('|').append(templateId).append('|').append(codePath).append('|')
+                .append(valueSet).append('|');
+
+        if (codes != null) {
+            for (Code code : codes) {
+                key.append(code.getSystem()).append('^').append(code.getVersion()).append('^').append(code.getCode())
+                        .append(',');
+            }
+        }
+
+        key.append('|').append(datePath).append('|').append(dateLowPath).append('|').append(dateHighPath).append('|');
+        if (dateRange != null) {
+            key.append(dateRange.getLowClosed() ? '[' : '(').append(dateRange.getStart()).append(',')
+                    .append(dateRange.getEnd()).append(dateRange.getHighClosed() ? ']' : ')');
+        }
+
+        return key.toString();
+    }
+
     @Override
     protected Iterable<Object> executeQueries(String dataType, List<SearchParameterMap> queries) {
         if (queries == null || queries.isEmpty()) {
             return Collections.emptyList();
         }
 
-        List<Object> objects = new ArrayList<>();
+        if (queries.size() == 1) {
+            return executeQuery(dataType, queries.get(0));
+        }
+
+        List<Iterable<Object>> results = new ArrayList<>();
+        boolean isPaged = false;
         for (SearchParameterMap map : queries) {
-            objects.addAll(executeQuery(dataType, map));
+            Iterable<Object> result = executeQuery(dataType, map);
+            isPaged |= !(result instanceof Collection);
+            results.add(result);
+        }
+
+        // Concatenated lazily, so no page is fetched before it is reached
+        if (isPaged) {
+            return Iterables.concat(results);
+        }
+
+        List<Object> objects = new ArrayList<>();
+        for (Iterable<Object> result : results) {
+            objects.addAll((Collection<Object>) result);
         }
 
         return objects;
     }
 
-    protected Collection<Object> executeQuery(String dataType, SearchParameterMap map) {
-        // TODO: Once HAPI breaks this out from the server dependencies
-        // we can include it on its own.
+    /**
+     * Results that fit in a single page are returned as a List. Larger results,
+     * and results whose size the search doesn't report, are returned as an
+     * Iterable that fetches pages from the search as it is iterated, so they
+     * don't have to fit in memory. Each pass over such an Iterable fetches the
+     * pages of the search's results again; the search itself isn't run again.
+     */
+    @SuppressWarnings("unchecked")
+    protected Iterable<Object> executeQuery(String dataType, SearchParameterMap map) {
+        if (!this.prefetchPatientIds.isEmpty()) {
+            Collection<Object> results = executePrefetchedQuery(dataType, map);
+            if (results != null) {
+                return results;
+            }
+        }
+
+        IFhirResourceDao<?> dao = this.registry.getResourceDao(dataType);
+
+        IBundleProvider bundleProvider = dao.search(toHapiMap(map.entrySet()));
+        Integer size = bundleProvider.size();
+        if (size != null && size == 0) {
+            return new ArrayList<>();
+        }
+        if (size != null && size <= PagedResourceIterable.DEFAULT_PAGE_SIZE) {
+            return resolveResourceList(bundleProvider.getResources(0, size));
+        }
+
+        return (Iterable<Object>) (Iterable<?>) new PagedResourceIterable<>(bundleProvider);
+    }
+
+    // Each OR list is handed to HAPI as the OR list type of its parameters; the
+    // parameters themselves aren't copied
+    ca.uhn.fhir.jpa.searchparam.SearchParameterMap toHapiMap(
+            Iterable<Map.Entry<String, List<List<IQueryParameterType>>>> entries) {
         ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap = new ca.uhn.fhir.jpa.searchparam.SearchParameterMap();
-        try {
+        for (Map.Entry<String, List<List<IQueryParameterType>>> entry : entries) {
+            for (List<IQueryParameterType> or : entry.getValue()) {
+                if (or.isEmpty()) {
+                    continue;
+                }
+
+                IQueryParameterOr<?> orList = toOrList(or);
+                if (orList != null) {
+                    hapiMap.add(entry.getKey(), orList);
+                } else if (or.size() == 1) {
+                    hapiMap.add(entry.getKey(), or.get(0));
+                } else {
+                    throw new IllegalArgumentException(
+                            String.format("Unsupported parameter types for search parameter %s", entry.getKey()));
+                }
+            }
+        }
 
-            Method[] methods = hapiMap.getClass().getDeclaredMethods();
-            List<Method> methodList = Arrays.asList(methods);
-            List<Method> puts = methodList.stream().filter(x -> x.getName().equals("put")).collect(Collectors.toList());
-            Method method = puts.get(0);
-            method.setAccessible(true);
+        return hapiMap;
+    }
 
-            for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
-                method.invoke(hapiMap, entry.getKey(), entry.getValue());
+    // Returns null if the parameters aren't all of one type with an OR list type
+    private static IQueryParameterOr<?> toOrList(List<IQueryParameterType> or) {
+        IQueryParameterType first = or.get(0);
+        if (first instanceof ReferenceParam) {
+            return addAll(new ReferenceOrListParam(), ReferenceParam.class, or);
+        }
+        if (first instanceof TokenParam) {
+            return addAll(new TokenOrListParam(), TokenParam.class, or);
+        }
+        if (first instanceof DateParam) {
+            return addAll(new DateOrListParam(), DateParam.class, or);
+        }
+        if (first instanceof StringParam) {
+            return addAll(new StringOrListParam(), StringParam.class, or);
+        }
+        if (first instanceof UriParam) {
+            return addAll(new UriOrListParam(), UriParam.class, or);
+        }
+        if (first instanceof QuantityParam) {
+            return addAll(new QuantityOrListParam(), QuantityParam.class, or);
+        }
+        if (first instanceof NumberParam) {
+            return addAll(new NumberOrListParam(), NumberParam.class, or);
+        }
+
+        return null;
+    }
+
+    private static <T extends IQueryParameterType> IQueryParameterOr<T> addAll(BaseOrListParam<?, T> orList,
+            Class<T> type, List<IQueryParameterType> or) {
+        for (IQueryParameterType param : or) {
+            if (!type.isInstance(param)) {
+                return null;
             }
+            orList.addOr(type.cast(param));
+        }
+
+        return orList;
+    }
 
-        } catch (Exception e) {
-            logger.warn("Error converting search parameter map", e);
+    // Returns null if the query isn't for exactly one of the prefetched patients,
+    // or if its results can't be grouped by patient, in which case it is run as is
+    private Collection<Object> executePrefetchedQuery(String dataType, SearchParameterMap map) {
+        String contextParam = null;
+        String patientId = null;
+        for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
+            String id = getPatientId(entry.getValue());
+            if (id != null && this.prefetchPatientIds.contains(id)) {
+                if (contextParam != null) {
+                    return null;
+                }
+                contextParam = entry.getKey();
+                patientId = id;
+            }
+        }
+
+        if (contextParam == null) {
+            return null;
         }
 
         IFhirResourceDao<?> dao = this.registry.getResourceDao(dataType);
+        String batchKey = getBatchKey(dao.getContext(), dataType, contextParam, map);
+        Map<String, List<Object>> batch = this.prefetched.get(batchKey);
+        if (batch == null) {
+            List<String> referencePaths = SearchParameterHelper.getReferencePaths(dataType,
+                    dao.getContext().getResourceDefinition(dataType).getSearchParam(contextParam));
+            if (referencePaths == null) {
+                return null;
+            }
 
-        IBundleProvider bundleProvider = dao.search(hapiMap);
-        if (bundleProvider.size() == null) {
-            return resolveResourceList(bundleProvider.getResources(0, 10000));
+            batch = searchBatch(dao, contextParam, map, referencePaths);
+            this.prefetched.put(batchKey, batch);
         }
-        if (bundleProvider.size() == 0) {
-            return new ArrayList<>();
+
+        List<Object> results = batch.get(patientId);
+        return results != null ? new ArrayList<>(results) : new ArrayList<>();
+    }
+
+    // Searches for every prefetched patient at once (the patient parameter is
+    // ORed) and groups the results by the patient they reference
+    private Map<String, List<Object>> searchBatch(IFhirResourceDao<?> dao, String contextParam,
+            SearchParameterMap map, List<String> referencePaths) {
+        List<IQueryParameterType> patients = new ArrayList<>();
+        for (String id : this.prefetchPatientIds) {
+            patients.add(new ReferenceParam("Patient", null, id));
+        }
+
+        List<Map.Entry<String, List<List<IQueryParameterType>>>> entries = new ArrayList<>();
+        for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
+            entries.add(entry.getKey().equals(contextParam)
+                    ? new AbstractMap.SimpleEntry<>(contextParam, Collections.singletonList(patients))
+                    : entry);
+        }
+
+        FhirTerser terser = dao.getContext().newTerser();
+        Map<String, List<Object>> batch = new HashMap<>();
+        for (IBaseResource resource : new PagedResourceIterable<>(dao.search(toHapiMap(entries)))) {
+            Set<String> resourcePatients = new HashSet<>();
+            for (String path : referencePaths) {
+                for (IBaseReference reference : terser.getValues(resource, path, IBaseReference.class)) {
+                    IIdType id = reference.getReferenceElement();
+                    if (id != null && "Patient".equals(id.getResourceType())
+                            && this.prefetchPatientIds.contains(id.getIdPart())) {
+                        resourcePatients.add(id.getIdPart());
+                    }
+                }
+            }
+
+            for (String id : resourcePatients) {
+                batch.computeIfAbsent(id, x -> new ArrayList<>()).add(resource);
+            }
         }
-        List<IBaseResource> resourceList = bundleProvider.getResources(0, bundleProvider.size());
-        return resolveResourceList(resourceList);
+
+        return batch;
     }
 
-    public synchronized Collection<Object> resolveResourceList(List<IBaseResource> resourceList) {
-        List<Object> ret = new ArrayList<>();
-        for (IBaseResource res : resourceList) {
-            Class<?> clazz = res.getClass();
-            ret.add(clazz.cast(res));
+    private static String getPatientId(List<List<IQueryParameterType>> value) {
+        if (value == null || value.size() != 1 || value.get(0).size() != 1
+                || !(value.get(0).get(0) instanceof ReferenceParam)) {
+            return null;
         }
-        // ret.addAll(resourceList);
-        return ret;
+
+        ReferenceParam reference = (ReferenceParam) value.get(0).get(0);
+        if (!"Patient".equals(reference.getResourceType())
+                || (reference.getChain() != null && !reference.getChain().isEmpty())) {
+            return null;
+        }
+
+        return reference.getIdPart();
+    }
+
+    // Identifies the query without its patient parameter, so the retrieves for
+    // all the prefetched patients share a key
+    private static String getBatchKey(FhirContext fhirContext, String dataType, String contextParam,
+            SearchParameterMap map) {
+        Map<String, String> params = new TreeMap<>();
+        for (Map.Entry<String, List<List<IQueryParameterType>>> entry : map.entrySet()) {
+            if (entry.getKey().equals(contextParam)) {
+                continue;
+            }
+
+            StringBuilder value = new StringBuilder();
+            for (List<IQueryParameterType> or : entry.getValue()) {
+                value.append('&');
+                for (IQueryParameterType param : or) {
+                    value.append(',').append(param.getQueryParameterQualifier()).append('=')
+                            .append(param.getValueAsQueryToken(fhirContext));
+                }
+            }
+            params.put(entry.getKey(), value.toString());
+        }
+
+        return dataType + "|" + contextParam + "|" + params.toString();
+    }
+
+    public Collection<Object> resolveResourceList(List<IBaseResource> resourceList) {
+        return new ArrayList<>(resourceList);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,101 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+
+/**
+ * An Iterable over the results of an IBundleProvider that fetches one page at a
+ * time as it is iterated. Only the current page is referenced by an iterator,
+ * so iterating a large result set does not require it to fit in memory. Every
+ * call to iterator() starts again from the first page.
+ */
+public class PagedResourceIterable<T extends IBaseResource> implements Iterable<T> {
+
+    public static final int DEFAULT_PAGE_SIZE = 500;
+
+    private IBundleProvider bundleProvider;
+    private int pageSize;
+
+    public PagedResourceIterable(IBundleProvider bundleProvider) {
+        this(bundleProvider, DEFAULT_PAGE_SIZE);
+    }
+
+    public PagedResourceIterable(IBundleProvider bundleProvider, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be greater than 0");
+        }
+
+        this.bundleProvider = bundleProvider;
+        this.pageSize = pageSize;
+    }
+
+    /**
+     * @return the total number of results, or null if the IBundleProvider does
+     *         not know it
+     */
+    public Integer size() {
+        return this.bundleProvider.size();
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return new PageIterator();
+    }
+
+    private class PageIterator implements Iterator<T> {
+        private Integer size = bundleProvider.size();
+        private int nextPageStart = 0;
+        private List<IBaseResource> page = Collections.emptyList();
+        private int pageIndex = 0;
+        private boolean exhausted = false;
+
+        @Override
+        public boolean hasNext() {
+            while (pageIndex >= page.size()) {
+                if (exhausted) {
+                    return false;
+                }
+
+                fetchNextPage();
+            }
+
+            return true;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+
+            return (T) page.get(pageIndex++);
+        }
+
+        private void fetchNextPage() {
+            int pageEnd = size != null ? Math.min(nextPageStart + pageSize, size) : nextPageStart + pageSize;
+            if (pageEnd <= nextPageStart) {
+                page = Collections.emptyList();
+                exhausted = true;
+                return;
+            }
+
+            page = bundleProvider.getResources(nextPageStart, pageEnd);
+            pageIndex = 0;
+            nextPageStart = pageEnd;
+
+            // An empty page means the provider has nothing further, whether or not
+            // it reported a size
+            if (page == null || page.isEmpty()) {
+                page = Collections.emptyList();
+                exhausted = true;
+            }
+        }
+    }
+}
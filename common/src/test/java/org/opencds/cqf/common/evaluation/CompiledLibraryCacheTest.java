@@ -0,0 +1,104 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.Test;
+
+public class CompiledLibraryCacheTest {
+
+    @Test
+    public void findsLibrariesByVersionId() {
+        CompiledLibraryCache cache = new CompiledLibraryCache(10, 10);
+        Library library = newLibrary("Common");
+        cache.put("Common", "1.0", "3", library);
+
+        assertSame(library, cache.get("Common", "1.0", "3"));
+        assertNull(cache.get("Common", "1.0", "4"));
+        assertNull(cache.get("Common", "2.0", "3"));
+    }
+
+    @Test
+    public void evictsTheLeastRecentlyUsedLibrary() {
+        CompiledLibraryCache cache = new CompiledLibraryCache(2, 2);
+        cache.put("A", null, "1", newLibrary("A"));
+        cache.put("B", null, "1", newLibrary("B"));
+
+        // A is now more recently used than B
+        cache.get("A", null, "1");
+        cache.put("C", null, "1", newLibrary("C"));
+
+        assertEquals(2, cache.size());
+        assertNull(cache.get("B", null, "1"));
+        assertEquals("A", cache.get("A", null, "1").getIdentifier().getId());
+        assertEquals("C", cache.get("C", null, "1").getIdentifier().getId());
+    }
+
+    @Test
+    public void aMaxSizeOfZeroDisablesTheCache() {
+        CompiledLibraryCache cache = new CompiledLibraryCache(0, 0);
+        cache.put("A", null, "1", newLibrary("A"));
+        cache.putSource("B", "hash", newLibrary("B"));
+
+        assertNull(cache.get("A", null, "1"));
+        assertNull(cache.getSource("B", "hash"));
+    }
+
+    @Test
+    public void invalidatesEveryVersionAndTheLibrariesThatIncludeIt() {
+        CompiledLibraryCache cache = new CompiledLibraryCache(10, 10);
+        cache.put("Common", "1.0", "1", newLibrary("Common"));
+        cache.put("Common", "2.0", "1", newLibrary("Common"));
+        cache.put("Helpers", null, "1", newLibrary("Helpers", "Common"));
+        cache.put("Measure", null, "1", newLibrary("Measure", "Helpers"));
+        cache.put("Other", null, "1", newLibrary("Other"));
+        cache.putSource("Expression", "hash", newLibrary("Expression", "Measure"));
+
+        cache.invalidate("Common");
+
+        assertNull(cache.get("Common", "1.0", "1"));
+        assertNull(cache.get("Common", "2.0", "1"));
+        assertNull(cache.get("Helpers", null, "1"));
+        assertNull(cache.get("Measure", null, "1"));
+        assertNull(cache.getSource("Expression", "hash"));
+        assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void sourceLibrariesDontEvictStoredLibraries() {
+        CompiledLibraryCache cache = new CompiledLibraryCache(1, 1);
+        Library stored = newLibrary("Stored");
+        cache.put("Stored", null, "1", stored);
+        cache.putSource("Expression1", "a", newLibrary("Expression1"));
+        cache.putSource("Expression2", "b", newLibrary("Expression2"));
+
+        assertSame(stored, cache.get("Stored", null, "1"));
+        assertNull(cache.getSource("Expression1", "a"));
+    }
+
+    @Test
+    public void hashesContent() {
+        String hash = CompiledLibraryCache.getContentHash("a".getBytes(), null);
+        assertEquals(hash, CompiledLibraryCache.getContentHash("a".getBytes()));
+        assertNotEquals(hash, CompiledLibraryCache.getContentHash("b".getBytes()));
+        assertEquals(64, hash.length());
+    }
+
+    static Library newLibrary(String name, String... includes) {
+        Library library = new Library().withIdentifier(new VersionedIdentifier().withId(name));
+        if (includes.length > 0) {
+            Library.Includes defs = new Library.Includes();
+            for (String include : includes) {
+                defs.getDef().add(new IncludeDef().withPath(include).withLocalIdentifier(include));
+            }
+            library.setIncludes(defs);
+        }
+
+        return library;
+    }
+}
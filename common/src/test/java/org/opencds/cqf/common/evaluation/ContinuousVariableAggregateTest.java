@@ -0,0 +1,193 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ContinuousVariableAggregateTest {
+
+    // The sketch's relative accuracy
+    private static final double ACCURACY = 0.01;
+
+    @Test
+    public void medianIsExactUpToTheLimit() {
+        ContinuousVariableAggregate odd = newAggregate(10, 5, 1, 4, 2, 3);
+        assertEquals(3, odd.getMedian(), 0);
+
+        ContinuousVariableAggregate even = newAggregate(10, 5, 1, 4, 2, 3, 6);
+        assertEquals(3.5, even.getMedian(), 0);
+
+        ContinuousVariableAggregate full = newAggregate(4, 40, 10, 30, 20);
+        assertEquals(25, full.getMedian(), 0);
+    }
+
+    @Test
+    public void medianIsWithinTheAccuracyPastTheLimit() {
+        ContinuousVariableAggregate aggregate = new ContinuousVariableAggregate(10);
+        for (int i = 1; i <= 101; i++) {
+            aggregate.add(i);
+        }
+
+        assertMedian(51, aggregate);
+        assertEquals(101, aggregate.getCount());
+        assertEquals(5151, aggregate.getSum(), 0);
+        assertEquals(1, aggregate.getMin(), 0);
+        assertEquals(101, aggregate.getMax(), 0);
+        assertEquals(51, aggregate.getMean(), 0);
+    }
+
+    @Test
+    public void aLimitOfZeroUsesTheSketchFromTheFirstValue() {
+        ContinuousVariableAggregate aggregate = newAggregate(0, 7, 7, 7);
+
+        assertMedian(7, aggregate);
+        assertEquals(3, aggregate.getCount());
+    }
+
+    @Test
+    public void sketchesNegativeAndZeroValues() {
+        ContinuousVariableAggregate negative = newAggregate(0, -30, -20, -10, 0, 10);
+        assertMedian(-10, negative);
+
+        ContinuousVariableAggregate zero = newAggregate(0, -1, 0, 0, 0, 1);
+        assertEquals(0, zero.getMedian(), 0);
+    }
+
+    @Test
+    public void mergesExactAggregates() {
+        ContinuousVariableAggregate merged = newAggregate(10, 1, 2, 3);
+        merged.merge(newAggregate(10, 4, 5));
+
+        assertEquals(3, merged.getMedian(), 0);
+        assertEquals(5, merged.getCount());
+        assertEquals(15, merged.getSum(), 0);
+    }
+
+    @Test
+    public void mergesExactAggregatesPastTheLimit() {
+        ContinuousVariableAggregate merged = newAggregate(4, 1, 2, 3);
+        merged.merge(newAggregate(4, 4, 5, 6));
+
+        assertMedian(3.5, merged);
+        assertEquals(6, merged.getCount());
+        assertEquals(1, merged.getMin(), 0);
+        assertEquals(6, merged.getMax(), 0);
+    }
+
+    @Test
+    public void mergesASketchIntoAnExactAggregate() {
+        ContinuousVariableAggregate merged = newAggregate(100, 1, 2, 3);
+        merged.merge(newAggregate(2, 4, 5, 6, 7, 8));
+
+        assertMedian(4.5, merged);
+        assertEquals(8, merged.getCount());
+        assertEquals(36, merged.getSum(), 0);
+        assertEquals(1, merged.getMin(), 0);
+        assertEquals(8, merged.getMax(), 0);
+    }
+
+    @Test
+    public void mergesAnExactAggregateIntoASketch() {
+        ContinuousVariableAggregate merged = newAggregate(2, 4, 5, 6, 7, 8);
+        merged.merge(newAggregate(100, 1, 2, 3));
+
+        assertMedian(4.5, merged);
+        assertEquals(8, merged.getCount());
+        assertEquals(36, merged.getSum(), 0);
+        assertEquals(1, merged.getMin(), 0);
+        assertEquals(8, merged.getMax(), 0);
+    }
+
+    @Test
+    public void mergingInEitherOrderGivesTheSameAggregate() {
+        Random random = new Random(42);
+        double[] first = randomValues(random, 3000);
+        double[] second = randomValues(random, 5000);
+
+        ContinuousVariableAggregate forward = newAggregate(1000, first);
+        forward.merge(newAggregate(1000, second));
+        ContinuousVariableAggregate backward = newAggregate(1000, second);
+        backward.merge(newAggregate(1000, first));
+
+        assertEquals(forward.getCount(), backward.getCount());
+        assertEquals(forward.getSum(), backward.getSum(), 1e-6);
+        assertEquals(forward.getMedian(), backward.getMedian(), 0);
+        assertMedian(exactMedian(concat(first, second)), forward);
+    }
+
+    @Test
+    public void medianOfALargeRandomSampleIsWithinOnePercent() {
+        Random random = new Random(7);
+        double[] values = randomValues(random, 200000);
+
+        ContinuousVariableAggregate aggregate = newAggregate(1000, values);
+
+        assertMedian(exactMedian(values), aggregate);
+        assertEquals(values.length, aggregate.getCount());
+    }
+
+    @Test
+    public void reportsTheAggregateMethod() {
+        ContinuousVariableAggregate aggregate = newAggregate(10, 2, 4, 9);
+
+        assertEquals(15, aggregate.getAggregate("sum"), 0);
+        assertEquals(5, aggregate.getAggregate("average"), 0);
+        assertEquals(4, aggregate.getAggregate("median"), 0);
+        assertEquals(2, aggregate.getAggregate("minimum"), 0);
+        assertEquals(9, aggregate.getAggregate("maximum"), 0);
+        assertEquals(3, aggregate.getAggregate("count"), 0);
+        assertNull(aggregate.getAggregate("mode"));
+        assertNull(aggregate.getAggregate(null));
+    }
+
+    @Test
+    public void emptyAggregatesHaveNoValues() {
+        ContinuousVariableAggregate aggregate = new ContinuousVariableAggregate(10);
+
+        assertNull(aggregate.getMedian());
+        assertNull(aggregate.getMean());
+        assertNull(aggregate.getMin());
+        assertNull(aggregate.getMax());
+        assertNull(aggregate.getAggregate("sum"));
+    }
+
+    private static ContinuousVariableAggregate newAggregate(int exactLimit, double... values) {
+        ContinuousVariableAggregate aggregate = new ContinuousVariableAggregate(exactLimit);
+        for (double value : values) {
+            aggregate.add(value);
+        }
+
+        return aggregate;
+    }
+
+    // Lengths of stay, in hours: skewed, as measure observations usually are
+    private static double[] randomValues(Random random, int count) {
+        double[] values = new double[count];
+        for (int i = 0; i < count; i++) {
+            values[i] = Math.exp(3 + random.nextGaussian());
+        }
+
+        return values;
+    }
+
+    private static double exactMedian(double[] values) {
+        double[] sorted = Arrays.copyOf(values, values.length);
+        Arrays.sort(sorted);
+        int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2;
+    }
+
+    private static double[] concat(double[] first, double[] second) {
+        double[] values = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, values, first.length, second.length);
+        return values;
+    }
+
+    private static void assertMedian(double expected, ContinuousVariableAggregate aggregate) {
+        assertEquals(expected, aggregate.getMedian(), Math.abs(expected) * ACCURACY);
+    }
+}
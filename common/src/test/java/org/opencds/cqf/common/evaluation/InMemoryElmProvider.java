@@ -0,0 +1,57 @@
+package org.opencds.cqf.common.evaluation;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.elm.r1.VersionedIdentifier;
+import org.opencds.cqf.common.providers.ElmLibrarySourceProvider;
+
+/**
+ * Serves CQL source, and optionally ELM, from memory as if it were stored on
+ * the server, with a versionId per library, and counts how often each
+ * library's source is read.
+ */
+class InMemoryElmProvider implements ElmLibrarySourceProvider {
+
+    private final Map<String, String> sources = new ConcurrentHashMap<>();
+    private final Map<String, String> elms = new ConcurrentHashMap<>();
+    private final Map<String, String> versionIds = new ConcurrentHashMap<>();
+    final AtomicInteger sourceReads = new AtomicInteger();
+
+    InMemoryElmProvider put(String name, String versionId, String cql) {
+        this.sources.put(name, cql);
+        this.versionIds.put(name, versionId);
+        return this;
+    }
+
+    InMemoryElmProvider putElm(String name, String elm) {
+        this.elms.put(name, elm);
+        return this;
+    }
+
+    @Override
+    public InputStream getLibrarySource(VersionedIdentifier versionedIdentifier) {
+        String cql = this.sources.get(versionedIdentifier.getId());
+        if (cql == null) {
+            return null;
+        }
+
+        this.sourceReads.incrementAndGet();
+        return new ByteArrayInputStream(cql.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public InputStream getLibraryElm(VersionedIdentifier versionedIdentifier) {
+        String elm = this.elms.get(versionedIdentifier.getId());
+        return elm != null ? new ByteArrayInputStream(elm.getBytes(StandardCharsets.UTF_8)) : null;
+    }
+
+    @Override
+    public String getLibraryVersionId(VersionedIdentifier versionedIdentifier) {
+        return this.versionIds.getOrDefault(versionedIdentifier.getId(), BUILT_IN_VERSION_ID);
+    }
+}
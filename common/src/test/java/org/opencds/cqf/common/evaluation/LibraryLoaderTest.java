@@ -0,0 +1,206 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+import org.opencds.cqf.cql.engine.execution.Context;
+
+public class LibraryLoaderTest {
+
+    private static final int THREADS = 8;
+
+    private static final String COMMON_CQL = "library Common version '1'\n"
+            + "define \"Two\": 1 + 1\n";
+
+    private static final String MEASURE_CQL = "library Measure version '1'\n"
+            + "include Common version '1' called C\n"
+            + "define \"Four\": C.\"Two\" * 2\n";
+
+    private ExecutorService threads;
+    private InMemoryElmProvider provider;
+
+    @Before
+    public void setUp() {
+        this.threads = Executors.newFixedThreadPool(THREADS);
+        this.provider = new InMemoryElmProvider().put("Common", "1", COMMON_CQL).put("Measure", "1", MEASURE_CQL);
+    }
+
+    @After
+    public void tearDown() {
+        this.threads.shutdownNow();
+    }
+
+    @Test
+    public void sharedCacheServesLoadersOnSeveralThreads() throws Exception {
+        CompiledLibraryCache cache = new CompiledLibraryCache(10, 10);
+        LibraryLoader first = newLoader(cache);
+        Library cached = first.load(identifier("Measure"));
+        assertEquals(4, evaluate(cached, first, "Four").intValue());
+        int reads = this.provider.sourceReads.get();
+
+        // Each request has its own loader, and each thread its own Context
+        List<Integer> results = runConcurrently(() -> {
+            LibraryLoader loader = newLoader(cache);
+            Library library = loader.load(identifier("Measure"));
+            assertSame(cached, library);
+            return evaluate(library, loader, "Four");
+        });
+
+        results.forEach(x -> assertEquals(4, x.intValue()));
+        assertEquals(reads, this.provider.sourceReads.get());
+    }
+
+    @Test
+    public void sharedLoaderTranslatesEachLibraryOnce() throws Exception {
+        LibraryLoader loader = newLoader(null);
+
+        List<Integer> results = runConcurrently(() -> evaluate(loader.load(identifier("Measure")), loader, "Four"));
+
+        results.forEach(x -> assertEquals(4, x.intValue()));
+        assertSame(loader.load(identifier("Measure")), loader.load(identifier("Measure")));
+
+        // Measure and Common, each read once however many threads loaded them
+        assertTrue("Read " + this.provider.sourceReads.get() + " library sources",
+                this.provider.sourceReads.get() <= 2);
+    }
+
+    @Test
+    public void writesAreSeenAfterInvalidation() {
+        CompiledLibraryCache cache = new CompiledLibraryCache(10, 10);
+        LibraryLoader loader = newLoader(cache);
+        assertEquals(4, evaluate(loader.load(identifier("Measure")), loader, "Four").intValue());
+
+        this.provider.put("Common", "2", "library Common version '1'\ndefine \"Two\": 3\n");
+        cache.invalidate("Common");
+
+        LibraryLoader next = newLoader(cache);
+        assertEquals(6, evaluate(next.load(identifier("Measure")), next, "Four").intValue());
+    }
+
+    @Test
+    public void readsElmWithoutTranslatingTheCql() {
+        this.provider.putElm("Common", toElm("library Common version '1'\ndefine \"Two\": 3\n"));
+        LibraryLoader loader = newLoader(null);
+
+        assertEquals(3, evaluate(loader.load(identifier("Common")), loader, "Two").intValue());
+        assertEquals(0, this.provider.sourceReads.get());
+    }
+
+    @Test
+    public void translatesTheCqlWhenTheElmIsStale() {
+        this.provider.putElm("Common", toElm("library Common version '2'\ndefine \"Two\": 3\n"));
+        LibraryLoader loader = newLoader(null);
+
+        assertEquals(2, evaluate(loader.load(identifier("Common")), loader, "Two").intValue());
+        assertTrue(this.provider.sourceReads.get() > 0);
+    }
+
+    @Test
+    public void translatesTheCqlWhenTheElmCantBeRead() {
+        this.provider.putElm("Common", "<library>not ELM");
+        LibraryLoader loader = newLoader(null);
+
+        assertEquals(2, evaluate(loader.load(identifier("Common")), loader, "Two").intValue());
+        assertTrue(this.provider.sourceReads.get() > 0);
+    }
+
+    @Test
+    public void includedLibrariesAreReadFromTheirElm() {
+        this.provider.putElm("Common", toElm("library Common version '1'\ndefine \"Two\": 3\n"));
+        LibraryLoader loader = newLoader(null);
+
+        // Measure is translated, but its include is loaded through this loader
+        assertEquals(6, evaluate(loader.load(identifier("Measure")), loader, "Four").intValue());
+    }
+
+    @Test
+    public void reusesLibrariesTranslatedFromTheSameSource() {
+        CompiledLibraryCache cache = new CompiledLibraryCache(10, 10);
+        String source = "library LocalLibrary\ninclude Common version '1' called C\ndefine \"Expression\": C.\"Two\" + 1\n";
+
+        Library library = newLoader(cache).translateSource("LocalLibrary", source);
+        assertSame(library, newLoader(cache).translateSource("LocalLibrary", source));
+        assertNotSame(library, newLoader(cache).translateSource("LocalLibrary", source + "define \"Other\": 1\n"));
+
+        LibraryLoader loader = newLoader(cache);
+        assertEquals(3, evaluate(library, loader, "Expression").intValue());
+    }
+
+    @Test
+    public void writesToAnIncludedLibraryEvictTranslatedSources() {
+        CompiledLibraryCache cache = new CompiledLibraryCache(10, 10);
+        String source = "library LocalLibrary\ninclude Common version '1' called C\ndefine \"Expression\": C.\"Two\" + 1\n";
+        Library library = newLoader(cache).translateSource("LocalLibrary", source);
+
+        cache.invalidate("Common");
+
+        assertNotSame(library, newLoader(cache).translateSource("LocalLibrary", source));
+    }
+
+    @Test
+    public void translatesEverySourceWithoutACache() {
+        String source = "library LocalLibrary\ndefine \"Expression\": 1\n";
+        LibraryLoader loader = newLoader(null);
+
+        assertNotSame(loader.translateSource("LocalLibrary", source), loader.translateSource("LocalLibrary", source));
+    }
+
+    private List<Integer> runConcurrently(Callable<Integer> task) throws Exception {
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Integer>> futures = new ArrayList<>();
+        for (int i = 0; i < THREADS * 4; i++) {
+            futures.add(this.threads.submit(() -> {
+                start.await();
+                return task.call();
+            }));
+        }
+
+        start.countDown();
+        List<Integer> results = new ArrayList<>();
+        for (Future<Integer> future : futures) {
+            results.add(future.get());
+        }
+
+        return results;
+    }
+
+    private LibraryLoader newLoader(CompiledLibraryCache cache) {
+        ModelManager modelManager = new ModelManager();
+        LibraryManager libraryManager = new LibraryManager(modelManager);
+        libraryManager.getLibrarySourceLoader().registerProvider(this.provider);
+        return new LibraryLoader(libraryManager, modelManager, cache, this.provider);
+    }
+
+    private static Integer evaluate(Library library, LibraryLoader loader, String expression) {
+        Context context = new Context(library);
+        context.registerLibraryLoader(loader);
+        return (Integer) context.resolveExpressionRef(expression).evaluate(context);
+    }
+
+    private static String toElm(String cql) {
+        ModelManager modelManager = new ModelManager();
+        return TranslatorHelper.getTranslator(cql, new LibraryManager(modelManager), modelManager).toXml();
+    }
+
+    private static VersionedIdentifier identifier(String name) {
+        return new VersionedIdentifier().withId(name).withVersion("1");
+    }
+}
@@ -0,0 +1,63 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class MeasureEvaluationExecutorTest {
+
+    @Test
+    public void runsNoMoreTasksAtOnceThanItHasThreads() throws Exception {
+        MeasureEvaluationExecutor executor = new MeasureEvaluationExecutor(3);
+        try {
+            AtomicInteger running = new AtomicInteger();
+            AtomicInteger maxRunning = new AtomicInteger();
+            List<Future<Integer>> tasks = new ArrayList<>();
+            for (int i = 0; i < 30; i++) {
+                int task = i;
+                tasks.add(executor.submit(() -> {
+                    maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+                    Thread.sleep(5);
+                    running.decrementAndGet();
+                    return task;
+                }));
+            }
+
+            for (int i = 0; i < tasks.size(); i++) {
+                assertEquals(i, tasks.get(i).get().intValue());
+            }
+            assertTrue("Ran " + maxRunning.get() + " tasks at once", maxRunning.get() <= 3);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void hasAtLeastOneThread() throws Exception {
+        MeasureEvaluationExecutor executor = new MeasureEvaluationExecutor(0);
+        try {
+            assertEquals(1, executor.getThreads());
+            assertEquals("done", executor.submit(() -> "done").get());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void workersAreNamedDaemonThreads() throws Exception {
+        MeasureEvaluationExecutor executor = new MeasureEvaluationExecutor(2);
+        try {
+            Thread worker = executor.submit(Thread::currentThread).get();
+            assertTrue(worker.getName().startsWith("measure-evaluation-"));
+            assertTrue(worker.isDaemon());
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
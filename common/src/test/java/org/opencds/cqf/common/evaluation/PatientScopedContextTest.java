@@ -0,0 +1,210 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.Field;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.Add;
+import org.cqframework.cql.elm.execution.AliasedQuerySource;
+import org.cqframework.cql.elm.execution.Expression;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.ExpressionRef;
+import org.cqframework.cql.elm.execution.FunctionDef;
+import org.cqframework.cql.elm.execution.FunctionRef;
+import org.cqframework.cql.elm.execution.IncludeDef;
+import org.cqframework.cql.elm.execution.Interval;
+import org.cqframework.cql.elm.execution.Library;
+import org.cqframework.cql.elm.execution.Literal;
+import org.cqframework.cql.elm.execution.OperandRef;
+import org.cqframework.cql.elm.execution.ParameterRef;
+import org.cqframework.cql.elm.execution.Property;
+import org.cqframework.cql.elm.execution.Query;
+import org.cqframework.cql.elm.execution.Retrieve;
+import org.cqframework.cql.elm.execution.VersionedIdentifier;
+import org.junit.Test;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+import org.opencds.cqf.cql.engine.execution.Context;
+
+public class PatientScopedContextTest {
+
+    @Test
+    public void keepsUnfilteredDefinitions() {
+        Library library = newLibrary("Measure", def("Population", "Unfiltered", new Retrieve()),
+                def("All", "Population", new Retrieve()));
+
+        assertEquals(set("Measure|Population", "Measure|All"), analyse(library));
+    }
+
+    @Test
+    public void keepsDefinitionsComputedFromLiteralsAndParameters() {
+        Library library = newLibrary("Measure",
+                def("Period", "Patient", new Interval().withLow(new ParameterRef().withName("Start"))
+                        .withHigh(new ParameterRef().withName("End"))),
+                def("Sum", "Patient", new Add().withOperand(literal("1"), literal("2"))),
+                def("Uses Sum", "Patient", ref("Sum")));
+
+        assertEquals(set("Measure|Period", "Measure|Sum", "Measure|Uses Sum"), analyse(library));
+    }
+
+    @Test
+    public void evictsRetrievesAndWhatReferencesThem() {
+        Library library = newLibrary("Measure", def("Encounters", "Patient", new Retrieve()),
+                def("Count", "Patient", new Add().withOperand(ref("Encounters"), literal("1"))));
+
+        assertEquals(Collections.emptySet(), analyse(library));
+    }
+
+    @Test
+    public void evictsQueriesAndProperties() {
+        Library library = newLibrary("Measure",
+                def("Query", "Patient",
+                        new Query().withSource(new AliasedQuerySource().withAlias("X").withExpression(literal("1")))),
+                def("Property", "Patient", new Property().withPath("value").withSource(literal("1"))));
+
+        assertEquals(Collections.emptySet(), analyse(library));
+    }
+
+    @Test
+    public void evictsFunctionsAndCallsWithPatientArguments() {
+        Library library = newLibrary("Measure", def("Encounters", "Patient", new Retrieve()),
+                function("Twice", new Add().withOperand(new OperandRef().withName("x"), new OperandRef().withName("x"))),
+                def("Twice Literal", "Patient", call("Twice", literal("1"))),
+                def("Twice Encounters", "Patient", call("Twice", ref("Encounters"))));
+
+        // The function itself is never kept; its results depend on the arguments
+        assertEquals(set("Measure|Twice Literal"), analyse(library));
+    }
+
+    @Test
+    public void followsReferencesIntoIncludedLibraries() {
+        Library common = newLibrary("Common", def("Start", "Patient", literal("1")),
+                def("Encounters", "Patient", new Retrieve()));
+        Library measure = newLibrary("Measure", def("Start", "Patient", ref("C", "Start")),
+                def("Encounters", "Patient", ref("C", "Encounters")), def("Unknown", "Patient", ref("X", "Start")));
+        measure.setIncludes(new Library.Includes().withDef(new IncludeDef().withPath("Common").withLocalIdentifier("C")));
+
+        Set<String> independent = PatientScopedContext.getPatientIndependentDefs(Arrays.asList(measure, common));
+
+        assertEquals(set("Common|Start", "Measure|Start"), independent);
+    }
+
+    @Test
+    public void recursiveDefinitionsAreEvicted() {
+        Library library = newLibrary("Measure", def("Self", "Patient", ref("Self")), def("A", "Patient", ref("B")),
+                def("B", "Patient", ref("A")), def("Constant", "Patient", literal("1")));
+
+        assertEquals(set("Measure|Constant"), analyse(library));
+    }
+
+    @Test
+    public void keepsIndependentResultsAcrossPatients() throws Exception {
+        Library library = translate();
+        PatientScopedContext context = new PatientScopedContext(library,
+                PatientScopedContext.getPatientIndependentDefs(Collections.singletonList(library)));
+        context.setExpressionCaching(true);
+
+        context.setContextValue("Patient", "p1");
+        context.resolveExpressionRef("Length").evaluate(context);
+        int cached = countCached(context);
+        assertTrue(cached > 0);
+
+        context.setContextValue("Patient", "p2");
+        assertEquals(cached, countCached(context));
+    }
+
+    @Test
+    public void evictsDependentResultsWhenThePatientChanges() throws Exception {
+        PatientScopedContext context = new PatientScopedContext(translate(), Collections.emptySet());
+        context.setExpressionCaching(true);
+
+        context.setContextValue("Patient", "p1");
+        context.resolveExpressionRef("Length").evaluate(context);
+        assertTrue(countCached(context) > 0);
+
+        context.setContextValue("Patient", "p2");
+        assertEquals(0, countCached(context));
+    }
+
+    // Eviction reads this private field of the engine's Context; if an engine
+    // upgrade renames or retypes it, expression caching is silently disabled
+    @Test
+    public void theEnginesExpressionCacheIsAMap() throws Exception {
+        Field field = Context.class.getDeclaredField("expressions");
+        assertTrue(Map.class.isAssignableFrom(field.getType()));
+        assertFalse(countCached(new PatientScopedContext(translate(), Collections.emptySet())) > 0);
+    }
+
+    private static Set<String> analyse(Library library) {
+        return PatientScopedContext.getPatientIndependentDefs(Collections.singletonList(library));
+    }
+
+    private static Library translate() {
+        ModelManager modelManager = new ModelManager();
+        return TranslatorHelper.translateLibrary("library Test version '1'\n"
+                + "parameter \"Period\" Interval<Integer> default Interval[1, 10]\n"
+                + "define \"Length\": end of \"Period\" - start of \"Period\"\n", new LibraryManager(modelManager),
+                modelManager);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int countCached(Context context) throws Exception {
+        Field field = Context.class.getDeclaredField("expressions");
+        field.setAccessible(true);
+
+        int count = 0;
+        for (Object value : ((Map<Object, Object>) field.get(context)).values()) {
+            count += value instanceof Map ? ((Map<Object, Object>) value).size() : 1;
+        }
+
+        return count;
+    }
+
+    private static Library newLibrary(String name, ExpressionDef... defs) {
+        return new Library().withIdentifier(new VersionedIdentifier().withId(name))
+                .withStatements(new Library.Statements().withDef(defs));
+    }
+
+    private static ExpressionDef def(String name, String context, Expression expression) {
+        return new ExpressionDef().withName(name).withContext(context).withExpression(expression);
+    }
+
+    private static FunctionDef function(String name, Expression expression) {
+        FunctionDef function = new FunctionDef();
+        function.setName(name);
+        function.setContext("Patient");
+        function.setExpression(expression);
+        return function;
+    }
+
+    private static FunctionRef call(String name, Expression operand) {
+        FunctionRef call = new FunctionRef();
+        call.setName(name);
+        call.getOperand().add(operand);
+        return call;
+    }
+
+    private static ExpressionRef ref(String name) {
+        return new ExpressionRef().withName(name);
+    }
+
+    private static ExpressionRef ref(String libraryName, String name) {
+        return new ExpressionRef().withLibraryName(libraryName).withName(name);
+    }
+
+    private static Literal literal(String value) {
+        return new Literal().withValue(value);
+    }
+
+    private static Set<String> set(String... keys) {
+        return new HashSet<>(Arrays.asList(keys));
+    }
+}
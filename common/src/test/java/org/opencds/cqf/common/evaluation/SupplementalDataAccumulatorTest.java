@@ -0,0 +1,75 @@
+package org.opencds.cqf.common.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+public class SupplementalDataAccumulatorTest {
+
+    private static final String SYSTEM = "http://hl7.org/fhir/administrative-gender";
+
+    @Test
+    public void countsEachValueInTheOrderItWasFirstSeen() {
+        SupplementalDataAccumulator accumulator = new SupplementalDataAccumulator();
+        accumulator.add("sde-sex", SYSTEM, "female", "Female");
+        accumulator.add("sde-sex", SYSTEM, "male", "Male");
+        accumulator.add("sde-sex", SYSTEM, "female", "Female");
+        accumulator.add("sde-race", "urn:oid:2.16.840.1.113883.6.238", "2106-3", "White");
+
+        assertEquals(Arrays.asList("sde-sex|female|Female|2", "sde-sex|male|Male|1", "sde-race|2106-3|White|1"),
+                values(accumulator));
+    }
+
+    @Test
+    public void keepsTheFirstDisplaySeen() {
+        SupplementalDataAccumulator accumulator = new SupplementalDataAccumulator();
+        accumulator.add("sde-sex", SYSTEM, "male", null);
+        accumulator.add("sde-sex", SYSTEM, "male", "Male");
+        accumulator.add("sde-sex", SYSTEM, "male", "M");
+
+        assertEquals(Arrays.asList("sde-sex|male|Male|3"), values(accumulator));
+    }
+
+    @Test
+    public void ignoresValuesWithoutACode() {
+        SupplementalDataAccumulator accumulator = new SupplementalDataAccumulator();
+        accumulator.add("sde-sex", SYSTEM, null, "Unknown");
+
+        assertTrue(accumulator.isEmpty());
+    }
+
+    @Test
+    public void distinguishesCodesFromDifferentSystems() {
+        SupplementalDataAccumulator accumulator = new SupplementalDataAccumulator();
+        accumulator.add("sde-payer", "http://a", "1", null);
+        accumulator.add("sde-payer", "http://b", "1", null);
+
+        assertEquals(2, values(accumulator).size());
+    }
+
+    @Test
+    public void mergesCountsFromOtherPatients() {
+        SupplementalDataAccumulator first = new SupplementalDataAccumulator();
+        first.add("sde-sex", SYSTEM, "male", null);
+        SupplementalDataAccumulator second = new SupplementalDataAccumulator();
+        second.add("sde-sex", SYSTEM, "male", "Male");
+        second.add("sde-sex", SYSTEM, "female", "Female");
+
+        first.merge(second);
+
+        assertEquals(Arrays.asList("sde-sex|male|Male|2", "sde-sex|female|Female|1"), values(first));
+        assertEquals(Arrays.asList("sde-sex|male|Male|1", "sde-sex|female|Female|1"), values(second));
+    }
+
+    private static List<String> values(SupplementalDataAccumulator accumulator) {
+        List<String> values = new ArrayList<>();
+        accumulator.forEach((sdeKey, value) -> values
+                .add(sdeKey + "|" + value.getCode() + "|" + value.getDisplay() + "|" + value.getCount()));
+        return values;
+    }
+}
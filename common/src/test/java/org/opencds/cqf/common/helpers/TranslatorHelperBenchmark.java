@@ -0,0 +1,59 @@
+package org.opencds.cqf.common.helpers;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Callable;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+
+/**
+ * Compares the ways a translated library has been converted to the engine's
+ * execution model:
+ * <ul>
+ * <li>the original LibraryLoader path, which built a translator for an empty
+ * library and marshalled to a String on every load</li>
+ * <li>marshalling to a String with the translator that produced the library
+ * (the original TranslatorHelper.translateLibrary)</li>
+ * <li>TranslatorHelper.toExecutionLibrary, which marshals into a byte buffer
+ * with a shared JAXBContext</li>
+ * </ul>
+ * All of them marshal to XML once and read it back. Run with
+ * {@code mvn -pl common test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.opencds.cqf.common.helpers.TranslatorHelperBenchmark}.
+ */
+public class TranslatorHelperBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 200;
+    private static final int ITERATIONS = 1000;
+
+    public static void main(String[] args) throws Exception {
+        ModelManager modelManager = new ModelManager();
+        LibraryManager libraryManager = new LibraryManager(modelManager);
+        CqlTranslator translator = TranslatorHelper.getTranslator(TranslatorHelperTest.CQL, libraryManager,
+                modelManager);
+        org.hl7.elm.r1.Library elm = translator.toELM();
+
+        run("Empty translator + String", () -> TranslatorHelper.readLibrary(new ByteArrayInputStream(
+                TranslatorHelper.getTranslator("", libraryManager, modelManager).convertToXml(elm)
+                        .getBytes(StandardCharsets.UTF_8))));
+        run("Translator String", () -> TranslatorHelper
+                .readLibrary(new ByteArrayInputStream(translator.toXml().getBytes(StandardCharsets.UTF_8))));
+        run("toExecutionLibrary", () -> TranslatorHelper.toExecutionLibrary(elm));
+    }
+
+    private static void run(String name, Callable<Object> conversion) throws Exception {
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            conversion.call();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            conversion.call();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%-28s %8.1f us/op", name, elapsed / 1000.0 / ITERATIONS));
+    }
+}
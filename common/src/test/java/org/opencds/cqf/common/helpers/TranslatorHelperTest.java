@@ -0,0 +1,72 @@
+package org.opencds.cqf.common.helpers;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.cqframework.cql.cql2elm.CqlTranslator;
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.execution.Context;
+
+public class TranslatorHelperTest {
+
+    static final String CQL = "library Test version '1.0'\n"
+            + "parameter \"Threshold\" Integer default 10\n"
+            + "define \"Values\": { 1, 5, 12, 20 }\n"
+            + "define \"Over\": \"Values\" V where V > \"Threshold\"\n"
+            + "define \"Count\": Count(\"Over\")\n"
+            + "define function \"Twice\"(value Integer): value * 2\n"
+            + "define \"Doubled\": \"Twice\"(\"Count\")\n";
+
+    @Test
+    public void convertsLikeTheTranslatorsXml() throws Exception {
+        ModelManager modelManager = new ModelManager();
+        CqlTranslator translator = TranslatorHelper.getTranslator(CQL, new LibraryManager(modelManager),
+                modelManager);
+
+        Library converted = TranslatorHelper.toExecutionLibrary(translator.toELM());
+        Library read = TranslatorHelper
+                .readLibrary(new ByteArrayInputStream(translator.toXml().getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(read.getIdentifier().getId(), converted.getIdentifier().getId());
+        assertEquals(read.getIdentifier().getVersion(), converted.getIdentifier().getVersion());
+        assertEquals(getDefNames(read), getDefNames(converted));
+        assertEquals(evaluate(read, "Doubled"), evaluate(converted, "Doubled"));
+    }
+
+    @Test
+    public void convertedLibrariesEvaluate() {
+        ModelManager modelManager = new ModelManager();
+        Library library = TranslatorHelper.translateLibrary(CQL, new LibraryManager(modelManager), modelManager);
+
+        assertEquals(2, evaluate(library, "Count"));
+        assertEquals(4, evaluate(library, "Doubled"));
+    }
+
+    @Test
+    public void convertsRepeatedlyWithTheSharedContext() {
+        ModelManager modelManager = new ModelManager();
+        org.hl7.elm.r1.Library elm = TranslatorHelper
+                .getTranslator(CQL, new LibraryManager(modelManager), modelManager).toELM();
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(4, evaluate(TranslatorHelper.toExecutionLibrary(elm), "Doubled"));
+        }
+    }
+
+    private static List<String> getDefNames(Library library) {
+        return library.getStatements().getDef().stream().map(ExpressionDef::getName).collect(Collectors.toList());
+    }
+
+    private static Object evaluate(Library library, String expression) {
+        Context context = new Context(library);
+        return context.resolveExpressionRef(expression).evaluate(context);
+    }
+}
@@ -0,0 +1,96 @@
+package org.opencds.cqf.common.interceptors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Before;
+import org.junit.Test;
+
+import ca.uhn.fhir.context.FhirContext;
+
+public class PatientChangeTrackerTest {
+
+    private PatientChangeTracker tracker;
+
+    @Before
+    public void setUp() {
+        this.tracker = new PatientChangeTracker(FhirContext.forR4());
+    }
+
+    @Test
+    public void recordsThePatientsInAResourcesCompartment() {
+        long watermark = this.tracker.getWatermark();
+        Patient patient = new Patient();
+        patient.setId("Patient/p1");
+        this.tracker.resourceCreated(patient);
+        this.tracker.resourceCreated(newObservation("p2"));
+
+        assertEquals(new HashSet<>(Arrays.asList("p1", "p2")), this.tracker.getChangedPatients(watermark));
+        assertEquals(this.tracker.getWatermark(), this.tracker.getWatermark("p2"));
+        assertTrue(this.tracker.getWatermark("p1") < this.tracker.getWatermark("p2"));
+        assertEquals(0, this.tracker.getSharedWatermark());
+    }
+
+    @Test
+    public void updatesRecordTheOldAndNewCompartments() {
+        long watermark = this.tracker.getWatermark();
+        this.tracker.resourceUpdated(newObservation("p1"), newObservation("p2"));
+
+        assertEquals(new HashSet<>(Arrays.asList("p1", "p2")), this.tracker.getChangedPatients(watermark));
+    }
+
+    @Test
+    public void resourcesOutsideEveryCompartmentMoveTheSharedWatermark() {
+        Medication medication = new Medication();
+        medication.setId("Medication/m1");
+        this.tracker.resourceCreated(medication);
+
+        assertEquals(this.tracker.getWatermark(), this.tracker.getSharedWatermark());
+        assertTrue(this.tracker.getChangedPatients(0).isEmpty());
+        assertEquals(0, this.tracker.getWatermark("p1"));
+    }
+
+    @Test
+    public void artifactsBumpTheArtifactVersionOnly() {
+        Library library = new Library();
+        library.setId("Library/l1");
+        this.tracker.resourceCreated(library);
+
+        MeasureReport report = new MeasureReport();
+        report.setSubject(new Reference("Patient/p1"));
+        this.tracker.resourceCreated(report);
+
+        assertEquals(1, this.tracker.getArtifactVersion());
+        assertEquals(0, this.tracker.getWatermark());
+        assertEquals(0, this.tracker.getSharedWatermark());
+    }
+
+    @Test
+    public void trimmedPatientsReportTheTrimmedWatermark() {
+        this.tracker.resourceCreated(newObservation("p1"));
+        long watermark = this.tracker.getWatermark();
+        this.tracker.resourceCreated(newObservation("p2"));
+
+        this.tracker.trimChanges(watermark);
+
+        assertEquals(new HashSet<>(Arrays.asList("p2")), this.tracker.getChangedPatients(watermark));
+        assertEquals(watermark, this.tracker.getWatermark("p1"));
+        assertEquals(watermark, this.tracker.getWatermark("p3"));
+    }
+
+    private static Observation newObservation(String patientId) {
+        Observation observation = new Observation();
+        observation.setId("Observation/" + patientId + "-obs");
+        observation.setSubject(new Reference("Patient/" + patientId));
+        return observation;
+    }
+}
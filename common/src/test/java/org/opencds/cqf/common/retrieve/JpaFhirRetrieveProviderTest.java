@@ -0,0 +1,393 @@
+package org.opencds.cqf.common.retrieve;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Condition;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencds.cqf.common.retrieve.PagedResourceIterableTest.CountingBundleProvider;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.api.server.IBundleProvider;
+import ca.uhn.fhir.rest.param.DateOrListParam;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.ReferenceOrListParam;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.StringParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+public class JpaFhirRetrieveProviderTest {
+
+    static final String SNOMED = "http://snomed.info/sct";
+
+    private FhirContext fhirContext = FhirContext.forR4();
+    List<IBaseResource> conditions = new ArrayList<>();
+    List<ca.uhn.fhir.jpa.searchparam.SearchParameterMap> searches = new ArrayList<>();
+    List<CountingBundleProvider> bundleProviders = new ArrayList<>();
+    JpaFhirRetrieveProvider provider;
+
+    @Before
+    public void setUp() {
+        for (int i = 0; i < 5; i++) {
+            this.conditions.add(newCondition("c" + i + "a", "p" + i, "a"));
+            this.conditions.add(newCondition("c" + i + "b", "p" + i, "b"));
+        }
+
+        IFhirResourceDao<?> dao = mock(IFhirResourceDao.class);
+        when(dao.getContext()).thenReturn(this.fhirContext);
+        when(dao.search(any(ca.uhn.fhir.jpa.searchparam.SearchParameterMap.class)))
+                .thenAnswer(x -> search(x.getArgument(0)));
+
+        DaoRegistry registry = mock(DaoRegistry.class);
+        doReturn(dao).when(registry).getResourceDao("Condition");
+        this.provider = new JpaFhirRetrieveProvider(registry, new SearchParameterResolver(this.fhirContext));
+    }
+
+    @Test
+    public void prefetchedPatientsShareOneSearch() {
+        this.provider.prefetchPatients(Arrays.asList("p0", "p1", "p2"));
+
+        assertEquals(Arrays.asList("c0a", "c0b"), retrieve(query("p0", null)));
+        assertEquals(Arrays.asList("c1a", "c1b"), retrieve(query("p1", null)));
+        assertEquals(Arrays.asList("c2a", "c2b"), retrieve(query("p2", null)));
+
+        assertEquals(1, this.searches.size());
+        assertEquals(3, this.searches.get(0).get("subject").get(0).size());
+    }
+
+    @Test
+    public void otherParametersAreKeptInTheBatchSearch() {
+        this.provider.prefetchPatients(Arrays.asList("p0", "p1"));
+
+        assertEquals(Collections.singletonList("c0a"), retrieve(query("p0", "a")));
+        assertEquals(Collections.singletonList("c1b"), retrieve(query("p1", "b")));
+        assertEquals(Collections.singletonList("c1a"), retrieve(query("p1", "a")));
+
+        // One batch for each code
+        assertEquals(2, this.searches.size());
+    }
+
+    @Test
+    public void patientsWithoutResultsGetAnEmptyList() {
+        this.provider.prefetchPatients(Arrays.asList("p0", "p9"));
+
+        assertEquals(Collections.emptyList(), retrieve(query("p9", null)));
+        assertEquals(Arrays.asList("c0a", "c0b"), retrieve(query("p0", null)));
+        assertEquals(1, this.searches.size());
+    }
+
+    @Test
+    public void otherPatientsAreSearchedAsBefore() {
+        this.provider.prefetchPatients(Arrays.asList("p0", "p1"));
+        retrieve(query("p0", null));
+
+        assertEquals(Arrays.asList("c3a", "c3b"), retrieve(query("p3", null)));
+        assertEquals(2, this.searches.size());
+        assertEquals(1, this.searches.get(1).get("subject").get(0).size());
+    }
+
+    @Test
+    public void clearingThePrefetchSearchesEachQuery() {
+        this.provider.prefetchPatients(Arrays.asList("p0", "p1"));
+        retrieve(query("p0", null));
+        this.provider.clearPrefetch();
+
+        retrieve(query("p0", null));
+        retrieve(query("p1", null));
+
+        assertEquals(3, this.searches.size());
+    }
+
+    @Test
+    public void aNewPrefetchReplacesTheOldOne() {
+        this.provider.prefetchPatients(Arrays.asList("p0", "p1"));
+        retrieve(query("p0", null));
+        this.provider.prefetchPatients(Arrays.asList("p2", "p3"));
+
+        assertEquals(Arrays.asList("c3a", "c3b"), retrieve(query("p3", null)));
+        assertEquals(Arrays.asList("c2a", "c2b"), retrieve(query("p2", null)));
+        assertEquals(2, this.searches.size());
+    }
+
+    @Test
+    public void smallResultsAreLists() {
+        Iterable<Object> results = this.provider.executeQueries("Condition",
+                Arrays.asList(query("p0", null), query("p1", null)));
+
+        assertTrue(results instanceof Collection);
+        assertEquals(4, ((Collection<Object>) results).size());
+    }
+
+    @Test
+    public void largeResultsArePagedLazily() {
+        addConditions("p9", 1200);
+
+        Iterable<Object> results = this.provider.executeQueries("Condition",
+                Collections.singletonList(query("p9", null)));
+
+        assertFalse(results instanceof Collection);
+        assertEquals(0, this.bundleProviders.get(0).pagesFetched);
+
+        results.iterator().next();
+        assertEquals(1, this.bundleProviders.get(0).pagesFetched);
+
+        assertEquals(1200, count(results));
+        assertEquals(1, this.searches.size());
+    }
+
+    @Test
+    public void pagedResultsOfSeveralQueriesAreChainedLazily() {
+        addConditions("p8", 700);
+        addConditions("p9", 700);
+
+        Iterable<Object> results = this.provider.executeQueries("Condition",
+                Arrays.asList(query("p0", null), query("p8", null), query("p9", null)));
+
+        assertFalse(results instanceof Collection);
+        assertEquals(0, this.bundleProviders.get(1).pagesFetched);
+        assertEquals(0, this.bundleProviders.get(2).pagesFetched);
+
+        // Reaching into the second query's results doesn't touch the third's
+        Iterator<Object> iterator = results.iterator();
+        for (int i = 0; i < 3; i++) {
+            iterator.next();
+        }
+        assertEquals(1, this.bundleProviders.get(1).pagesFetched);
+        assertEquals(0, this.bundleProviders.get(2).pagesFetched);
+
+        assertEquals(1402, count(results));
+        assertEquals(1402, count(results));
+    }
+
+    @Test
+    public void retrievesSearchEveryTimeWithoutCaching() {
+        retrieve("p0", null);
+        retrieve("p0", null);
+
+        assertEquals(2, this.searches.size());
+    }
+
+    @Test
+    public void cachesIdenticalRetrievesForThePatient() {
+        this.provider.setRetrieveCaching(true);
+
+        Iterable<Object> results = retrieve("p0", null);
+        assertSame(results, retrieve("p0", null));
+        assertEquals(Arrays.asList("c0a", "c0b"), ids(results));
+
+        retrieve("p0", "http://example.org/profile");
+        assertEquals(2, this.searches.size());
+    }
+
+    @Test
+    public void aRetrieveForAnotherPatientDropsTheCache() {
+        this.provider.setRetrieveCaching(true);
+
+        assertEquals(Arrays.asList("c0a", "c0b"), ids(retrieve("p0", null)));
+        assertEquals(Arrays.asList("c1a", "c1b"), ids(retrieve("p1", null)));
+        assertEquals(Arrays.asList("c0a", "c0b"), ids(retrieve("p0", null)));
+
+        assertEquals(3, this.searches.size());
+    }
+
+    @Test
+    public void clearingTheCacheSearchesAgain() {
+        this.provider.setRetrieveCaching(true);
+        retrieve("p0", null);
+
+        this.provider.clearRetrieveCache();
+        retrieve("p0", null);
+        this.provider.setRetrieveCaching(true);
+        retrieve("p0", null);
+
+        assertEquals(3, this.searches.size());
+    }
+
+    @Test
+    public void convertsTokenOrLists() {
+        TokenParam first = new TokenParam(SNOMED, "a");
+        TokenParam second = new TokenParam(SNOMED, "b");
+        SearchParameterMap map = new SearchParameterMap();
+        map.add("code", new TokenOrListParam().addOr(first).addOr(second));
+
+        List<List<IQueryParameterType>> and = this.provider.toHapiMap(map.entrySet()).get("code");
+
+        assertEquals(1, and.size());
+        assertEquals(2, and.get(0).size());
+        assertSame(first, and.get(0).get(0));
+        assertSame(second, and.get(0).get(1));
+    }
+
+    @Test
+    public void convertsReferenceOrLists() {
+        ReferenceParam first = new ReferenceParam("Patient", null, "p0");
+        ReferenceParam second = new ReferenceParam("Patient", null, "p1");
+        SearchParameterMap map = new SearchParameterMap();
+        map.add("subject", new ReferenceOrListParam().addOr(first).addOr(second));
+
+        List<List<IQueryParameterType>> and = this.provider.toHapiMap(map.entrySet()).get("subject");
+
+        assertEquals(1, and.size());
+        assertEquals(Arrays.asList(first, second), and.get(0));
+        assertEquals("Patient/p1", ((ReferenceParam) and.get(0).get(1)).getValue());
+    }
+
+    @Test
+    public void convertsDateAndListsOfOrLists() {
+        DateParam low = new DateParam(ParamPrefixEnum.GREATERTHAN_OR_EQUALS, "2019-01-01");
+        DateParam high = new DateParam(ParamPrefixEnum.LESSTHAN_OR_EQUALS, "2019-12-31");
+        DateParam other = new DateParam(ParamPrefixEnum.EQUAL, "2020-06-01");
+        SearchParameterMap map = new SearchParameterMap();
+        map.add("onset-date", low);
+        map.add("onset-date", high);
+        map.add("recorded-date", new DateOrListParam().addOr(low).addOr(other));
+
+        ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap = this.provider.toHapiMap(map.entrySet());
+
+        List<List<IQueryParameterType>> onset = hapiMap.get("onset-date");
+        assertEquals(2, onset.size());
+        assertSame(low, onset.get(0).get(0));
+        assertSame(high, onset.get(1).get(0));
+        assertEquals(ParamPrefixEnum.LESSTHAN_OR_EQUALS, ((DateParam) onset.get(1).get(0)).getPrefix());
+        assertEquals(Arrays.asList(low, other), hapiMap.get("recorded-date").get(0));
+    }
+
+    @Test
+    public void skipsEmptyOrLists() {
+        assertNull(this.provider.toHapiMap(entry("code", new ArrayList<>())).get("code"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsOrListsOfMixedTypes() {
+        this.provider.toHapiMap(entry("code", Arrays.asList(new TokenParam(SNOMED, "a"), new StringParam("a"))));
+    }
+
+    List<String> retrieve(SearchParameterMap... queries) {
+        return ids(this.provider.executeQueries("Condition", Arrays.asList(queries)));
+    }
+
+    Iterable<Object> retrieve(String patientId, String templateId) {
+        return this.provider.retrieve("Patient", "subject", patientId, "Condition", templateId, null, null, null,
+                null, null, null, null);
+    }
+
+    static List<String> ids(Iterable<Object> resources) {
+        List<String> ids = new ArrayList<>();
+        for (Object resource : resources) {
+            ids.add(((IBaseResource) resource).getIdElement().getIdPart());
+        }
+
+        return ids;
+    }
+
+    void addConditions(String patientId, int count) {
+        for (int i = 0; i < count; i++) {
+            this.conditions.add(newCondition(patientId + "-" + i, patientId, "a"));
+        }
+    }
+
+    static int count(Iterable<Object> results) {
+        int count = 0;
+        for (Object result : results) {
+            count += result != null ? 1 : 0;
+        }
+
+        return count;
+    }
+
+    static List<Map.Entry<String, List<List<IQueryParameterType>>>> entry(String name,
+            List<IQueryParameterType> or) {
+        Map.Entry<String, List<List<IQueryParameterType>>> entry = new AbstractMap.SimpleEntry<>(name,
+                Collections.singletonList(or));
+        return Collections.singletonList(entry);
+    }
+
+    static SearchParameterMap query(String patientId, String code) {
+        SearchParameterMap map = new SearchParameterMap();
+        if (patientId != null) {
+            map.add("subject", new ReferenceParam("Patient", null, patientId));
+        }
+        if (code != null) {
+            map.add("code", new TokenParam(SNOMED, code));
+        }
+
+        return map;
+    }
+
+    static Condition newCondition(String id, String patientId, String code) {
+        Condition condition = new Condition();
+        condition.setId("Condition/" + id);
+        condition.setSubject(new Reference("Patient/" + patientId));
+        condition.setCode(new CodeableConcept().addCoding(new Coding().setSystem(SNOMED).setCode(code)));
+        return condition;
+    }
+
+    // Filters the conditions by the subject and code parameters of the search
+    IBundleProvider search(ca.uhn.fhir.jpa.searchparam.SearchParameterMap map) {
+        this.searches.add(map);
+        Set<String> patients = getValues(map, "subject");
+        Set<String> codes = getValues(map, "code");
+
+        List<IBaseResource> results = new ArrayList<>();
+        for (IBaseResource resource : this.conditions) {
+            Condition condition = (Condition) resource;
+            if ((patients == null || patients.contains(condition.getSubject().getReferenceElement().getIdPart()))
+                    && (codes == null || codes.contains(condition.getCode().getCodingFirstRep().getCode()))) {
+                results.add(condition);
+            }
+        }
+
+        return createBundleProvider(results);
+    }
+
+    private IBundleProvider createBundleProvider(List<IBaseResource> results) {
+        CountingBundleProvider bundleProvider = new CountingBundleProvider(results, true);
+        this.bundleProviders.add(bundleProvider);
+        return bundleProvider;
+    }
+
+    private static Set<String> getValues(ca.uhn.fhir.jpa.searchparam.SearchParameterMap map, String name) {
+        List<List<IQueryParameterType>> and = map.get(name);
+        if (and == null) {
+            return null;
+        }
+
+        Set<String> values = new HashSet<>();
+        for (IQueryParameterType param : and.get(0)) {
+            values.add(param instanceof ReferenceParam ? ((ReferenceParam) param).getIdPart()
+                    : ((TokenParam) param).getValue());
+        }
+
+        return values;
+    }
+}
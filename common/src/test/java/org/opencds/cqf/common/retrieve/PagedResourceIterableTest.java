@@ -0,0 +1,125 @@
+package org.opencds.cqf.common.retrieve;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Patient;
+import org.junit.Test;
+
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+public class PagedResourceIterableTest {
+
+    @Test
+    public void fetchesOnePageAtATime() {
+        CountingBundleProvider provider = new CountingBundleProvider(newPatients(25), true);
+        Iterator<Patient> iterator = new PagedResourceIterable<Patient>(provider, 10).iterator();
+
+        assertEquals(0, provider.pagesFetched);
+        for (int i = 0; i < 10; i++) {
+            assertEquals("p" + i, iterator.next().getIdElement().getIdPart());
+        }
+        assertEquals(1, provider.pagesFetched);
+
+        iterator.next();
+        assertEquals(2, provider.pagesFetched);
+    }
+
+    @Test
+    public void iteratesEveryResourceInOrder() {
+        List<String> ids = new ArrayList<>();
+        for (Patient patient : new PagedResourceIterable<Patient>(
+                new CountingBundleProvider(newPatients(25), true), 10)) {
+            ids.add(patient.getIdElement().getIdPart());
+        }
+
+        assertEquals(25, ids.size());
+        assertEquals("p24", ids.get(24));
+    }
+
+    @Test
+    public void stopsAtAnEmptyPageWhenTheSizeIsUnknown() {
+        CountingBundleProvider provider = new CountingBundleProvider(newPatients(20), false);
+        int count = 0;
+        for (Patient patient : new PagedResourceIterable<Patient>(provider, 10)) {
+            count += patient != null ? 1 : 0;
+        }
+
+        assertEquals(20, count);
+        assertEquals(3, provider.pagesFetched);
+    }
+
+    @Test
+    public void everyIteratorStartsFromTheFirstPage() {
+        PagedResourceIterable<Patient> iterable = new PagedResourceIterable<>(
+                new CountingBundleProvider(newPatients(3), true), 2);
+
+        assertEquals("p0", iterable.iterator().next().getIdElement().getIdPart());
+        assertEquals("p0", iterable.iterator().next().getIdElement().getIdPart());
+    }
+
+    @Test(expected = NoSuchElementException.class)
+    public void emptyResultsHaveNoNext() {
+        Iterator<Patient> iterator = new PagedResourceIterable<Patient>(
+                new CountingBundleProvider(new ArrayList<>(), true)).iterator();
+
+        assertFalse(iterator.hasNext());
+        iterator.next();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsAnEmptyPageSize() {
+        new PagedResourceIterable<Patient>(new CountingBundleProvider(new ArrayList<>(), true), 0);
+    }
+
+    @Test
+    public void reportsTheProviderSize() {
+        assertEquals(Integer.valueOf(3),
+                new PagedResourceIterable<Patient>(new CountingBundleProvider(newPatients(3), true)).size());
+        assertTrue(new PagedResourceIterable<Patient>(new CountingBundleProvider(newPatients(3), false))
+                .size() == null);
+    }
+
+    static List<IBaseResource> newPatients(int count) {
+        List<IBaseResource> patients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Patient patient = new Patient();
+            patient.setId("Patient/p" + i);
+            patients.add(patient);
+        }
+
+        return patients;
+    }
+
+    /**
+     * Counts the pages fetched, and can hide the size of its results as a
+     * provider that is still loading them would.
+     */
+    static class CountingBundleProvider extends SimpleBundleProvider {
+        int pagesFetched;
+        private final boolean knowsSize;
+
+        CountingBundleProvider(List<IBaseResource> resources, boolean knowsSize) {
+            super(resources);
+            this.knowsSize = knowsSize;
+        }
+
+        @Override
+        public List<IBaseResource> getResources(int theFromIndex, int theToIndex) {
+            this.pagesFetched++;
+            return super.getResources(theFromIndex, Math.min(theToIndex, super.size()));
+        }
+
+        @Override
+        public Integer size() {
+            return this.knowsSize ? super.size() : null;
+        }
+    }
+}
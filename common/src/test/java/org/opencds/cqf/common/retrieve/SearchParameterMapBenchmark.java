@@ -0,0 +1,86 @@
+package org.opencds.cqf.common.retrieve;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterMap;
+
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.DateParam;
+import ca.uhn.fhir.rest.param.ParamPrefixEnum;
+import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
+
+/**
+ * Compares converting a typical retrieve's SearchParameterMap (a patient
+ * reference, an OR list of codes and a date range) to HAPI's with
+ * JpaFhirRetrieveProvider.toHapiMap against the reflective put the provider
+ * used before. Run with {@code mvn -pl common test-compile exec:java
+ * -Dexec.classpathScope=test
+ * -Dexec.mainClass=org.opencds.cqf.common.retrieve.SearchParameterMapBenchmark}.
+ */
+public class SearchParameterMapBenchmark {
+
+    private static final int WARMUP_ITERATIONS = 20000;
+    private static final int ITERATIONS = 200000;
+
+    public static void main(String[] args) throws Exception {
+        SearchParameterMap map = new SearchParameterMap();
+        map.add("subject", new ReferenceParam("Patient", null, "p0"));
+        TokenOrListParam codes = new TokenOrListParam();
+        for (int i = 0; i < 20; i++) {
+            codes.addOr(new TokenParam("http://snomed.info/sct", Integer.toString(i)));
+        }
+        map.add("code", codes);
+        map.add("onset-date", new DateParam(ParamPrefixEnum.GREATERTHAN_OR_EQUALS, "2019-01-01"));
+        map.add("onset-date", new DateParam(ParamPrefixEnum.LESSTHAN_OR_EQUALS, "2019-12-31"));
+
+        JpaFhirRetrieveProvider provider = new JpaFhirRetrieveProvider(null, null);
+        run("Reflective put", () -> toHapiMapReflectively(map.entrySet()));
+        run("toHapiMap", () -> provider.toHapiMap(map.entrySet()));
+    }
+
+    // The conversion as it was before toHapiMap
+    private static ca.uhn.fhir.jpa.searchparam.SearchParameterMap toHapiMapReflectively(
+            Iterable<Map.Entry<String, List<List<IQueryParameterType>>>> entries) {
+        ca.uhn.fhir.jpa.searchparam.SearchParameterMap hapiMap = new ca.uhn.fhir.jpa.searchparam.SearchParameterMap();
+        try {
+            List<Method> puts = new ArrayList<>();
+            for (Method method : hapiMap.getClass().getDeclaredMethods()) {
+                if (method.getName().equals("put")) {
+                    puts.add(method);
+                }
+            }
+            Method method = puts.get(0);
+            method.setAccessible(true);
+
+            for (Map.Entry<String, List<List<IQueryParameterType>>> entry : entries) {
+                method.invoke(hapiMap, entry.getKey(), entry.getValue());
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException(e);
+        }
+
+        return hapiMap;
+    }
+
+    private static void run(String name, Supplier<Object> conversion) {
+        Object result = null;
+        for (int i = 0; i < WARMUP_ITERATIONS; i++) {
+            result = conversion.get();
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            result = conversion.get();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("%-16s %8.3f us/op %s", name, elapsed / 1000.0 / ITERATIONS,
+                result != null ? "" : "(no result)"));
+    }
+}
@@ -0,0 +1,167 @@
+package org.opencds.cqf.dstu3.evaluation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import org.hl7.fhir.dstu3.model.Measure;
+import org.hl7.fhir.dstu3.model.MeasureReport;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.hl7.fhir.dstu3.model.Resource;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+import org.opencds.cqf.common.evaluation.SupplementalDataAccumulator;
+
+/**
+ * Holds the population results of a single Measure group for a set of patients.
+ * A state is filled by evaluating patients one at a time; states computed for
+ * disjoint sets of patients can then be merged into a single result.
+ */
+class GroupEvaluationState {
+
+    final Measure.MeasureGroupComponent group;
+    final MeasureReport.MeasureReportType type;
+
+    // TODO: Isn't quite right, there may be multiple initial populations for a
+    // ratio measure...
+    Measure.MeasureGroupPopulationComponent initialPopulationCriteria = null;
+    Measure.MeasureGroupPopulationComponent numeratorCriteria = null;
+    Measure.MeasureGroupPopulationComponent numeratorExclusionCriteria = null;
+    Measure.MeasureGroupPopulationComponent denominatorCriteria = null;
+    Measure.MeasureGroupPopulationComponent denominatorExclusionCriteria = null;
+    Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = null;
+    Measure.MeasureGroupPopulationComponent measurePopulationCriteria = null;
+    Measure.MeasureGroupPopulationComponent measurePopulationExclusionCriteria = null;
+    // TODO: Isn't quite right, there may be multiple measure observations...
+    Measure.MeasureGroupPopulationComponent measureObservationCriteria = null;
+
+    HashMap<String, Resource> initialPopulation = null;
+    HashMap<String, Resource> numerator = null;
+    HashMap<String, Resource> numeratorExclusion = null;
+    HashMap<String, Resource> denominator = null;
+    HashMap<String, Resource> denominatorExclusion = null;
+    HashMap<String, Resource> denominatorException = null;
+    HashMap<String, Resource> measurePopulation = null;
+    HashMap<String, Resource> measurePopulationExclusion = null;
+    HashMap<String, Resource> measureObservation = null;
+
+    HashMap<String, Patient> initialPopulationPatients = null;
+    HashMap<String, Patient> numeratorPatients = null;
+    HashMap<String, Patient> numeratorExclusionPatients = null;
+    HashMap<String, Patient> denominatorPatients = null;
+    HashMap<String, Patient> denominatorExclusionPatients = null;
+    HashMap<String, Patient> denominatorExceptionPatients = null;
+    HashMap<String, Patient> measurePopulationPatients = null;
+    HashMap<String, Patient> measurePopulationExclusionPatients = null;
+
+    final HashMap<String, Resource> resources = new HashMap<>();
+    final HashMap<String, HashSet<String>> codeToResourceMap = new HashMap<>();
+    final SupplementalDataAccumulator sdeAccumulator = new SupplementalDataAccumulator();
+    final List<Resource> observations = new ArrayList<>();
+
+    GroupEvaluationState(Measure.MeasureGroupComponent group, MeasureReport.MeasureReportType type) {
+        this.group = group;
+        this.type = type;
+
+        boolean isPatientList = type == MeasureReport.MeasureReportType.PATIENTLIST;
+        for (Measure.MeasureGroupPopulationComponent pop : group.getPopulation()) {
+            MeasurePopulationType populationType = MeasurePopulationType
+                    .fromCode(pop.getCode().getCodingFirstRep().getCode());
+            if (populationType != null) {
+                switch (populationType) {
+                    case INITIALPOPULATION:
+                        initialPopulationCriteria = pop;
+                        initialPopulation = new HashMap<>();
+                        initialPopulationPatients = isPatientList ? new HashMap<>() : null;
+                        break;
+                    case NUMERATOR:
+                        numeratorCriteria = pop;
+                        numerator = new HashMap<>();
+                        numeratorPatients = isPatientList ? new HashMap<>() : null;
+                        break;
+                    case NUMERATOREXCLUSION:
+                        numeratorExclusionCriteria = pop;
+                        numeratorExclusion = new HashMap<>();
+                        numeratorExclusionPatients = isPatientList ? new HashMap<>() : null;
+                        break;
+                    case DENOMINATOR:
+                        denominatorCriteria = pop;
+                        denominator = new HashMap<>();
+                        denominatorPatients = isPatientList ? new HashMap<>() : null;
+                        break;
+                    case DENOMINATOREXCLUSION:
+                        denominatorExclusionCriteria = pop;
+                        denominatorExclusion = new HashMap<>();
+                        denominatorExclusionPatients = isPatientList ? new HashMap<>() : null;
+                        break;
+                    case DENOMINATOREXCEPTION:
+                        denominatorExceptionCriteria = pop;
+                        denominatorException = new HashMap<>();
+                        denominatorExceptionPatients = isPatientList ? new HashMap<>() : null;
+                        break;
+                    case MEASUREPOPULATION:
+                        measurePopulationCriteria = pop;
+                        measurePopulation = new HashMap<>();
+                        measurePopulationPatients = isPatientList ? new HashMap<>() : null;
+                        break;
+                    case MEASUREPOPULATIONEXCLUSION:
+                        measurePopulationExclusionCriteria = pop;
+                        measurePopulationExclusion = new HashMap<>();
+                        measurePopulationExclusionPatients = isPatientList ? new HashMap<>() : null;
+                        break;
+                    case MEASUREOBSERVATION:
+                        measureObservationCriteria = pop;
+                        measureObservation = new HashMap<>();
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns an empty state for the same group, used to evaluate another
+     * partition of the patients.
+     */
+    GroupEvaluationState newPartition() {
+        return new GroupEvaluationState(this.group, this.type);
+    }
+
+    /**
+     * Adds the results of another partition to this state. Partitions are
+     * expected to cover disjoint sets of patients, so merging them in a fixed
+     * order yields the same report as evaluating the patients serially.
+     */
+    void merge(GroupEvaluationState other) {
+        mergeMap(initialPopulation, other.initialPopulation);
+        mergeMap(numerator, other.numerator);
+        mergeMap(numeratorExclusion, other.numeratorExclusion);
+        mergeMap(denominator, other.denominator);
+        mergeMap(denominatorExclusion, other.denominatorExclusion);
+        mergeMap(denominatorException, other.denominatorException);
+        mergeMap(measurePopulation, other.measurePopulation);
+        mergeMap(measurePopulationExclusion, other.measurePopulationExclusion);
+        mergeMap(measureObservation, other.measureObservation);
+
+        mergeMap(initialPopulationPatients, other.initialPopulationPatients);
+        mergeMap(numeratorPatients, other.numeratorPatients);
+        mergeMap(numeratorExclusionPatients, other.numeratorExclusionPatients);
+        mergeMap(denominatorPatients, other.denominatorPatients);
+        mergeMap(denominatorExclusionPatients, other.denominatorExclusionPatients);
+        mergeMap(denominatorExceptionPatients, other.denominatorExceptionPatients);
+        mergeMap(measurePopulationPatients, other.measurePopulationPatients);
+        mergeMap(measurePopulationExclusionPatients, other.measurePopulationExclusionPatients);
+
+        other.resources.forEach(this.resources::putIfAbsent);
+        other.codeToResourceMap.forEach((code, ids) -> this.codeToResourceMap
+                .computeIfAbsent(code, x -> new HashSet<>()).addAll(ids));
+        this.sdeAccumulator.merge(other.sdeAccumulator);
+        this.observations.addAll(other.observations);
+    }
+
+    private static <T> void mergeMap(Map<String, T> target, Map<String, T> source) {
+        if (target != null && source != null) {
+            target.putAll(source);
+        }
+    }
+}
@@ -1,9 +1,15 @@
 package org.opencds.cqf.dstu3.evaluation;
 
-import java.lang.reflect.Field;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+import javax.xml.namespace.QName;
+
 import org.cqframework.cql.elm.execution.ExpressionDef;
 import org.cqframework.cql.elm.execution.FunctionDef;
 import org.hl7.fhir.dstu3.model.CodeableConcept;
@@ -20,9 +26,14 @@ import org.hl7.fhir.dstu3.model.Reference;
 import org.hl7.fhir.dstu3.model.Resource;
 import org.hl7.fhir.dstu3.model.StringType;
 import org.hl7.fhir.dstu3.model.UriType;
-import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.opencds.cqf.common.evaluation.MeasureEvaluationExecutor;
 import org.opencds.cqf.common.evaluation.MeasurePopulationType;
 import org.opencds.cqf.common.evaluation.MeasureScoring;
+import org.opencds.cqf.common.evaluation.SupplementalDataAccumulator;
+import org.opencds.cqf.common.retrieve.JpaFhirDataProvider;
+import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
+import org.opencds.cqf.common.retrieve.PagedResourceIterable;
+import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.execution.Variable;
 import org.opencds.cqf.cql.engine.runtime.Code;
@@ -40,12 +51,32 @@ public class MeasureEvaluation {
 
     private static final Logger logger = LoggerFactory.getLogger(MeasureEvaluation.class);
 
+    // Number of patients evaluated by a worker as a single unit of work
+    private static final int PARTITION_SIZE = 50;
+
     private Interval measurementPeriod;
     private DaoRegistry registry;
+    private Supplier<Context> contextFactory;
+    private MeasureEvaluationExecutor executor;
 
     public MeasureEvaluation(DaoRegistry registry, Interval measurementPeriod) {
+        this(registry, measurementPeriod, null, null);
+    }
+
+    /**
+     * @param contextFactory creates the Contexts used by worker threads when
+     *                       evaluating more than one patient. Every call must
+     *                       return a new Context with its own DataProvider.
+     * @param executor       the shared worker pool. A null executor (or contextFactory),
+     *                       or a pool with a single thread, evaluates patients
+     *                       serially on the calling thread.
+     */
+    public MeasureEvaluation(DaoRegistry registry, Interval measurementPeriod, Supplier<Context> contextFactory,
+            MeasureEvaluationExecutor executor) {
         this.registry = registry;
         this.measurementPeriod = measurementPeriod;
+        this.contextFactory = contextFactory;
+        this.executor = executor;
     }
 
     public MeasureReport evaluatePatientMeasure(Measure measure, Context context, String patientId) {
@@ -74,29 +105,23 @@ public class MeasureEvaluation {
     public MeasureReport evaluatePatientListMeasure(Measure measure, Context context, String practitionerRef) {
         logger.info("Generating patient-list report");
 
-        List<Patient> patients = practitionerRef == null ? getAllPatients() : getPractitionerPatients(practitionerRef);
+        Iterable<Patient> patients = practitionerRef == null ? getAllPatients() : getPractitionerPatients(practitionerRef);
         boolean isSingle = false;
         return evaluate(measure, context, patients, MeasureReport.MeasureReportType.PATIENTLIST, isSingle);
     }
 
-    private List<Patient> getPractitionerPatients(String practitionerRef) {
+    private Iterable<Patient> getPractitionerPatients(String practitionerRef) {
         SearchParameterMap map = new SearchParameterMap();
         map.add("general-practitioner", new ReferenceParam(
                 practitionerRef.startsWith("Practitioner/") ? practitionerRef : "Practitioner/" + practitionerRef));
 
-        List<Patient> patients = new ArrayList<>();
         IBundleProvider patientProvider = registry.getResourceDao("Patient").search(map);
-        List<IBaseResource> patientList = patientProvider.getResources(0, patientProvider.size());
-        patientList.forEach(x -> patients.add((Patient) x));
-        return patients;
+        return new PagedResourceIterable<>(patientProvider);
     }
 
-    private List<Patient> getAllPatients() {
-        List<Patient> patients = new ArrayList<>();
+    private Iterable<Patient> getAllPatients() {
         IBundleProvider patientProvider = registry.getResourceDao("Patient").search(new SearchParameterMap());
-        List<IBaseResource> patientList = patientProvider.getResources(0, patientProvider.size());
-        patientList.forEach(x -> patients.add((Patient) x));
-        return patients;
+        return new PagedResourceIterable<>(patientProvider);
     }
 
     public MeasureReport evaluatePopulationMeasure(Measure measure, Context context) {
@@ -106,21 +131,6 @@ public class MeasureEvaluation {
         return evaluate(measure, context, getAllPatients(), MeasureReport.MeasureReportType.SUMMARY, isSingle);
     }
 
-    @SuppressWarnings("unchecked")
-    private void clearExpressionCache(Context context) {
-        // Hack to clear expression cache
-        // See cqf-ruler github issue #153
-        try {
-            Field privateField = Context.class.getDeclaredField("expressions");
-            privateField.setAccessible(true);
-            LinkedHashMap<String, Object> expressions = (LinkedHashMap<String, Object>) privateField.get(context);
-            expressions.clear();
-
-        } catch (Exception e) {
-            logger.warn("Error resetting expression cache", e);
-        }
-    }
-
     private Resource evaluateObservationCriteria(Context context, Patient patient, Resource resource, Measure.MeasureGroupPopulationComponent pop, MeasureReport report) {
         if (pop == null || !pop.hasCriteria()) {
             return null;
@@ -128,8 +138,6 @@ public class MeasureEvaluation {
 
         context.setContextValue("Patient", patient.getIdElement().getIdPart());
 
-        clearExpressionCache(context);
-
         String observationName = pop.getCriteria();
         ExpressionDef ed = context.resolveExpressionRef(observationName);
         if (!(ed instanceof FunctionDef)) {
@@ -178,8 +186,6 @@ public class MeasureEvaluation {
 
         context.setContextValue("Patient", patient.getIdElement().getIdPart());
 
-        clearExpressionCache(context);
-
         Object result = context.resolveExpressionRef(pop.getCriteria()).evaluate(context);
         if (result == null) {
             return Collections.emptyList();
@@ -257,14 +263,14 @@ public class MeasureEvaluation {
         }
     }
 
-    private MeasureReport evaluate(Measure measure, Context context, List<Patient> patients,
+    private MeasureReport evaluate(Measure measure, Context context, Iterable<Patient> patients,
             MeasureReport.MeasureReportType type, boolean isSingle) {
         MeasureReportBuilder reportBuilder = new MeasureReportBuilder();
         reportBuilder.buildStatus("complete");
         reportBuilder.buildType(type);
         reportBuilder.buildMeasureReference(measure.getIdElement().getValue());
-        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && !patients.isEmpty()) {
-            reportBuilder.buildPatientReference(patients.get(0).getIdElement().getValue());
+        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && patients.iterator().hasNext()) {
+            reportBuilder.buildPatientReference(patients.iterator().next().getIdElement().getValue());
         }
         reportBuilder.buildPeriod(measurementPeriod);
 
@@ -279,255 +285,78 @@ public class MeasureEvaluation {
             throw new RuntimeException("Measure scoring is required in order to calculate.");
         }
 
-        List<Measure.MeasureSupplementalDataComponent> sde = new ArrayList<>();
-        HashMap<String, HashMap<String, Integer>> sdeAccumulators = null;
+        SupplementalDataAccumulator sdeAccumulator = new SupplementalDataAccumulator();
+
+        boolean isParallel = this.contextFactory != null && this.executor != null && this.executor.getThreads() > 1
+                && type != MeasureReport.MeasureReportType.INDIVIDUAL;
+        WorkerContexts workerContexts = isParallel ? new WorkerContexts(this.contextFactory) : null;
         for (Measure.MeasureGroupComponent group : measure.getGroup()) {
             MeasureReport.MeasureReportGroupComponent reportGroup = new MeasureReport.MeasureReportGroupComponent();
             reportGroup.setIdentifier(group.getIdentifier());
             report.getGroup().add(reportGroup);
 
-            // Declare variables to avoid a hash lookup on every patient
-            // TODO: Isn't quite right, there may be multiple initial populations for a
-            // ratio measure...
-            Measure.MeasureGroupPopulationComponent initialPopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = null;
-            Measure.MeasureGroupPopulationComponent measurePopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent measurePopulationExclusionCriteria = null;
-            // TODO: Isn't quite right, there may be multiple measure observations...
-            Measure.MeasureGroupPopulationComponent measureObservationCriteria = null;
-
-            HashMap<String, Resource> initialPopulation = null;
-            HashMap<String, Resource> numerator = null;
-            HashMap<String, Resource> numeratorExclusion = null;
-            HashMap<String, Resource> denominator = null;
-            HashMap<String, Resource> denominatorExclusion = null;
-            HashMap<String, Resource> denominatorException = null;
-            HashMap<String, Resource> measurePopulation = null;
-            HashMap<String, Resource> measurePopulationExclusion = null;
-            HashMap<String, Resource> measureObservation = null;
-
-            HashMap<String, Patient> initialPopulationPatients = null;
-            HashMap<String, Patient> numeratorPatients = null;
-            HashMap<String, Patient> numeratorExclusionPatients = null;
-            HashMap<String, Patient> denominatorPatients = null;
-            HashMap<String, Patient> denominatorExclusionPatients = null;
-            HashMap<String, Patient> denominatorExceptionPatients = null;
-            HashMap<String, Patient> measurePopulationPatients = null;
-            HashMap<String, Patient> measurePopulationExclusionPatients = null;
-
-            sdeAccumulators = new HashMap<>();
-            sde = measure.getSupplementalData();
-            for (Measure.MeasureGroupPopulationComponent pop : group.getPopulation()) {
-                MeasurePopulationType populationType = MeasurePopulationType
-                        .fromCode(pop.getCode().getCodingFirstRep().getCode());
-                if (populationType != null) {
-                    switch (populationType) {
-                        case INITIALPOPULATION:
-                            initialPopulationCriteria = pop;
-                            initialPopulation = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                initialPopulationPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case NUMERATOR:
-                            numeratorCriteria = pop;
-                            numerator = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                numeratorPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case NUMERATOREXCLUSION:
-                            numeratorExclusionCriteria = pop;
-                            numeratorExclusion = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                numeratorExclusionPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case DENOMINATOR:
-                            denominatorCriteria = pop;
-                            denominator = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                denominatorPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case DENOMINATOREXCLUSION:
-                            denominatorExclusionCriteria = pop;
-                            denominatorExclusion = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                denominatorExclusionPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case DENOMINATOREXCEPTION:
-                            denominatorExceptionCriteria = pop;
-                            denominatorException = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                denominatorExceptionPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case MEASUREPOPULATION:
-                            measurePopulationCriteria = pop;
-                            measurePopulation = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                measurePopulationPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case MEASUREPOPULATIONEXCLUSION:
-                            measurePopulationExclusionCriteria = pop;
-                            measurePopulationExclusion = new HashMap<String, Resource>();
-                            if (type == MeasureReport.MeasureReportType.PATIENTLIST) {
-                                measurePopulationExclusionPatients = new HashMap<String, Patient>();
-                            }
-                            break;
-                        case MEASUREOBSERVATION:
-                            measureObservationCriteria = pop;
-                            measureObservation = new HashMap<>();
-                            break;
+            GroupEvaluationState state = new GroupEvaluationState(group, type);
+            if (isParallel) {
+                evaluatePatients(state, measure, measureScoring, workerContexts, patients, report);
+            } else {
+                List<Patient> page = new ArrayList<>(PARTITION_SIZE);
+                for (Patient patient : patients) {
+                    page.add(patient);
+                    if (page.size() == PARTITION_SIZE) {
+                        evaluatePage(state, measure, measureScoring, context, page, report);
+                        page = new ArrayList<>(PARTITION_SIZE);
                     }
                 }
-            }
 
-            switch (measureScoring) {
-                case PROPORTION:
-                case RATIO: {
-
-                    // For each patient in the initial population
-                    for (Patient patient : patients) {
-
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-
-                        if (inInitialPopulation) {
-                            // Are they in the denominator?
-                            boolean inDenominator = evaluatePopulationCriteria(context, patient, denominatorCriteria,
-                                    denominator, denominatorPatients, denominatorExclusionCriteria,
-                                    denominatorExclusion, denominatorExclusionPatients);
-                            populateResourceMap(context, MeasurePopulationType.DENOMINATOR, resources,
-                                    codeToResourceMap);
-
-                            if (inDenominator) {
-                                // Are they in the numerator?
-                                boolean inNumerator = evaluatePopulationCriteria(context, patient, numeratorCriteria,
-                                        numerator, numeratorPatients, numeratorExclusionCriteria, numeratorExclusion,
-                                        numeratorExclusionPatients);
-                                populateResourceMap(context, MeasurePopulationType.NUMERATOR, resources,
-                                        codeToResourceMap);
-
-                                if (!inNumerator && inDenominator && (denominatorExceptionCriteria != null)) {
-                                    // Are they in the denominator exception?
-                                    boolean inException = false;
-                                    for (Resource resource : evaluateCriteria(context, patient,
-                                            denominatorExceptionCriteria)) {
-                                        inException = true;
-                                        denominatorException.put(resource.getIdElement().getIdPart(), resource);
-                                        denominator.remove(resource.getIdElement().getIdPart());
-                                        populateResourceMap(context, MeasurePopulationType.DENOMINATOREXCEPTION,
-                                                resources, codeToResourceMap);
-                                    }
-                                    if (inException) {
-                                        if (denominatorExceptionPatients != null) {
-                                            denominatorExceptionPatients.put(patient.getIdElement().getIdPart(),
-                                                    patient);
-                                        }
-                                        if (denominatorPatients != null) {
-                                            denominatorPatients.remove(patient.getIdElement().getIdPart());
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators, sde);
-                    }
-
-                    // Calculate actual measure score, Count(numerator) / Count(denominator)
-                    if (denominator != null && numerator != null && denominator.size() > 0) {
-                        reportGroup.setMeasureScore(numerator.size() / (double) denominator.size());
-                    }
-
-                    break;
+                if (!page.isEmpty()) {
+                    evaluatePage(state, measure, measureScoring, context, page, report);
                 }
-                case CONTINUOUSVARIABLE: {
-
-                    // For each patient in the patient list
-                    for (Patient patient : patients) {
-
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-
-                        if (inInitialPopulation) {
-                            // Are they in the measure population?
-                            boolean inMeasurePopulation = evaluatePopulationCriteria(context, patient,
-                                    measurePopulationCriteria, measurePopulation, measurePopulationPatients,
-                                    measurePopulationExclusionCriteria, measurePopulationExclusion,
-                                    measurePopulationExclusionPatients);
-
-                            if (inMeasurePopulation) {
-                                for (Resource resource : measurePopulation.values()) {
-                                    Resource observation = evaluateObservationCriteria(context, patient, resource, measureObservationCriteria, report);
-                                    measureObservation.put(resource.getIdElement().getIdPart(), observation);
-                                    report.addContained(observation);
-                                    // TODO: Add to the evaluatedResources bundle
-                                    //report.getEvaluatedResources().add(new Reference("#" + observation.getId()));
-                                }
-                            }
-                        }
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators,sde);
-                    }
+            }
 
-                    break;
-                }
-                case COHORT: {
-
-                    // For each patient in the patient list
-                    for (Patient patient : patients) {
-                        evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators, sde);
-                    }
+            for (Resource observation : state.observations) {
+                report.addContained(observation);
+                // TODO: Add to the evaluatedResources bundle
+                //report.getEvaluatedResources().add(new Reference("#" + observation.getId()));
+            }
 
-                    break;
-                }
+            state.resources.forEach(resources::putIfAbsent);
+            state.codeToResourceMap.forEach((code, ids) -> codeToResourceMap
+                    .computeIfAbsent(code, x -> new HashSet<>()).addAll(ids));
+            sdeAccumulator = state.sdeAccumulator;
+
+            // Calculate actual measure score, Count(numerator) / Count(denominator)
+            if ((measureScoring == MeasureScoring.PROPORTION || measureScoring == MeasureScoring.RATIO)
+                    && state.denominator != null && state.numerator != null && state.denominator.size() > 0) {
+                reportGroup.setMeasureScore(state.numerator.size() / (double) state.denominator.size());
             }
 
             // Add population reports for each group
-            addPopulationCriteriaReport(report, reportGroup, initialPopulationCriteria,
-                    initialPopulation != null ? initialPopulation.size() : 0,
-                    initialPopulationPatients != null ? initialPopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorCriteria,
-                    numerator != null ? numerator.size() : 0,
-                    numeratorPatients != null ? numeratorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorExclusionCriteria,
-                    numeratorExclusion != null ? numeratorExclusion.size() : 0,
-                    numeratorExclusionPatients != null ? numeratorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorCriteria,
-                    denominator != null ? denominator.size() : 0,
-                    denominatorPatients != null ? denominatorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExclusionCriteria,
-                    denominatorExclusion != null ? denominatorExclusion.size() : 0,
-                    denominatorExclusionPatients != null ? denominatorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExceptionCriteria,
-                    denominatorException != null ? denominatorException.size() : 0,
-                    denominatorExceptionPatients != null ? denominatorExceptionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, measurePopulationCriteria,
-                    measurePopulation != null ? measurePopulation.size() : 0,
-                    measurePopulationPatients != null ? measurePopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, measurePopulationExclusionCriteria,
-                    measurePopulationExclusion != null ? measurePopulationExclusion.size() : 0,
-                    measurePopulationExclusionPatients != null ? measurePopulationExclusionPatients.values() : null);
+            addPopulationCriteriaReport(report, reportGroup, state.initialPopulationCriteria,
+                    state.initialPopulation != null ? state.initialPopulation.size() : 0,
+                    state.initialPopulationPatients != null ? state.initialPopulationPatients.values() : null);
+            addPopulationCriteriaReport(report, reportGroup, state.numeratorCriteria,
+                    state.numerator != null ? state.numerator.size() : 0,
+                    state.numeratorPatients != null ? state.numeratorPatients.values() : null);
+            addPopulationCriteriaReport(report, reportGroup, state.numeratorExclusionCriteria,
+                    state.numeratorExclusion != null ? state.numeratorExclusion.size() : 0,
+                    state.numeratorExclusionPatients != null ? state.numeratorExclusionPatients.values() : null);
+            addPopulationCriteriaReport(report, reportGroup, state.denominatorCriteria,
+                    state.denominator != null ? state.denominator.size() : 0,
+                    state.denominatorPatients != null ? state.denominatorPatients.values() : null);
+            addPopulationCriteriaReport(report, reportGroup, state.denominatorExclusionCriteria,
+                    state.denominatorExclusion != null ? state.denominatorExclusion.size() : 0,
+                    state.denominatorExclusionPatients != null ? state.denominatorExclusionPatients.values() : null);
+            addPopulationCriteriaReport(report, reportGroup, state.denominatorExceptionCriteria,
+                    state.denominatorException != null ? state.denominatorException.size() : 0,
+                    state.denominatorExceptionPatients != null ? state.denominatorExceptionPatients.values() : null);
+            addPopulationCriteriaReport(report, reportGroup, state.measurePopulationCriteria,
+                    state.measurePopulation != null ? state.measurePopulation.size() : 0,
+                    state.measurePopulationPatients != null ? state.measurePopulationPatients.values() : null);
+            addPopulationCriteriaReport(report, reportGroup, state.measurePopulationExclusionCriteria,
+                    state.measurePopulationExclusion != null ? state.measurePopulationExclusion.size() : 0,
+                    state.measurePopulationExclusionPatients != null
+                            ? state.measurePopulationExclusionPatients.values()
+                            : null);
             // TODO: Measure Observations...
         }
 
@@ -565,112 +394,295 @@ public class MeasureEvaluation {
             */
         }
 
-        if (sdeAccumulators.size() > 0) {
-            report = processAccumulators(report, sdeAccumulators, sde, isSingle, patients);
+        if (!sdeAccumulator.isEmpty()) {
+            report = processAccumulators(report, sdeAccumulator, isSingle);
         }
 
         return report;
     }
 
-    private void populateSDEAccumulators(Measure measure, Context context, Patient patient,HashMap<String, HashMap<String, Integer>> sdeAccumulators,
-                                         List<Measure.MeasureSupplementalDataComponent> sde){
-        context.setContextValue("Patient", patient.getIdElement().getIdPart());
-        List<Object> sdeList = sde.stream().map(sdeItem -> context.resolveExpressionRef(sdeItem.getCriteria()).evaluate(context)).collect(Collectors.toList());
-        if(!sdeList.isEmpty()) {
-            for (int i = 0; i < sdeList.size(); i++) {
-                Object sdeListItem = sdeList.get(i);
-                if(null != sdeListItem) {
-                    String sdeAccumulatorKey = sde.get(i).getId();
-                    if(null == sdeAccumulatorKey || sdeAccumulatorKey.length() < 1){
-                        sdeAccumulatorKey = sde.get(i).getCriteria();
+    /**
+     * Splits the patients into partitions and evaluates them on the shared worker
+     * pool. Each partition in flight uses its own Context (and so its own
+     * DataProvider). The partial results are merged in partition order so the
+     * report does not depend on thread scheduling. Only a bounded number of
+     * partitions are in flight at once, so patients are pulled from the source as
+     * the workers need them.
+     */
+    private void evaluatePatients(GroupEvaluationState state, Measure measure, MeasureScoring measureScoring,
+            WorkerContexts workerContexts, Iterable<Patient> patients, MeasureReport report) {
+        int maxInFlight = this.executor.getThreads() * 2;
+        Deque<Future<GroupEvaluationState>> partitions = new ArrayDeque<>();
+        try {
+            List<Patient> partition = new ArrayList<>(PARTITION_SIZE);
+            for (Patient patient : patients) {
+                partition.add(patient);
+                if (partition.size() == PARTITION_SIZE) {
+                    partitions.add(submitPartition(state, measure, measureScoring, workerContexts, partition, report));
+                    partition = new ArrayList<>(PARTITION_SIZE);
+
+                    if (partitions.size() >= maxInFlight) {
+                        state.merge(getPartitionResult(partitions.poll()));
                     }
-                    HashMap<String, Integer> sdeItemMap = sdeAccumulators.get(sdeAccumulatorKey);
-                    String code = "";
-
-                    switch (sdeListItem.getClass().getSimpleName()) {
-                        case "Code":
-                            code = ((Code) sdeListItem).getCode();
-                            break;
-                        case "ArrayList":
-                            if (((ArrayList<?>) sdeListItem).size() > 0) {
-                                code  = ((Coding) ((ArrayList<?>) sdeListItem).get(0)).getCode();
-                            }else{
-                                continue;
+                }
+            }
+
+            if (!partition.isEmpty()) {
+                partitions.add(submitPartition(state, measure, measureScoring, workerContexts, partition, report));
+            }
+
+            while (!partitions.isEmpty()) {
+                state.merge(getPartitionResult(partitions.poll()));
+            }
+        } finally {
+            // The pool is shared, so only this evaluation's partitions are stopped
+            partitions.forEach(x -> x.cancel(true));
+        }
+    }
+
+    private Future<GroupEvaluationState> submitPartition(GroupEvaluationState state, Measure measure,
+            MeasureScoring measureScoring, WorkerContexts workerContexts, List<Patient> partition,
+            MeasureReport report) {
+        return this.executor.submit(() -> workerContexts.apply(context -> {
+            GroupEvaluationState partitionState = state.newPartition();
+            evaluatePage(partitionState, measure, measureScoring, context, partition, report);
+            return partitionState;
+        }));
+    }
+
+    /**
+     * The worker Contexts of one evaluation. A partition takes an idle Context
+     * (or creates one) and returns it when it is done, so an evaluation creates
+     * no more Contexts than it has partitions in flight, and none are left on the
+     * shared pool's threads.
+     */
+    private static class WorkerContexts {
+        private final Supplier<Context> factory;
+        private final Queue<Context> idle = new ConcurrentLinkedQueue<>();
+
+        private WorkerContexts(Supplier<Context> factory) {
+            this.factory = factory;
+        }
+
+        private <T> T apply(Function<Context, T> work) {
+            Context context = this.idle.poll();
+            if (context == null) {
+                context = this.factory.get();
+            }
+
+            try {
+                return work.apply(context);
+            } finally {
+                this.idle.add(context);
+            }
+        }
+    }
+
+    private GroupEvaluationState getPartitionResult(Future<GroupEvaluationState> partition) {
+        try {
+            return partition.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Measure evaluation was interrupted.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Error evaluating measure population.", e.getCause());
+        }
+    }
+
+    /**
+     * Evaluates a page of patients. When the Context's FHIR data comes from a
+     * JpaFhirRetrieveProvider, the page's data is fetched with one search per
+     * retrieve (rather than one per retrieve per patient) and then served to each
+     * patient from memory, and each patient's retrieves are cached so criteria
+     * that share a retrieve don't repeat it.
+     */
+    private void evaluatePage(GroupEvaluationState state, Measure measure, MeasureScoring measureScoring,
+            Context context, List<Patient> page, MeasureReport report) {
+        JpaFhirRetrieveProvider retrieveProvider = getRetrieveProvider(context);
+        if (retrieveProvider != null) {
+            retrieveProvider.prefetchPatients(
+                    page.stream().map(x -> x.getIdElement().getIdPart()).collect(Collectors.toList()));
+            retrieveProvider.setRetrieveCaching(true);
+        }
+
+        try {
+            for (Patient patient : page) {
+                evaluatePatient(state, measure, measureScoring, context, patient, report);
+            }
+        } finally {
+            if (retrieveProvider != null) {
+                retrieveProvider.clearPrefetch();
+                retrieveProvider.setRetrieveCaching(false);
+            }
+        }
+    }
+
+    private JpaFhirRetrieveProvider getRetrieveProvider(Context context) {
+        DataProvider dataProvider = context.resolveDataProvider(new QName("http://hl7.org/fhir", "Patient"));
+        return dataProvider instanceof JpaFhirDataProvider ? ((JpaFhirDataProvider) dataProvider).getRetrieveProvider()
+                : null;
+    }
+
+    private void evaluatePatient(GroupEvaluationState state, Measure measure, MeasureScoring measureScoring,
+            Context context, Patient patient, MeasureReport report) {
+        switch (measureScoring) {
+            case PROPORTION:
+            case RATIO: {
+                // Are they in the initial population?
+                boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
+                        state.initialPopulationCriteria, state.initialPopulation, state.initialPopulationPatients,
+                        null, null, null);
+                populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, state.resources,
+                        state.codeToResourceMap);
+
+                if (inInitialPopulation) {
+                    // Are they in the denominator?
+                    boolean inDenominator = evaluatePopulationCriteria(context, patient, state.denominatorCriteria,
+                            state.denominator, state.denominatorPatients, state.denominatorExclusionCriteria,
+                            state.denominatorExclusion, state.denominatorExclusionPatients);
+                    populateResourceMap(context, MeasurePopulationType.DENOMINATOR, state.resources,
+                            state.codeToResourceMap);
+
+                    if (inDenominator) {
+                        // Are they in the numerator?
+                        boolean inNumerator = evaluatePopulationCriteria(context, patient, state.numeratorCriteria,
+                                state.numerator, state.numeratorPatients, state.numeratorExclusionCriteria,
+                                state.numeratorExclusion, state.numeratorExclusionPatients);
+                        populateResourceMap(context, MeasurePopulationType.NUMERATOR, state.resources,
+                                state.codeToResourceMap);
+
+                        if (!inNumerator && inDenominator && (state.denominatorExceptionCriteria != null)) {
+                            // Are they in the denominator exception?
+                            boolean inException = false;
+                            for (Resource resource : evaluateCriteria(context, patient,
+                                    state.denominatorExceptionCriteria)) {
+                                inException = true;
+                                state.denominatorException.put(resource.getIdElement().getIdPart(), resource);
+                                state.denominator.remove(resource.getIdElement().getIdPart());
+                                populateResourceMap(context, MeasurePopulationType.DENOMINATOREXCEPTION,
+                                        state.resources, state.codeToResourceMap);
                             }
-                            break;
-                    }
-                    if(null == code){
-                        continue;
+                            if (inException) {
+                                if (state.denominatorExceptionPatients != null) {
+                                    state.denominatorExceptionPatients.put(patient.getIdElement().getIdPart(),
+                                            patient);
+                                }
+                                if (state.denominatorPatients != null) {
+                                    state.denominatorPatients.remove(patient.getIdElement().getIdPart());
+                                }
+                            }
+                        }
                     }
-                    if (null != sdeItemMap && null != sdeItemMap.get(code)) {
-                        Integer sdeItemValue = sdeItemMap.get(code);
-                        sdeItemValue++;
-                        sdeItemMap.put(code, sdeItemValue);
-                        sdeAccumulators.get(sdeAccumulatorKey).put(code, sdeItemValue);
-                    } else {
-                        if (null == sdeAccumulators.get(sdeAccumulatorKey)) {
-                            HashMap<String, Integer> newSDEItem = new HashMap<>();
-                            newSDEItem.put(code, 1);
-                            sdeAccumulators.put(sdeAccumulatorKey, newSDEItem);
-                        } else {
-                            sdeAccumulators.get(sdeAccumulatorKey).put(code, 1);
+                }
+                break;
+            }
+            case CONTINUOUSVARIABLE: {
+                // Are they in the initial population?
+                boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
+                        state.initialPopulationCriteria, state.initialPopulation, state.initialPopulationPatients,
+                        null, null, null);
+                populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, state.resources,
+                        state.codeToResourceMap);
+
+                if (inInitialPopulation) {
+                    // Are they in the measure population?
+                    boolean inMeasurePopulation = evaluatePopulationCriteria(context, patient,
+                            state.measurePopulationCriteria, state.measurePopulation,
+                            state.measurePopulationPatients, state.measurePopulationExclusionCriteria,
+                            state.measurePopulationExclusion, state.measurePopulationExclusionPatients);
+
+                    if (inMeasurePopulation) {
+                        for (Resource resource : state.measurePopulation.values()) {
+                            Resource observation = evaluateObservationCriteria(context, patient, resource,
+                                    state.measureObservationCriteria, report);
+                            state.measureObservation.put(resource.getIdElement().getIdPart(), observation);
+                            state.observations.add(observation);
                         }
                     }
                 }
+                break;
+            }
+            case COHORT: {
+                evaluatePopulationCriteria(context, patient, state.initialPopulationCriteria,
+                        state.initialPopulation, state.initialPopulationPatients, null, null, null);
+                populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, state.resources,
+                        state.codeToResourceMap);
+                break;
+            }
+        }
+
+        populateSDEAccumulators(context, patient, state.sdeAccumulator, measure.getSupplementalData());
+    }
+
+    private void populateSDEAccumulators(Context context, Patient patient, SupplementalDataAccumulator sdeAccumulator,
+            List<Measure.MeasureSupplementalDataComponent> sde) {
+        if (sde.isEmpty()) {
+            return;
+        }
+
+        context.setContextValue("Patient", patient.getIdElement().getIdPart());
+        for (Measure.MeasureSupplementalDataComponent sdeItem : sde) {
+            String sdeKey = sdeItem.getId();
+            if (sdeKey == null || sdeKey.isEmpty()) {
+                sdeKey = sdeItem.getCriteria();
             }
+
+            addSdeValue(sdeAccumulator, sdeKey, context.resolveExpressionRef(sdeItem.getCriteria()).evaluate(context));
         }
     }
 
-    private MeasureReport processAccumulators(MeasureReport report, HashMap<String, HashMap<String, Integer>> sdeAccumulators,
-                                              List<Measure.MeasureSupplementalDataComponent> sde, boolean isSingle, List<Patient> patients){
+    // SDE values are codes; a list contributes its first element
+    private static void addSdeValue(SupplementalDataAccumulator sdeAccumulator, String sdeKey, Object value) {
+        if (value instanceof Iterable) {
+            Iterator<?> values = ((Iterable<?>) value).iterator();
+            if (values.hasNext()) {
+                addSdeValue(sdeAccumulator, sdeKey, values.next());
+            }
+        } else if (value instanceof Code) {
+            Code code = (Code) value;
+            sdeAccumulator.add(sdeKey, code.getSystem(), code.getCode(), code.getDisplay());
+        } else if (value instanceof Coding) {
+            Coding coding = (Coding) value;
+            sdeAccumulator.add(sdeKey, coding.getSystem(), coding.getCode(), coding.getDisplay());
+        } else if (value instanceof CodeableConcept && ((CodeableConcept) value).hasCoding()) {
+            addSdeValue(sdeAccumulator, sdeKey, ((CodeableConcept) value).getCodingFirstRep());
+        }
+    }
+
+    private MeasureReport processAccumulators(MeasureReport report, SupplementalDataAccumulator sdeAccumulator,
+            boolean isSingle) {
         List<Reference> newRefList = new ArrayList<>();
-        sdeAccumulators.forEach((sdeKey, sdeAccumulator) -> {
-            sdeAccumulator.forEach((sdeAccumulatorKey, sdeAccumulatorValue)->{
-                Observation obs = new Observation();
-                obs.setStatus(Observation.ObservationStatus.FINAL);
-                obs.setId(UUID.randomUUID().toString());
-                Coding valueCoding = new Coding();
-                if(sdeKey.equalsIgnoreCase("sde-sex")){
-                    valueCoding.setCode(sdeAccumulatorKey);
-                }else {
-                    String coreCategory = sdeKey.substring(sdeKey.lastIndexOf('-'));
-                    patients.forEach((pt)-> {
-                        pt.getExtension().forEach((ptExt) -> {
-                            if (ptExt.getUrl().contains(coreCategory)) {
-                                String code = ((Coding) ptExt.getExtension().get(0).getValue()).getCode();
-                                if(code.equalsIgnoreCase(sdeAccumulatorKey)) {
-                                    valueCoding.setSystem(((Coding) ptExt.getExtension().get(0).getValue()).getSystem());
-                                    valueCoding.setCode(code);
-                                    valueCoding.setDisplay(((Coding) ptExt.getExtension().get(0).getValue()).getDisplay());
-                                }
-                            }
-                        });
-                    });
-                }
-                CodeableConcept obsCodeableConcept = new CodeableConcept();
-                Extension obsExtension = new Extension().setUrl("http://hl7.org/fhir/StructureDefinition/cqf-measureInfo");
-                Extension extExtMeasure = new Extension()
-                        .setUrl("measure")
-                        .setValue(new StringType("http://hl7.org/fhir/us/cqfmeasures/" + report.getMeasure()));
-                obsExtension.addExtension(extExtMeasure);
-                Extension extExtPop = new Extension()
-                        .setUrl("populationId")
-                        .setValue(new StringType(sdeKey));
-                obsExtension.addExtension(extExtPop);
-                obs.addExtension(obsExtension);
-                obs.setValue(new IntegerType(sdeAccumulatorValue));
-                if(!isSingle) {
-                    valueCoding.setCode(sdeAccumulatorKey);
-                    obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
-                    obs.setCode(obsCodeableConcept);
-                }else{
-                    obs.setCode(new CodeableConcept().setText(sdeKey));
-                    obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
-                    obs.setValue(obsCodeableConcept);
-                }
-                newRefList.add(new Reference("#" + obs.getId()));
-                report.addContained(obs);
-            });
+        sdeAccumulator.forEach((sdeKey, sdeValue) -> {
+            Observation obs = new Observation();
+            obs.setStatus(Observation.ObservationStatus.FINAL);
+            obs.setId(UUID.randomUUID().toString());
+            Coding valueCoding = new Coding().setSystem(sdeValue.getSystem()).setCode(sdeValue.getCode())
+                    .setDisplay(sdeValue.getDisplay());
+            CodeableConcept obsCodeableConcept = new CodeableConcept();
+            Extension obsExtension = new Extension().setUrl("http://hl7.org/fhir/StructureDefinition/cqf-measureInfo");
+            Extension extExtMeasure = new Extension()
+                    .setUrl("measure")
+                    .setValue(new StringType("http://hl7.org/fhir/us/cqfmeasures/" + report.getMeasure()));
+            obsExtension.addExtension(extExtMeasure);
+            Extension extExtPop = new Extension()
+                    .setUrl("populationId")
+                    .setValue(new StringType(sdeKey));
+            obsExtension.addExtension(extExtPop);
+            obs.addExtension(obsExtension);
+            obs.setValue(new IntegerType(sdeValue.getCount()));
+            if (!isSingle) {
+                obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
+                obs.setCode(obsCodeableConcept);
+            } else {
+                obs.setCode(new CodeableConcept().setText(sdeKey));
+                obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
+                obs.setValue(obsCodeableConcept);
+            }
+            newRefList.add(new Reference("#" + obs.getId()));
+            report.addContained(obs);
         });
 
         // TODO: Evaluated resources
@@ -5,8 +5,8 @@ import javax.inject.Inject;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
 import org.opencds.cqf.common.helpers.ClientHelper;
 import org.opencds.cqf.common.providers.Dstu3ApelonFhirTerminologyProvider;
+import org.opencds.cqf.common.retrieve.JpaFhirDataProvider;
 import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
-import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.fhir.model.Dstu3FhirModelResolver;
 import org.opencds.cqf.cql.engine.fhir.searchparam.SearchParameterResolver;
@@ -54,7 +54,7 @@ public class ProviderFactory implements EvaluationProviderFactory {
             retrieveProvider.setTerminologyProvider(terminologyProvider);
             retrieveProvider.setExpandValueSets(true);
 
-            return new CompositeDataProvider(modelResolver, retrieveProvider);
+            return new JpaFhirDataProvider(modelResolver, retrieveProvider);
         }
 
         throw new IllegalArgumentException(
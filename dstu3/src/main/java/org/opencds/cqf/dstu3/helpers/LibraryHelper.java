@@ -9,6 +9,7 @@ import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
 import org.hl7.fhir.dstu3.model.*;
 import org.hl7.fhir.dstu3.model.RelatedArtifact.RelatedArtifactType;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
 import org.opencds.cqf.common.evaluation.LibraryLoader;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.providers.LibrarySourceProvider;
@@ -24,11 +25,13 @@ public class LibraryHelper {
         LibraryManager libraryManager = new LibraryManager(modelManager);
         libraryManager.getLibrarySourceLoader().clearProviders();
 
-        libraryManager.getLibrarySourceLoader().registerProvider(
+        LibrarySourceProvider<org.hl7.fhir.dstu3.model.Library, org.hl7.fhir.dstu3.model.Attachment> librarySourceProvider =
                 new LibrarySourceProvider<org.hl7.fhir.dstu3.model.Library, org.hl7.fhir.dstu3.model.Attachment>(
-                        provider, x -> x.getContent(), x -> x.getContentType(), x -> x.getData()));
+                        provider, x -> x.getContent(), x -> x.getContentType(), x -> x.getData());
+        libraryManager.getLibrarySourceLoader().registerProvider(librarySourceProvider);
 
-        return new LibraryLoader(libraryManager, modelManager);
+        return new LibraryLoader(libraryManager, modelManager, CompiledLibraryCache.getSharedInstance(),
+                librarySourceProvider);
     }
 
     public static List<org.cqframework.cql.elm.execution.Library> loadLibraries(Measure measure,
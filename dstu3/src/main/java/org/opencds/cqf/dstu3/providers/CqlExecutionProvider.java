@@ -180,8 +180,9 @@ public class CqlExecutionProvider {
 
         LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
 
-        org.cqframework.cql.elm.execution.Library library = TranslatorHelper.translateLibrary(source,
-                libraryLoader.getLibraryManager(), libraryLoader.getModelManager());
+        // The source only varies by resource type, includes and expression, so
+        // evaluating the same expression again reuses the translated library
+        org.cqframework.cql.elm.execution.Library library = libraryLoader.translateSource("LocalLibrary", source);
         Context context = new Context(library);
         context.setParameter(null, instance.fhirType(), instance);
         context.setParameter(null, "%context", instance);
@@ -39,6 +39,7 @@ import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.MeasureEvaluationExecutor;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
@@ -75,6 +76,7 @@ public class MeasureOperationsProvider {
     private MeasureResourceProvider measureResourceProvider;
     private DaoRegistry registry;
     private EvaluationProviderFactory factory;
+    private MeasureEvaluationExecutor evaluationExecutor;
 
     private static final Logger logger = LoggerFactory.getLogger(MeasureOperationsProvider.class);
 
@@ -82,9 +84,10 @@ public class MeasureOperationsProvider {
     public MeasureOperationsProvider(DaoRegistry registry, EvaluationProviderFactory factory,
             NarrativeProvider narrativeProvider, HQMFProvider hqmfProvider,
             LibraryResolutionProvider<Library> libraryResolutionProvider,
-            MeasureResourceProvider measureResourceProvider) {
+            MeasureResourceProvider measureResourceProvider, MeasureEvaluationExecutor evaluationExecutor) {
         this.registry = registry;
         this.factory = factory;
+        this.evaluationExecutor = evaluationExecutor;
 
         this.libraryResolutionProvider = libraryResolutionProvider;
         this.narrativeProvider = narrativeProvider;
@@ -189,7 +192,7 @@ public class MeasureOperationsProvider {
 
         // resolve report type
         MeasureEvaluation evaluator = new MeasureEvaluation(this.registry,
-                seed.getMeasurementPeriod());
+                seed.getMeasurementPeriod(), seed::createContext, this.evaluationExecutor);
         if (reportType != null) {
             switch (reportType) {
                 case "patient":
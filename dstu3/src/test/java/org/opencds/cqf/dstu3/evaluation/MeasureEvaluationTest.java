@@ -0,0 +1,148 @@
+package org.opencds.cqf.dstu3.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.fhir.dstu3.model.CodeableConcept;
+import org.hl7.fhir.dstu3.model.Coding;
+import org.hl7.fhir.dstu3.model.Measure;
+import org.hl7.fhir.dstu3.model.MeasureReport;
+import org.hl7.fhir.dstu3.model.Patient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencds.cqf.common.evaluation.MeasureEvaluationExecutor;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+public class MeasureEvaluationTest {
+
+    private static final int THREADS = 4;
+
+    private static final String CQL = "library Test version '1'\n"
+            + "define \"Initial Population\": true\n"
+            + "define \"Denominator\": true\n"
+            + "define \"Numerator\": false\n";
+
+    private MeasureEvaluationExecutor executor;
+    private Library library;
+
+    @Before
+    public void setUp() {
+        this.executor = new MeasureEvaluationExecutor(THREADS);
+        ModelManager modelManager = new ModelManager();
+        this.library = TranslatorHelper.translateLibrary(CQL, new LibraryManager(modelManager), modelManager);
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdown();
+    }
+
+    @Test
+    public void parallelPopulationReportMatchesSerial() {
+        DaoRegistry registry = newRegistry(237);
+
+        MeasureReport serial = new MeasureEvaluation(registry, newPeriod()).evaluatePopulationMeasure(newMeasure(),
+                newContext());
+        MeasureReport parallel = newEvaluation(registry, this::newContext).evaluatePopulationMeasure(newMeasure(),
+                newContext());
+
+        for (String population : new String[] { "initial-population", "denominator", "numerator" }) {
+            assertEquals(getCount(serial, population), getCount(parallel, population));
+        }
+        assertEquals(237, getCount(parallel, "initial-population"));
+    }
+
+    @Test
+    public void workerContextsAreBoundedByThePool() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        MeasureReport report = newEvaluation(newRegistry(1000), () -> {
+            created.incrementAndGet();
+            return newContext();
+        }).evaluatePopulationMeasure(newMeasure(), newContext());
+
+        assertEquals(1000, getCount(report, "denominator"));
+        assertTrue("Created " + created.get() + " worker contexts", created.get() <= THREADS);
+
+        // The pool is shared, so it is still running
+        assertEquals("done", this.executor.submit(() -> "done").get());
+    }
+
+    private MeasureEvaluation newEvaluation(DaoRegistry registry, Supplier<Context> contextFactory) {
+        return new MeasureEvaluation(registry, newPeriod(), contextFactory, this.executor);
+    }
+
+    private Context newContext() {
+        Context context = new Context(this.library);
+        context.registerDataProvider("http://hl7.org/fhir", mock(DataProvider.class));
+        return context;
+    }
+
+    private static Interval newPeriod() {
+        return new Interval(new Date(0), true, new Date(), true);
+    }
+
+    private static Measure newMeasure() {
+        Measure measure = new Measure();
+        measure.setId("Measure/proportion");
+        measure.setScoring(new CodeableConcept().addCoding(new Coding().setCode("proportion")));
+        Measure.MeasureGroupComponent group = measure.addGroup();
+        addPopulation(group, "initial-population", "Initial Population");
+        addPopulation(group, "denominator", "Denominator");
+        addPopulation(group, "numerator", "Numerator");
+        return measure;
+    }
+
+    private static void addPopulation(Measure.MeasureGroupComponent group, String code, String criteria) {
+        group.addPopulation().setCode(new CodeableConcept().addCoding(new Coding().setCode(code)))
+                .setCriteria(criteria);
+    }
+
+    private static DaoRegistry newRegistry(int count) {
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Patient patient = new Patient();
+            patient.setId("Patient/p" + i);
+            patients.add(patient);
+        }
+
+        IFhirResourceDao<?> dao = mock(IFhirResourceDao.class);
+        when(dao.search(any(SearchParameterMap.class))).thenAnswer(x -> new SimpleBundleProvider(patients));
+
+        DaoRegistry registry = mock(DaoRegistry.class);
+        doReturn(dao).when(registry).getResourceDao("Patient");
+        return registry;
+    }
+
+    private static int getCount(MeasureReport report, String population) {
+        for (MeasureReport.MeasureReportGroupPopulationComponent component : report.getGroupFirstRep()
+                .getPopulation()) {
+            if (population.equals(component.getCode().getCodingFirstRep().getCode())) {
+                return component.getCount();
+            }
+        }
+
+        throw new AssertionError("No " + population + " population in the report");
+    }
+}
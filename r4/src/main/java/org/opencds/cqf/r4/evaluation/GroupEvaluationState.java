@@ -0,0 +1,280 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.ContinuousVariableAggregate;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+
+/**
+ * Holds the population results of a single Measure group for a set of patients.
+ * A state is filled by evaluating patients one at a time; states computed for
+ * disjoint sets of patients can then be merged into a single result.
+ */
+class GroupEvaluationState {
+
+    final Measure.MeasureGroupComponent group;
+    final MeasureReport.MeasureReportType type;
+
+    // Whether only the population counts are needed, in which case the resources
+    // the criteria evaluated aren't recorded
+    final boolean countsOnly;
+
+    // TODO: Isn't quite right, there may be multiple initial populations for a
+    // ratio measure...
+    Measure.MeasureGroupPopulationComponent initialPopulationCriteria = null;
+    Measure.MeasureGroupPopulationComponent numeratorCriteria = null;
+    Measure.MeasureGroupPopulationComponent numeratorExclusionCriteria = null;
+    Measure.MeasureGroupPopulationComponent denominatorCriteria = null;
+    Measure.MeasureGroupPopulationComponent denominatorExclusionCriteria = null;
+    Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = null;
+    Measure.MeasureGroupPopulationComponent measurePopulationCriteria = null;
+    Measure.MeasureGroupPopulationComponent measurePopulationExclusionCriteria = null;
+    // TODO: Isn't quite right, there may be multiple measure observations...
+    Measure.MeasureGroupPopulationComponent measureObservationCriteria = null;
+
+    // The ids of the resources in each population; the resources themselves
+    // aren't needed once they have been counted
+    HashSet<String> initialPopulation = null;
+    HashSet<String> numerator = null;
+    HashSet<String> numeratorExclusion = null;
+    HashSet<String> denominator = null;
+    HashSet<String> denominatorExclusion = null;
+    HashSet<String> denominatorException = null;
+    HashSet<String> measurePopulation = null;
+    HashSet<String> measurePopulationExclusion = null;
+    // The measure observations are aggregated as they are evaluated, not kept
+    ContinuousVariableAggregate measureObservationAggregate = null;
+
+    HashMap<String, Patient> initialPopulationPatients = null;
+    HashMap<String, Patient> numeratorPatients = null;
+    HashMap<String, Patient> numeratorExclusionPatients = null;
+    HashMap<String, Patient> denominatorPatients = null;
+    HashMap<String, Patient> denominatorExclusionPatients = null;
+    HashMap<String, Patient> denominatorExceptionPatients = null;
+    HashMap<String, Patient> measurePopulationPatients = null;
+    HashMap<String, Patient> measurePopulationExclusionPatients = null;
+
+    final HashMap<String, HashSet<String>> codeToResourceMap = new HashMap<>();
+    final List<Resource> observations = new ArrayList<>();
+
+    // Per stratifier (in Measure order), the strata by Stratum key
+    final List<Map<String, Stratum>> strata = new ArrayList<>();
+
+    GroupEvaluationState(Measure.MeasureGroupComponent group, MeasureReport.MeasureReportType type,
+            boolean countsOnly) {
+        this.group = group;
+        this.type = type;
+        this.countsOnly = countsOnly;
+
+        for (int i = 0; i < group.getStratifier().size(); i++) {
+            strata.add(new LinkedHashMap<>());
+        }
+
+        boolean isSubjectList = type == MeasureReport.MeasureReportType.SUBJECTLIST;
+        for (Measure.MeasureGroupPopulationComponent pop : group.getPopulation()) {
+            MeasurePopulationType populationType = MeasurePopulationType
+                    .fromCode(pop.getCode().getCodingFirstRep().getCode());
+            if (populationType != null) {
+                switch (populationType) {
+                    case INITIALPOPULATION:
+                        initialPopulationCriteria = pop;
+                        initialPopulation = new HashSet<>();
+                        initialPopulationPatients = isSubjectList ? new HashMap<>() : null;
+                        break;
+                    case NUMERATOR:
+                        numeratorCriteria = pop;
+                        numerator = new HashSet<>();
+                        numeratorPatients = isSubjectList ? new HashMap<>() : null;
+                        break;
+                    case NUMERATOREXCLUSION:
+                        numeratorExclusionCriteria = pop;
+                        numeratorExclusion = new HashSet<>();
+                        numeratorExclusionPatients = isSubjectList ? new HashMap<>() : null;
+                        break;
+                    case DENOMINATOR:
+                        denominatorCriteria = pop;
+                        denominator = new HashSet<>();
+                        denominatorPatients = isSubjectList ? new HashMap<>() : null;
+                        break;
+                    case DENOMINATOREXCLUSION:
+                        denominatorExclusionCriteria = pop;
+                        denominatorExclusion = new HashSet<>();
+                        denominatorExclusionPatients = isSubjectList ? new HashMap<>() : null;
+                        break;
+                    case DENOMINATOREXCEPTION:
+                        denominatorExceptionCriteria = pop;
+                        denominatorException = new HashSet<>();
+                        denominatorExceptionPatients = isSubjectList ? new HashMap<>() : null;
+                        break;
+                    case MEASUREPOPULATION:
+                        measurePopulationCriteria = pop;
+                        measurePopulation = new HashSet<>();
+                        measurePopulationPatients = isSubjectList ? new HashMap<>() : null;
+                        break;
+                    case MEASUREPOPULATIONEXCLUSION:
+                        measurePopulationExclusionCriteria = pop;
+                        measurePopulationExclusion = new HashSet<>();
+                        measurePopulationExclusionPatients = isSubjectList ? new HashMap<>() : null;
+                        break;
+                    case MEASUREOBSERVATION:
+                        measureObservationCriteria = pop;
+                        measureObservationAggregate = new ContinuousVariableAggregate(
+                                HapiProperties.getMeasureEvaluationExactMedianLimit());
+                        break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns an empty state for the same group, used to evaluate another
+     * partition of the patients.
+     */
+    GroupEvaluationState newPartition() {
+        return new GroupEvaluationState(this.group, this.type, this.countsOnly);
+    }
+
+    /**
+     * Adds the results of another partition to this state. Partitions are
+     * expected to cover disjoint sets of patients, so merging them in a fixed
+     * order yields the same report as evaluating the patients serially.
+     */
+    void merge(GroupEvaluationState other) {
+        mergeSet(initialPopulation, other.initialPopulation);
+        mergeSet(numerator, other.numerator);
+        mergeSet(numeratorExclusion, other.numeratorExclusion);
+        mergeSet(denominator, other.denominator);
+        mergeSet(denominatorExclusion, other.denominatorExclusion);
+        mergeSet(denominatorException, other.denominatorException);
+        mergeSet(measurePopulation, other.measurePopulation);
+        mergeSet(measurePopulationExclusion, other.measurePopulationExclusion);
+        if (measureObservationAggregate != null && other.measureObservationAggregate != null) {
+            measureObservationAggregate.merge(other.measureObservationAggregate);
+        }
+
+        mergeMap(initialPopulationPatients, other.initialPopulationPatients);
+        mergeMap(numeratorPatients, other.numeratorPatients);
+        mergeMap(numeratorExclusionPatients, other.numeratorExclusionPatients);
+        mergeMap(denominatorPatients, other.denominatorPatients);
+        mergeMap(denominatorExclusionPatients, other.denominatorExclusionPatients);
+        mergeMap(denominatorExceptionPatients, other.denominatorExceptionPatients);
+        mergeMap(measurePopulationPatients, other.measurePopulationPatients);
+        mergeMap(measurePopulationExclusionPatients, other.measurePopulationExclusionPatients);
+
+        other.codeToResourceMap.forEach((code, ids) -> this.codeToResourceMap
+                .computeIfAbsent(code, x -> new HashSet<>()).addAll(ids));
+        this.observations.addAll(other.observations);
+        for (int i = 0; i < this.strata.size(); i++) {
+            Map<String, Stratum> strata = this.strata.get(i);
+            other.strata.get(i).forEach((key, stratum) -> strata
+                    .computeIfAbsent(key, x -> new Stratum(stratum.value, stratum.components)).add(stratum.counts));
+        }
+    }
+
+    /**
+     * Returns the criteria of the given population, or null if the group doesn't
+     * define it.
+     */
+    Measure.MeasureGroupPopulationComponent getCriteria(MeasurePopulationType populationType) {
+        switch (populationType) {
+            case INITIALPOPULATION:
+                return initialPopulationCriteria;
+            case NUMERATOR:
+                return numeratorCriteria;
+            case NUMERATOREXCLUSION:
+                return numeratorExclusionCriteria;
+            case DENOMINATOR:
+                return denominatorCriteria;
+            case DENOMINATOREXCLUSION:
+                return denominatorExclusionCriteria;
+            case DENOMINATOREXCEPTION:
+                return denominatorExceptionCriteria;
+            case MEASUREPOPULATION:
+                return measurePopulationCriteria;
+            case MEASUREPOPULATIONEXCLUSION:
+                return measurePopulationExclusionCriteria;
+            case MEASUREOBSERVATION:
+                return measureObservationCriteria;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Returns the ids of the resources in each population the group defines.
+     */
+    Map<MeasurePopulationType, Set<String>> getPopulationIds() {
+        Map<MeasurePopulationType, Set<String>> ids = new EnumMap<>(MeasurePopulationType.class);
+        for (MeasurePopulationType populationType : MeasurePopulationType.values()) {
+            Set<String> population = getPopulation(populationType);
+            if (population != null) {
+                ids.put(populationType, new HashSet<>(population));
+            }
+        }
+
+        return ids;
+    }
+
+    /**
+     * Returns the size of each population, indexed by MeasurePopulationType
+     * ordinal.
+     */
+    int[] getPopulationSizes() {
+        int[] sizes = new int[MeasurePopulationType.values().length];
+        for (MeasurePopulationType populationType : MeasurePopulationType.values()) {
+            Set<String> population = getPopulation(populationType);
+            if (population != null) {
+                sizes[populationType.ordinal()] = population.size();
+            }
+        }
+
+        return sizes;
+    }
+
+    private Set<String> getPopulation(MeasurePopulationType populationType) {
+        switch (populationType) {
+            case INITIALPOPULATION:
+                return initialPopulation;
+            case NUMERATOR:
+                return numerator;
+            case NUMERATOREXCLUSION:
+                return numeratorExclusion;
+            case DENOMINATOR:
+                return denominator;
+            case DENOMINATOREXCLUSION:
+                return denominatorExclusion;
+            case DENOMINATOREXCEPTION:
+                return denominatorException;
+            case MEASUREPOPULATION:
+                return measurePopulation;
+            case MEASUREPOPULATIONEXCLUSION:
+                return measurePopulationExclusion;
+            default:
+                return null;
+        }
+    }
+
+    private static void mergeSet(Set<String> target, Set<String> source) {
+        if (target != null && source != null) {
+            target.addAll(source);
+        }
+    }
+
+    private static <T> void mergeMap(Map<String, T> target, Map<String, T> source) {
+        if (target != null && source != null) {
+            target.putAll(source);
+        }
+    }
+}
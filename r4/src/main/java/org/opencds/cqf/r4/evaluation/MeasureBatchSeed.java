@@ -0,0 +1,77 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Measure;
+import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.providers.LibraryResolutionProvider;
+import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+/**
+ * Sets up the evaluation of several Measures over the same patients and
+ * measurement period. The Measures' libraries are loaded up front through a
+ * single LibraryLoader, so libraries they have in common are loaded once. The
+ * Contexts created for the Measures share a DataProvider, so a patient's data is
+ * retrieved once for all of them (see MeasureEvaluation.evaluateMeasures).
+ */
+public class MeasureBatchSeed {
+    private EvaluationProviderFactory providerFactory;
+    private LibraryLoader libraryLoader;
+    private LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider;
+    private List<Measure> measures = Collections.emptyList();
+    private List<MeasureEvaluationSeed> seeds = Collections.emptyList();
+
+    public MeasureBatchSeed(EvaluationProviderFactory providerFactory, LibraryLoader libraryLoader,
+            LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider) {
+        this.providerFactory = providerFactory;
+        this.libraryLoader = libraryLoader;
+        this.libraryResourceProvider = libraryResourceProvider;
+    }
+
+    public List<Measure> getMeasures() {
+        return this.measures;
+    }
+
+    /**
+     * @return the measurement period, or null if there are no Measures
+     */
+    public Interval getMeasurementPeriod() {
+        return this.seeds.isEmpty() ? null : this.seeds.get(0).getMeasurementPeriod();
+    }
+
+    public void setup(List<Measure> measures, String periodStart, String periodEnd, String productLine) {
+        List<MeasureEvaluationSeed> seeds = new ArrayList<>();
+        for (Measure measure : measures) {
+            MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.providerFactory, this.libraryLoader,
+                    this.libraryResourceProvider);
+            seed.setup(measure, periodStart, periodEnd, productLine, null, null, null);
+            seeds.add(seed);
+        }
+
+        this.measures = Collections.unmodifiableList(new ArrayList<>(measures));
+        this.seeds = seeds;
+    }
+
+    /**
+     * Creates a Context for each Measure, in Measure order. The Contexts share a
+     * new DataProvider, so they must be used on the same thread.
+     */
+    public List<Context> createContexts() {
+        if (this.seeds.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        DataProvider dataProvider = this.seeds.get(0).createDataProvider();
+        List<Context> contexts = new ArrayList<>();
+        for (MeasureEvaluationSeed seed : this.seeds) {
+            contexts.add(seed.createContext(dataProvider));
+        }
+
+        return contexts;
+    }
+}
@@ -1,15 +1,26 @@
 package org.opencds.cqf.r4.evaluation;
 
-import java.lang.reflect.Field;
+import java.math.BigDecimal;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.function.BiFunction;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
+import javax.xml.namespace.QName;
+
 import org.cqframework.cql.elm.execution.ExpressionDef;
 import org.cqframework.cql.elm.execution.FunctionDef;
-import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IPrimitiveType;
 import org.hl7.fhir.r4.model.CanonicalType;
 import org.hl7.fhir.r4.model.CodeableConcept;
 import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Expression;
 import org.hl7.fhir.r4.model.Extension;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.IntegerType;
@@ -22,8 +33,13 @@ import org.hl7.fhir.r4.model.Quantity;
 import org.hl7.fhir.r4.model.Reference;
 import org.hl7.fhir.r4.model.Resource;
 import org.hl7.fhir.r4.model.StringType;
+import org.opencds.cqf.common.evaluation.MeasureEvaluationExecutor;
 import org.opencds.cqf.common.evaluation.MeasurePopulationType;
 import org.opencds.cqf.common.evaluation.MeasureScoring;
+import org.opencds.cqf.common.evaluation.SupplementalDataAccumulator;
+import org.opencds.cqf.common.retrieve.JpaFhirDataProvider;
+import org.opencds.cqf.common.retrieve.JpaFhirRetrieveProvider;
+import org.opencds.cqf.common.retrieve.PagedResourceIterable;
 import org.opencds.cqf.cql.engine.data.DataProvider;
 import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.execution.Variable;
@@ -33,23 +49,84 @@ import org.opencds.cqf.r4.builders.MeasureReportBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.collect.Iterables;
+
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.ReferenceParam;
+import ca.uhn.fhir.rest.param.TokenOrListParam;
+import ca.uhn.fhir.rest.param.TokenParam;
 
 public class MeasureEvaluation {
 
     private static final Logger logger = LoggerFactory.getLogger(MeasureEvaluation.class);
 
+    // Number of patients evaluated by a worker as a single unit of work
+    private static final int PARTITION_SIZE = 50;
+
+    private static final String AGGREGATE_METHOD_URL = "http://hl7.org/fhir/us/cqfmeasures/StructureDefinition/cqfm-aggregateMethod";
+
+    // The populations reported for each group, in report order
+    private static final MeasurePopulationType[] REPORTED_POPULATIONS = { MeasurePopulationType.INITIALPOPULATION,
+            MeasurePopulationType.NUMERATOR, MeasurePopulationType.NUMERATOREXCLUSION,
+            MeasurePopulationType.DENOMINATOR, MeasurePopulationType.DENOMINATOREXCLUSION,
+            MeasurePopulationType.DENOMINATOREXCEPTION, MeasurePopulationType.MEASUREPOPULATION,
+            MeasurePopulationType.MEASUREPOPULATIONEXCLUSION };
+
     private DataProvider provider;
     private Interval measurementPeriod;
     private DaoRegistry registry;
+    private Supplier<Context> contextFactory;
+    private MeasureEvaluationExecutor executor;
+    private IntConsumer progressListener;
+    private boolean episodeObservations;
+    private boolean countsOnly;
 
     public MeasureEvaluation(DataProvider provider, DaoRegistry registry, Interval measurementPeriod) {
+        this(provider, registry, measurementPeriod, null, null);
+    }
+
+    /**
+     * @param contextFactory creates the Contexts used by worker threads when
+     *                       evaluating more than one patient. Every call must
+     *                       return a new Context with its own DataProvider.
+     * @param executor       the shared worker pool. A null executor (or contextFactory),
+     *                       or a pool with a single thread, evaluates patients
+     *                       serially on the calling thread.
+     */
+    public MeasureEvaluation(DataProvider provider, DaoRegistry registry, Interval measurementPeriod,
+            Supplier<Context> contextFactory, MeasureEvaluationExecutor executor) {
         this.provider = provider;
         this.registry = registry;
         this.measurementPeriod = measurementPeriod;
+        this.contextFactory = contextFactory;
+        this.executor = executor;
+    }
+
+    /**
+     * Sets a listener that is told the number of patients evaluated after each
+     * page of patients. It may be called from worker threads.
+     */
+    public void setProgressListener(IntConsumer progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Sets whether continuous variable reports contain an Observation for each
+     * episode, in addition to the aggregate measure score. Off by default.
+     */
+    public void setEpisodeObservations(boolean episodeObservations) {
+        this.episodeObservations = episodeObservations;
+    }
+
+    /**
+     * Sets whether summary reports are evaluated for their population counts
+     * only. Population membership is then tracked by id, and the resources the
+     * criteria evaluated are neither kept nor listed in the report. Off by default.
+     */
+    public void setCountsOnly(boolean countsOnly) {
+        this.countsOnly = countsOnly;
     }
 
     public MeasureReport evaluatePatientMeasure(Measure measure, Context context, String patientId) {
@@ -75,29 +152,23 @@ public class MeasureEvaluation {
     public MeasureReport evaluateSubjectListMeasure(Measure measure, Context context, String practitionerRef) {
         logger.info("Generating patient-list report");
 
-        List<Patient> patients = practitionerRef == null ? getAllPatients() : getPractitionerPatients(practitionerRef);
+        Iterable<Patient> patients = practitionerRef == null ? getAllPatients() : getPractitionerPatients(practitionerRef);
         boolean isSingle = false;
         return evaluate(measure, context, patients, MeasureReport.MeasureReportType.SUBJECTLIST, isSingle);
     }
 
-    private List<Patient> getPractitionerPatients(String practitionerRef) {
+    private Iterable<Patient> getPractitionerPatients(String practitionerRef) {
         SearchParameterMap map = new SearchParameterMap();
         map.add("general-practitioner", new ReferenceParam(
                 practitionerRef.startsWith("Practitioner/") ? practitionerRef : "Practitioner/" + practitionerRef));
 
-        List<Patient> patients = new ArrayList<>();
         IBundleProvider patientProvider = registry.getResourceDao("Patient").search(map);
-        List<IBaseResource> patientList = patientProvider.getResources(0, patientProvider.size());
-        patientList.forEach(x -> patients.add((Patient) x));
-        return patients;
+        return new PagedResourceIterable<>(patientProvider);
     }
 
-    private List<Patient> getAllPatients() {
-        List<Patient> patients = new ArrayList<>();
+    private Iterable<Patient> getAllPatients() {
         IBundleProvider patientProvider = registry.getResourceDao("Patient").search(new SearchParameterMap());
-        List<IBaseResource> patientList = patientProvider.getResources(0, patientProvider.size());
-        patientList.forEach(x -> patients.add((Patient) x));
-        return patients;
+        return new PagedResourceIterable<>(patientProvider);
     }
 
     public MeasureReport evaluatePopulationMeasure(Measure measure, Context context) {
@@ -107,46 +178,44 @@ public class MeasureEvaluation {
         return evaluate(measure, context, getAllPatients(), MeasureReport.MeasureReportType.SUMMARY, isSingle);
     }
 
-    @SuppressWarnings("unchecked")
-    private void clearExpressionCache(Context context) {
-        // Hack to clear expression cache
-        // See cqf-ruler github issue #153
-        try {
-            Field privateField = Context.class.getDeclaredField("expressions");
-            privateField.setAccessible(true);
-            LinkedHashMap<String, Object> expressions = (LinkedHashMap<String, Object>) privateField.get(context);
-            expressions.clear();
-
-        } catch (Exception e) {
-            logger.warn("Error resetting expression cache", e);
-        }
-    }
-
-    private Resource evaluateObservationCriteria(Context context, Patient patient, Resource resource, Measure.MeasureGroupPopulationComponent pop, MeasureReport report) {
-        if (pop == null || !pop.hasCriteria()) {
-            return null;
-        }
-
+    // Evaluates the measure observation function for an episode
+    private Object evaluateObservation(Context context, Patient patient, Resource resource,
+            Measure.MeasureGroupPopulationComponent pop) {
         context.setContextValue("Patient", patient.getIdElement().getIdPart());
 
-        clearExpressionCache(context);
-
         String observationName = pop.getCriteria().getExpression();
         ExpressionDef ed = context.resolveExpressionRef(observationName);
         if (!(ed instanceof FunctionDef)) {
             throw new IllegalArgumentException(String.format("Measure observation %s does not reference a function definition", observationName));
         }
 
-        Object result = null;
         context.pushWindow();
         try {
             context.push(new Variable().withName(((FunctionDef)ed).getOperand().get(0).getName()).withValue(resource));
-            result = ed.getExpression().evaluate(context);
+            return ed.getExpression().evaluate(context);
         }
         finally {
             context.popWindow();
         }
+    }
 
+    // Returns the numeric value of a measure observation, or null if it has none
+    private static Double toObservationValue(Object result) {
+        if (result instanceof Number) {
+            return ((Number) result).doubleValue();
+        } else if (result instanceof org.opencds.cqf.cql.engine.runtime.Quantity) {
+            BigDecimal value = ((org.opencds.cqf.cql.engine.runtime.Quantity) result).getValue();
+            return value != null ? value.doubleValue() : null;
+        } else if (result instanceof Quantity) {
+            return ((Quantity) result).hasValue() ? ((Quantity) result).getValue().doubleValue() : null;
+        } else if (result instanceof Observation && ((Observation) result).hasValueQuantity()) {
+            return toObservationValue(((Observation) result).getValueQuantity());
+        }
+
+        return null;
+    }
+
+    private Resource toObservation(Object result, Double value, String observationName, MeasureReport report) {
         if (result instanceof Resource) {
             return (Resource)result;
         }
@@ -157,6 +226,9 @@ public class MeasureEvaluation {
         CodeableConcept cc = new CodeableConcept();
         cc.setText(observationName);
         obs.setCode(cc);
+        if (value != null) {
+            obs.setValue(new Quantity(value));
+        }
         Extension obsExtension = new Extension().setUrl("http://hl7.org/fhir/StructureDefinition/cqf-measureInfo");
         Extension extExtMeasure = new Extension()
                 .setUrl("measure")
@@ -170,6 +242,13 @@ public class MeasureEvaluation {
         return obs;
     }
 
+    private static String getAggregateMethod(Measure.MeasureGroupPopulationComponent pop) {
+        Extension aggregateMethod = pop.getExtensionByUrl(AGGREGATE_METHOD_URL);
+        return aggregateMethod != null && aggregateMethod.getValue() instanceof IPrimitiveType
+                ? ((IPrimitiveType<?>) aggregateMethod.getValue()).getValueAsString()
+                : "average";
+    }
+
     @SuppressWarnings("unchecked")
     private Iterable<Resource> evaluateCriteria(Context context, Patient patient,
             Measure.MeasureGroupPopulationComponent pop) {
@@ -179,8 +258,6 @@ public class MeasureEvaluation {
 
         context.setContextValue("Patient", patient.getIdElement().getIdPart());
 
-        clearExpressionCache(context);
-
         Object result = context.resolveExpressionRef(pop.getCriteria().getExpression()).evaluate(context);
         if (result == null) {
             return Collections.emptyList();
@@ -197,15 +274,24 @@ public class MeasureEvaluation {
         return (Iterable<Resource>) result;
     }
 
+    /**
+     * @param patientPopulation if not null, receives the patient's resources that
+     *                          are in the population
+     */
     private boolean evaluatePopulationCriteria(Context context, Patient patient,
-            Measure.MeasureGroupPopulationComponent criteria, HashMap<String, Resource> population,
+            Measure.MeasureGroupPopulationComponent criteria, HashSet<String> population,
             HashMap<String, Patient> populationPatients, Measure.MeasureGroupPopulationComponent exclusionCriteria,
-            HashMap<String, Resource> exclusionPopulation, HashMap<String, Patient> exclusionPatients) {
+            HashSet<String> exclusionPopulation, HashMap<String, Patient> exclusionPatients,
+            List<Resource> patientPopulation) {
         boolean inPopulation = false;
+        List<Resource> added = patientPopulation != null ? new ArrayList<>() : null;
         if (criteria != null) {
             for (Resource resource : evaluateCriteria(context, patient, criteria)) {
                 inPopulation = true;
-                population.put(resource.getIdElement().getIdPart(), resource);
+                population.add(resource.getIdElement().getIdPart());
+                if (added != null) {
+                    added.add(resource);
+                }
             }
         }
 
@@ -214,7 +300,7 @@ public class MeasureEvaluation {
             if (exclusionCriteria != null) {
                 for (Resource resource : evaluateCriteria(context, patient, exclusionCriteria)) {
                     inPopulation = false;
-                    exclusionPopulation.put(resource.getIdElement().getIdPart(), resource);
+                    exclusionPopulation.add(resource.getIdElement().getIdPart());
                     population.remove(resource.getIdElement().getIdPart());
                 }
             }
@@ -226,6 +312,13 @@ public class MeasureEvaluation {
         if (!inPopulation && exclusionPatients != null) {
             exclusionPatients.put(patient.getIdElement().getIdPart(), patient);
         }
+        if (inPopulation && patientPopulation != null) {
+            for (Resource resource : added) {
+                if (population.contains(resource.getIdElement().getIdPart())) {
+                    patientPopulation.add(resource);
+                }
+            }
+        }
 
         return inPopulation;
     }
@@ -257,426 +350,839 @@ public class MeasureEvaluation {
         }
     }
 
-    private MeasureReport evaluate(Measure measure, Context context, List<Patient> patients,
+    private MeasureReport evaluate(Measure measure, Context context, Iterable<Patient> patients,
             MeasureReport.MeasureReportType type, boolean isSingle) {
+        Patient subject = type == MeasureReport.MeasureReportType.INDIVIDUAL && patients.iterator().hasNext()
+                ? patients.iterator().next()
+                : null;
+        MeasureReport report = newReport(measure, type, subject);
+        MeasureEvaluationState measureState = new MeasureEvaluationState(measure, getMeasureScoring(measure), type,
+                this.countsOnly && type == MeasureReport.MeasureReportType.SUMMARY);
+
+        Supplier<List<Context>> workerContexts = this.contextFactory != null
+                ? () -> Collections.singletonList(this.contextFactory.get())
+                : null;
+        evaluatePatients(Collections.singletonList(measureState), Collections.singletonList(context), workerContexts,
+                patients, Collections.singletonList(report));
+
+        return buildReport(measureState, report, isSingle);
+    }
+
+    /**
+     * Evaluates several Measures for the same patients in a single pass. Each
+     * page of patients is fetched once and every Measure is evaluated for a
+     * patient before moving on to the next, so Measures whose Contexts share a
+     * DataProvider (see MeasureBatchSeed) share the patient's retrieves.
+     *
+     * @param contexts       a Context for each Measure, used on the calling
+     *                       thread
+     * @param workerContexts creates a Context for each Measure for a worker
+     *                       thread, or null to evaluate the patients serially
+     * @param patientIds     the ids of the patients to evaluate, or null for
+     *                       every patient
+     * @param type           INDIVIDUAL for a single patient, otherwise SUMMARY or
+     *                       SUBJECTLIST
+     * @return a report for each Measure, in Measure order
+     */
+    public List<MeasureReport> evaluateMeasures(List<Measure> measures, List<Context> contexts,
+            Supplier<List<Context>> workerContexts, Collection<String> patientIds,
+            MeasureReport.MeasureReportType type) {
+        logger.info("Generating {} reports for {} measures", type.toCode(), measures.size());
+
+        Iterable<Patient> patients = patientIds == null ? getAllPatients() : getPatients(patientIds);
+        Patient subject = null;
+        if (type == MeasureReport.MeasureReportType.INDIVIDUAL) {
+            // Read once, since the patient is both evaluated and the report subject
+            List<Patient> patientList = new ArrayList<>();
+            patients.forEach(patientList::add);
+            patients = patientList;
+            subject = patientList.isEmpty() ? null : patientList.get(0);
+        }
+
+        List<MeasureEvaluationState> states = new ArrayList<>();
+        List<MeasureReport> reports = new ArrayList<>();
+        for (Measure measure : measures) {
+            states.add(new MeasureEvaluationState(measure, getMeasureScoring(measure), type,
+                    this.countsOnly && type == MeasureReport.MeasureReportType.SUMMARY));
+            reports.add(newReport(measure, type, subject));
+        }
+
+        evaluatePatients(states, contexts, workerContexts, patients, reports);
+
+        for (int i = 0; i < states.size(); i++) {
+            reports.set(i, buildReport(states.get(i), reports.get(i),
+                    type == MeasureReport.MeasureReportType.INDIVIDUAL));
+        }
+
+        return reports;
+    }
+
+    private static MeasureScoring getMeasureScoring(Measure measure) {
+        MeasureScoring measureScoring = MeasureScoring.fromCode(measure.getScoring().getCodingFirstRep().getCode());
+        if (measureScoring == null) {
+            throw new RuntimeException("Measure scoring is required in order to calculate.");
+        }
+
+        return measureScoring;
+    }
+
+    private MeasureReport newReport(Measure measure, MeasureReport.MeasureReportType type, Patient subject) {
         MeasureReportBuilder reportBuilder = new MeasureReportBuilder();
         reportBuilder.buildStatus("complete");
         reportBuilder.buildType(type);
         reportBuilder.buildMeasureReference(
                 measure.getIdElement().getResourceType() + "/" + measure.getIdElement().getIdPart());
-        if (type == MeasureReport.MeasureReportType.INDIVIDUAL && !patients.isEmpty()) {
-            IdType patientId = patients.get(0).getIdElement();
+        if (subject != null) {
+            IdType patientId = subject.getIdElement();
             reportBuilder.buildPatientReference(patientId.getResourceType() + "/" + patientId.getIdPart());
         }
         reportBuilder.buildPeriod(measurementPeriod);
 
-        MeasureReport report = reportBuilder.build();
+        return reportBuilder.build();
+    }
 
-        HashMap<String, Resource> resources = new HashMap<>();
+    private MeasureReport buildReport(MeasureEvaluationState measureState, MeasureReport report, boolean isSingle) {
+        MeasureScoring measureScoring = measureState.measureScoring;
         HashMap<String, HashSet<String>> codeToResourceMap = new HashMap<>();
+        for (GroupEvaluationState state : measureState.groups) {
+            MeasureReport.MeasureReportGroupComponent reportGroup = new MeasureReport.MeasureReportGroupComponent();
+            reportGroup.setId(state.group.getId());
+            report.getGroup().add(reportGroup);
+
+            for (Resource observation : state.observations) {
+                report.addContained(observation);
+                report.getEvaluatedResource().add(new Reference("#" + observation.getId()));
+            }
+
+            state.codeToResourceMap.forEach((code, ids) -> codeToResourceMap
+                    .computeIfAbsent(code, x -> new HashSet<>()).addAll(ids));
+
+            // Calculate actual measure score, Count(numerator) / Count(denominator)
+            if ((measureScoring == MeasureScoring.PROPORTION || measureScoring == MeasureScoring.RATIO)
+                    && state.denominator != null && state.numerator != null && state.denominator.size() > 0) {
+                reportGroup.setMeasureScore(new Quantity(state.numerator.size() / (double) state.denominator.size()));
+            }
+
+            // Add population reports for each group
+            addPopulationCriteriaReport(report, reportGroup, state.initialPopulationCriteria,
+                    state.initialPopulation != null ? state.initialPopulation.size() : 0,
+                    state.initialPopulationPatients != null ? state.initialPopulationPatients.values() : null);
+            addPopulationCriteriaReport(report, reportGroup, state.numeratorCriteria,
+                    state.numerator != null ? state.numerator.size() : 0,
+                    state.numeratorPatients != null ? state.numeratorPatients.values() : null);
+            addPopulationCriteriaReport(report, reportGroup, state.numeratorExclusionCriteria,
+                    state.numeratorExclusion != null ? state.numeratorExclusion.size() : 0,
+                    state.numeratorExclusionPatients != null ? state.numeratorExclusionPatients.values() : null);
+            addPopulationCriteriaReport(report, reportGroup, state.denominatorCriteria,
+                    state.denominator != null ? state.denominator.size() : 0,
+                    state.denominatorPatients != null ? state.denominatorPatients.values() : null);
+            addPopulationCriteriaReport(report, reportGroup, state.denominatorExclusionCriteria,
+                    state.denominatorExclusion != null ? state.denominatorExclusion.size() : 0,
+                    state.denominatorExclusionPatients != null ? state.denominatorExclusionPatients.values() : null);
+            addPopulationCriteriaReport(report, reportGroup, state.denominatorExceptionCriteria,
+                    state.denominatorException != null ? state.denominatorException.size() : 0,
+                    state.denominatorExceptionPatients != null ? state.denominatorExceptionPatients.values() : null);
+            addPopulationCriteriaReport(report, reportGroup, state.measurePopulationCriteria,
+                    state.measurePopulation != null ? state.measurePopulation.size() : 0,
+                    state.measurePopulationPatients != null ? state.measurePopulationPatients.values() : null);
+            addPopulationCriteriaReport(report, reportGroup, state.measurePopulationExclusionCriteria,
+                    state.measurePopulationExclusion != null ? state.measurePopulationExclusion.size() : 0,
+                    state.measurePopulationExclusionPatients != null
+                            ? state.measurePopulationExclusionPatients.values()
+                            : null);
+            if (state.measureObservationAggregate != null) {
+                addPopulationCriteriaReport(report, reportGroup, state.measureObservationCriteria,
+                        (int) state.measureObservationAggregate.getCount(), null);
+                Double score = state.measureObservationAggregate
+                        .getAggregate(getAggregateMethod(state.measureObservationCriteria));
+                if (measureScoring == MeasureScoring.CONTINUOUSVARIABLE && score != null) {
+                    reportGroup.setMeasureScore(new Quantity(score));
+                }
+            }
+            addStratifierReports(reportGroup, state, measureScoring);
+        }
+
+        setEvaluatedResources(report, codeToResourceMap);
+
+        if (!measureState.sdeAccumulator.isEmpty()) {
+            report = processAccumulators(report, measureState.sdeAccumulator, isSingle);
+        }
+
+        return report;
+    }
+
+    private void setEvaluatedResources(MeasureReport report, Map<String, HashSet<String>> codeToResourceMap) {
         Set<String> evaluatedResourcesList = new HashSet<>();
+        for (HashSet<String> ids : codeToResourceMap.values()) {
+            for (String element : ids) {
+                evaluatedResourcesList.add("#" + element);
+            }
+        }
 
+        if (!evaluatedResourcesList.isEmpty()) {
+            List<Reference> evaluatedResourceIds = new ArrayList<>();
+            evaluatedResourcesList.forEach((resource) -> {
+                evaluatedResourceIds.add(new Reference(resource));
+            });
+            report.setEvaluatedResource(evaluatedResourceIds);
+        }
+    }
+
+    /**
+     * Returns whether the Measure can be evaluated with
+     * evaluateIncrementalPopulationMeasure. Measure observations and supplemental
+     * data are aggregated over values that aren't kept per patient, so continuous
+     * variable measures and measures with supplemental data or stratifiers need
+     * a full evaluation.
+     */
+    public boolean supportsIncrementalEvaluation(Measure measure) {
+        MeasureScoring measureScoring = MeasureScoring.fromCode(measure.getScoring().getCodingFirstRep().getCode());
+        return measureScoring != null && measureScoring != MeasureScoring.CONTINUOUSVARIABLE
+                && !measure.hasSupplementalData()
+                && measure.getGroup().stream().noneMatch(Measure.MeasureGroupComponent::hasStratifier);
+    }
+
+    /**
+     * Generates a summary report from the population membership of each patient.
+     * If patientIds is null every patient is evaluated and the membership is
+     * rebuilt; otherwise only the given patients are evaluated again, and those
+     * that no longer exist are dropped from the membership. Memberships are only
+     * held in memory (see MeasureMembershipStore), so after a restart the caller
+     * has none and evaluates every patient.
+     */
+    public MeasureReport evaluateIncrementalPopulationMeasure(Measure measure, Context context,
+            MeasureMembership membership, Set<String> patientIds) {
         MeasureScoring measureScoring = MeasureScoring.fromCode(measure.getScoring().getCodingFirstRep().getCode());
         if (measureScoring == null) {
             throw new RuntimeException("Measure scoring is required in order to calculate.");
         }
 
-        List<Measure.MeasureSupplementalDataComponent> sde = new ArrayList<>();
-        HashMap<String, HashMap<String, Integer>> sdeAccumulators = null;
-        for (Measure.MeasureGroupComponent group : measure.getGroup()) {
+        if (patientIds == null) {
+            logger.info("Evaluating population membership of all patients");
+            membership.setEvaluated(false);
+            membership.patients.clear();
+            evaluateMembership(measure, measureScoring, context, getAllPatients(), membership);
+            membership.setEvaluated(true);
+        } else {
+            logger.info("Evaluating population membership of {} changed patients", patientIds.size());
+            patientIds.forEach(membership.patients::remove);
+            evaluateMembership(measure, measureScoring, context, getPatients(patientIds), membership);
+        }
+
+        return buildMembershipReport(measure, measureScoring, membership);
+    }
+
+    /**
+     * Returns the patients with the given ids. The ids are searched for
+     * PARTITION_SIZE at a time, each search only when the patients before it
+     * have been iterated, so a large set of ids never becomes one large query.
+     */
+    private Iterable<Patient> getPatients(Collection<String> patientIds) {
+        List<Iterable<Patient>> chunks = new ArrayList<>();
+        List<String> chunk = new ArrayList<>(PARTITION_SIZE);
+        for (String patientId : patientIds) {
+            chunk.add(patientId);
+            if (chunk.size() == PARTITION_SIZE) {
+                chunks.add(getPatientChunk(chunk));
+                chunk = new ArrayList<>(PARTITION_SIZE);
+            }
+        }
+        if (!chunk.isEmpty()) {
+            chunks.add(getPatientChunk(chunk));
+        }
+
+        return Iterables.concat(chunks);
+    }
+
+    private Iterable<Patient> getPatientChunk(List<String> patientIds) {
+        return () -> {
+            TokenOrListParam ids = new TokenOrListParam();
+            patientIds.forEach(id -> ids.addOr(new TokenParam(id)));
+            SearchParameterMap map = new SearchParameterMap();
+            map.add("_id", ids);
+
+            IBundleProvider patientProvider = registry.getResourceDao("Patient").search(map);
+            return new PagedResourceIterable<Patient>(patientProvider).iterator();
+        };
+    }
+
+    private void evaluateMembership(Measure measure, MeasureScoring measureScoring, Context context,
+            Iterable<Patient> patients, MeasureMembership membership) {
+        evaluatePartitions(patients, context, this.contextFactory, (partitionContext, partition) -> {
+            Map<String, PatientMembership> partitionMembership = new HashMap<>();
+            evaluatePage(partitionContext, partition,
+                    patient -> partitionMembership.put(patient.getIdElement().getIdPart(),
+                            evaluatePatientMembership(measure, measureScoring, partitionContext, patient)));
+            return partitionMembership;
+        }, membership.patients::putAll);
+    }
+
+    private PatientMembership evaluatePatientMembership(Measure measure, MeasureScoring measureScoring,
+            Context context, Patient patient) {
+        MeasureEvaluationState measureState = new MeasureEvaluationState(measure, measureScoring,
+                MeasureReport.MeasureReportType.SUMMARY, this.countsOnly);
+
+        // The report is only used for measure observations, which aren't
+        // evaluated incrementally
+        evaluatePatient(measureState, context, patient, null);
+
+        PatientMembership patientMembership = new PatientMembership();
+        for (GroupEvaluationState state : measureState.groups) {
+            patientMembership.groups.add(state.getPopulationIds());
+            state.codeToResourceMap.forEach((code, ids) -> patientMembership.codeToResourceMap
+                    .computeIfAbsent(code, x -> new HashSet<>()).addAll(ids));
+        }
+
+        return patientMembership;
+    }
+
+    private MeasureReport buildMembershipReport(Measure measure, MeasureScoring measureScoring,
+            MeasureMembership membership) {
+        MeasureReportBuilder reportBuilder = new MeasureReportBuilder();
+        reportBuilder.buildStatus("complete");
+        reportBuilder.buildType(MeasureReport.MeasureReportType.SUMMARY);
+        reportBuilder.buildMeasureReference(
+                measure.getIdElement().getResourceType() + "/" + measure.getIdElement().getIdPart());
+        reportBuilder.buildPeriod(measurementPeriod);
+
+        MeasureReport report = reportBuilder.build();
+
+        for (int i = 0; i < measure.getGroup().size(); i++) {
+            Measure.MeasureGroupComponent group = measure.getGroup().get(i);
             MeasureReport.MeasureReportGroupComponent reportGroup = new MeasureReport.MeasureReportGroupComponent();
             reportGroup.setId(group.getId());
             report.getGroup().add(reportGroup);
 
-            // Declare variables to avoid a hash lookup on every patient
-            // TODO: Isn't quite right, there may be multiple initial populations for a
-            // ratio measure...
-            Measure.MeasureGroupPopulationComponent initialPopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorCriteria = null;
-            Measure.MeasureGroupPopulationComponent numeratorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExclusionCriteria = null;
-            Measure.MeasureGroupPopulationComponent denominatorExceptionCriteria = null;
-            Measure.MeasureGroupPopulationComponent measurePopulationCriteria = null;
-            Measure.MeasureGroupPopulationComponent measurePopulationExclusionCriteria = null;
-            // TODO: Isn't quite right, there may be multiple measure observations...
-            Measure.MeasureGroupPopulationComponent measureObservationCriteria = null;
-
-            HashMap<String, Resource> initialPopulation = null;
-            HashMap<String, Resource> numerator = null;
-            HashMap<String, Resource> numeratorExclusion = null;
-            HashMap<String, Resource> denominator = null;
-            HashMap<String, Resource> denominatorExclusion = null;
-            HashMap<String, Resource> denominatorException = null;
-            HashMap<String, Resource> measurePopulation = null;
-            HashMap<String, Resource> measurePopulationExclusion = null;
-            HashMap<String, Resource> measureObservation = null;
-
-            HashMap<String, Patient> initialPopulationPatients = null;
-            HashMap<String, Patient> numeratorPatients = null;
-            HashMap<String, Patient> numeratorExclusionPatients = null;
-            HashMap<String, Patient> denominatorPatients = null;
-            HashMap<String, Patient> denominatorExclusionPatients = null;
-            HashMap<String, Patient> denominatorExceptionPatients = null;
-            HashMap<String, Patient> measurePopulationPatients = null;
-            HashMap<String, Patient> measurePopulationExclusionPatients = null;
-
-            sdeAccumulators = new HashMap<>();
-             sde = measure.getSupplementalData();
-            for (Measure.MeasureGroupPopulationComponent pop : group.getPopulation()) {
-                MeasurePopulationType populationType = MeasurePopulationType
-                        .fromCode(pop.getCode().getCodingFirstRep().getCode());
-                if (populationType != null) {
-                    switch (populationType) {
-                        case INITIALPOPULATION:
-                            initialPopulationCriteria = pop;
-                            initialPopulation = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                initialPopulationPatients = new HashMap<>();
-                            }
-                            break;
-                        case NUMERATOR:
-                            numeratorCriteria = pop;
-                            numerator = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                numeratorPatients = new HashMap<>();
-                            }
-                            break;
-                        case NUMERATOREXCLUSION:
-                            numeratorExclusionCriteria = pop;
-                            numeratorExclusion = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                numeratorExclusionPatients = new HashMap<>();
-                            }
-                            break;
-                        case DENOMINATOR:
-                            denominatorCriteria = pop;
-                            denominator = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                denominatorPatients = new HashMap<>();
-                            }
-                            break;
-                        case DENOMINATOREXCLUSION:
-                            denominatorExclusionCriteria = pop;
-                            denominatorExclusion = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                denominatorExclusionPatients = new HashMap<>();
-                            }
-                            break;
-                        case DENOMINATOREXCEPTION:
-                            denominatorExceptionCriteria = pop;
-                            denominatorException = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                denominatorExceptionPatients = new HashMap<>();
-                            }
-                            break;
-                        case MEASUREPOPULATION:
-                            measurePopulationCriteria = pop;
-                            measurePopulation = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                measurePopulationPatients = new HashMap<>();
-                            }
-                            break;
-                        case MEASUREPOPULATIONEXCLUSION:
-                            measurePopulationExclusionCriteria = pop;
-                            measurePopulationExclusion = new HashMap<>();
-                            if (type == MeasureReport.MeasureReportType.SUBJECTLIST) {
-                                measurePopulationExclusionPatients = new HashMap<>();
-                            }
-                            break;
-                        case MEASUREOBSERVATION:
-                            measureObservationCriteria = pop;
-                            measureObservation = new HashMap<>();
-                            break;
-                    }
+            Map<MeasurePopulationType, Set<String>> populations = new EnumMap<>(MeasurePopulationType.class);
+            for (PatientMembership patientMembership : membership.patients.values()) {
+                if (i < patientMembership.groups.size()) {
+                    patientMembership.groups.get(i).forEach((populationType, ids) -> populations
+                            .computeIfAbsent(populationType, x -> new HashSet<>()).addAll(ids));
                 }
             }
 
-            switch (measureScoring) {
-                case PROPORTION:
-                case RATIO: {
-
-                    // For each patient in the initial population
-                    for (Patient patient : patients) {
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-
-                        if (inInitialPopulation) {
-                            // Are they in the denominator?
-                            boolean inDenominator = evaluatePopulationCriteria(context, patient, denominatorCriteria,
-                                    denominator, denominatorPatients, denominatorExclusionCriteria,
-                                    denominatorExclusion, denominatorExclusionPatients);
-                            populateResourceMap(context, MeasurePopulationType.DENOMINATOR, resources,
-                                    codeToResourceMap);
-
-                            if (inDenominator) {
-                                // Are they in the numerator?
-                                boolean inNumerator = evaluatePopulationCriteria(context, patient, numeratorCriteria,
-                                        numerator, numeratorPatients, numeratorExclusionCriteria, numeratorExclusion,
-                                        numeratorExclusionPatients);
-                                populateResourceMap(context, MeasurePopulationType.NUMERATOR, resources,
-                                        codeToResourceMap);
-
-                                if (!inNumerator && inDenominator && (denominatorExceptionCriteria != null)) {
-                                    // Are they in the denominator exception?
-                                    boolean inException = false;
-                                    for (Resource resource : evaluateCriteria(context, patient,
-                                            denominatorExceptionCriteria)) {
-                                        inException = true;
-                                        denominatorException.put(resource.getIdElement().getIdPart(), resource);
-                                        denominator.remove(resource.getIdElement().getIdPart());
-                                        populateResourceMap(context, MeasurePopulationType.DENOMINATOREXCEPTION,
-                                                resources, codeToResourceMap);
-                                    }
-                                    if (inException) {
-                                        if (denominatorExceptionPatients != null) {
-                                            denominatorExceptionPatients.put(patient.getIdElement().getIdPart(),
-                                                    patient);
-                                        }
-                                        if (denominatorPatients != null) {
-                                            denominatorPatients.remove(patient.getIdElement().getIdPart());
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators, sde);
-                    }
+            GroupEvaluationState state = new GroupEvaluationState(group, MeasureReport.MeasureReportType.SUMMARY,
+                    true);
+            int numerator = populations.getOrDefault(MeasurePopulationType.NUMERATOR, Collections.emptySet()).size();
+            int denominator = populations.getOrDefault(MeasurePopulationType.DENOMINATOR, Collections.emptySet())
+                    .size();
+
+            // Calculate actual measure score, Count(numerator) / Count(denominator)
+            if ((measureScoring == MeasureScoring.PROPORTION || measureScoring == MeasureScoring.RATIO)
+                    && state.denominatorCriteria != null && state.numeratorCriteria != null && denominator > 0) {
+                reportGroup.setMeasureScore(new Quantity(numerator / (double) denominator));
+            }
+
+            for (MeasurePopulationType populationType : REPORTED_POPULATIONS) {
+                addPopulationCriteriaReport(report, reportGroup, state.getCriteria(populationType),
+                        populations.getOrDefault(populationType, Collections.emptySet()).size(), null);
+            }
+        }
 
-                    // Calculate actual measure score, Count(numerator) / Count(denominator)
-                    if (denominator != null && numerator != null && denominator.size() > 0) {
-                        reportGroup.setMeasureScore(new Quantity(numerator.size() / (double) denominator.size()));
+        HashMap<String, HashSet<String>> codeToResourceMap = new HashMap<>();
+        for (PatientMembership patientMembership : membership.patients.values()) {
+            patientMembership.codeToResourceMap.forEach((code, ids) -> codeToResourceMap
+                    .computeIfAbsent(code, x -> new HashSet<>()).addAll(ids));
+        }
+        setEvaluatedResources(report, codeToResourceMap);
+
+        return report;
+    }
+
+    /**
+     * Evaluates the patients for each Measure state, every Measure for a patient
+     * before moving on to the next. With a worker context factory the partitions
+     * are evaluated on the shared pool (see evaluatePartitions), each into its
+     * own copy of the states, which are merged into the given states in
+     * partition order so the reports do not depend on thread scheduling.
+     */
+    private void evaluatePatients(List<MeasureEvaluationState> states, List<Context> contexts,
+            Supplier<List<Context>> workerContexts, Iterable<Patient> patients, List<MeasureReport> reports) {
+        if (states.isEmpty()) {
+            return;
+        }
+
+        boolean isIndividual = states.get(0).type == MeasureReport.MeasureReportType.INDIVIDUAL;
+        evaluatePartitions(patients, contexts, isIndividual ? null : workerContexts,
+                (partitionContexts, partition) -> {
+                    // The caller's own Contexts evaluate straight into its states
+                    List<MeasureEvaluationState> partitionStates = partitionContexts == contexts ? states
+                            : states.stream().map(MeasureEvaluationState::newPartition).collect(Collectors.toList());
+                    evaluatePage(partitionContexts.get(0), partition,
+                            patient -> evaluatePatient(partitionStates, partitionContexts, patient, reports));
+                    return partitionStates;
+                }, partitionStates -> {
+                    if (partitionStates != states) {
+                        mergePartition(states, partitionStates);
                     }
+                });
+    }
 
-                    break;
+    /**
+     * Evaluates the patients a partition of PARTITION_SIZE at a time and hands
+     * each partition's result to the merger, in partition order. Serially, every
+     * partition is evaluated with the given context. With a worker context
+     * factory (and a shared pool of more than one thread) the partitions are
+     * evaluated on the pool, each with a worker context of its own. Only a
+     * bounded number of partitions are in flight at once, so patients are pulled
+     * from the source as the workers need them.
+     */
+    private <C, R> void evaluatePartitions(Iterable<Patient> patients, C context, Supplier<C> workerContextFactory,
+            BiFunction<C, List<Patient>, R> evaluator, Consumer<R> merger) {
+        boolean isParallel = workerContextFactory != null && isParallel();
+        WorkerContexts<C> workerContexts = isParallel ? new WorkerContexts<>(workerContextFactory) : null;
+        int maxInFlight = isParallel ? this.executor.getThreads() * 2 : 0;
+        Deque<Future<R>> partitions = new ArrayDeque<>();
+        try {
+            Iterator<Patient> iterator = patients.iterator();
+            while (iterator.hasNext()) {
+                List<Patient> partition = new ArrayList<>(PARTITION_SIZE);
+                while (partition.size() < PARTITION_SIZE && iterator.hasNext()) {
+                    partition.add(iterator.next());
                 }
-                case CONTINUOUSVARIABLE: {
-
-                    // For each patient in the patient list
-                    for (Patient patient : patients) {
-
-                        // Are they in the initial population?
-                        boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-
-                        if (inInitialPopulation) {
-                            // Are they in the measure population?
-                            boolean inMeasurePopulation = evaluatePopulationCriteria(context, patient,
-                                    measurePopulationCriteria, measurePopulation, measurePopulationPatients,
-                                    measurePopulationExclusionCriteria, measurePopulationExclusion,
-                                    measurePopulationExclusionPatients);
-
-                            if (inMeasurePopulation) {
-                                for (Resource resource : measurePopulation.values()) {
-                                    Resource observation = evaluateObservationCriteria(context, patient, resource, measureObservationCriteria, report);
-                                    measureObservation.put(resource.getIdElement().getIdPart(), observation);
-                                    report.addContained(observation);
-                                    report.getEvaluatedResource().add(new Reference("#" + observation.getId()));
-                                }
-                            }
-                        }
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators,sde);
-                    }
 
-                    break;
+                if (!isParallel) {
+                    merger.accept(evaluator.apply(context, partition));
+                    continue;
                 }
-                case COHORT: {
-
-                    // For each patient in the patient list
-                    for (Patient patient : patients) {
-                        evaluatePopulationCriteria(context, patient,
-                                initialPopulationCriteria, initialPopulation, initialPopulationPatients, null, null,
-                                null);
-                        populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, resources,
-                                codeToResourceMap);
-                        populateSDEAccumulators(measure, context, patient, sdeAccumulators, sde);
-                    }
 
-                    break;
+                partitions.add(this.executor
+                        .submit(() -> workerContexts.apply(workerContext -> evaluator.apply(workerContext, partition))));
+                if (partitions.size() >= maxInFlight) {
+                    merger.accept(getPartitionResult(partitions.poll()));
                 }
             }
 
-            // Add population reports for each group
-            addPopulationCriteriaReport(report, reportGroup, initialPopulationCriteria,
-                    initialPopulation != null ? initialPopulation.size() : 0,
-                    initialPopulationPatients != null ? initialPopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorCriteria,
-                    numerator != null ? numerator.size() : 0,
-                    numeratorPatients != null ? numeratorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, numeratorExclusionCriteria,
-                    numeratorExclusion != null ? numeratorExclusion.size() : 0,
-                    numeratorExclusionPatients != null ? numeratorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorCriteria,
-                    denominator != null ? denominator.size() : 0,
-                    denominatorPatients != null ? denominatorPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExclusionCriteria,
-                    denominatorExclusion != null ? denominatorExclusion.size() : 0,
-                    denominatorExclusionPatients != null ? denominatorExclusionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, denominatorExceptionCriteria,
-                    denominatorException != null ? denominatorException.size() : 0,
-                    denominatorExceptionPatients != null ? denominatorExceptionPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, measurePopulationCriteria,
-                    measurePopulation != null ? measurePopulation.size() : 0,
-                    measurePopulationPatients != null ? measurePopulationPatients.values() : null);
-            addPopulationCriteriaReport(report, reportGroup, measurePopulationExclusionCriteria,
-                    measurePopulationExclusion != null ? measurePopulationExclusion.size() : 0,
-                    measurePopulationExclusionPatients != null ? measurePopulationExclusionPatients.values() : null);
-            // TODO: Measure Observations...
-        }
-
-        for (String key : codeToResourceMap.keySet()) {
-            org.hl7.fhir.r4.model.ListResource list = new org.hl7.fhir.r4.model.ListResource();
-            for (String element : codeToResourceMap.get(key)) {
-                org.hl7.fhir.r4.model.ListResource.ListEntryComponent comp = new org.hl7.fhir.r4.model.ListResource.ListEntryComponent();
-                comp.setItem(new Reference('#' + element));
-                list.addEntry(comp);
-            }
-
-            if (!list.isEmpty()) {
-                list.setId("List/" + UUID.randomUUID().toString());
-                list.setTitle(key);
-                resources.put(list.getId(), list);
-                list.getEntry().forEach(listResource -> evaluatedResourcesList.add(listResource.getItem().getReference()));
+            while (!partitions.isEmpty()) {
+                merger.accept(getPartitionResult(partitions.poll()));
             }
+        } finally {
+            // The pool is shared, so only this evaluation's partitions are stopped
+            partitions.forEach(x -> x.cancel(true));
         }
+    }
 
-        if (!evaluatedResourcesList.isEmpty()) {
-            List<Reference> evaluatedResourceIds = new ArrayList<>();
-            evaluatedResourcesList.forEach((resource) -> {
-                evaluatedResourceIds.add(new Reference(resource));
-            });
-            report.setEvaluatedResource(evaluatedResourceIds);
+    private boolean isParallel() {
+        return this.executor != null && this.executor.getThreads() > 1;
+    }
+
+    /**
+     * The worker Contexts of one evaluation. A partition takes an idle Context
+     * (or creates one) and returns it when it is done, so an evaluation creates
+     * no more Contexts than it has partitions in flight, and none are left on the
+     * shared pool's threads.
+     */
+    private static class WorkerContexts<C> {
+        private final Supplier<C> factory;
+        private final Queue<C> idle = new ConcurrentLinkedQueue<>();
+
+        private WorkerContexts(Supplier<C> factory) {
+            this.factory = factory;
         }
 
-        if (sdeAccumulators.size() > 0) {
-            report = processAccumulators(report, sdeAccumulators, sde, isSingle, patients);
+        private <T> T apply(Function<C, T> work) {
+            C context = this.idle.poll();
+            if (context == null) {
+                context = this.factory.get();
+            }
+
+            try {
+                return work.apply(context);
+            } finally {
+                this.idle.add(context);
+            }
         }
+    }
 
-        return report;
+    private static void mergePartition(List<MeasureEvaluationState> states,
+            List<MeasureEvaluationState> partitionStates) {
+        for (int i = 0; i < states.size(); i++) {
+            states.get(i).merge(partitionStates.get(i));
+        }
     }
 
-    private void populateSDEAccumulators(Measure measure, Context context, Patient patient,HashMap<String, HashMap<String, Integer>> sdeAccumulators,
-                                         List<Measure.MeasureSupplementalDataComponent> sde){
-        context.setContextValue("Patient", patient.getIdElement().getIdPart());
-        List<Object> sdeList = sde.stream().map(sdeItem -> context.resolveExpressionRef(sdeItem.getCriteria().getExpression()).evaluate(context)).collect(Collectors.toList());
-        if(!sdeList.isEmpty()) {
-            for (int i = 0; i < sdeList.size(); i++) {
-                Object sdeListItem = sdeList.get(i);
-                if(null != sdeListItem) {
-                    String sdeAccumulatorKey = sde.get(i).getCode().getText();
-                    if(null == sdeAccumulatorKey || sdeAccumulatorKey.length() < 1){
-                        sdeAccumulatorKey = sde.get(i).getCriteria().getExpression();
-                    }
-                    HashMap<String, Integer> sdeItemMap = sdeAccumulators.get(sdeAccumulatorKey);
-                    String code = "";
-
-                    switch (sdeListItem.getClass().getSimpleName()) {
-                        case "Code":
-                            code = ((Code) sdeListItem).getCode();
-                            break;
-                        case "ArrayList":
-                            if (((ArrayList<?>) sdeListItem).size() > 0) {
-                                if (((ArrayList<?>) sdeListItem).get(0).getClass().getSimpleName().equals("Coding")) {
-                                    code  = ((Coding) ((ArrayList<?>) sdeListItem).get(0)).getCode();
-                                } else {
-                                    continue;
+    private <T> T getPartitionResult(Future<T> partition) {
+        try {
+            return partition.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Measure evaluation was interrupted.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException("Error evaluating measure population.", e.getCause());
+        }
+    }
+
+    /**
+     * Evaluates a page of patients. When the Context's FHIR data comes from a
+     * JpaFhirRetrieveProvider, the page's data is fetched with one search per
+     * retrieve (rather than one per retrieve per patient) and then served to each
+     * patient from memory, and each patient's retrieves are cached so criteria
+     * that share a retrieve don't repeat it.
+     */
+    private void evaluatePage(Context context, List<Patient> page, Consumer<Patient> evaluator) {
+        // Lets asynchronous evaluations be cancelled between pages
+        if (Thread.currentThread().isInterrupted()) {
+            throw new RuntimeException("Measure evaluation was interrupted.");
+        }
+
+        JpaFhirRetrieveProvider retrieveProvider = getRetrieveProvider(context);
+        if (retrieveProvider != null) {
+            retrieveProvider.prefetchPatients(
+                    page.stream().map(x -> x.getIdElement().getIdPart()).collect(Collectors.toList()));
+            retrieveProvider.setRetrieveCaching(true);
+        }
+
+        try {
+            for (Patient patient : page) {
+                evaluator.accept(patient);
+            }
+
+            if (this.progressListener != null) {
+                this.progressListener.accept(page.size());
+            }
+        } finally {
+            if (retrieveProvider != null) {
+                retrieveProvider.clearPrefetch();
+                retrieveProvider.setRetrieveCaching(false);
+            }
+        }
+    }
+
+    private JpaFhirRetrieveProvider getRetrieveProvider(Context context) {
+        DataProvider dataProvider = context.resolveDataProvider(new QName("http://hl7.org/fhir", "Patient"));
+        return dataProvider instanceof JpaFhirDataProvider ? ((JpaFhirDataProvider) dataProvider).getRetrieveProvider()
+                : null;
+    }
+
+    // Evaluates each Measure for the patient with its Context
+    private void evaluatePatient(List<MeasureEvaluationState> states, List<Context> contexts, Patient patient,
+            List<MeasureReport> reports) {
+        for (int i = 0; i < states.size(); i++) {
+            evaluatePatient(states.get(i), contexts.get(i), patient, reports.get(i));
+        }
+    }
+
+    /**
+     * Evaluates every group of the Measure for the patient, then its supplemental
+     * data. The groups share the patient's retrieves and cached expression
+     * results.
+     */
+    private void evaluatePatient(MeasureEvaluationState state, Context context, Patient patient,
+            MeasureReport report) {
+        for (GroupEvaluationState groupState : state.groups) {
+            evaluateGroup(groupState, state.measureScoring, context, patient, report);
+        }
+
+        populateSDEAccumulators(context, patient, state.sdeAccumulator, state.measure.getSupplementalData());
+    }
+
+    private void evaluateGroup(GroupEvaluationState state, MeasureScoring measureScoring, Context context,
+            Patient patient, MeasureReport report) {
+        int[] populationSizes = state.strata.isEmpty() ? null : state.getPopulationSizes();
+
+        switch (measureScoring) {
+            case PROPORTION:
+            case RATIO: {
+                // Are they in the initial population?
+                boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
+                        state.initialPopulationCriteria, state.initialPopulation, state.initialPopulationPatients,
+                        null, null, null, null);
+                populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, state);
+
+                if (inInitialPopulation) {
+                    // Are they in the denominator?
+                    boolean inDenominator = evaluatePopulationCriteria(context, patient, state.denominatorCriteria,
+                            state.denominator, state.denominatorPatients, state.denominatorExclusionCriteria,
+                            state.denominatorExclusion, state.denominatorExclusionPatients, null);
+                    populateResourceMap(context, MeasurePopulationType.DENOMINATOR, state);
+
+                    if (inDenominator) {
+                        // Are they in the numerator?
+                        boolean inNumerator = evaluatePopulationCriteria(context, patient, state.numeratorCriteria,
+                                state.numerator, state.numeratorPatients, state.numeratorExclusionCriteria,
+                                state.numeratorExclusion, state.numeratorExclusionPatients, null);
+                        populateResourceMap(context, MeasurePopulationType.NUMERATOR, state);
+
+                        if (!inNumerator && inDenominator && (state.denominatorExceptionCriteria != null)) {
+                            // Are they in the denominator exception?
+                            boolean inException = false;
+                            for (Resource resource : evaluateCriteria(context, patient,
+                                    state.denominatorExceptionCriteria)) {
+                                inException = true;
+                                state.denominatorException.add(resource.getIdElement().getIdPart());
+                                state.denominator.remove(resource.getIdElement().getIdPart());
+                                populateResourceMap(context, MeasurePopulationType.DENOMINATOREXCEPTION, state);
+                            }
+                            if (inException) {
+                                if (state.denominatorExceptionPatients != null) {
+                                    state.denominatorExceptionPatients.put(patient.getIdElement().getIdPart(),
+                                            patient);
+                                }
+                                if (state.denominatorPatients != null) {
+                                    state.denominatorPatients.remove(patient.getIdElement().getIdPart());
                                 }
-                            }else{
-                                continue;
                             }
-                            break;
-                    }
-                    if(null == code){
-                        continue;
+                        }
                     }
-                    if (null != sdeItemMap && null != sdeItemMap.get(code)) {
-                        Integer sdeItemValue = sdeItemMap.get(code);
-                        sdeItemValue++;
-                        sdeItemMap.put(code, sdeItemValue);
-                        sdeAccumulators.get(sdeAccumulatorKey).put(code, sdeItemValue);
-                    } else {
-                        if (null == sdeAccumulators.get(sdeAccumulatorKey)) {
-                            HashMap<String, Integer> newSDEItem = new HashMap<>();
-                            newSDEItem.put(code, 1);
-                            sdeAccumulators.put(sdeAccumulatorKey, newSDEItem);
-                        } else {
-                            sdeAccumulators.get(sdeAccumulatorKey).put(code, 1);
+                }
+                break;
+            }
+            case CONTINUOUSVARIABLE: {
+                // Are they in the initial population?
+                boolean inInitialPopulation = evaluatePopulationCriteria(context, patient,
+                        state.initialPopulationCriteria, state.initialPopulation, state.initialPopulationPatients,
+                        null, null, null, null);
+                populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, state);
+
+                if (inInitialPopulation) {
+                    // Are they in the measure population?
+                    List<Resource> episodes = new ArrayList<>();
+                    boolean inMeasurePopulation = evaluatePopulationCriteria(context, patient,
+                            state.measurePopulationCriteria, state.measurePopulation,
+                            state.measurePopulationPatients, state.measurePopulationExclusionCriteria,
+                            state.measurePopulationExclusion, state.measurePopulationExclusionPatients, episodes);
+
+                    // Each of the patient's episodes is observed once, into the aggregate
+                    if (inMeasurePopulation && state.measureObservationCriteria != null
+                            && state.measureObservationCriteria.hasCriteria()) {
+                        for (Resource resource : episodes) {
+                            Object result = evaluateObservation(context, patient, resource,
+                                    state.measureObservationCriteria);
+                            Double value = toObservationValue(result);
+                            if (value != null) {
+                                state.measureObservationAggregate.add(value);
+                            }
+                            if (this.episodeObservations) {
+                                state.observations.add(toObservation(result, value,
+                                        state.measureObservationCriteria.getCriteria().getExpression(), report));
+                            }
                         }
                     }
                 }
+                break;
+            }
+            case COHORT: {
+                evaluatePopulationCriteria(context, patient, state.initialPopulationCriteria,
+                        state.initialPopulation, state.initialPopulationPatients, null, null, null, null);
+                populateResourceMap(context, MeasurePopulationType.INITIALPOPULATION, state);
+                break;
             }
         }
+
+        if (populationSizes != null) {
+            evaluateStratifiers(state, context, patient, populationSizes);
+        }
     }
 
-    private MeasureReport processAccumulators(MeasureReport report, HashMap<String, HashMap<String, Integer>> sdeAccumulators,
-                                              List<Measure.MeasureSupplementalDataComponent> sde, boolean isSingle, List<Patient> patients){
-        List<Reference> newRefList = new ArrayList<>();
-        sdeAccumulators.forEach((sdeKey, sdeAccumulator) -> {
-            sdeAccumulator.forEach((sdeAccumulatorKey, sdeAccumulatorValue)->{
-                Observation obs = new Observation();
-                obs.setStatus(Observation.ObservationStatus.FINAL);
-                obs.setId(UUID.randomUUID().toString());
-                Coding valueCoding = new Coding();
-                if(sdeKey.equalsIgnoreCase("sde-sex")){
-                    valueCoding.setCode(sdeAccumulatorKey);
-                }else {
-                    String coreCategory = sdeKey.substring(sdeKey.lastIndexOf('-') >= 0 ? sdeKey.lastIndexOf('-') : 0);
-                    patients.forEach((pt)-> {
-                        pt.getExtension().forEach((ptExt) -> {
-                            if (ptExt.getUrl().contains(coreCategory)) {
-                                String code = ((Coding) ptExt.getExtension().get(0).getValue()).getCode();
-                                if(code.equalsIgnoreCase(sdeAccumulatorKey)) {
-                                    valueCoding.setSystem(((Coding) ptExt.getExtension().get(0).getValue()).getSystem());
-                                    valueCoding.setCode(code);
-                                    valueCoding.setDisplay(((Coding) ptExt.getExtension().get(0).getValue()).getDisplay());
-                                }
-                            }
-                        });
-                    });
+    /**
+     * Adds the patient's contribution to each population (the change in the
+     * population sizes since populationSizes were taken) to the patient's stratum
+     * of each stratifier.
+     */
+    private void evaluateStratifiers(GroupEvaluationState state, Context context, Patient patient,
+            int[] populationSizes) {
+        int[] counts = state.getPopulationSizes();
+        boolean isCounted = false;
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] -= populationSizes[i];
+            isCounted |= counts[i] != 0;
+        }
+
+        if (!isCounted) {
+            return;
+        }
+
+        context.setContextValue("Patient", patient.getIdElement().getIdPart());
+        for (int i = 0; i < state.strata.size(); i++) {
+            Measure.MeasureGroupStratifierComponent stratifier = state.group.getStratifier().get(i);
+            Stratum stratum = null;
+            if (stratifier.hasComponent()) {
+                List<MeasureReport.StratifierGroupComponentComponent> components = new ArrayList<>();
+                StringBuilder key = new StringBuilder();
+                for (Measure.MeasureGroupStratifierComponentComponent component : stratifier.getComponent()) {
+                    CodeableConcept value = evaluateStratumValue(context, component.getCriteria());
+                    if (value == null) {
+                        components = null;
+                        break;
+                    }
+
+                    components.add(new MeasureReport.StratifierGroupComponentComponent()
+                            .setCode(component.getCode()).setValue(value));
+                    key.append(Stratum.getKey(value)).append(';');
                 }
-                CodeableConcept obsCodeableConcept = new CodeableConcept();
-                Extension obsExtension = new Extension().setUrl("http://hl7.org/fhir/StructureDefinition/cqf-measureInfo");
-                Extension extExtMeasure = new Extension()
-                        .setUrl("measure")
-                        .setValue(new CanonicalType("http://hl7.org/fhir/us/cqfmeasures/" + report.getMeasure()));
-                obsExtension.addExtension(extExtMeasure);
-                Extension extExtPop = new Extension()
-                        .setUrl("populationId")
-                        .setValue(new StringType(sdeKey));
-                obsExtension.addExtension(extExtPop);
-                obs.addExtension(obsExtension);
-                obs.setValue(new IntegerType(sdeAccumulatorValue));
-                if(!isSingle) {
-                    valueCoding.setCode(sdeAccumulatorKey);
-                    obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
-                    obs.setCode(obsCodeableConcept);
-                }else{
-                    obs.setCode(new CodeableConcept().setText(sdeKey));
-                    obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
-                    obs.setValue(obsCodeableConcept);
+
+                if (components != null) {
+                    List<MeasureReport.StratifierGroupComponentComponent> stratumComponents = components;
+                    stratum = state.strata.get(i).computeIfAbsent(key.toString(),
+                            x -> new Stratum(null, stratumComponents));
                 }
-                newRefList.add(new Reference("#" + obs.getId()));
-                report.addContained(obs);
-            });
+            } else {
+                CodeableConcept value = evaluateStratumValue(context, stratifier.getCriteria());
+                if (value != null) {
+                    stratum = state.strata.get(i).computeIfAbsent(Stratum.getKey(value),
+                            x -> new Stratum(value, Collections.emptyList()));
+                }
+            }
+
+            if (stratum != null) {
+                stratum.add(counts);
+            }
+        }
+    }
+
+    // Returns the stratum value of the current patient, or null if there is none
+    private CodeableConcept evaluateStratumValue(Context context, Expression criteria) {
+        if (criteria == null || !criteria.hasExpression()) {
+            return null;
+        }
+
+        return toStratumValue(context.resolveExpressionRef(criteria.getExpression()).evaluate(context));
+    }
+
+    private static CodeableConcept toStratumValue(Object value) {
+        if (value instanceof Iterable) {
+            Iterator<?> values = ((Iterable<?>) value).iterator();
+            return values.hasNext() ? toStratumValue(values.next()) : null;
+        } else if (value instanceof Code) {
+            Code code = (Code) value;
+            return new CodeableConcept().addCoding(new Coding(code.getSystem(), code.getCode(), code.getDisplay()));
+        } else if (value instanceof Coding) {
+            return new CodeableConcept().addCoding(((Coding) value).copy());
+        } else if (value instanceof CodeableConcept) {
+            return ((CodeableConcept) value).copy();
+        } else if (value instanceof Resource) {
+            return new CodeableConcept().setText(((Resource) value).getIdElement().getIdPart());
+        } else if (value instanceof IPrimitiveType) {
+            return new CodeableConcept().setText(((IPrimitiveType<?>) value).getValueAsString());
+        }
+
+        return value != null ? new CodeableConcept().setText(value.toString()) : null;
+    }
+
+    private void addStratifierReports(MeasureReport.MeasureReportGroupComponent reportGroup,
+            GroupEvaluationState state, MeasureScoring measureScoring) {
+        for (int i = 0; i < state.strata.size(); i++) {
+            Measure.MeasureGroupStratifierComponent stratifier = state.group.getStratifier().get(i);
+            MeasureReport.MeasureReportGroupStratifierComponent reportStratifier = reportGroup.addStratifier();
+            if (stratifier.hasCode()) {
+                reportStratifier.addCode(stratifier.getCode());
+            }
+
+            for (Stratum stratum : state.strata.get(i).values()) {
+                MeasureReport.StratifierGroupComponent reportStratum = reportStratifier.addStratum();
+                if (stratum.value != null) {
+                    reportStratum.setValue(stratum.value.copy());
+                }
+                for (MeasureReport.StratifierGroupComponentComponent component : stratum.components) {
+                    reportStratum.addComponent(component.copy());
+                }
+
+                for (MeasurePopulationType populationType : REPORTED_POPULATIONS) {
+                    Measure.MeasureGroupPopulationComponent criteria = state.getCriteria(populationType);
+                    if (criteria != null) {
+                        reportStratum.addPopulation().setCode(criteria.getCode())
+                                .setCount(stratum.getCount(populationType));
+                    }
+                }
+
+                int denominator = stratum.getCount(MeasurePopulationType.DENOMINATOR);
+                if ((measureScoring == MeasureScoring.PROPORTION || measureScoring == MeasureScoring.RATIO)
+                        && state.denominatorCriteria != null && state.numeratorCriteria != null && denominator > 0) {
+                    reportStratum.setMeasureScore(
+                            new Quantity(stratum.getCount(MeasurePopulationType.NUMERATOR) / (double) denominator));
+                }
+            }
+        }
+    }
+
+    private void populateSDEAccumulators(Context context, Patient patient, SupplementalDataAccumulator sdeAccumulator,
+            List<Measure.MeasureSupplementalDataComponent> sde) {
+        if (sde.isEmpty()) {
+            return;
+        }
+
+        context.setContextValue("Patient", patient.getIdElement().getIdPart());
+        for (Measure.MeasureSupplementalDataComponent sdeItem : sde) {
+            String sdeKey = sdeItem.getCode().getText();
+            if (sdeKey == null || sdeKey.isEmpty()) {
+                sdeKey = sdeItem.getCriteria().getExpression();
+            }
+
+            addSdeValue(sdeAccumulator, sdeKey, context.resolveExpressionRef(sdeItem.getCriteria().getExpression()).evaluate(context));
+        }
+    }
+
+    // SDE values are codes; a list contributes its first element
+    private static void addSdeValue(SupplementalDataAccumulator sdeAccumulator, String sdeKey, Object value) {
+        if (value instanceof Iterable) {
+            Iterator<?> values = ((Iterable<?>) value).iterator();
+            if (values.hasNext()) {
+                addSdeValue(sdeAccumulator, sdeKey, values.next());
+            }
+        } else if (value instanceof Code) {
+            Code code = (Code) value;
+            sdeAccumulator.add(sdeKey, code.getSystem(), code.getCode(), code.getDisplay());
+        } else if (value instanceof Coding) {
+            Coding coding = (Coding) value;
+            sdeAccumulator.add(sdeKey, coding.getSystem(), coding.getCode(), coding.getDisplay());
+        } else if (value instanceof CodeableConcept && ((CodeableConcept) value).hasCoding()) {
+            addSdeValue(sdeAccumulator, sdeKey, ((CodeableConcept) value).getCodingFirstRep());
+        }
+    }
+
+    private MeasureReport processAccumulators(MeasureReport report, SupplementalDataAccumulator sdeAccumulator,
+            boolean isSingle) {
+        List<Reference> newRefList = new ArrayList<>();
+        sdeAccumulator.forEach((sdeKey, sdeValue) -> {
+            Observation obs = new Observation();
+            obs.setStatus(Observation.ObservationStatus.FINAL);
+            obs.setId(UUID.randomUUID().toString());
+            Coding valueCoding = new Coding().setSystem(sdeValue.getSystem()).setCode(sdeValue.getCode())
+                    .setDisplay(sdeValue.getDisplay());
+            CodeableConcept obsCodeableConcept = new CodeableConcept();
+            Extension obsExtension = new Extension().setUrl("http://hl7.org/fhir/StructureDefinition/cqf-measureInfo");
+            Extension extExtMeasure = new Extension()
+                    .setUrl("measure")
+                    .setValue(new CanonicalType("http://hl7.org/fhir/us/cqfmeasures/" + report.getMeasure()));
+            obsExtension.addExtension(extExtMeasure);
+            Extension extExtPop = new Extension()
+                    .setUrl("populationId")
+                    .setValue(new StringType(sdeKey));
+            obsExtension.addExtension(extExtPop);
+            obs.addExtension(obsExtension);
+            obs.setValue(new IntegerType(sdeValue.getCount()));
+            if (!isSingle) {
+                obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
+                obs.setCode(obsCodeableConcept);
+            } else {
+                obs.setCode(new CodeableConcept().setText(sdeKey));
+                obsCodeableConcept.setCoding(Collections.singletonList(valueCoding));
+                obs.setValue(obsCodeableConcept);
+            }
+            newRefList.add(new Reference("#" + obs.getId()));
+            report.addContained(obs);
         });
+
         newRefList.addAll(report.getEvaluatedResource());
         report.setEvaluatedResource(newRefList);
         return report;
     }
 
-    private void populateResourceMap(Context context, MeasurePopulationType type, HashMap<String, Resource> resources,
-            HashMap<String, HashSet<String>> codeToResourceMap) {
+    private void populateResourceMap(Context context, MeasurePopulationType type, GroupEvaluationState state) {
         if (context.getEvaluatedResources().isEmpty()) {
             return;
         }
 
+        if (state.countsOnly) {
+            context.clearEvaluatedResources();
+            return;
+        }
+
+        HashMap<String, HashSet<String>> codeToResourceMap = state.codeToResourceMap;
+
         if (!codeToResourceMap.containsKey(type.toCode())) {
             codeToResourceMap.put(type.toCode(), new HashSet<>());
         }
@@ -691,10 +1197,6 @@ public class MeasureEvaluation {
                 if (!codeHashSet.contains(id)) {
                     codeHashSet.add(id);
                 }
-
-                if (!resources.containsKey(id)) {
-                    resources.put(id, r);
-                }
             }
         }
 
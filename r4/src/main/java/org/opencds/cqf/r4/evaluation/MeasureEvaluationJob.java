@@ -0,0 +1,122 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.UUID;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntConsumer;
+
+/**
+ * An asynchronous $evaluate-measure request. A job is queued, then running, and
+ * ends completed (with the id of the persisted MeasureReport), failed or
+ * cancelled.
+ */
+public class MeasureEvaluationJob {
+
+    public enum Status {
+        QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED
+    }
+
+    private final String id = UUID.randomUUID().toString();
+    private final String description;
+    private final AtomicLong progress = new AtomicLong();
+
+    private Status status = Status.QUEUED;
+    private String reportId;
+    private String error;
+    private long finishedAt;
+    private Future<?> future;
+
+    MeasureEvaluationJob(String description) {
+        this.description = description;
+    }
+
+    public String getId() {
+        return this.id;
+    }
+
+    public String getDescription() {
+        return this.description;
+    }
+
+    public synchronized Status getStatus() {
+        return this.status;
+    }
+
+    /**
+     * @return the number of patients evaluated so far. Every group of the
+     *         Measure is evaluated in one pass over each patient, so a patient
+     *         is only counted once.
+     */
+    public long getProgress() {
+        return this.progress.get();
+    }
+
+    /**
+     * @return a listener that adds to the progress, for
+     *         MeasureEvaluation.setProgressListener()
+     */
+    public IntConsumer getProgressListener() {
+        return this.progress::addAndGet;
+    }
+
+    /**
+     * @return the id of the persisted MeasureReport, once completed
+     */
+    public synchronized String getReportId() {
+        return this.reportId;
+    }
+
+    /**
+     * @return the reason the job failed, if it did
+     */
+    public synchronized String getError() {
+        return this.error;
+    }
+
+    synchronized boolean isFinishedBefore(long time) {
+        return this.finishedAt != 0 && this.finishedAt < time;
+    }
+
+    synchronized void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    synchronized boolean start() {
+        if (this.status != Status.QUEUED) {
+            return false;
+        }
+
+        this.status = Status.RUNNING;
+        return true;
+    }
+
+    synchronized void complete(String reportId) {
+        if (this.status == Status.RUNNING) {
+            this.status = Status.COMPLETED;
+            this.reportId = reportId;
+            this.finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    synchronized void fail(String error) {
+        if (this.status == Status.RUNNING) {
+            this.status = Status.FAILED;
+            this.error = error;
+            this.finishedAt = System.currentTimeMillis();
+        }
+    }
+
+    synchronized boolean cancel() {
+        if (this.status != Status.QUEUED && this.status != Status.RUNNING) {
+            return false;
+        }
+
+        this.status = Status.CANCELLED;
+        this.finishedAt = System.currentTimeMillis();
+        if (this.future != null) {
+            this.future.cancel(true);
+        }
+
+        return true;
+    }
+}
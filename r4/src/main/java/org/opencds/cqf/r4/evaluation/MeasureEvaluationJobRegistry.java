@@ -0,0 +1,96 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+import javax.annotation.PreDestroy;
+
+import org.opencds.cqf.common.config.HapiProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * Runs asynchronous measure evaluations on a bounded pool and keeps track of
+ * them, so clients can poll for their status and cancel them. Finished jobs are
+ * forgotten after the configured retention period (the MeasureReports they
+ * persisted are kept).
+ */
+@Component
+public class MeasureEvaluationJobRegistry {
+
+    private static final Logger logger = LoggerFactory.getLogger(MeasureEvaluationJobRegistry.class);
+
+    private final ExecutorService executor = Executors
+            .newFixedThreadPool(HapiProperties.getMeasureEvaluationAsyncThreads());
+    private final Map<String, MeasureEvaluationJob> jobs = new ConcurrentHashMap<>();
+
+    /**
+     * Queues an evaluation.
+     *
+     * @param evaluation evaluates the Measure, reporting progress to the job, and
+     *                   returns the id of the persisted MeasureReport. It should
+     *                   stop when its thread is interrupted.
+     */
+    public MeasureEvaluationJob submit(String description, Function<MeasureEvaluationJob, String> evaluation) {
+        evictFinishedJobs();
+
+        MeasureEvaluationJob job = new MeasureEvaluationJob(description);
+        this.jobs.put(job.getId(), job);
+        job.setFuture(this.executor.submit(() -> run(job, evaluation)));
+        return job;
+    }
+
+    /**
+     * @return the job with the given id, or null if there is no such job (or it
+     *         finished before the retention period)
+     */
+    public MeasureEvaluationJob getJob(String id) {
+        return this.jobs.get(id);
+    }
+
+    /**
+     * @return whether the job was cancelled; false if there is no such job or it
+     *         has already finished
+     */
+    public boolean cancel(String id) {
+        MeasureEvaluationJob job = this.jobs.get(id);
+        return job != null && job.cancel();
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        this.executor.shutdownNow();
+    }
+
+    private void run(MeasureEvaluationJob job, Function<MeasureEvaluationJob, String> evaluation) {
+        if (!job.start()) {
+            return;
+        }
+
+        logger.info("Starting asynchronous evaluation {}: {}", job.getId(), job.getDescription());
+        try {
+            job.complete(evaluation.apply(job));
+            logger.info("Finished asynchronous evaluation {}", job.getId());
+        } catch (Throwable e) {
+            // Errors are caught too, or the job would be left running for ever
+            if (job.getStatus() == MeasureEvaluationJob.Status.CANCELLED) {
+                logger.info("Cancelled asynchronous evaluation {}", job.getId());
+                return;
+            }
+
+            logger.error("Asynchronous evaluation {} failed", job.getId(), e);
+            job.fail(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        }
+    }
+
+    private void evictFinishedJobs() {
+        long retainedSince = System.currentTimeMillis()
+                - TimeUnit.MINUTES.toMillis(HapiProperties.getMeasureEvaluationAsyncRetentionMinutes());
+        this.jobs.values().removeIf(job -> job.isFinishedBefore(retainedSince));
+    }
+}
@@ -1,12 +1,15 @@
 package org.opencds.cqf.r4.evaluation;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.commons.lang3.tuple.Triple;
 import org.cqframework.cql.elm.execution.Library;
 import org.hl7.fhir.r4.model.Measure;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.PatientScopedContext;
 import org.opencds.cqf.common.helpers.DateHelper;
 import org.opencds.cqf.common.helpers.UsingHelper;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
@@ -27,6 +30,11 @@ public class MeasureEvaluationSeed {
     private LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider;
     private EvaluationProviderFactory providerFactory;
     private DataProvider dataProvider;
+    private Library library;
+    private List<Triple<String, String, String>> usingDefs;
+    private TerminologyProvider terminologyProvider;
+    private String productLine;
+    private Set<String> patientIndependentDefs;
 
     public MeasureEvaluationSeed(EvaluationProviderFactory providerFactory, LibraryLoader libraryLoader,
             LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider) {
@@ -58,13 +66,16 @@ public class MeasureEvaluationSeed {
         LibraryHelper.loadLibraries(measure, this.libraryLoader, this.libraryResourceProvider);
 
         // resolve primary library
-        Library library = LibraryHelper.resolvePrimaryLibrary(measure, libraryLoader, this.libraryResourceProvider);
+        library = LibraryHelper.resolvePrimaryLibrary(measure, libraryLoader, this.libraryResourceProvider);
 
-        // resolve execution context
-        context = new Context(library);
-        context.registerLibraryLoader(libraryLoader);
+        usingDefs = UsingHelper.getUsingUrlAndVersion(library.getUsings());
 
-        List<Triple<String, String, String>> usingDefs = UsingHelper.getUsingUrlAndVersion(library.getUsings());
+        // Computed up front since worker Contexts are created while the loader may
+        // still be loading libraries
+        patientIndependentDefs = PatientScopedContext.getPatientIndependentDefs(
+                this.libraryLoader instanceof org.opencds.cqf.common.evaluation.LibraryLoader
+                        ? ((org.opencds.cqf.common.evaluation.LibraryLoader) this.libraryLoader).getLibraries()
+                        : Collections.singletonList(library));
 
         if (usingDefs.size() > 1) {
             throw new IllegalArgumentException(
@@ -74,25 +85,80 @@ public class MeasureEvaluationSeed {
         // If there are no Usings, there is probably not any place the Terminology
         // actually used so I think the assumption that at least one provider exists is
         // ok.
-        TerminologyProvider terminologyProvider = null;
+        terminologyProvider = null;
         if (usingDefs.size() > 0) {
             // Creates a terminology provider based on the first using statement. This
             // assumes the terminology
             // server matches the FHIR version of the CQL.
             terminologyProvider = this.providerFactory.createTerminologyProvider(usingDefs.get(0).getLeft(),
                     usingDefs.get(0).getMiddle(), source, user, pass);
-            context.registerTerminologyProvider(terminologyProvider);
         }
 
+        // resolve the measurement period
+        measurementPeriod = new Interval(DateHelper.resolveRequestDate(periodStart, true), true,
+                DateHelper.resolveRequestDate(periodEnd, false), true);
+
+        this.productLine = productLine;
+
+        // resolve execution context
+        context = newContext();
+        this.dataProvider = registerDataProviders(context);
+    }
+
+    /**
+     * Creates a new execution Context for the Measure resolved by setup(). Each
+     * Context gets its own DataProvider, so Contexts created here may be used
+     * concurrently. The library loader and terminology provider are shared.
+     */
+    public Context createContext() {
+        if (library == null) {
+            throw new IllegalStateException("MeasureEvaluationSeed.setup() must be called before creating a Context.");
+        }
+
+        Context context = newContext();
+        registerDataProviders(context);
+        return context;
+    }
+
+    /**
+     * Creates a new execution Context for the Measure resolved by setup() that
+     * uses the given DataProvider, so Contexts for several Measures can share a
+     * provider (and the data it prefetches and caches). Contexts that share a
+     * provider must be used on the same thread.
+     */
+    public Context createContext(DataProvider dataProvider) {
+        if (library == null) {
+            throw new IllegalStateException("MeasureEvaluationSeed.setup() must be called before creating a Context.");
+        }
+
+        Context context = newContext();
         for (Triple<String, String, String> def : usingDefs) {
-            this.dataProvider = this.providerFactory.createDataProvider(def.getLeft(), def.getMiddle(),
-                    terminologyProvider);
             context.registerDataProvider(def.getRight(), dataProvider);
         }
+        return context;
+    }
 
-        // resolve the measurement period
-        measurementPeriod = new Interval(DateHelper.resolveRequestDate(periodStart, true), true,
-                DateHelper.resolveRequestDate(periodEnd, false), true);
+    /**
+     * Creates a new DataProvider for the model the Measure resolved by setup()
+     * uses.
+     */
+    public DataProvider createDataProvider() {
+        DataProvider dataProvider = null;
+        for (Triple<String, String, String> def : usingDefs) {
+            dataProvider = this.providerFactory.createDataProvider(def.getLeft(), def.getMiddle(),
+                    terminologyProvider);
+        }
+
+        return dataProvider;
+    }
+
+    private Context newContext() {
+        Context context = new PatientScopedContext(library, patientIndependentDefs);
+        context.registerLibraryLoader(libraryLoader);
+
+        if (terminologyProvider != null) {
+            context.registerTerminologyProvider(terminologyProvider);
+        }
 
         context.setParameter(null, "Measurement Period",
                 new Interval(DateTime.fromJavaDate((Date) measurementPeriod.getStart()), true,
@@ -107,5 +173,18 @@ public class MeasureEvaluationSeed {
         DebugMap debugMap = new DebugMap();
         debugMap.setIsLoggingEnabled(true);
         context.setDebugMap(debugMap);
+
+        return context;
+    }
+
+    private DataProvider registerDataProviders(Context context) {
+        DataProvider dataProvider = null;
+        for (Triple<String, String, String> def : usingDefs) {
+            dataProvider = this.providerFactory.createDataProvider(def.getLeft(), def.getMiddle(),
+                    terminologyProvider);
+            context.registerDataProvider(def.getRight(), dataProvider);
+        }
+
+        return dataProvider;
     }
 }
@@ -0,0 +1,55 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.opencds.cqf.common.evaluation.MeasureScoring;
+import org.opencds.cqf.common.evaluation.SupplementalDataAccumulator;
+
+/**
+ * Holds the results of all of a Measure's groups for a set of patients, side by
+ * side, so each patient is evaluated for every group in a single pass. The
+ * supplemental data belongs to the Measure rather than a group, so it is
+ * collected once per patient. States computed for disjoint sets of patients can
+ * be merged.
+ */
+class MeasureEvaluationState {
+
+    final Measure measure;
+    final MeasureScoring measureScoring;
+    final MeasureReport.MeasureReportType type;
+    final boolean countsOnly;
+
+    // In Measure group order
+    final List<GroupEvaluationState> groups = new ArrayList<>();
+    final SupplementalDataAccumulator sdeAccumulator = new SupplementalDataAccumulator();
+
+    MeasureEvaluationState(Measure measure, MeasureScoring measureScoring, MeasureReport.MeasureReportType type,
+            boolean countsOnly) {
+        this.measure = measure;
+        this.measureScoring = measureScoring;
+        this.type = type;
+        this.countsOnly = countsOnly;
+
+        for (Measure.MeasureGroupComponent group : measure.getGroup()) {
+            groups.add(new GroupEvaluationState(group, type, countsOnly));
+        }
+    }
+
+    /**
+     * Returns an empty state for the same Measure, used to evaluate another
+     * partition of the patients.
+     */
+    MeasureEvaluationState newPartition() {
+        return new MeasureEvaluationState(this.measure, this.measureScoring, this.type, this.countsOnly);
+    }
+
+    void merge(MeasureEvaluationState other) {
+        for (int i = 0; i < this.groups.size(); i++) {
+            this.groups.get(i).merge(other.groups.get(i));
+        }
+        this.sdeAccumulator.merge(other.sdeAccumulator);
+    }
+}
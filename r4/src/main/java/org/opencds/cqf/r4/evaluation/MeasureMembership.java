@@ -0,0 +1,53 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The population membership of every patient for a Measure and measurement
+ * period, kept between runs so that a later run only has to re-evaluate the
+ * patients whose data changed since the watermark. A membership is only valid
+ * for the artifact version it was computed with. Callers must synchronize on
+ * the membership while evaluating with it.
+ */
+public class MeasureMembership {
+
+    private final long artifactVersion;
+    // Read by MeasureMembershipStore without synchronizing on the membership
+    private volatile long watermark;
+    private boolean evaluated;
+
+    final Map<String, PatientMembership> patients = new HashMap<>();
+
+    public MeasureMembership(long artifactVersion) {
+        this.artifactVersion = artifactVersion;
+    }
+
+    public long getArtifactVersion() {
+        return this.artifactVersion;
+    }
+
+    /**
+     * @return the watermark the membership was last evaluated at, or, while it
+     *         is first being evaluated, the watermark that evaluation started at
+     */
+    public long getWatermark() {
+        return this.watermark;
+    }
+
+    public void setWatermark(long watermark) {
+        this.watermark = watermark;
+    }
+
+    /**
+     * @return whether every patient has been evaluated, so that only changed
+     *         patients need to be evaluated again
+     */
+    public boolean isEvaluated() {
+        return this.evaluated;
+    }
+
+    void setEvaluated(boolean evaluated) {
+        this.evaluated = evaluated;
+    }
+}
@@ -0,0 +1,67 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.hl7.fhir.r4.model.Measure;
+import org.springframework.stereotype.Component;
+
+/**
+ * Holds the population membership of the Measures evaluated incrementally, by
+ * Measure version, measurement period and product line. Memberships are kept in
+ * memory, and only for the most recently used Measures and periods; an evicted
+ * membership, or any membership after a restart, is evaluated in full again.
+ * Incremental evaluation is an optimization, so losing memberships costs time
+ * but never correctness.
+ */
+@Component
+public class MeasureMembershipStore {
+
+    private static final int MAX_ENTRIES = 100;
+
+    private final Map<String, MeasureMembership> memberships = new LinkedHashMap<String, MeasureMembership>(16,
+            0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MeasureMembership> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Returns the membership for the given key, replacing it with an empty one if
+     * there is none or it was computed with another artifact version.
+     */
+    public synchronized MeasureMembership getMembership(String key, long artifactVersion) {
+        MeasureMembership membership = this.memberships.get(key);
+        if (membership == null || membership.getArtifactVersion() != artifactVersion) {
+            membership = new MeasureMembership(artifactVersion);
+            this.memberships.put(key, membership);
+        }
+
+        return membership;
+    }
+
+    /**
+     * @return the lowest watermark of any membership, or the given watermark if
+     *         it is lower. Patient changes at or before it are no longer needed.
+     */
+    public synchronized long getOldestWatermark(long watermark) {
+        long oldest = watermark;
+        for (MeasureMembership membership : this.memberships.values()) {
+            oldest = Math.min(oldest, membership.getWatermark());
+        }
+
+        return oldest;
+    }
+
+    public synchronized void clear() {
+        this.memberships.clear();
+    }
+
+    public static String getKey(Measure measure, String periodStart, String periodEnd, String productLine) {
+        return measure.getIdElement().getIdPart() + "|" + measure.getMeta().getVersionId() + "|" + periodStart
+                + "|" + periodEnd + "|" + productLine;
+    }
+}
@@ -0,0 +1,96 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Supplier;
+
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.springframework.stereotype.Component;
+
+/**
+ * Holds the MeasureReports of recent $evaluate-measure requests. Callers key
+ * the reports by the request parameters together with the artifact version and
+ * data watermark they were evaluated at, so a report is never served once the
+ * data or artifacts it was computed from have changed; superseded entries are
+ * simply evicted as the least recently used. Concurrent requests for the same
+ * key wait for a single evaluation.
+ */
+@Component
+public class MeasureReportCache {
+
+    private final int maxSize = HapiProperties.getMeasureEvaluationReportCacheMaxSize();
+
+    private final Map<String, CompletableFuture<MeasureReport>> reports = new LinkedHashMap<String, CompletableFuture<MeasureReport>>(
+            16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CompletableFuture<MeasureReport>> eldest) {
+            return size() > maxSize;
+        }
+    };
+
+    /**
+     * Returns a copy of the report for the given key, evaluating it if there is
+     * none.
+     */
+    public MeasureReport getReport(String key, Supplier<MeasureReport> evaluator) {
+        if (this.maxSize <= 0) {
+            return evaluator.get();
+        }
+
+        CompletableFuture<MeasureReport> pending = new CompletableFuture<>();
+        CompletableFuture<MeasureReport> report;
+        synchronized (this.reports) {
+            report = this.reports.get(key);
+            if (report == null) {
+                this.reports.put(key, pending);
+            }
+        }
+
+        if (report != null) {
+            return getResult(report).copy();
+        }
+
+        boolean evaluated = false;
+        try {
+            pending.complete(evaluator.get());
+            evaluated = true;
+        } catch (Throwable e) {
+            pending.completeExceptionally(e);
+            throw e;
+        } finally {
+            // Don't keep failures (including Errors); the next request tries again
+            if (!evaluated) {
+                synchronized (this.reports) {
+                    this.reports.remove(key, pending);
+                }
+            }
+        }
+
+        return getResult(pending).copy();
+    }
+
+    public void clear() {
+        synchronized (this.reports) {
+            this.reports.clear();
+        }
+    }
+
+    private static MeasureReport getResult(CompletableFuture<MeasureReport> report) {
+        try {
+            return report.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+}
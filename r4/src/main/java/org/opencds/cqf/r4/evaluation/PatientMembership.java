@@ -0,0 +1,24 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+
+/**
+ * The populations a single patient is in for each group of a Measure, and the
+ * resources evaluated for them.
+ */
+class PatientMembership {
+
+    // Per group (in Measure order), the ids of the patient's resources in each
+    // population
+    final List<Map<MeasurePopulationType, Set<String>>> groups = new ArrayList<>();
+
+    // The references of the resources evaluated for each population code
+    final Map<String, HashSet<String>> codeToResourceMap = new HashMap<>();
+}
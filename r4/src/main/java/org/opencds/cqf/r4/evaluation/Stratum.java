@@ -0,0 +1,53 @@
+package org.opencds.cqf.r4.evaluation;
+
+import java.util.List;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+
+/**
+ * The population counts of a single stratum of a stratifier: either a single
+ * value, or one value for each component of the stratifier.
+ */
+class Stratum {
+
+    final CodeableConcept value;
+    final List<MeasureReport.StratifierGroupComponentComponent> components;
+
+    // Indexed by MeasurePopulationType ordinal
+    final int[] counts = new int[MeasurePopulationType.values().length];
+
+    Stratum(CodeableConcept value, List<MeasureReport.StratifierGroupComponentComponent> components) {
+        this.value = value;
+        this.components = components;
+    }
+
+    void add(int[] counts) {
+        for (int i = 0; i < counts.length; i++) {
+            this.counts[i] += counts[i];
+        }
+    }
+
+    int getCount(MeasurePopulationType populationType) {
+        return this.counts[populationType.ordinal()];
+    }
+
+    /**
+     * Returns a key that identifies the value: its codes if it has any, otherwise
+     * its text.
+     */
+    static String getKey(CodeableConcept value) {
+        if (!value.hasCoding()) {
+            return "text:" + value.getText();
+        }
+
+        StringBuilder key = new StringBuilder();
+        for (Coding coding : value.getCoding()) {
+            key.append(coding.getSystem()).append('|').append(coding.getCode()).append(',');
+        }
+
+        return key.toString();
+    }
+}
@@ -8,7 +8,9 @@ import org.cqframework.cql.cql2elm.ModelManager;
 import org.cqframework.cql.elm.execution.Library;
 import org.cqframework.cql.elm.execution.VersionedIdentifier;
 import org.hl7.fhir.r4.model.*;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
 import org.opencds.cqf.common.evaluation.LibraryLoader;
+import org.opencds.cqf.common.providers.ElmLibrarySourceProvider;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.common.providers.LibrarySourceProvider;
 
@@ -22,11 +24,13 @@ public class LibraryHelper {
         LibraryManager libraryManager = new LibraryManager(modelManager);
         libraryManager.getLibrarySourceLoader().clearProviders();
 
-        libraryManager.getLibrarySourceLoader().registerProvider(
+        LibrarySourceProvider<org.hl7.fhir.r4.model.Library, org.hl7.fhir.r4.model.Attachment> librarySourceProvider =
                 new LibrarySourceProvider<org.hl7.fhir.r4.model.Library, org.hl7.fhir.r4.model.Attachment>(provider,
-                        x -> x.getContent(), x -> x.getContentType(), x -> x.getData()));
+                        x -> x.getContent(), x -> x.getContentType(), x -> x.getData());
+        libraryManager.getLibrarySourceLoader().registerProvider(librarySourceProvider);
 
-        return new LibraryLoader(libraryManager, modelManager);
+        return new LibraryLoader(libraryManager, modelManager, CompiledLibraryCache.getSharedInstance(),
+                librarySourceProvider);
     }
 
     public static LibraryLoader createLibraryLoader(org.cqframework.cql.cql2elm.LibrarySourceProvider provider) {
@@ -36,7 +40,8 @@ public class LibraryHelper {
 
         libraryManager.getLibrarySourceLoader().registerProvider(provider);
 
-        return new LibraryLoader(libraryManager, modelManager);
+        return new LibraryLoader(libraryManager, modelManager, null,
+                provider instanceof ElmLibrarySourceProvider ? (ElmLibrarySourceProvider) provider : null);
     }
 
     public static org.hl7.fhir.r4.model.Library resolveLibraryReference(LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResourceProvider, String reference) {
@@ -177,8 +177,9 @@ public class CqlExecutionProvider {
 
         LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.getLibraryResourceProvider());
 
-        org.cqframework.cql.elm.execution.Library library = TranslatorHelper.translateLibrary(source,
-                libraryLoader.getLibraryManager(), libraryLoader.getModelManager());
+        // The source only varies by resource type, includes and expression, so
+        // evaluating the same expression again reuses the translated library
+        org.cqframework.cql.elm.execution.Library library = libraryLoader.translateSource("LocalLibrary", source);
 
         // resolve execution context
         Context context = setupContext(instance, patientId, libraryLoader, library);
@@ -1,23 +1,37 @@
 package org.opencds.cqf.r4.providers;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.inject.Inject;
 
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.CodeSystem;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.ValueSet;
 import org.hl7.fhir.r4.model.ValueSet.ValueSetExpansionContainsComponent;
+import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.cql.engine.runtime.Code;
 import org.opencds.cqf.cql.engine.terminology.CodeSystemInfo;
 import org.opencds.cqf.cql.engine.terminology.TerminologyProvider;
 import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
 
 import ca.uhn.fhir.context.FhirContext;
 import ca.uhn.fhir.context.support.ValueSetExpansionOptions;
 import ca.uhn.fhir.context.support.IValidationSupport.LookupCodeResult;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
 import ca.uhn.fhir.jpa.rp.r4.ValueSetResourceProvider;
 import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
 import ca.uhn.fhir.util.VersionIndependentConcept;
@@ -26,33 +40,170 @@ import ca.uhn.fhir.rest.api.server.IBundleProvider;
 import ca.uhn.fhir.rest.param.UriParam;
 import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 
+/**
+ * Expansions are cached by value set id (and version) together with an index of
+ * their (system, code) pairs, so membership tests are a hash lookup. Entries
+ * expire after a configurable time, the number of entries is bounded, and the
+ * whole cache is cleared whenever a ValueSet or CodeSystem is written through
+ * the DAOs (this bean is registered as a JPA interceptor for that).
+ *
+ * This bean is shared by every evaluation, so it takes no locks: cached
+ * expansions are read straight from a ConcurrentHashMap, and concurrent misses
+ * for the same value set wait on a single pending expansion.
+ */
 @Component
+@Interceptor
 public class JpaTerminologyProvider implements TerminologyProvider {
 
     private ITermReadSvcR4 terminologySvcR4;
     private ValueSetResourceProvider valueSetResourceProvider;
 
+    private Map<String, CompletableFuture<CachedExpansion>> expansions = new ConcurrentHashMap<>();
+    private long expansionTtlMillis;
+    private int maxExpansions;
+
     @Inject
     public JpaTerminologyProvider(ITermReadSvcR4 terminologySvcR4, FhirContext context,
             ValueSetResourceProvider valueSetResourceProvider) {
+        this(terminologySvcR4, valueSetResourceProvider,
+                HapiProperties.getTerminologyExpansionCacheTtlSeconds() * 1000L,
+                HapiProperties.getTerminologyExpansionCacheMaxSize());
+    }
+
+    JpaTerminologyProvider(ITermReadSvcR4 terminologySvcR4, ValueSetResourceProvider valueSetResourceProvider,
+            long expansionTtlMillis, int maxExpansions) {
         this.terminologySvcR4 = terminologySvcR4;
         this.valueSetResourceProvider = valueSetResourceProvider;
+        this.expansionTtlMillis = expansionTtlMillis;
+        this.maxExpansions = maxExpansions;
     }
 
     @Override
-    public synchronized boolean in(Code code, ValueSetInfo valueSet) throws ResourceNotFoundException {
-        for (Code c : expand(valueSet)) {
-            if (c == null)
-                continue;
-            if (c.getCode().equals(code.getCode()) && c.getSystem().equals(code.getSystem())) {
-                return true;
-            }
+    public boolean in(Code code, ValueSetInfo valueSet) throws ResourceNotFoundException {
+        if (code == null) {
+            return false;
         }
-        return false;
+
+        return getExpansion(valueSet).contains(code);
     }
 
     @Override
-    public synchronized Iterable<Code> expand(ValueSetInfo valueSet) throws ResourceNotFoundException {
+    public Iterable<Code> expand(ValueSetInfo valueSet) throws ResourceNotFoundException {
+        return getExpansion(valueSet).codes;
+    }
+
+    public void clearExpansionCache() {
+        this.expansions.clear();
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource theResource) {
+        invalidateExpansions(theResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+        invalidateExpansions(theNewResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource theResource) {
+        invalidateExpansions(theResource);
+    }
+
+    // Expansions may depend on other value sets and on code system content, so
+    // any change to either clears every cached expansion
+    private void invalidateExpansions(IBaseResource resource) {
+        if (resource instanceof ValueSet || resource instanceof CodeSystem) {
+            clearExpansionCache();
+
+            // The write isn't visible to other transactions until it commits, so an
+            // expansion computed in the meantime may still have read the old content
+            if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                    @Override
+                    public void afterCommit() {
+                        clearExpansionCache();
+                    }
+                });
+            }
+        }
+    }
+
+    private CachedExpansion getExpansion(ValueSetInfo valueSet) {
+        String key = valueSet.getVersion() != null ? valueSet.getId() + "|" + valueSet.getVersion() : valueSet.getId();
+
+        CompletableFuture<CachedExpansion> expansion = this.expansions.get(key);
+        if (expansion != null && !isExpired(expansion)) {
+            return getResult(expansion);
+        }
+
+        CompletableFuture<CachedExpansion> pending = new CompletableFuture<>();
+        expansion = this.expansions.compute(key,
+                (k, existing) -> existing != null && !isExpired(existing) ? existing : pending);
+
+        if (expansion == pending) {
+            if (this.expansions.size() > this.maxExpansions) {
+                evictExpansions();
+            }
+
+            try {
+                pending.complete(new CachedExpansion(expandValueSet(valueSet), this.expansionTtlMillis));
+            } catch (Throwable e) {
+                // Don't cache failures (including Errors); the next request tries again
+                this.expansions.remove(key, pending);
+                pending.completeExceptionally(e);
+                throw e;
+            }
+        }
+
+        return getResult(expansion);
+    }
+
+    private CachedExpansion getResult(CompletableFuture<CachedExpansion> expansion) {
+        try {
+            return expansion.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    // Expansions still in progress are never expired
+    private static boolean isExpired(CompletableFuture<CachedExpansion> expansion) {
+        return expansion.isDone() && !expansion.isCompletedExceptionally() && expansion.join().isExpired();
+    }
+
+    // Drops expired entries and, if still full, the oldest completed entries
+    private void evictExpansions() {
+        this.expansions.values().removeIf(JpaTerminologyProvider::isExpired);
+
+        while (this.expansions.size() > this.maxExpansions) {
+            String oldest = null;
+            long oldestExpiry = Long.MAX_VALUE;
+            for (Map.Entry<String, CompletableFuture<CachedExpansion>> entry : this.expansions.entrySet()) {
+                CompletableFuture<CachedExpansion> expansion = entry.getValue();
+                if (expansion.isDone() && !expansion.isCompletedExceptionally()
+                        && expansion.join().expiresAt < oldestExpiry) {
+                    oldest = entry.getKey();
+                    oldestExpiry = expansion.join().expiresAt;
+                }
+            }
+
+            if (oldest == null) {
+                return;
+            }
+
+            this.expansions.remove(oldest);
+        }
+    }
+
+    private List<Code> expandValueSet(ValueSetInfo valueSet) {
         List<Code> codes = new ArrayList<>();
         boolean needsExpand = false;
         ValueSet vs;
@@ -118,7 +269,7 @@ public class JpaTerminologyProvider implements TerminologyProvider {
     }
 
     @Override
-    public synchronized Code lookup(Code code, CodeSystemInfo codeSystem) throws ResourceNotFoundException {
+    public Code lookup(Code code, CodeSystemInfo codeSystem) throws ResourceNotFoundException {
         LookupCodeResult cs = terminologySvcR4.lookupCode(terminologySvcR4, codeSystem.getId(), code.getCode());
 
         code.setDisplay(cs.getCodeDisplay());
@@ -126,4 +277,32 @@ public class JpaTerminologyProvider implements TerminologyProvider {
 
         return code;
     }
-}
\ No newline at end of file
+
+    private static class CachedExpansion {
+        private List<Code> codes;
+        private Set<String> index = new HashSet<>();
+        private long expiresAt;
+
+        private CachedExpansion(List<Code> codes, long ttlMillis) {
+            this.codes = Collections.unmodifiableList(codes);
+            for (Code code : codes) {
+                if (code != null) {
+                    this.index.add(getIndexKey(code.getSystem(), code.getCode()));
+                }
+            }
+            this.expiresAt = System.currentTimeMillis() + ttlMillis;
+        }
+
+        private boolean contains(Code code) {
+            return this.index.contains(getIndexKey(code.getSystem(), code.getCode()));
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() > this.expiresAt;
+        }
+
+        private static String getIndexKey(String system, String code) {
+            return system + "|" + code;
+        }
+    }
+}
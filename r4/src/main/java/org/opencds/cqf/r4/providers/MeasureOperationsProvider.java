@@ -1,6 +1,11 @@
 package org.opencds.cqf.r4.providers;
 
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Future;
+import java.util.function.IntConsumer;
 import java.util.stream.Collectors;
 
 import javax.inject.Inject;
@@ -12,15 +17,27 @@ import org.hl7.fhir.exceptions.FHIRException;
 import org.hl7.fhir.instance.model.api.IAnyResource;
 import org.hl7.fhir.instance.model.api.IBase;
 import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.instance.model.api.IIdType;
 import org.hl7.fhir.r4.model.*;
+import org.opencds.cqf.common.config.HapiProperties;
 import org.opencds.cqf.common.evaluation.EvaluationProviderFactory;
+import org.opencds.cqf.common.evaluation.MeasureEvaluationExecutor;
+import org.opencds.cqf.common.exceptions.AcceptedException;
+import org.opencds.cqf.common.interceptors.PatientChangeTracker;
 import org.opencds.cqf.common.providers.LibraryResolutionProvider;
 import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.cql.engine.execution.Context;
 import org.opencds.cqf.cql.engine.execution.LibraryLoader;
 import org.opencds.cqf.tooling.library.r4.NarrativeProvider;
 import org.opencds.cqf.tooling.measure.r4.CqfMeasure;
+import org.opencds.cqf.r4.evaluation.MeasureBatchSeed;
 import org.opencds.cqf.r4.evaluation.MeasureEvaluation;
+import org.opencds.cqf.r4.evaluation.MeasureEvaluationJob;
+import org.opencds.cqf.r4.evaluation.MeasureEvaluationJobRegistry;
 import org.opencds.cqf.r4.evaluation.MeasureEvaluationSeed;
+import org.opencds.cqf.r4.evaluation.MeasureMembership;
+import org.opencds.cqf.r4.evaluation.MeasureMembershipStore;
+import org.opencds.cqf.r4.evaluation.MeasureReportCache;
 import org.opencds.cqf.r4.helpers.LibraryHelper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -36,6 +53,8 @@ import ca.uhn.fhir.rest.api.RestOperationTypeEnum;
 import ca.uhn.fhir.rest.api.server.RequestDetails;
 import ca.uhn.fhir.rest.param.TokenParam;
 import ca.uhn.fhir.rest.server.exceptions.InternalErrorException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceGoneException;
+import ca.uhn.fhir.rest.server.exceptions.ResourceNotFoundException;
 
 @Component
 public class MeasureOperationsProvider {
@@ -48,6 +67,11 @@ public class MeasureOperationsProvider {
     private MeasureResourceProvider measureResourceProvider;
     private DaoRegistry registry;
     private EvaluationProviderFactory factory;
+    private PatientChangeTracker changeTracker;
+    private MeasureMembershipStore membershipStore;
+    private MeasureEvaluationJobRegistry jobRegistry;
+    private MeasureReportCache reportCache;
+    private MeasureEvaluationExecutor evaluationExecutor;
 
     private static final Logger logger = LoggerFactory.getLogger(MeasureOperationsProvider.class);
 
@@ -55,9 +79,16 @@ public class MeasureOperationsProvider {
     public MeasureOperationsProvider(DaoRegistry registry, EvaluationProviderFactory factory,
             NarrativeProvider narrativeProvider, HQMFProvider hqmfProvider,
             LibraryResolutionProvider<org.hl7.fhir.r4.model.Library> libraryResolutionProvider,
-            MeasureResourceProvider measureResourceProvider) {
+            MeasureResourceProvider measureResourceProvider, PatientChangeTracker changeTracker,
+            MeasureMembershipStore membershipStore, MeasureEvaluationJobRegistry jobRegistry,
+            MeasureReportCache reportCache, MeasureEvaluationExecutor evaluationExecutor) {
         this.registry = registry;
         this.factory = factory;
+        this.changeTracker = changeTracker;
+        this.membershipStore = membershipStore;
+        this.jobRegistry = jobRegistry;
+        this.reportCache = reportCache;
+        this.evaluationExecutor = evaluationExecutor;
 
         this.libraryResolutionProvider = libraryResolutionProvider;
         this.narrativeProvider = narrativeProvider;
@@ -137,9 +168,20 @@ public class MeasureOperationsProvider {
      * NOTE that the source, user, and pass parameters are not standard parameters
      * for the FHIR $evaluate-measure operation
      *
+     * When measure_evaluation.incremental is set, population reports are
+     * evaluated incrementally: the population membership of each patient is kept
+     * between runs, and only the patients whose data changed since the previous
+     * run are evaluated again. Membership is held in memory only, so the first run
+     * after a restart (or after the membership is evicted) evaluates every patient
+     *
+     * With a "Prefer: respond-async" header the evaluation runs in the
+     * background, and the response is 202 Accepted with a Content-Location
+     * header to poll ($evaluate-measure-status). The MeasureReport is persisted
+     * when the evaluation completes
+     *
      */
     @Operation(name = "$evaluate-measure", idempotent = true, type = Measure.class)
-    public MeasureReport evaluateMeasure(@IdParam IdType theId,
+    public MeasureReport evaluateMeasure(RequestDetails theRequestDetails, @IdParam IdType theId,
             @OperationParam(name = "periodStart") String periodStart,
             @OperationParam(name = "periodEnd") String periodEnd, @OperationParam(name = "measure") String measureRef,
             @OperationParam(name = "reportType") String reportType, @OperationParam(name = "patient") String patientRef,
@@ -148,6 +190,139 @@ public class MeasureOperationsProvider {
             @OperationParam(name = "lastReceivedOn") String lastReceivedOn,
             @OperationParam(name = "source") String source, @OperationParam(name = "user") String user,
             @OperationParam(name = "pass") String pass) throws InternalErrorException, FHIRException {
+        String prefer = theRequestDetails != null ? theRequestDetails.getHeader("Prefer") : null;
+        if (prefer == null || !prefer.contains("respond-async")) {
+            return evaluateMeasure(theId, periodStart, periodEnd, measureRef, reportType, patientRef, productLine,
+                    practitionerRef, lastReceivedOn, source, user, pass);
+        }
+
+        String description = "Measure/" + theId.getIdPart() + " (" + (reportType != null ? reportType : "patient")
+                + " report, " + periodStart + " - " + periodEnd + ")";
+        MeasureEvaluationJob job = this.jobRegistry.submit(description, x -> {
+            MeasureReport report = evaluateMeasure(theId, periodStart, periodEnd, measureRef, reportType, patientRef,
+                    productLine, practitionerRef, source, user, pass, x.getProgressListener());
+
+            // A cancelled job must not persist its report
+            if (Thread.currentThread().isInterrupted() || x.getStatus() != MeasureEvaluationJob.Status.RUNNING) {
+                throw new CancellationException("Evaluation of " + description + " was cancelled");
+            }
+
+            IFhirResourceDao<MeasureReport> dao = this.registry.getResourceDao(MeasureReport.class);
+            IIdType reportId = dao.create(report).getId().toUnqualifiedVersionless();
+            if (x.getStatus() != MeasureEvaluationJob.Status.RUNNING) {
+                // Cancelled while the report was being written
+                dao.delete(reportId);
+                throw new CancellationException("Evaluation of " + description + " was cancelled");
+            }
+
+            return reportId.getValue();
+        });
+
+        throw newAcceptedException(theRequestDetails, job, "Accepted evaluation of " + description);
+    }
+
+    /**
+     * Returns the result of an asynchronous $evaluate-measure: 202 Accepted while
+     * it is running, or a batch-response Bundle with the persisted MeasureReport
+     * once it has completed.
+     */
+    @Operation(name = "$evaluate-measure-status", idempotent = true, type = Measure.class)
+    public Bundle evaluateMeasureStatus(RequestDetails theRequestDetails, @OperationParam(name = "id") String jobId) {
+        MeasureEvaluationJob job = getEvaluationJob(jobId);
+        switch (job.getStatus()) {
+            case QUEUED:
+            case RUNNING:
+                throw newAcceptedException(theRequestDetails, job, "Evaluation of " + job.getDescription() + " is "
+                        + job.getStatus().toString().toLowerCase() + ", " + job.getProgress() + " patients evaluated");
+            case COMPLETED:
+                MeasureReport report = this.registry.getResourceDao(MeasureReport.class)
+                        .read(new IdType(job.getReportId()));
+                Bundle bundle = new Bundle().setType(Bundle.BundleType.BATCHRESPONSE);
+                bundle.addEntry().setResource(report).setResponse(
+                        new Bundle.BundleEntryResponseComponent().setStatus("200 OK").setLocation(job.getReportId()));
+                return bundle;
+            case CANCELLED:
+                throw new ResourceGoneException("Evaluation " + jobId + " was cancelled");
+            default:
+                throw new InternalErrorException("Evaluation " + jobId + " failed: " + job.getError());
+        }
+    }
+
+    @Operation(name = "$evaluate-measure-cancel", type = Measure.class)
+    public OperationOutcome cancelEvaluateMeasure(@OperationParam(name = "id") String jobId) {
+        MeasureEvaluationJob job = getEvaluationJob(jobId);
+        String message = this.jobRegistry.cancel(jobId) ? "Cancelled evaluation " + jobId
+                : "Evaluation " + jobId + " has already " + job.getStatus().toString().toLowerCase();
+
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL).setDiagnostics(message);
+        return outcome;
+    }
+
+    private MeasureEvaluationJob getEvaluationJob(String jobId) {
+        MeasureEvaluationJob job = jobId != null ? this.jobRegistry.getJob(jobId) : null;
+        if (job == null) {
+            throw new ResourceNotFoundException("Unknown evaluation: " + jobId);
+        }
+
+        return job;
+    }
+
+    private AcceptedException newAcceptedException(RequestDetails theRequestDetails, MeasureEvaluationJob job,
+            String message) {
+        OperationOutcome outcome = new OperationOutcome();
+        outcome.addIssue().setSeverity(OperationOutcome.IssueSeverity.INFORMATION)
+                .setCode(OperationOutcome.IssueType.INFORMATIONAL).setDiagnostics(message);
+
+        AcceptedException accepted = new AcceptedException(message, outcome);
+        accepted.addResponseHeader("Content-Location",
+                theRequestDetails.getFhirServerBase() + "/Measure/$evaluate-measure-status?id=" + job.getId());
+        accepted.addResponseHeader("X-Progress", job.getProgress() + " patients evaluated");
+        return accepted;
+    }
+
+    /**
+     * Evaluates the Measure, serving identical requests from the MeasureReport
+     * cache until the patient data or the artifacts they depend on change.
+     */
+    public MeasureReport evaluateMeasure(IdType theId, String periodStart, String periodEnd, String measureRef,
+            String reportType, String patientRef, String productLine, String practitionerRef, String lastReceivedOn,
+            String source, String user, String pass) throws InternalErrorException, FHIRException {
+        // Changes to data from another source aren't tracked
+        if (source != null) {
+            return evaluateMeasure(theId, periodStart, periodEnd, measureRef, reportType, patientRef, productLine,
+                    practitionerRef, source, user, pass, null);
+        }
+
+        String key = getReportCacheKey(theId, periodStart, periodEnd, measureRef, reportType, patientRef,
+                productLine, practitionerRef);
+        return this.reportCache.getReport(key, () -> evaluateMeasure(theId, periodStart, periodEnd, measureRef,
+                reportType, patientRef, productLine, practitionerRef, source, user, pass, null));
+    }
+
+    String getReportCacheKey(IdType theId, String periodStart, String periodEnd, String measureRef,
+            String reportType, String patientRef, String productLine, String practitionerRef) {
+        Measure measure = this.measureResourceProvider.getDao().read(theId);
+
+        // Library, ValueSet and CodeSystem versions are covered by the artifact
+        // version, and a patient report only depends on that patient's data and
+        // on resources outside every compartment (such as Medications)
+        long artifactVersion = this.changeTracker.getArtifactVersion();
+        long watermark = patientRef != null && (reportType == null || reportType.equals("patient"))
+                ? Math.max(this.changeTracker.getWatermark(patientRef.replace("Patient/", "")),
+                        this.changeTracker.getSharedWatermark())
+                : this.changeTracker.getWatermark();
+
+        return String.join("|", measure.getIdElement().getIdPart(), measure.getMeta().getVersionId(), periodStart,
+                periodEnd, measureRef, reportType, patientRef, productLine, practitionerRef)
+                + "|" + artifactVersion + "|" + watermark;
+    }
+
+    private MeasureReport evaluateMeasure(IdType theId, String periodStart, String periodEnd, String measureRef,
+            String reportType, String patientRef, String productLine, String practitionerRef, String source,
+            String user, String pass, IntConsumer progressListener)
+            throws InternalErrorException, FHIRException {
         LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
         MeasureEvaluationSeed seed = new MeasureEvaluationSeed(this.factory, libraryLoader,
                 this.libraryResolutionProvider);
@@ -161,7 +336,10 @@ public class MeasureOperationsProvider {
 
         // resolve report type
         MeasureEvaluation evaluator = new MeasureEvaluation(seed.getDataProvider(), this.registry,
-                seed.getMeasurementPeriod());
+                seed.getMeasurementPeriod(), seed::createContext, this.evaluationExecutor);
+        evaluator.setProgressListener(progressListener);
+        evaluator.setEpisodeObservations(HapiProperties.getMeasureEvaluationEpisodeObservations());
+        evaluator.setCountsOnly(!HapiProperties.getMeasureEvaluationSummaryEvaluatedResources());
         if (reportType != null) {
             switch (reportType) {
                 case "patient":
@@ -169,6 +347,10 @@ public class MeasureOperationsProvider {
                 case "patient-list":
                     return evaluator.evaluateSubjectListMeasure(seed.getMeasure(), seed.getContext(), practitionerRef);
                 case "population":
+                    if (HapiProperties.getMeasureEvaluationIncremental()
+                            && evaluator.supportsIncrementalEvaluation(seed.getMeasure())) {
+                        return evaluateIncremental(evaluator, seed, periodStart, periodEnd, productLine);
+                    }
                     return evaluator.evaluatePopulationMeasure(seed.getMeasure(), seed.getContext());
                 default:
                     throw new IllegalArgumentException("Invalid report type: " + reportType);
@@ -187,6 +369,41 @@ public class MeasureOperationsProvider {
         return report;
     }
 
+    private MeasureReport evaluateIncremental(MeasureEvaluation evaluator, MeasureEvaluationSeed seed,
+            String periodStart, String periodEnd, String productLine) {
+        // Read before evaluating, so artifact changes made during the run
+        // invalidate its membership
+        long artifactVersion = this.changeTracker.getArtifactVersion();
+        MeasureMembership membership = this.membershipStore.getMembership(
+                MeasureMembershipStore.getKey(seed.getMeasure(), periodStart, periodEnd, productLine),
+                artifactVersion);
+
+        synchronized (membership) {
+            // Taken before evaluating, so changes made during the run are
+            // evaluated again by the next one
+            long watermark = this.changeTracker.getWatermark();
+
+            // A change outside every patient's compartment (a Medication, say) can
+            // change any patient's membership
+            Set<String> changedPatients = membership.isEvaluated()
+                    && this.changeTracker.getSharedWatermark() <= membership.getWatermark()
+                            ? this.changeTracker.getChangedPatients(membership.getWatermark())
+                            : null;
+            if (changedPatients == null) {
+                // Holds back trimming while the membership is rebuilt
+                membership.setWatermark(watermark);
+            }
+
+            MeasureReport report = evaluator.evaluateIncrementalPopulationMeasure(seed.getMeasure(),
+                    seed.getContext(), membership, changedPatients);
+            membership.setWatermark(watermark);
+
+            // Changes every membership has already seen are no longer needed
+            this.changeTracker.trimChanges(this.membershipStore.getOldestWatermark(watermark));
+            return report;
+        }
+    }
+
     // @Operation(name = "$evaluate-measure-with-source", idempotent = true)
     // public MeasureReport evaluateMeasure(@IdParam IdType theId,
     // @OperationParam(name = "sourceData", min = 1, max = 1, type = Bundle.class)
@@ -219,6 +436,99 @@ public class MeasureOperationsProvider {
     // "");
     // }
 
+    /*
+     *
+     * Evaluates several Measures (a comma-separated list of ids) in a single pass
+     * over the subject's patients. A Patient subject gets individual reports, and
+     * a Group subject summary reports over its members; without a subject the
+     * reports summarize every patient. Returns a collection Bundle with a
+     * MeasureReport for each Measure, in the order given
+     *
+     */
+    @Operation(name = "$evaluate-measures", idempotent = true, type = Measure.class)
+    public Bundle evaluateMeasures(@OperationParam(name = "measure") String measureIds,
+            @OperationParam(name = "periodStart") String periodStart,
+            @OperationParam(name = "periodEnd") String periodEnd, @OperationParam(name = "subject") String subject,
+            @OperationParam(name = "productLine") String productLine) throws InternalErrorException, FHIRException {
+        if (measureIds == null || measureIds.trim().equals("")) {
+            throw new IllegalArgumentException("At least one measure is required.");
+        }
+
+        List<Measure> measures = new ArrayList<>();
+        for (String measureId : measureIds.split(",")) {
+            if (!measureId.trim().equals("")) {
+                measures.add(this.measureResourceProvider.getDao()
+                        .read(new IdType("Measure", measureId.trim().replace("Measure/", ""))));
+            }
+        }
+
+        Bundle bundle = new Bundle().setType(Bundle.BundleType.COLLECTION);
+        for (MeasureReport report : evaluateMeasures(measures, periodStart, periodEnd, subject, productLine)) {
+            bundle.addEntry().setResource(report);
+        }
+
+        return bundle;
+    }
+
+    /**
+     * Evaluates the Measures for the subject (a Patient, a Group or null for every
+     * patient) in a single pass over its patients. The Measures' libraries are
+     * loaded up front, and each patient's data is retrieved once for all of them.
+     */
+    public List<MeasureReport> evaluateMeasures(List<Measure> measures, String periodStart, String periodEnd,
+            String subject, String productLine) throws InternalErrorException, FHIRException {
+        MeasureBatchSeed seed = createBatchSeed(measures, periodStart, periodEnd, productLine);
+        return evaluateMeasures(seed, seed.createContexts(), subject, productLine);
+    }
+
+    private MeasureBatchSeed createBatchSeed(List<Measure> measures, String periodStart, String periodEnd,
+            String productLine) {
+        LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(this.libraryResolutionProvider);
+        MeasureBatchSeed seed = new MeasureBatchSeed(this.factory, libraryLoader, this.libraryResolutionProvider);
+        seed.setup(measures, periodStart, periodEnd, productLine);
+        return seed;
+    }
+
+    /**
+     * @param contexts the seed's Contexts for the calling thread
+     */
+    private List<MeasureReport> evaluateMeasures(MeasureBatchSeed seed, List<Context> contexts, String subject,
+            String productLine) {
+        if (seed.getMeasures().isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        Collection<String> patientIds = null;
+        MeasureReport.MeasureReportType type = MeasureReport.MeasureReportType.SUMMARY;
+        if (subject != null && subject.startsWith("Group/")) {
+            patientIds = getPatientListFromGroup(subject).stream().map(x -> x.replace("Patient/", ""))
+                    .collect(Collectors.toList());
+        } else if (subject != null) {
+            patientIds = Collections.singletonList(subject.replace("Patient/", ""));
+            type = MeasureReport.MeasureReportType.INDIVIDUAL;
+        }
+
+        // Patients are read through the registry, so the evaluator needs no
+        // DataProvider of its own
+        MeasureEvaluation evaluator = new MeasureEvaluation(null, this.registry, seed.getMeasurementPeriod(), null,
+                this.evaluationExecutor);
+        evaluator.setEpisodeObservations(HapiProperties.getMeasureEvaluationEpisodeObservations());
+        evaluator.setCountsOnly(!HapiProperties.getMeasureEvaluationSummaryEvaluatedResources());
+        List<MeasureReport> reports = evaluator.evaluateMeasures(seed.getMeasures(), contexts, seed::createContexts,
+                patientIds, type);
+
+        if (productLine != null) {
+            for (MeasureReport report : reports) {
+                Extension ext = new Extension();
+                ext.setUrl("http://hl7.org/fhir/us/cqframework/cqfmeasures/StructureDefinition/cqfm-productLine");
+                ext.setValue(new StringType(productLine));
+                report.addExtension(ext);
+            }
+        }
+
+        return reports;
+    }
+
     @Operation(name = "$care-gaps", idempotent = true, type = Measure.class)
     public Parameters careGapsReport(@OperationParam(name = "periodStart") String periodStart,
                                      @OperationParam(name = "periodEnd") String periodEnd, @OperationParam(name = "subject") String subject,
@@ -233,19 +543,12 @@ public class MeasureOperationsProvider {
             if(subject.startsWith("Patient/")){
                 returnParams.addParameter(new Parameters.ParametersParameterComponent()
                         .setName("Gaps in Care Report - " + subject)
-                        .setResource(patientCareGap(periodStart, periodEnd, subject, topic, measure, status)));
+                        .setResource(patientCareGap(createCareGapsPlan(periodStart, periodEnd, topic, measure), subject, status)));
                 return returnParams;
             }else if(subject.startsWith("Group/")) {
                 returnParams.setId((status==null?"all-gaps": status) + "-" + subject.replace("/","_") + "-report");
-                (getPatientListFromGroup(subject))
-                    .forEach(groupSubject ->{
-                        Bundle patientGapBundle = patientCareGap(periodStart, periodEnd, groupSubject, topic, measure, status);
-                        if(null != patientGapBundle){
-                            returnParams.addParameter(new Parameters.ParametersParameterComponent()
-                                    .setName("Gaps in Care Report - " + groupSubject)
-                                    .setResource(patientGapBundle));
-                        }
-                    });
+                groupCareGaps(createCareGapsPlan(periodStart, periodEnd, topic, measure), getPatientListFromGroup(subject),
+                        status, returnParams);
             }
             return returnParams;
         }
@@ -253,11 +556,131 @@ public class MeasureOperationsProvider {
             return new Parameters().addParameter(
                     new Parameters.ParametersParameterComponent()
                             .setName("Gaps in Care Report - " + subject)
-                            .setResource(patientCareGap(periodStart, periodEnd, subject, topic, measure,status)));
+                            .setResource(patientCareGap(createCareGapsPlan(periodStart, periodEnd, topic, measure), subject, status)));
         }
         return returnParams;
     }
 
+    /**
+     * The parts of a care gaps request that are the same for every patient: the
+     * Measures, the reporting Organization and the Measures' compiled libraries.
+     */
+    static class CareGapsPlan {
+        private final List<Measure> measures;
+        private final IBaseResource organization;
+        private final MeasureBatchSeed seed;
+
+        // The Contexts of a member share a DataProvider, so members evaluated at
+        // the same time each take their own from here and return them when done
+        private final Queue<List<Context>> idleContexts = new ConcurrentLinkedQueue<>();
+
+        CareGapsPlan(List<Measure> measures, IBaseResource organization, MeasureBatchSeed seed) {
+            this.measures = measures;
+            this.organization = organization;
+            this.seed = seed;
+        }
+
+        List<Context> acquireContexts() {
+            List<Context> contexts = this.idleContexts.poll();
+            return contexts != null ? contexts : this.seed.createContexts();
+        }
+
+        void releaseContexts(List<Context> contexts) {
+            this.idleContexts.add(contexts);
+        }
+    }
+
+    private CareGapsPlan createCareGapsPlan(String periodStart, String periodEnd, String topic, String measure) {
+        //TODO: this is an org hack.  Need to figure out what the right thing is.
+        IFhirResourceDao<Organization> orgDao = this.registry.getResourceDao(Organization.class);
+        List<IBaseResource> org = orgDao.search(new SearchParameterMap()).getResources(0, 1);
+
+        SearchParameterMap theParams = new SearchParameterMap();
+
+        // if (theId != null) {
+        //     var measureParam = new StringParam(theId.getIdPart());
+        //     theParams.add("_id", measureParam);
+        // }
+
+        if (topic != null && !topic.equals("")) {
+            TokenParam topicParam = new TokenParam(topic);
+            theParams.add("topic", topicParam);
+        }
+        List<Measure> measures = getMeasureList(theParams, measure).stream().map(Measure.class::cast)
+                .collect(Collectors.toList());
+
+        return new CareGapsPlan(measures, org != null && org.size() > 0 ? org.get(0) : null,
+                createBatchSeed(measures, periodStart, periodEnd, null));
+    }
+
+    /**
+     * Generates the care gaps of the Group's members on the shared measure
+     * evaluation pool. Each member's Bundle is added to the Parameters, in member
+     * order, as soon as it and the members before it are done. At most
+     * care_gaps.threads members are in flight at once, so one Group can't take
+     * over the pool.
+     */
+    void groupCareGaps(CareGapsPlan plan, List<String> members, String status, Parameters returnParams) {
+        if (this.evaluationExecutor.getThreads() <= 1) {
+            for (String member : members) {
+                addCareGapParameter(returnParams, getMemberCareGap(plan, member, status));
+            }
+            return;
+        }
+
+        int maxInFlight = Math.max(1, HapiProperties.getMeasureEvaluationCareGapsThreads());
+        Deque<Future<Parameters.ParametersParameterComponent>> pending = new ArrayDeque<>();
+        try {
+            for (String member : members) {
+                pending.add(this.evaluationExecutor.submit(() -> getMemberCareGap(plan, member, status)));
+
+                if (pending.size() >= maxInFlight) {
+                    addCareGapParameter(returnParams, getCareGapParameter(pending.poll()));
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                addCareGapParameter(returnParams, getCareGapParameter(pending.poll()));
+            }
+        } finally {
+            // Only left over if a member failed
+            pending.forEach(x -> x.cancel(true));
+        }
+    }
+
+    private Parameters.ParametersParameterComponent getMemberCareGap(CareGapsPlan plan, String member,
+            String status) {
+        Bundle patientGapBundle = patientCareGap(plan, member, status);
+        return null == patientGapBundle ? null
+                : new Parameters.ParametersParameterComponent()
+                        .setName("Gaps in Care Report - " + member)
+                        .setResource(patientGapBundle);
+    }
+
+    private static void addCareGapParameter(Parameters returnParams, Parameters.ParametersParameterComponent parameter) {
+        if (parameter != null) {
+            returnParams.addParameter(parameter);
+        }
+    }
+
+    private static Parameters.ParametersParameterComponent getCareGapParameter(
+            Future<Parameters.ParametersParameterComponent> member) {
+        try {
+            return member.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalErrorException("Care gaps evaluation was interrupted.", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new InternalErrorException("Error evaluating care gaps.", e.getCause());
+        }
+    }
+
     private List<String> getPatientListFromGroup(String subjectGroupRef){
         List<String> patientList = new ArrayList<>();
 
@@ -300,24 +723,7 @@ public class MeasureOperationsProvider {
         return true;
     }
 
-    private Bundle patientCareGap(String periodStart, String periodEnd, String subject, String topic, String measure, String status) {
-        //TODO: this is an org hack.  Need to figure out what the right thing is.
-        IFhirResourceDao<Organization> orgDao = this.registry.getResourceDao(Organization.class);
-        List<IBaseResource> org = orgDao.search(new SearchParameterMap()).getResources(0, 1);
-
-        SearchParameterMap theParams = new SearchParameterMap();
-
-        // if (theId != null) {
-        //     var measureParam = new StringParam(theId.getIdPart());
-        //     theParams.add("_id", measureParam);
-        // }
-
-        if (topic != null && !topic.equals("")) {
-            TokenParam topicParam = new TokenParam(topic);
-            theParams.add("topic", topicParam);
-        }
-        List<IBaseResource> measures = getMeasureList(theParams, measure);
-
+    private Bundle patientCareGap(CareGapsPlan plan, String subject, String status) {
         Bundle careGapReport = new Bundle();
         careGapReport.setType(Bundle.BundleType.DOCUMENT);
         careGapReport.setTimestamp(new Date());
@@ -338,9 +744,18 @@ public class MeasureOperationsProvider {
         MeasureReport report = null;
         boolean hasIssue = false;
 
-        for (IBaseResource resource : measures) {
-            Measure measureResource = (Measure) resource;
-           
+        // The measures are evaluated together, so the patient's data is retrieved
+        // once for all of them
+        List<Measure> measureList = plan.measures;
+        List<Context> contexts = plan.acquireContexts();
+        List<MeasureReport> measureReports = evaluateMeasures(plan.seed, contexts,
+                subject.startsWith("Patient/") ? subject : "Patient/" + subject, null);
+        // The Contexts of a failed evaluation are dropped rather than reused
+        plan.releaseContexts(contexts);
+
+        for (int i = 0; i < measureList.size(); i++) {
+            Measure measureResource = measureList.get(i);
+
             Composition.SectionComponent section = new Composition.SectionComponent();
 
             if (measureResource.hasTitle()) {
@@ -348,15 +763,15 @@ public class MeasureOperationsProvider {
             }
 
             // TODO - this is configured for patient-level evaluation only
-            report = evaluateMeasure(measureResource.getIdElement(), periodStart, periodEnd, null, "patient", subject, null,
-            null, null, null, null, null);
+            report = measureReports.get(i);
 
             report.setId(UUID.randomUUID().toString());
             report.setDate(new Date());
-            report.setImprovementNotation(measureResource.getImprovementNotation());
+            // Copied, since the Measure is shared by the members evaluated in parallel
+            report.setImprovementNotation(measureResource.getImprovementNotation().copy());
             //TODO: this is an org hack && requires an Organization to be in the ruler
-            if (org != null && org.size() > 0) {
-                report.setReporter(new Reference("Organization/" + org.get(0).getIdElement().getIdPart()));
+            if (plan.organization != null) {
+                report.setReporter(new Reference("Organization/" + plan.organization.getIdElement().getIdPart()));
             }
             report.setMeta(new Meta().addProfile("http://hl7.org/fhir/us/davinci-deqm/StructureDefinition/indv-measurereport-deqm"));
             section.setFocus(new Reference("MeasureReport/" + report.getId()));
@@ -7,8 +7,10 @@ import java.util.Objects;
 import org.hl7.elm.r1.VersionedIdentifier;
 import org.hl7.fhir.r4.model.*;
 import org.hl7.fhir.r4.model.Bundle.BundleEntryComponent;
+import org.opencds.cqf.common.providers.ElmLibrarySourceProvider;
 
-public class R4BundleLibrarySourceProvider extends VersionComparingLibrarySourceProvider  {
+public class R4BundleLibrarySourceProvider extends VersionComparingLibrarySourceProvider
+        implements ElmLibrarySourceProvider {
 
     Bundle bundle;
     public R4BundleLibrarySourceProvider(Bundle bundle) {
@@ -27,6 +29,24 @@ public class R4BundleLibrarySourceProvider extends VersionComparingLibrarySource
         return this.getCqlStream(library);
     }
 
+    @Override
+    public InputStream getLibraryElm(VersionedIdentifier versionedIdentifier) {
+        Objects.requireNonNull(versionedIdentifier, "versionedIdentifier can not be null.");
+
+        Library library = this.getLibrary(versionedIdentifier.getId(), versionedIdentifier.getVersion());
+        if (library == null) {
+            return null;
+        }
+
+        return this.getContentStream(library, ELM_XML_CONTENT_TYPE);
+    }
+
+    // Libraries in a request Bundle aren't stored, so they're never cached
+    @Override
+    public String getLibraryVersionId(VersionedIdentifier versionedIdentifier) {
+        return null;
+    }
+
     public Library getLibrary(String name, String version) {
         if (bundle != null) {
             Library theResource = null;
@@ -43,13 +63,16 @@ public class R4BundleLibrarySourceProvider extends VersionComparingLibrarySource
     }
 
     private InputStream getCqlStream(Library library) {
+        return this.getContentStream(library, "text/cql");
+    }
+
+    private InputStream getContentStream(Library library, String contentType) {
         if (library.hasContent()) {
             for (Attachment content : library.getContent()) {
                 // TODO: Could use this for any content type, would require a mapping from content type to LanguageServer LanguageId
-                if (content.getContentType().equals("text/cql")) {
+                if (content.getContentType().equals(contentType)) {
                     return new ByteArrayInputStream(content.getData());
                 }
-                // TODO: Decompile ELM if no CQL is available?
             }
         }
 
@@ -8,7 +8,11 @@ import javax.servlet.ServletException;
 import org.hl7.fhir.r4.model.Bundle;
 import org.hl7.fhir.r4.model.Meta;
 import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.CompiledLibraryCache;
+import org.opencds.cqf.common.interceptors.LibraryCacheInvalidationInterceptor;
+import org.opencds.cqf.common.interceptors.PatientChangeTracker;
 import org.opencds.cqf.r4.providers.CqfRulerJpaConformanceProviderR4;
+import org.opencds.cqf.r4.providers.JpaTerminologyProvider;
 import org.opencds.cqf.r4.providers.OAuthProvider;
 import org.opencds.cqf.tooling.measure.r4.CodeTerminologyRef;
 import org.opencds.cqf.tooling.measure.r4.CqfMeasure;
@@ -18,6 +22,7 @@ import org.springframework.context.ApplicationContext;
 import org.springframework.web.cors.CorsConfiguration;
 
 import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.IInterceptorService;
 import ca.uhn.fhir.jpa.api.config.DaoConfig;
 import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
 import ca.uhn.fhir.jpa.api.dao.IFhirSystemDao;
@@ -134,6 +139,18 @@ public class BaseServlet extends RestfulServer {
         LoggingInterceptor loggingInterceptor = new LoggingInterceptor();
         this.registerInterceptor(loggingInterceptor);
 
+        /*
+         * These interceptors keep server-wide caches consistent with writes made
+         * through the DAOs, so they are registered with the JPA interceptor service
+         * rather than with this server.
+         */
+        IInterceptorService jpaInterceptorService = appCtx.getBean(IInterceptorService.class);
+        jpaInterceptorService.registerInterceptor(
+                new LibraryCacheInvalidationInterceptor(this.fhirContext, CompiledLibraryCache.getSharedInstance()));
+        jpaInterceptorService.registerInterceptor(appCtx.getBean(JpaTerminologyProvider.class));
+        jpaInterceptorService.registerInterceptor(appCtx.getBean(CdsHooksCache.class));
+        jpaInterceptorService.registerInterceptor(appCtx.getBean(PatientChangeTracker.class));
+
         /*
          * If you are hosting this server at a specific DNS name, the server will try to
          * figure out the FHIR base URL based on what the web container tells it, but
@@ -0,0 +1,232 @@
+package org.opencds.cqf.r4.servlet;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import javax.inject.Inject;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+import org.hl7.fhir.instance.model.api.IBaseResource;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.opencds.cqf.cds.discovery.DiscoveryResolutionR4;
+import org.opencds.cqf.cds.providers.ProviderConfiguration;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.interceptor.api.Hook;
+import ca.uhn.fhir.interceptor.api.Interceptor;
+import ca.uhn.fhir.interceptor.api.Pointcut;
+
+/**
+ * Holds the CDS Hooks discovery document and the prefetch templates of each
+ * service, so hook requests don't have to resolve every PlanDefinition again,
+ * and a prepared plan per service, so they don't have to compile its libraries
+ * again. Both are built on first use and again on the first use after any
+ * PlanDefinition or Library is written through the DAOs (this bean is
+ * registered as a JPA interceptor for that).
+ */
+@Component
+@Interceptor
+public class CdsHooksCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(CdsHooksCache.class);
+
+    private ProviderConfiguration providerConfiguration;
+
+    private volatile Discovery discovery;
+    private final AtomicLong generation = new AtomicLong();
+    private final Map<String, CompletableFuture<PreparedPlan>> plans = new ConcurrentHashMap<>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+    private final AtomicLong planHits = new AtomicLong();
+    private final AtomicLong planMisses = new AtomicLong();
+
+    @Inject
+    public CdsHooksCache(ProviderConfiguration providerConfiguration) {
+        this.providerConfiguration = providerConfiguration;
+    }
+
+    /**
+     * @return the discovery document, which must not be modified
+     */
+    public JsonObject getServices() {
+        return getDiscovery().services;
+    }
+
+    /**
+     * @return the service with the given id from the discovery document, or null
+     *         if there is no such service
+     */
+    public JsonObject getService(String serviceId) {
+        return getDiscovery().servicesById.get(serviceId);
+    }
+
+    /**
+     * Returns the prepared plan for the given service, preparing it if there is
+     * none. Concurrent requests for a service that isn't prepared yet wait for a
+     * single preparation.
+     */
+    public PreparedPlan getPlan(String serviceId, Function<String, PreparedPlan> preparer) {
+        CompletableFuture<PreparedPlan> plan = this.plans.get(serviceId);
+        if (plan != null) {
+            this.planHits.incrementAndGet();
+            return getResult(plan);
+        }
+
+        CompletableFuture<PreparedPlan> pending = new CompletableFuture<>();
+        plan = this.plans.putIfAbsent(serviceId, pending);
+        if (plan != null) {
+            this.planHits.incrementAndGet();
+            return getResult(plan);
+        }
+
+        this.planMisses.incrementAndGet();
+        try {
+            pending.complete(preparer.apply(serviceId));
+        } catch (Throwable e) {
+            // Don't keep failures (including Errors); the next request tries again
+            this.plans.remove(serviceId, pending);
+            pending.completeExceptionally(e);
+            throw e;
+        }
+
+        return getResult(pending);
+    }
+
+    public void invalidate() {
+        this.generation.incrementAndGet();
+        this.discovery = null;
+        this.plans.clear();
+        this.invalidations.incrementAndGet();
+    }
+
+    public JsonObject getMetrics() {
+        JsonObject metrics = new JsonObject();
+        metrics.addProperty("hits", this.hits.get());
+        metrics.addProperty("misses", this.misses.get());
+        metrics.addProperty("invalidations", this.invalidations.get());
+        metrics.addProperty("planHits", this.planHits.get());
+        metrics.addProperty("planMisses", this.planMisses.get());
+        metrics.addProperty("plans", this.plans.size());
+        return metrics;
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_CREATED)
+    public void resourceCreated(IBaseResource theResource) {
+        invalidate(theResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_UPDATED)
+    public void resourceUpdated(IBaseResource theOldResource, IBaseResource theNewResource) {
+        invalidate(theNewResource);
+    }
+
+    @Hook(Pointcut.STORAGE_PRECOMMIT_RESOURCE_DELETED)
+    public void resourceDeleted(IBaseResource theResource) {
+        invalidate(theResource);
+    }
+
+    // Services come from PlanDefinitions and their prefetch templates from the
+    // data requirements of their Libraries
+    private void invalidate(IBaseResource resource) {
+        if (resource instanceof PlanDefinition || resource instanceof Library) {
+            invalidate();
+
+            // Discovery reads through the REST API, which doesn't see the write until
+            // it commits
+            if (TransactionSynchronizationManager.isSynchronizationActive()) {
+                TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+                    @Override
+                    public void afterCommit() {
+                        invalidate();
+                    }
+                });
+            }
+        }
+    }
+
+    private Discovery getDiscovery() {
+        Discovery current = this.discovery;
+        if (current != null) {
+            this.hits.incrementAndGet();
+            return current;
+        }
+
+        synchronized (this) {
+            current = this.discovery;
+            if (current != null) {
+                this.hits.incrementAndGet();
+                return current;
+            }
+
+            this.misses.incrementAndGet();
+            long resolvedGeneration = this.generation.get();
+            current = new Discovery(resolveServices());
+
+            // Don't keep a discovery that was invalidated while it was being resolved
+            if (this.generation.get() == resolvedGeneration) {
+                this.discovery = current;
+            }
+
+            return current;
+        }
+    }
+
+    private static PreparedPlan getResult(CompletableFuture<PreparedPlan> plan) {
+        try {
+            return plan.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    JsonObject resolveServices() {
+        logger.info("Resolving CDS Hooks services");
+        DiscoveryResolutionR4 discoveryResolutionR4 = new DiscoveryResolutionR4(
+                FhirContext.forR4().newRestfulGenericClient(HapiProperties.getServerAddress()));
+        discoveryResolutionR4.setMaxUriLength(this.providerConfiguration.getMaxUriLength());
+        return discoveryResolutionR4.resolve().getAsJson();
+    }
+
+    private static class Discovery {
+        private final JsonObject services;
+        private final Map<String, JsonObject> servicesById;
+
+        private Discovery(JsonObject services) {
+            this.services = services;
+
+            Map<String, JsonObject> byId = new HashMap<>();
+            if (services.has("services") && services.get("services").isJsonArray()) {
+                for (JsonElement element : services.get("services").getAsJsonArray()) {
+                    if (element.isJsonObject() && element.getAsJsonObject().has("id")) {
+                        byId.put(element.getAsJsonObject().get("id").getAsString(), element.getAsJsonObject());
+                    }
+                }
+            }
+
+            this.servicesById = Collections.unmodifiableMap(byId);
+        }
+    }
+}
@@ -24,7 +24,6 @@ import org.apache.http.entity.ContentType;
 import org.cqframework.cql.elm.execution.Library;
 import org.hl7.fhir.r4.model.IdType;
 import org.hl7.fhir.r4.model.PlanDefinition;
-import org.opencds.cqf.cds.discovery.DiscoveryResolutionR4;
 import org.opencds.cqf.cds.evaluation.EvaluationContext;
 import org.opencds.cqf.cds.evaluation.R4EvaluationContext;
 import org.opencds.cqf.cds.hooks.Hook;
@@ -72,6 +71,10 @@ public class CdsHooksServlet extends HttpServlet {
 
     private ProviderConfiguration providerConfiguration;
 
+    private CdsHooksCache cdsHooksCache;
+
+    private FhirContext fhirContext;
+
     @SuppressWarnings("unchecked")
     @Override
     public void init() {
@@ -84,6 +87,8 @@ public class CdsHooksServlet extends HttpServlet {
         this.libraryResolutionProvider = (LibraryResolutionProvider<org.hl7.fhir.r4.model.Library>)appCtx.getBean(LibraryResolutionProvider.class);
         this.fhirRetrieveProvider = appCtx.getBean(JpaFhirRetrieveProvider.class);
         this.jpaTerminologyProvider = appCtx.getBean(JpaTerminologyProvider.class);
+        this.cdsHooksCache = appCtx.getBean(CdsHooksCache.class);
+        this.fhirContext = appCtx.getBean(FhirContext.class);
     }
 
     protected ProviderConfiguration getProviderConfiguration() {
@@ -105,6 +110,13 @@ public class CdsHooksServlet extends HttpServlet {
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
             throws ServletException, IOException {
         logger.info(request.getRequestURI());
+        if (request.getPathInfo() != null && request.getPathInfo().equals("/cache-metrics")) {
+            this.setAccessControlHeaders(response);
+            response.setHeader("Content-Type", ContentType.APPLICATION_JSON.getMimeType());
+            response.getWriter().println(new GsonBuilder().setPrettyPrinting().create().toJson(this.cdsHooksCache.getMetrics()));
+            return;
+        }
+
         if (!request.getRequestURL().toString().endsWith("cds-services")) {
             logger.error(request.getRequestURI());
             throw new ServletException("This servlet is not configured to handle GET requests.");
@@ -112,7 +124,7 @@ public class CdsHooksServlet extends HttpServlet {
 
         this.setAccessControlHeaders(response);
         response.setHeader("Content-Type", ContentType.APPLICATION_JSON.getMimeType());
-        response.getWriter().println(new GsonBuilder().setPrettyPrinting().create().toJson(getServices()));
+        response.getWriter().println(new GsonBuilder().setPrettyPrinting().create().toJson(this.cdsHooksCache.getServices()));
     }
 
     @Override
@@ -148,31 +160,24 @@ public class CdsHooksServlet extends HttpServlet {
             logger.info("cds-hooks local server address: " + baseUrl);
             logger.info("cds-hooks fhir server address: " + hook.getRequest().getFhirServerUrl());
 
-            PlanDefinition planDefinition = planDefinitionProvider.getDao()
-                    .read(new IdType(hook.getRequest().getServiceName()));
-            LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(libraryResolutionProvider);
-            Library library = LibraryHelper.resolvePrimaryLibrary(planDefinition, libraryLoader,
-                    libraryResolutionProvider);
+            PreparedPlan plan = this.cdsHooksCache.getPlan(hook.getRequest().getServiceName(), this::preparePlan);
 
-            R4FhirModelResolver resolver = new R4FhirModelResolver();
-            CompositeDataProvider provider = new CompositeDataProvider(resolver, fhirRetrieveProvider);
-
-            Context context = new Context(library);
+            Context context = new Context(plan.library);
 
             DebugMap debugMap = new DebugMap();
             debugMap.setIsLoggingEnabled(true);
             context.setDebugMap(debugMap);
 
-            context.registerDataProvider("http://hl7.org/fhir", provider); // TODO make sure tooling handles remote
-                                                                           // provider case
+            context.registerDataProvider("http://hl7.org/fhir", plan.dataProvider); // TODO make sure tooling handles remote
+                                                                                    // provider case
             context.registerTerminologyProvider(jpaTerminologyProvider);
-            context.registerLibraryLoader(libraryLoader);
+            context.registerLibraryLoader(plan.libraryLoader);
             context.setContextValue("Patient", hook.getRequest().getContext().getPatientId().replace("Patient/", ""));
             context.setExpressionCaching(true);
 
             EvaluationContext<PlanDefinition> evaluationContext = new R4EvaluationContext(hook, version,
-                    FhirContext.forR4().newRestfulGenericClient(baseUrl), jpaTerminologyProvider, context, library,
-                    planDefinition, this.getProviderConfiguration());
+                    plan.client, jpaTerminologyProvider, context, plan.library, plan.planDefinition,
+                    this.getProviderConfiguration());
 
             this.setAccessControlHeaders(response);
 
@@ -223,6 +228,22 @@ public class CdsHooksServlet extends HttpServlet {
         }
     }
 
+    // Resolves and compiles everything a service needs that doesn't depend on the
+    // request. Plans are kept by CdsHooksCache until a PlanDefinition or Library
+    // changes.
+    private PreparedPlan preparePlan(String serviceId) {
+        PlanDefinition planDefinition = planDefinitionProvider.getDao().read(new IdType(serviceId));
+        LibraryLoader libraryLoader = LibraryHelper.createLibraryLoader(libraryResolutionProvider);
+        Library library = LibraryHelper.resolvePrimaryLibrary(planDefinition, libraryLoader,
+                libraryResolutionProvider);
+
+        R4FhirModelResolver resolver = new R4FhirModelResolver();
+        CompositeDataProvider provider = new CompositeDataProvider(resolver, fhirRetrieveProvider);
+
+        return new PreparedPlan(planDefinition, libraryLoader, library, resolver, provider,
+                this.fhirContext.newRestfulGenericClient(HapiProperties.getServerAddress()));
+    }
+
     private void handleServerResponseException(BaseServerResponseException e, HttpServletResponse response)
             throws IOException {
         switch (e.getStatusCode()) {
@@ -261,28 +282,22 @@ public class CdsHooksServlet extends HttpServlet {
     }
 
     private JsonObject getService(String service) {
-        JsonArray services = getServices().get("services").getAsJsonArray();
+        JsonObject serviceJson = this.cdsHooksCache.getService(service);
+        if (serviceJson != null) {
+            return serviceJson;
+        }
+
+        JsonArray services = this.cdsHooksCache.getServices().get("services").getAsJsonArray();
         List<String> ids = new ArrayList<>();
         for (JsonElement element : services) {
             if (element.isJsonObject() && element.getAsJsonObject().has("id")) {
                 ids.add(element.getAsJsonObject().get("id").getAsString());
-                if (element.isJsonObject() && element.getAsJsonObject().get("id").getAsString().equals(service)) {
-                    return element.getAsJsonObject();
-                }
             }
         }
         throw new InvalidRequestException(
                 "Cannot resolve service: " + service + "\nAvailable services: " + ids.toString());
     }
 
-    private JsonObject getServices() {
-        DiscoveryResolutionR4 discoveryResolutionR4 = new DiscoveryResolutionR4(
-                FhirContext.forR4().newRestfulGenericClient(HapiProperties.getServerAddress()));
-        discoveryResolutionR4.setMaxUriLength(this.getProviderConfiguration().getMaxUriLength());
-        return discoveryResolutionR4.resolve()
-                        .getAsJson();
-    }
-
     private String toJsonResponse(List<CdsCard> cards) {
         JsonObject ret = new JsonObject();
         JsonArray cardArray = new JsonArray();
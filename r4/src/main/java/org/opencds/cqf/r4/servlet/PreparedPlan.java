@@ -0,0 +1,35 @@
+package org.opencds.cqf.r4.servlet;
+
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.opencds.cqf.cql.engine.data.CompositeDataProvider;
+import org.opencds.cqf.cql.engine.execution.LibraryLoader;
+import org.opencds.cqf.cql.engine.fhir.model.R4FhirModelResolver;
+
+import ca.uhn.fhir.rest.client.api.IGenericClient;
+
+/**
+ * Everything a CDS Hooks service needs that doesn't depend on the request: the
+ * PlanDefinition, its compiled primary library (with a loader that holds the
+ * included libraries), the data provider and a client for this server. A plan
+ * is shared by concurrent requests, so none of it may be modified.
+ */
+class PreparedPlan {
+
+    final PlanDefinition planDefinition;
+    final LibraryLoader libraryLoader;
+    final Library library;
+    final R4FhirModelResolver modelResolver;
+    final CompositeDataProvider dataProvider;
+    final IGenericClient client;
+
+    PreparedPlan(PlanDefinition planDefinition, LibraryLoader libraryLoader, Library library,
+            R4FhirModelResolver modelResolver, CompositeDataProvider dataProvider, IGenericClient client) {
+        this.planDefinition = planDefinition;
+        this.libraryLoader = libraryLoader;
+        this.library = library;
+        this.modelResolver = modelResolver;
+        this.dataProvider = dataProvider;
+        this.client = client;
+    }
+}
@@ -0,0 +1,103 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MeasureEvaluationJobRegistryTest {
+
+    private MeasureEvaluationJobRegistry registry;
+
+    @Before
+    public void setUp() {
+        this.registry = new MeasureEvaluationJobRegistry();
+    }
+
+    @After
+    public void tearDown() {
+        this.registry.shutdown();
+    }
+
+    @Test
+    public void completedJobsHaveTheirReportAndProgress() throws Exception {
+        MeasureEvaluationJob job = this.registry.submit("test", x -> {
+            x.getProgressListener().accept(100);
+            x.getProgressListener().accept(37);
+            return "MeasureReport/1";
+        });
+
+        awaitFinished(job);
+        assertEquals(MeasureEvaluationJob.Status.COMPLETED, job.getStatus());
+        assertEquals("MeasureReport/1", job.getReportId());
+        assertEquals(137, job.getProgress());
+        assertSame(job, this.registry.getJob(job.getId()));
+    }
+
+    @Test
+    public void exceptionsFailTheJob() throws Exception {
+        MeasureEvaluationJob job = this.registry.submit("test", x -> {
+            throw new IllegalStateException("No library");
+        });
+
+        awaitFinished(job);
+        assertEquals(MeasureEvaluationJob.Status.FAILED, job.getStatus());
+        assertEquals("No library", job.getError());
+        assertNull(job.getReportId());
+    }
+
+    @Test
+    public void errorsFailTheJob() throws Exception {
+        MeasureEvaluationJob job = this.registry.submit("test", x -> {
+            throw new OutOfMemoryError();
+        });
+
+        awaitFinished(job);
+        assertEquals(MeasureEvaluationJob.Status.FAILED, job.getStatus());
+        assertEquals("OutOfMemoryError", job.getError());
+    }
+
+    @Test
+    public void cancellingInterruptsARunningJob() throws Exception {
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch interrupted = new CountDownLatch(1);
+        MeasureEvaluationJob job = this.registry.submit("test", x -> {
+            started.countDown();
+            try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            throw new RuntimeException("Measure evaluation was interrupted.");
+        });
+
+        assertTrue(started.await(10, TimeUnit.SECONDS));
+        assertTrue(this.registry.cancel(job.getId()));
+        assertTrue(interrupted.await(10, TimeUnit.SECONDS));
+        assertEquals(MeasureEvaluationJob.Status.CANCELLED, job.getStatus());
+        assertFalse(this.registry.cancel(job.getId()));
+    }
+
+    @Test
+    public void unknownJobsCantBeCancelled() {
+        assertNull(this.registry.getJob("unknown"));
+        assertFalse(this.registry.cancel("unknown"));
+    }
+
+    private static void awaitFinished(MeasureEvaluationJob job) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+        while (job.getStatus() == MeasureEvaluationJob.Status.QUEUED
+                || job.getStatus() == MeasureEvaluationJob.Status.RUNNING) {
+            assertTrue("The job didn't finish", System.currentTimeMillis() < deadline);
+            Thread.sleep(10);
+        }
+    }
+}
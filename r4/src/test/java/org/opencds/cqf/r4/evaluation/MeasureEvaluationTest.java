@@ -0,0 +1,636 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.fhir.r4.model.CodeType;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Expression;
+import org.hl7.fhir.r4.model.IntegerType;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.Resource;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencds.cqf.common.evaluation.MeasureEvaluationExecutor;
+import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.cql.engine.execution.Context;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+
+public class MeasureEvaluationTest {
+
+    private static final int THREADS = 4;
+
+    private MeasureEvaluationExecutor executor;
+    private Library library;
+
+    @Before
+    public void setUp() {
+        this.executor = new MeasureEvaluationExecutor(THREADS);
+        this.library = MeasureTestSupport.compile(MeasureTestSupport.PROPORTION_CQL);
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdown();
+    }
+
+    @Test
+    public void parallelPopulationReportMatchesSerial() {
+        // Not a multiple of the partition size, so the last partition is partial
+        List<Patient> patients = MeasureTestSupport.newPatients(237);
+        DaoRegistry registry = MeasureTestSupport.newRegistry(patients);
+        Measure measure = MeasureTestSupport.newProportionMeasure();
+
+        MeasureReport serial = new MeasureEvaluation(null, registry, MeasureTestSupport.newPeriod())
+                .evaluatePopulationMeasure(measure, MeasureTestSupport.newContext(this.library));
+        MeasureReport parallel = newEvaluation(registry, () -> MeasureTestSupport.newContext(this.library))
+                .evaluatePopulationMeasure(measure, MeasureTestSupport.newContext(this.library));
+
+        for (String population : new String[] { "initial-population", "denominator", "numerator" }) {
+            assertEquals(MeasureTestSupport.getCount(serial, population),
+                    MeasureTestSupport.getCount(parallel, population));
+        }
+        assertEquals(237, MeasureTestSupport.getCount(parallel, "initial-population"));
+        assertEquals(0, MeasureTestSupport.getCount(parallel, "numerator"));
+    }
+
+    @Test
+    public void parallelSubjectListContainsEveryPatient() {
+        List<Patient> patients = MeasureTestSupport.newPatients(120);
+        MeasureReport report = newEvaluation(MeasureTestSupport.newRegistry(patients),
+                () -> MeasureTestSupport.newContext(this.library)).evaluateSubjectListMeasure(
+                        MeasureTestSupport.newProportionMeasure(), MeasureTestSupport.newContext(this.library), null);
+
+        assertEquals(120, MeasureTestSupport.getCount(report, "initial-population"));
+        assertEquals(3, report.getContained().size());
+    }
+
+    @Test
+    public void workerContextsAreBoundedByThePool() {
+        AtomicInteger created = new AtomicInteger();
+        newEvaluation(MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(1000)), () -> {
+            created.incrementAndGet();
+            return MeasureTestSupport.newContext(this.library);
+        }).evaluatePopulationMeasure(MeasureTestSupport.newProportionMeasure(),
+                MeasureTestSupport.newContext(this.library));
+
+        assertTrue("Created " + created.get() + " worker contexts", created.get() <= THREADS);
+        assertTrue(created.get() > 0);
+    }
+
+    @Test
+    public void sharedPoolOutlivesEvaluations() throws Exception {
+        DaoRegistry registry = MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(200));
+        for (int i = 0; i < 3; i++) {
+            MeasureReport report = newEvaluation(registry, () -> MeasureTestSupport.newContext(this.library))
+                    .evaluatePopulationMeasure(MeasureTestSupport.newProportionMeasure(),
+                            MeasureTestSupport.newContext(this.library));
+            assertEquals(200, MeasureTestSupport.getCount(report, "denominator"));
+        }
+
+        assertEquals("done", this.executor.submit(() -> "done").get());
+    }
+
+    @Test
+    public void singleThreadPoolEvaluatesOnTheCallingThread() {
+        MeasureEvaluationExecutor single = new MeasureEvaluationExecutor(1);
+        try {
+            AtomicInteger created = new AtomicInteger();
+            MeasureReport report = new MeasureEvaluation(null,
+                    MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(75)),
+                    MeasureTestSupport.newPeriod(), () -> {
+                        created.incrementAndGet();
+                        return MeasureTestSupport.newContext(this.library);
+                    }, single).evaluatePopulationMeasure(MeasureTestSupport.newProportionMeasure(),
+                            MeasureTestSupport.newContext(this.library));
+
+            assertEquals(75, MeasureTestSupport.getCount(report, "initial-population"));
+            assertEquals(0, created.get());
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    @Test
+    public void incrementalReportMatchesFullEvaluation() {
+        List<Patient> patients = MeasureTestSupport.newPatients(237);
+        DaoRegistry registry = MeasureTestSupport.newRegistry(patients);
+        Measure measure = MeasureTestSupport.newProportionMeasure();
+        MeasureMembership membership = new MeasureMembership(1);
+
+        MeasureReport full = newEvaluation(registry, () -> MeasureTestSupport.newContext(this.library))
+                .evaluatePopulationMeasure(measure, MeasureTestSupport.newContext(this.library));
+        MeasureReport incremental = newEvaluation(registry, () -> MeasureTestSupport.newContext(this.library))
+                .evaluateIncrementalPopulationMeasure(measure, MeasureTestSupport.newContext(this.library),
+                        membership, null);
+
+        for (String population : new String[] { "initial-population", "denominator", "numerator" }) {
+            assertEquals(MeasureTestSupport.getCount(full, population),
+                    MeasureTestSupport.getCount(incremental, population));
+        }
+        assertTrue(membership.isEvaluated());
+        assertEquals(237, membership.patients.size());
+    }
+
+    @Test
+    public void incrementalEvaluationOnlyEvaluatesChangedPatients() {
+        List<Patient> patients = MeasureTestSupport.newPatients(150);
+        DaoRegistry registry = MeasureTestSupport.newRegistry(patients);
+        Measure measure = MeasureTestSupport.newProportionMeasure();
+        MeasureMembership membership = new MeasureMembership(1);
+        newEvaluation(registry, () -> MeasureTestSupport.newContext(this.library)).evaluateIncrementalPopulationMeasure(
+                measure, MeasureTestSupport.newContext(this.library), membership, null);
+
+        // p5 was deleted and p7 updated
+        patients.remove(5);
+        AtomicInteger evaluated = new AtomicInteger();
+        MeasureEvaluation evaluation = newEvaluation(registry, () -> MeasureTestSupport.newContext(this.library));
+        evaluation.setProgressListener(evaluated::addAndGet);
+        MeasureReport report = evaluation.evaluateIncrementalPopulationMeasure(measure,
+                MeasureTestSupport.newContext(this.library), membership, new HashSet<>(Arrays.asList("p5", "p7")));
+
+        assertEquals(1, evaluated.get());
+        assertEquals(149, membership.patients.size());
+        assertFalse(membership.patients.containsKey("p5"));
+        assertEquals(149, MeasureTestSupport.getCount(report, "initial-population"));
+    }
+
+    @Test
+    public void rebuildingTheMembershipDropsPatientsThatNoLongerExist() {
+        List<Patient> patients = MeasureTestSupport.newPatients(10);
+        DaoRegistry registry = MeasureTestSupport.newRegistry(patients);
+        Measure measure = MeasureTestSupport.newProportionMeasure();
+        MeasureMembership membership = new MeasureMembership(1);
+        MeasureEvaluation evaluation = new MeasureEvaluation(null, registry, MeasureTestSupport.newPeriod());
+        evaluation.evaluateIncrementalPopulationMeasure(measure, MeasureTestSupport.newContext(this.library),
+                membership, null);
+
+        patients.remove(0);
+        MeasureReport report = evaluation.evaluateIncrementalPopulationMeasure(measure,
+                MeasureTestSupport.newContext(this.library), membership, null);
+
+        assertEquals(9, membership.patients.size());
+        assertEquals(9, MeasureTestSupport.getCount(report, "denominator"));
+    }
+
+    @Test
+    public void continuousVariableMeasuresAreNotEvaluatedIncrementally() {
+        MeasureEvaluation evaluation = new MeasureEvaluation(null, null, MeasureTestSupport.newPeriod());
+
+        assertTrue(evaluation.supportsIncrementalEvaluation(MeasureTestSupport.newProportionMeasure()));
+        assertFalse(evaluation.supportsIncrementalEvaluation(MeasureTestSupport.newMeasure("cv",
+                "continuous-variable", "initial-population", "measure-population", "measure-observation")));
+    }
+
+    @Test
+    public void supplementalDataCountsEachPatientOnce() {
+        Measure measure = MeasureTestSupport.newProportionMeasure();
+        measure.addSupplementalData().setCode(new CodeableConcept().setText("sde-sex"))
+                .setCriteria(new Expression().setLanguage("text/cql").setExpression("Sex"));
+
+        MeasureReport report = newEvaluation(
+                MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(237)),
+                MeasureTestSupport::newPatientContext).evaluatePopulationMeasure(measure,
+                        MeasureTestSupport.newPatientContext());
+
+        Map<String, Integer> counts = getSupplementalDataCounts(report, "sde-sex");
+        assertEquals(2, counts.size());
+        assertEquals(119, counts.get("male|Male").intValue());
+        assertEquals(118, counts.get("female|Female").intValue());
+    }
+
+    @Test
+    public void parallelSupplementalDataMatchesSerial() {
+        Measure measure = MeasureTestSupport.newProportionMeasure();
+        measure.addSupplementalData().setCode(new CodeableConcept().setText("sde-sex"))
+                .setCriteria(new Expression().setLanguage("text/cql").setExpression("Sex"));
+        DaoRegistry registry = MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(150));
+
+        MeasureReport serial = new MeasureEvaluation(null, registry, MeasureTestSupport.newPeriod())
+                .evaluatePopulationMeasure(measure, MeasureTestSupport.newPatientContext());
+        MeasureReport parallel = newEvaluation(registry, MeasureTestSupport::newPatientContext)
+                .evaluatePopulationMeasure(measure, MeasureTestSupport.newPatientContext());
+
+        assertEquals(getSupplementalDataCounts(serial, "sde-sex"), getSupplementalDataCounts(parallel, "sde-sex"));
+        // The SDE observations are referenced as evaluated resources
+        assertEquals(2, parallel.getEvaluatedResource().stream()
+                .filter(x -> x.getReference().startsWith("#")).count());
+    }
+
+    @Test
+    public void stratifiesThePopulationsInTheSamePass() {
+        Measure measure = newStratifiedMeasure();
+        AtomicInteger evaluated = new AtomicInteger();
+        MeasureEvaluation evaluation = newEvaluation(MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(100)),
+                MeasureTestSupport::newPatientContext);
+        evaluation.setProgressListener(evaluated::addAndGet);
+        MeasureReport report = evaluation.evaluatePopulationMeasure(measure, MeasureTestSupport.newPatientContext());
+
+        assertEquals(100, evaluated.get());
+        Map<String, MeasureReport.StratifierGroupComponent> strata = getStrata(report, "sex");
+        assertEquals(2, strata.size());
+
+        MeasureReport.StratifierGroupComponent male = strata.get("male");
+        assertEquals(50, MeasureTestSupport.getCount(male, "initial-population"));
+        assertEquals(50, MeasureTestSupport.getCount(male, "denominator"));
+        assertEquals(50, MeasureTestSupport.getCount(male, "numerator"));
+        assertEquals(1.0, male.getMeasureScore().getValue().doubleValue(), 0);
+
+        MeasureReport.StratifierGroupComponent female = strata.get("female");
+        assertEquals(50, MeasureTestSupport.getCount(female, "denominator"));
+        assertEquals(0, MeasureTestSupport.getCount(female, "numerator"));
+        assertEquals(0.0, female.getMeasureScore().getValue().doubleValue(), 0);
+    }
+
+    @Test
+    public void stratifiesByEveryComponent() {
+        MeasureReport report = newEvaluation(MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(60)),
+                MeasureTestSupport::newPatientContext).evaluatePopulationMeasure(newStratifiedMeasure(),
+                        MeasureTestSupport.newPatientContext());
+
+        MeasureReport.MeasureReportGroupStratifierComponent stratifier = MeasureTestSupport.getStratifier(report,
+                "sex and age");
+        assertEquals(4, stratifier.getStratum().size());
+        int total = 0;
+        for (MeasureReport.StratifierGroupComponent stratum : stratifier.getStratum()) {
+            assertEquals(2, stratum.getComponent().size());
+            total += MeasureTestSupport.getCount(stratum, "initial-population");
+        }
+        assertEquals(60, total);
+    }
+
+    @Test
+    public void parallelStrataMatchSerial() {
+        DaoRegistry registry = MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(237));
+        MeasureReport serial = new MeasureEvaluation(null, registry, MeasureTestSupport.newPeriod())
+                .evaluatePopulationMeasure(newStratifiedMeasure(), MeasureTestSupport.newPatientContext());
+        MeasureReport parallel = newEvaluation(registry, MeasureTestSupport::newPatientContext)
+                .evaluatePopulationMeasure(newStratifiedMeasure(), MeasureTestSupport.newPatientContext());
+
+        Map<String, MeasureReport.StratifierGroupComponent> serialStrata = getStrata(serial, "sex");
+        Map<String, MeasureReport.StratifierGroupComponent> parallelStrata = getStrata(parallel, "sex");
+        assertEquals(serialStrata.keySet(), parallelStrata.keySet());
+        for (String value : serialStrata.keySet()) {
+            for (String population : new String[] { "initial-population", "denominator", "numerator" }) {
+                assertEquals(MeasureTestSupport.getCount(serialStrata.get(value), population),
+                        MeasureTestSupport.getCount(parallelStrata.get(value), population));
+            }
+        }
+        assertEquals(119, MeasureTestSupport.getCount(parallelStrata.get("male"), "numerator"));
+    }
+
+    @Test
+    public void aggregatesEachObservationOnce() {
+        Measure measure = newContinuousVariableMeasure("median");
+        MeasureReport report = newEvaluation(MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(95)),
+                MeasureTestSupport::newPatientContext).evaluatePopulationMeasure(measure,
+                        MeasureTestSupport.newPatientContext());
+
+        assertEquals(95, MeasureTestSupport.getCount(report, "measure-population"));
+        assertEquals(95, MeasureTestSupport.getCount(report, "measure-observation"));
+        // Observations 0-9 for patients 0-89, then 0-4
+        assertEquals(4, report.getGroupFirstRep().getMeasureScore().getValue().doubleValue(), 0);
+        assertTrue(report.getContained().isEmpty());
+    }
+
+    @Test
+    public void parallelObservationAggregatesMatchSerial() {
+        DaoRegistry registry = MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(237));
+        for (String method : new String[] { "average", "median", "sum", "minimum", "maximum" }) {
+            MeasureReport serial = new MeasureEvaluation(null, registry, MeasureTestSupport.newPeriod())
+                    .evaluatePopulationMeasure(newContinuousVariableMeasure(method),
+                            MeasureTestSupport.newPatientContext());
+            MeasureReport parallel = newEvaluation(registry, MeasureTestSupport::newPatientContext)
+                    .evaluatePopulationMeasure(newContinuousVariableMeasure(method),
+                            MeasureTestSupport.newPatientContext());
+
+            assertEquals(method, serial.getGroupFirstRep().getMeasureScore().getValue().doubleValue(),
+                    parallel.getGroupFirstRep().getMeasureScore().getValue().doubleValue(), 1e-9);
+        }
+    }
+
+    @Test
+    public void episodeObservationsAreOptIn() {
+        MeasureEvaluation evaluation = newEvaluation(MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(20)),
+                MeasureTestSupport::newPatientContext);
+        evaluation.setEpisodeObservations(true);
+        MeasureReport report = evaluation.evaluatePopulationMeasure(newContinuousVariableMeasure("average"),
+                MeasureTestSupport.newPatientContext());
+
+        assertEquals(20, report.getContained().size());
+        assertEquals(4.5, report.getGroupFirstRep().getMeasureScore().getValue().doubleValue(), 0);
+    }
+
+    @Test
+    public void evaluatesEveryGroupInOnePassOverThePatients() {
+        Measure measure = newTwoGroupMeasure();
+        List<String> visits = new ArrayList<>();
+        Context context = new MeasureTestSupport.PatientLibraryContext(this.library,
+                MeasureTestSupport::patientCql) {
+            @Override
+            public void setContextValue(String contextName, Object contextValue) {
+                super.setContextValue(contextName, contextValue);
+                if (visits.isEmpty() || !visits.get(visits.size() - 1).equals(contextValue)) {
+                    visits.add((String) contextValue);
+                }
+            }
+        };
+        context.registerDataProvider("http://hl7.org/fhir", mock(DataProvider.class));
+
+        MeasureReport report = new MeasureEvaluation(null,
+                MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(30)), MeasureTestSupport.newPeriod())
+                        .evaluatePopulationMeasure(measure, context);
+
+        // Each patient is visited once, for both groups
+        assertEquals(30, visits.size());
+        assertEquals(30, new HashSet<>(visits).size());
+        assertEquals(2, report.getGroup().size());
+        assertEquals(15, getCount(report.getGroup().get(0), "numerator"));
+        assertEquals(30, getCount(report.getGroup().get(1), "numerator"));
+    }
+
+    @Test
+    public void parallelGroupsMatchSerial() {
+        DaoRegistry registry = MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(237));
+        AtomicInteger evaluated = new AtomicInteger();
+        MeasureReport serial = new MeasureEvaluation(null, registry, MeasureTestSupport.newPeriod())
+                .evaluatePopulationMeasure(newTwoGroupMeasure(), MeasureTestSupport.newPatientContext());
+        MeasureEvaluation evaluation = newEvaluation(registry, MeasureTestSupport::newPatientContext);
+        evaluation.setProgressListener(evaluated::addAndGet);
+        MeasureReport parallel = evaluation.evaluatePopulationMeasure(newTwoGroupMeasure(),
+                MeasureTestSupport.newPatientContext());
+
+        assertEquals(237, evaluated.get());
+        for (int i = 0; i < 2; i++) {
+            assertEquals(serial.getGroup().get(i).getId(), parallel.getGroup().get(i).getId());
+            for (String population : new String[] { "initial-population", "denominator", "numerator" }) {
+                assertEquals(getCount(serial.getGroup().get(i), population),
+                        getCount(parallel.getGroup().get(i), population));
+            }
+            assertEquals(serial.getGroup().get(i).getMeasureScore().getValue(),
+                    parallel.getGroup().get(i).getMeasureScore().getValue());
+        }
+    }
+
+    @Test
+    public void summaryReportsListTheEvaluatedResourcesByDefault() {
+        MeasureReport report = new MeasureEvaluation(null,
+                MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(10)), MeasureTestSupport.newPeriod())
+                        .evaluatePopulationMeasure(MeasureTestSupport.newProportionMeasure(),
+                                newEvaluatedResourceContext());
+
+        assertEquals(10, report.getEvaluatedResource().size());
+        assertTrue(report.getEvaluatedResource().stream()
+                .anyMatch(x -> x.getReference().equals("#Observation/p3-obs")));
+    }
+
+    @Test
+    public void countsOnlySummaryReportsKeepNoResources() {
+        DaoRegistry registry = MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(150));
+        MeasureReport full = new MeasureEvaluation(null, registry, MeasureTestSupport.newPeriod())
+                .evaluatePopulationMeasure(MeasureTestSupport.newProportionMeasure(), newEvaluatedResourceContext());
+
+        Context context = newEvaluatedResourceContext();
+        MeasureEvaluation evaluation = new MeasureEvaluation(null, registry, MeasureTestSupport.newPeriod());
+        evaluation.setCountsOnly(true);
+        MeasureReport countsOnly = evaluation.evaluatePopulationMeasure(MeasureTestSupport.newProportionMeasure(),
+                context);
+
+        for (String population : new String[] { "initial-population", "denominator", "numerator" }) {
+            assertEquals(MeasureTestSupport.getCount(full, population),
+                    MeasureTestSupport.getCount(countsOnly, population));
+        }
+        assertEquals(75, MeasureTestSupport.getCount(countsOnly, "numerator"));
+        assertEquals(150, full.getEvaluatedResource().size());
+        assertTrue(countsOnly.getEvaluatedResource().isEmpty());
+        assertTrue(context.getEvaluatedResources().isEmpty());
+    }
+
+    @Test
+    public void countsOnlyDoesntApplyToSubjectLists() {
+        MeasureEvaluation evaluation = newEvaluation(MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(20)),
+                MeasureTestSupport::newPatientContext);
+        evaluation.setCountsOnly(true);
+        MeasureReport report = evaluation.evaluateSubjectListMeasure(MeasureTestSupport.newProportionMeasure(),
+                MeasureTestSupport.newPatientContext(), null);
+
+        // A subject list for each population
+        assertEquals(3, report.getContained().size());
+        assertEquals(10, MeasureTestSupport.getCount(report, "numerator"));
+    }
+
+    @Test
+    public void batchReportsMatchSeparateEvaluations() {
+        DaoRegistry registry = MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(237));
+        List<Measure> measures = Arrays.asList(MeasureTestSupport.newProportionMeasure(), newTwoGroupMeasure());
+        AtomicInteger evaluated = new AtomicInteger();
+        MeasureEvaluation evaluation = newEvaluation(registry, MeasureTestSupport::newPatientContext);
+        evaluation.setProgressListener(evaluated::addAndGet);
+
+        List<MeasureReport> batch = evaluation.evaluateMeasures(measures,
+                Arrays.asList(MeasureTestSupport.newPatientContext(), MeasureTestSupport.newPatientContext()),
+                () -> Arrays.asList(MeasureTestSupport.newPatientContext(), MeasureTestSupport.newPatientContext()),
+                null, MeasureReport.MeasureReportType.SUMMARY);
+
+        assertEquals(237, evaluated.get());
+        assertEquals(2, batch.size());
+        for (int i = 0; i < measures.size(); i++) {
+            MeasureReport separate = new MeasureEvaluation(null, registry, MeasureTestSupport.newPeriod())
+                    .evaluatePopulationMeasure(measures.get(i), MeasureTestSupport.newPatientContext());
+            assertEquals(separate.getGroup().size(), batch.get(i).getGroup().size());
+            for (int j = 0; j < separate.getGroup().size(); j++) {
+                assertEquals(getCount(separate.getGroup().get(j), "numerator"),
+                        getCount(batch.get(i).getGroup().get(j), "numerator"));
+            }
+        }
+    }
+
+    @Test
+    public void looksUpPatientIdsAPartitionAtATime() {
+        List<Patient> patients = MeasureTestSupport.newPatients(200);
+        DaoRegistry registry = MeasureTestSupport.newRegistry(patients);
+        List<String> patientIds = new ArrayList<>();
+        for (int i = 0; i < 120; i++) {
+            patientIds.add("p" + i);
+        }
+
+        List<MeasureReport> reports = new MeasureEvaluation(null, registry, MeasureTestSupport.newPeriod())
+                .evaluateMeasures(Arrays.asList(MeasureTestSupport.newProportionMeasure()),
+                        Arrays.asList(MeasureTestSupport.newPatientContext()), null, patientIds,
+                        MeasureReport.MeasureReportType.SUMMARY);
+
+        assertEquals(120, MeasureTestSupport.getCount(reports.get(0), "denominator"));
+        assertEquals(60, MeasureTestSupport.getCount(reports.get(0), "numerator"));
+        // 50, 50 and 20 ids
+        verify(registry.getResourceDao("Patient"), times(3))
+                .search(argThat(map -> map.get("_id").get(0).size() <= 50));
+    }
+
+    @Test
+    public void noPatientIdsMeansNoSearch() {
+        DaoRegistry registry = MeasureTestSupport.newRegistry(MeasureTestSupport.newPatients(10));
+
+        List<MeasureReport> reports = new MeasureEvaluation(null, registry, MeasureTestSupport.newPeriod())
+                .evaluateMeasures(Arrays.asList(MeasureTestSupport.newProportionMeasure()),
+                        Arrays.asList(MeasureTestSupport.newPatientContext()), null, new ArrayList<>(),
+                        MeasureReport.MeasureReportType.SUMMARY);
+
+        assertEquals(0, MeasureTestSupport.getCount(reports.get(0), "initial-population"));
+        verify(registry.getResourceDao("Patient"), never()).search(any(SearchParameterMap.class));
+    }
+
+    private MeasureEvaluation newEvaluation(DaoRegistry registry, Supplier<Context> contextFactory) {
+        return new MeasureEvaluation(null, registry, MeasureTestSupport.newPeriod(), contextFactory, this.executor);
+    }
+
+    // Returns the count of each code|display of a supplemental data element
+    private static Map<String, Integer> getSupplementalDataCounts(MeasureReport report, String sdeKey) {
+        Map<String, Integer> counts = new HashMap<>();
+        for (Resource resource : report.getContained()) {
+            Observation observation = (Observation) resource;
+            String populationId = observation.getExtensionFirstRep().getExtensionByUrl("populationId").getValue()
+                    .primitiveValue();
+            if (sdeKey.equals(populationId)) {
+                counts.put(observation.getCode().getCodingFirstRep().getCode() + "|"
+                        + observation.getCode().getCodingFirstRep().getDisplay(),
+                        ((IntegerType) observation.getValue()).getValue());
+            }
+        }
+
+        return counts;
+    }
+
+    // A proportion measure stratified by sex, and by sex and age group
+    private static Measure newStratifiedMeasure() {
+        Measure measure = MeasureTestSupport.newProportionMeasure();
+        Measure.MeasureGroupComponent group = measure.getGroupFirstRep();
+        group.addStratifier().setCode(new CodeableConcept().setText("sex"))
+                .setCriteria(new Expression().setLanguage("text/cql").setExpression("Sex"));
+
+        Measure.MeasureGroupStratifierComponent sexAndAge = group.addStratifier()
+                .setCode(new CodeableConcept().setText("sex and age"));
+        sexAndAge.addComponent().setCode(new CodeableConcept().setText("sex"))
+                .setCriteria(new Expression().setLanguage("text/cql").setExpression("Sex"));
+        sexAndAge.addComponent().setCode(new CodeableConcept().setText("age"))
+                .setCriteria(new Expression().setLanguage("text/cql").setExpression("Age Group"));
+        return measure;
+    }
+
+    // Returns the strata of a stratifier, by the code of their value
+    private static Map<String, MeasureReport.StratifierGroupComponent> getStrata(MeasureReport report,
+            String stratifier) {
+        Map<String, MeasureReport.StratifierGroupComponent> strata = new HashMap<>();
+        for (MeasureReport.StratifierGroupComponent stratum : MeasureTestSupport.getStratifier(report, stratifier)
+                .getStratum()) {
+            strata.put(stratum.getValue().getCodingFirstRep().getCode(), stratum);
+        }
+
+        return strata;
+    }
+
+    private static Measure newContinuousVariableMeasure(String aggregateMethod) {
+        Measure measure = MeasureTestSupport.newMeasure("cv", "continuous-variable", "initial-population",
+                "measure-population", "measure-observation");
+        for (Measure.MeasureGroupPopulationComponent population : measure.getGroupFirstRep().getPopulation()) {
+            if (population.getCode().getCodingFirstRep().getCode().equals("measure-observation")) {
+                population.addExtension("http://hl7.org/fhir/us/cqfmeasures/StructureDefinition/cqfm-aggregateMethod",
+                        new CodeType(aggregateMethod));
+            }
+        }
+
+        return measure;
+    }
+
+    // Two proportion groups: the first with the even patients in its numerator,
+    // the second with every patient
+    private static Measure newTwoGroupMeasure() {
+        Measure measure = MeasureTestSupport.newProportionMeasure();
+        Measure.MeasureGroupComponent second = measure.getGroupFirstRep().copy();
+        second.setId("group-2");
+        for (Measure.MeasureGroupPopulationComponent population : second.getPopulation()) {
+            if (population.getCode().getCodingFirstRep().getCode().equals("numerator")) {
+                population.getCriteria().setExpression("Measure Population");
+            }
+        }
+        measure.addGroup(second);
+        return measure;
+    }
+
+    private static int getCount(MeasureReport.MeasureReportGroupComponent group, String population) {
+        for (MeasureReport.MeasureReportGroupPopulationComponent component : group.getPopulation()) {
+            if (population.equals(component.getCode().getCodingFirstRep().getCode())) {
+                return component.getCount();
+            }
+        }
+
+        throw new AssertionError("No " + population + " population in " + group.getId());
+    }
+
+    private Context newEvaluatedResourceContext() {
+        Context context = new EvaluatedResourceContext(this.library);
+        context.registerDataProvider("http://hl7.org/fhir", mock(DataProvider.class));
+        return context;
+    }
+
+    /**
+     * Records an Observation of the current patient as evaluated whenever the
+     * initial population is evaluated, as a retrieve would.
+     */
+    private static class EvaluatedResourceContext extends MeasureTestSupport.PatientLibraryContext {
+        private final List<Object> evaluatedResources = new ArrayList<>();
+        private String patientId;
+
+        EvaluatedResourceContext(Library library) {
+            super(library, MeasureTestSupport::patientCql);
+        }
+
+        @Override
+        public void setContextValue(String contextName, Object contextValue) {
+            super.setContextValue(contextName, contextValue);
+            this.patientId = (String) contextValue;
+        }
+
+        @Override
+        public ExpressionDef resolveExpressionRef(String name) {
+            if (name.equals("Initial Population")) {
+                this.evaluatedResources.add(new Observation().setId("Observation/" + this.patientId + "-obs"));
+            }
+
+            return super.resolveExpressionRef(name);
+        }
+
+        @Override
+        public List<Object> getEvaluatedResources() {
+            return this.evaluatedResources;
+        }
+
+        @Override
+        public void clearEvaluatedResources() {
+            this.evaluatedResources.clear();
+        }
+    }
+}
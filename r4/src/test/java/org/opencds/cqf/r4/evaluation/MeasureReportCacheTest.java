@@ -0,0 +1,98 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.junit.Test;
+
+public class MeasureReportCacheTest {
+
+    @Test
+    public void returnsACopyOfTheCachedReport() {
+        MeasureReportCache cache = new MeasureReportCache();
+        AtomicInteger evaluations = new AtomicInteger();
+
+        MeasureReport first = cache.getReport("key", () -> newReport(evaluations));
+        first.setStatus(MeasureReport.MeasureReportStatus.ERROR);
+        MeasureReport second = cache.getReport("key", () -> newReport(evaluations));
+
+        assertEquals(1, evaluations.get());
+        assertNotSame(first, second);
+        assertEquals(MeasureReport.MeasureReportStatus.COMPLETE, second.getStatus());
+    }
+
+    @Test
+    public void concurrentRequestsWaitForOneEvaluation() throws Exception {
+        MeasureReportCache cache = new MeasureReportCache();
+        AtomicInteger evaluations = new AtomicInteger();
+        CountDownLatch release = new CountDownLatch(1);
+        ExecutorService threads = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<MeasureReport>> reports = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                reports.add(threads.submit(() -> cache.getReport("key", () -> {
+                    try {
+                        release.await(10, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return newReport(evaluations);
+                })));
+            }
+
+            Thread.sleep(50);
+            release.countDown();
+            for (Future<MeasureReport> report : reports) {
+                assertEquals(MeasureReport.MeasureReportStatus.COMPLETE, report.get().getStatus());
+            }
+            assertEquals(1, evaluations.get());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failuresAreNotCached() {
+        MeasureReportCache cache = new MeasureReportCache();
+        AtomicInteger evaluations = new AtomicInteger();
+        try {
+            cache.getReport("key", () -> {
+                throw new StackOverflowError();
+            });
+            fail();
+        } catch (StackOverflowError e) {
+            // expected
+        }
+
+        cache.getReport("key", () -> newReport(evaluations));
+        assertEquals(1, evaluations.get());
+    }
+
+    @Test
+    public void clearEvictsEveryReport() {
+        MeasureReportCache cache = new MeasureReportCache();
+        AtomicInteger evaluations = new AtomicInteger();
+        cache.getReport("key", () -> newReport(evaluations));
+
+        cache.clear();
+        cache.getReport("key", () -> newReport(evaluations));
+
+        assertEquals(2, evaluations.get());
+    }
+
+    private static MeasureReport newReport(AtomicInteger evaluations) {
+        evaluations.incrementAndGet();
+        return new MeasureReport().setStatus(MeasureReport.MeasureReportStatus.COMPLETE);
+    }
+}
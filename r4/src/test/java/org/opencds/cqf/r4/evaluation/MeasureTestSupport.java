@@ -0,0 +1,238 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+import org.cqframework.cql.cql2elm.LibraryManager;
+import org.cqframework.cql.cql2elm.ModelManager;
+import org.cqframework.cql.elm.execution.ExpressionDef;
+import org.cqframework.cql.elm.execution.Library;
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.hl7.fhir.r4.model.Expression;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Patient;
+import org.opencds.cqf.common.helpers.TranslatorHelper;
+import org.opencds.cqf.cql.engine.data.DataProvider;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.cql.engine.runtime.Interval;
+
+import ca.uhn.fhir.jpa.api.dao.DaoRegistry;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.searchparam.SearchParameterMap;
+import ca.uhn.fhir.model.api.IQueryParameterType;
+import ca.uhn.fhir.rest.param.TokenParam;
+import ca.uhn.fhir.rest.server.SimpleBundleProvider;
+
+/**
+ * Builds the Measures, Contexts and patients used by the evaluation tests. The
+ * libraries don't use a data model, so their criteria are evaluated without
+ * retrieving any data; a PatientLibraryContext gives each patient its own
+ * results instead.
+ */
+class MeasureTestSupport {
+
+    static final String PROPORTION_CQL = "library Test version '1'\n"
+            + "define \"Initial Population\": true\n"
+            + "define \"Denominator\": true\n"
+            + "define \"Numerator\": false\n";
+
+    static final String GENDER_SYSTEM = "http://hl7.org/fhir/administrative-gender";
+
+    // The number of distinct measure observation values, which bounds the number
+    // of libraries compiled for patientCql
+    static final int OBSERVED_VALUES = 10;
+
+    private static final Map<String, Library> patientLibraries = new ConcurrentHashMap<>();
+
+    private MeasureTestSupport() {
+    }
+
+    static Library compile(String cql) {
+        ModelManager modelManager = new ModelManager();
+        return TranslatorHelper.translateLibrary(cql, new LibraryManager(modelManager), modelManager);
+    }
+
+    static Context newContext(Library library) {
+        Context context = new Context(library);
+        context.registerDataProvider("http://hl7.org/fhir", mock(DataProvider.class));
+        return context;
+    }
+
+    /**
+     * Returns a Context for patientCql, with the proportion library as the
+     * library it starts in.
+     */
+    static Context newPatientContext() {
+        Context context = new PatientLibraryContext(compile(PROPORTION_CQL), MeasureTestSupport::patientCql);
+        context.registerDataProvider("http://hl7.org/fhir", mock(DataProvider.class));
+        return context;
+    }
+
+    /**
+     * Returns the library of patient pN: every patient is in the initial,
+     * denominator and measure populations, even patients are male and in the
+     * numerator, odd patients are female, and each patient's measure observation
+     * is N modulo OBSERVED_VALUES.
+     */
+    static String patientCql(String patientId) {
+        int index = Integer.parseInt(patientId.substring(1));
+        boolean even = index % 2 == 0;
+        return "library Test version '1'\n"
+                + "define \"Initial Population\": true\n"
+                + "define \"Denominator\": true\n"
+                + "define \"Numerator\": " + even + "\n"
+                + "define \"Measure Population\": true\n"
+                + "define \"Sex\": Code { system: '" + GENDER_SYSTEM + "', code: '" + (even ? "male" : "female")
+                + "', display: '" + (even ? "Male" : "Female") + "' }\n"
+                + "define \"Age Group\": '" + (index % 3 == 0 ? "child" : "adult") + "'\n"
+                + "define function \"Measure Observation\"(episode Any): " + index % OBSERVED_VALUES + "\n";
+    }
+
+    static Interval newPeriod() {
+        return new Interval(new Date(0), true, new Date(), true);
+    }
+
+    static Measure newMeasure(String id, String scoring, String... populations) {
+        Measure measure = new Measure();
+        measure.setId("Measure/" + id);
+        measure.setScoring(new CodeableConcept().addCoding(new Coding().setCode(scoring)));
+
+        Measure.MeasureGroupComponent group = measure.addGroup();
+        group.setId("group-1");
+        for (String population : populations) {
+            // initial-population is evaluated with "Initial Population"
+            StringBuilder expression = new StringBuilder();
+            for (String word : population.split("-")) {
+                expression.append(expression.length() > 0 ? " " : "").append(Character.toUpperCase(word.charAt(0)))
+                        .append(word.substring(1));
+            }
+            group.addPopulation().setCode(new CodeableConcept().addCoding(new Coding().setCode(population)))
+                    .setCriteria(new Expression().setLanguage("text/cql").setExpression(expression.toString()));
+        }
+
+        return measure;
+    }
+
+    static Measure newProportionMeasure() {
+        return newMeasure("proportion", "proportion", "initial-population", "denominator", "numerator");
+    }
+
+    static List<Patient> newPatients(int count) {
+        List<Patient> patients = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Patient patient = new Patient();
+            patient.setId("Patient/p" + i);
+            patients.add(patient);
+        }
+
+        return patients;
+    }
+
+    /**
+     * Returns a DaoRegistry whose Patient searches return the given patients,
+     * filtered by _id when the search has one.
+     */
+    static DaoRegistry newRegistry(List<Patient> patients) {
+        IFhirResourceDao<?> dao = mock(IFhirResourceDao.class);
+        when(dao.search(any(SearchParameterMap.class)))
+                .thenAnswer(x -> new SimpleBundleProvider(search(patients, x.getArgument(0))));
+
+        DaoRegistry registry = mock(DaoRegistry.class);
+        doReturn(dao).when(registry).getResourceDao("Patient");
+        return registry;
+    }
+
+    static List<Patient> search(List<Patient> patients, SearchParameterMap map) {
+        List<List<IQueryParameterType>> ids = map.get("_id");
+        if (ids == null) {
+            return new ArrayList<>(patients);
+        }
+
+        Set<String> wanted = ids.stream().flatMap(List::stream).map(x -> ((TokenParam) x).getValue())
+                .collect(Collectors.toSet());
+        return patients.stream().filter(x -> wanted.contains(x.getIdElement().getIdPart()))
+                .collect(Collectors.toList());
+    }
+
+    static int getCount(MeasureReport report, String population) {
+        for (MeasureReport.MeasureReportGroupPopulationComponent component : report.getGroupFirstRep()
+                .getPopulation()) {
+            if (population.equals(component.getCode().getCodingFirstRep().getCode())) {
+                return component.getCount();
+            }
+        }
+
+        throw new AssertionError("No " + population + " population in the report");
+    }
+
+    static MeasureReport.MeasureReportGroupStratifierComponent getStratifier(MeasureReport report, String text) {
+        for (MeasureReport.MeasureReportGroupStratifierComponent stratifier : report.getGroupFirstRep()
+                .getStratifier()) {
+            if (text.equals(stratifier.getCodeFirstRep().getText())) {
+                return stratifier;
+            }
+        }
+
+        throw new AssertionError("No " + text + " stratifier in the report");
+    }
+
+    static int getCount(MeasureReport.StratifierGroupComponent stratum, String population) {
+        for (MeasureReport.StratifierGroupPopulationComponent component : stratum.getPopulation()) {
+            if (population.equals(component.getCode().getCodingFirstRep().getCode())) {
+                return component.getCount();
+            }
+        }
+
+        throw new AssertionError("No " + population + " population in the stratum");
+    }
+
+    /**
+     * A Context whose expressions are resolved from a library chosen by the
+     * current patient, so criteria can give each patient a different result
+     * without a data model.
+     */
+    static class PatientLibraryContext extends Context {
+        private final Function<String, String> patientCql;
+        private Library patientLibrary;
+
+        PatientLibraryContext(Library library, Function<String, String> patientCql) {
+            super(library);
+            this.patientCql = patientCql;
+        }
+
+        @Override
+        public void setContextValue(String context, Object contextValue) {
+            super.setContextValue(context, contextValue);
+            if ("Patient".equals(context)) {
+                this.patientLibrary = patientLibraries.computeIfAbsent(this.patientCql.apply((String) contextValue),
+                        MeasureTestSupport::compile);
+            }
+        }
+
+        @Override
+        public ExpressionDef resolveExpressionRef(String name) {
+            if (this.patientLibrary != null) {
+                for (ExpressionDef def : this.patientLibrary.getStatements().getDef()) {
+                    if (def.getName().equals(name)) {
+                        return def;
+                    }
+                }
+            }
+
+            return super.resolveExpressionRef(name);
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package org.opencds.cqf.r4.evaluation;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+import java.util.Collections;
+
+import org.hl7.fhir.r4.model.CodeableConcept;
+import org.hl7.fhir.r4.model.Coding;
+import org.junit.Test;
+import org.opencds.cqf.common.evaluation.MeasurePopulationType;
+
+public class StratumTest {
+
+    @Test
+    public void keysValuesByTheirCodesIgnoringDisplay() {
+        CodeableConcept male = new CodeableConcept().addCoding(new Coding("http://a", "male", "Male"));
+        CodeableConcept maleWithoutDisplay = new CodeableConcept().addCoding(new Coding("http://a", "male", null))
+                .setText("other text");
+
+        assertEquals(Stratum.getKey(male), Stratum.getKey(maleWithoutDisplay));
+        assertNotEquals(Stratum.getKey(male),
+                Stratum.getKey(new CodeableConcept().addCoding(new Coding("http://b", "male", "Male"))));
+    }
+
+    @Test
+    public void keysValuesWithoutCodesByTheirText() {
+        assertEquals(Stratum.getKey(new CodeableConcept().setText("adult")),
+                Stratum.getKey(new CodeableConcept().setText("adult")));
+        assertNotEquals(Stratum.getKey(new CodeableConcept().setText("adult")),
+                Stratum.getKey(new CodeableConcept().addCoding(new Coding(null, "adult", null))));
+    }
+
+    @Test
+    public void addsPopulationCounts() {
+        Stratum stratum = new Stratum(new CodeableConcept().setText("adult"), Collections.emptyList());
+        int[] counts = new int[MeasurePopulationType.values().length];
+        counts[MeasurePopulationType.DENOMINATOR.ordinal()] = 1;
+        counts[MeasurePopulationType.NUMERATOR.ordinal()] = 1;
+
+        stratum.add(counts);
+        counts[MeasurePopulationType.NUMERATOR.ordinal()] = 0;
+        stratum.add(counts);
+
+        assertEquals(2, stratum.getCount(MeasurePopulationType.DENOMINATOR));
+        assertEquals(1, stratum.getCount(MeasurePopulationType.NUMERATOR));
+        assertEquals(0, stratum.getCount(MeasurePopulationType.INITIALPOPULATION));
+    }
+}
@@ -0,0 +1,223 @@
+package org.opencds.cqf.r4.providers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.CodeSystem;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.ValueSet;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencds.cqf.cql.engine.runtime.Code;
+import org.opencds.cqf.cql.engine.terminology.ValueSetInfo;
+
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.rp.r4.ValueSetResourceProvider;
+import ca.uhn.fhir.jpa.term.api.ITermReadSvcR4;
+
+public class JpaTerminologyProviderTest {
+
+    static final String SYSTEM = "http://loinc.org";
+
+    IFhirResourceDao<ValueSet> dao;
+    ValueSetResourceProvider valueSetProvider;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        this.dao = mock(IFhirResourceDao.class);
+        when(this.dao.read(any(IIdType.class))).thenAnswer(x -> newValueSet("1", "2", "3"));
+        this.valueSetProvider = mock(ValueSetResourceProvider.class);
+        when(this.valueSetProvider.getDao()).thenReturn(this.dao);
+    }
+
+    @Test
+    public void expandsEachValueSetOnce() {
+        JpaTerminologyProvider provider = newProvider(60000, 10);
+
+        assertEquals(3, count(provider.expand(valueSet("vs1"))));
+        assertEquals(3, count(provider.expand(valueSet("vs1"))));
+        assertTrue(provider.in(code(SYSTEM, "2"), valueSet("vs1")));
+
+        verify(this.dao, times(1)).read(any(IIdType.class));
+    }
+
+    @Test
+    public void matchesCodesBySystemAndCode() {
+        JpaTerminologyProvider provider = newProvider(60000, 10);
+
+        assertTrue(provider.in(code(SYSTEM, "3"), valueSet("vs1")));
+        assertFalse(provider.in(code(SYSTEM, "4"), valueSet("vs1")));
+        assertFalse(provider.in(code("http://snomed.info/sct", "3"), valueSet("vs1")));
+        assertFalse(provider.in(null, valueSet("vs1")));
+    }
+
+    @Test
+    public void keysExpansionsByIdAndVersion() {
+        JpaTerminologyProvider provider = newProvider(60000, 10);
+
+        provider.expand(valueSet("vs1"));
+        provider.expand(valueSet("vs2"));
+        provider.expand(valueSet("vs2").withVersion("1"));
+        provider.expand(valueSet("vs2").withVersion("1"));
+
+        verify(this.dao, times(3)).read(any(IIdType.class));
+    }
+
+    @Test
+    public void terminologyWritesClearTheCache() {
+        JpaTerminologyProvider provider = newProvider(60000, 10);
+        provider.expand(valueSet("vs1"));
+
+        provider.resourceCreated(new Patient());
+        provider.expand(valueSet("vs1"));
+        verify(this.dao, times(1)).read(any(IIdType.class));
+
+        provider.resourceUpdated(new ValueSet(), new ValueSet());
+        provider.expand(valueSet("vs1"));
+        verify(this.dao, times(2)).read(any(IIdType.class));
+
+        provider.resourceDeleted(new CodeSystem());
+        provider.expand(valueSet("vs1"));
+        verify(this.dao, times(3)).read(any(IIdType.class));
+    }
+
+    @Test
+    public void expiredExpansionsAreExpandedAgain() throws Exception {
+        JpaTerminologyProvider provider = newProvider(0, 10);
+        provider.expand(valueSet("vs1"));
+
+        Thread.sleep(5);
+        provider.expand(valueSet("vs1"));
+
+        verify(this.dao, times(2)).read(any(IIdType.class));
+    }
+
+    @Test
+    public void evictsTheOldestExpansionWhenFull() {
+        JpaTerminologyProvider provider = newProvider(60000, 2);
+        provider.expand(valueSet("vs1"));
+        provider.expand(valueSet("vs2"));
+        provider.expand(valueSet("vs3"));
+        verify(this.dao, times(3)).read(any(IIdType.class));
+
+        provider.expand(valueSet("vs3"));
+        verify(this.dao, times(3)).read(any(IIdType.class));
+
+        provider.expand(valueSet("vs1"));
+        verify(this.dao, times(4)).read(any(IIdType.class));
+    }
+
+    @Test
+    public void concurrentMissesWaitForOneExpansion() throws Exception {
+        CountDownLatch expanding = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger reads = new AtomicInteger();
+        when(this.dao.read(any(IIdType.class))).thenAnswer(x -> {
+            reads.incrementAndGet();
+            expanding.countDown();
+            release.await();
+            return newValueSet("1", "2");
+        });
+        JpaTerminologyProvider provider = newProvider(60000, 10);
+
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                results.add(threads.submit(() -> count(provider.expand(valueSet("vs1")))));
+            }
+
+            assertTrue(expanding.await(10, TimeUnit.SECONDS));
+            // Let the other threads reach the pending expansion
+            Thread.sleep(50);
+            release.countDown();
+
+            for (Future<Integer> result : results) {
+                assertEquals(2, result.get().intValue());
+            }
+            assertEquals(1, reads.get());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedExpansionsAreNotCached() {
+        IllegalArgumentException failure = new IllegalArgumentException("unavailable");
+        when(this.dao.read(any(IIdType.class))).thenThrow(failure).thenAnswer(x -> newValueSet("1"));
+        JpaTerminologyProvider provider = newProvider(60000, 10);
+
+        try {
+            provider.expand(valueSet("vs1"));
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertSame(failure, e);
+        }
+
+        assertEquals(1, count(provider.expand(valueSet("vs1"))));
+    }
+
+    @Test
+    public void errorsAreRethrownAndNotCached() {
+        StackOverflowError failure = new StackOverflowError();
+        when(this.dao.read(any(IIdType.class))).thenThrow(failure).thenAnswer(x -> newValueSet("1"));
+        JpaTerminologyProvider provider = newProvider(60000, 10);
+
+        try {
+            provider.expand(valueSet("vs1"));
+            fail();
+        } catch (StackOverflowError e) {
+            assertSame(failure, e);
+        }
+
+        // A pending entry left behind would make this wait forever
+        assertEquals(1, count(provider.expand(valueSet("vs1"))));
+    }
+
+    JpaTerminologyProvider newProvider(long ttlMillis, int maxSize) {
+        return new JpaTerminologyProvider(mock(ITermReadSvcR4.class), this.valueSetProvider, ttlMillis, maxSize);
+    }
+
+    static ValueSetInfo valueSet(String id) {
+        return new ValueSetInfo().withId(id);
+    }
+
+    static Code code(String system, String code) {
+        return new Code().withSystem(system).withCode(code);
+    }
+
+    static ValueSet newValueSet(String... codes) {
+        ValueSet valueSet = new ValueSet();
+        ValueSet.ConceptSetComponent include = valueSet.getCompose().addInclude().setSystem(SYSTEM);
+        for (String code : codes) {
+            include.addConcept().setCode(code);
+        }
+
+        return valueSet;
+    }
+
+    private static int count(Iterable<Code> codes) {
+        List<Code> list = new ArrayList<>();
+        codes.forEach(list::add);
+        return list.size();
+    }
+}
@@ -0,0 +1,213 @@
+package org.opencds.cqf.r4.providers;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.hl7.fhir.instance.model.api.IIdType;
+import org.hl7.fhir.r4.model.IdType;
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.Measure;
+import org.hl7.fhir.r4.model.Medication;
+import org.hl7.fhir.r4.model.MeasureReport;
+import org.hl7.fhir.r4.model.Observation;
+import org.hl7.fhir.r4.model.Parameters;
+import org.hl7.fhir.r4.model.Reference;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencds.cqf.common.config.HapiProperties;
+import org.opencds.cqf.common.evaluation.MeasureEvaluationExecutor;
+import org.opencds.cqf.common.interceptors.PatientChangeTracker;
+import org.opencds.cqf.cql.engine.execution.Context;
+import org.opencds.cqf.r4.evaluation.MeasureBatchSeed;
+import org.opencds.cqf.r4.evaluation.MeasureReportCache;
+
+import ca.uhn.fhir.context.FhirContext;
+import ca.uhn.fhir.jpa.api.dao.IFhirResourceDao;
+import ca.uhn.fhir.jpa.rp.r4.MeasureResourceProvider;
+
+public class MeasureOperationsProviderTest {
+
+    private PatientChangeTracker changeTracker;
+    private MeasureReportCache reportCache;
+    private MeasureOperationsProvider provider;
+    private AtomicInteger evaluations;
+    private MeasureEvaluationExecutor executor;
+
+    @Before
+    @SuppressWarnings("unchecked")
+    public void setUp() {
+        Measure measure = new Measure();
+        measure.setId("Measure/m1");
+        measure.getMeta().setVersionId("1");
+
+        IFhirResourceDao<Measure> dao = mock(IFhirResourceDao.class);
+        when(dao.read(any(IIdType.class))).thenReturn(measure);
+        MeasureResourceProvider measureProvider = mock(MeasureResourceProvider.class);
+        when(measureProvider.getDao()).thenReturn(dao);
+
+        this.changeTracker = new PatientChangeTracker(FhirContext.forR4());
+        this.reportCache = new MeasureReportCache();
+        this.executor = new MeasureEvaluationExecutor(4);
+        this.provider = new MeasureOperationsProvider(null, null, null, null, null, measureProvider,
+                this.changeTracker, null, null, this.reportCache, this.executor);
+        this.evaluations = new AtomicInteger();
+    }
+
+    @After
+    public void tearDown() {
+        this.executor.shutdown();
+    }
+
+    @Test
+    public void patientReportsAreCachedUntilThePatientChanges() {
+        report("patient", "Patient/p1");
+        report("patient", "Patient/p1");
+        assertEquals(1, this.evaluations.get());
+
+        this.changeTracker.resourceCreated(newObservation("p2"));
+        report("patient", "Patient/p1");
+        assertEquals(1, this.evaluations.get());
+
+        this.changeTracker.resourceCreated(newObservation("p1"));
+        report("patient", "Patient/p1");
+        assertEquals(2, this.evaluations.get());
+    }
+
+    @Test
+    public void sharedResourceWritesInvalidatePatientReports() {
+        report("patient", "Patient/p1");
+
+        // Not in any patient's compartment, but the patient's criteria may use it
+        Medication medication = new Medication();
+        medication.setId("Medication/m1");
+        this.changeTracker.resourceCreated(medication);
+        report("patient", "Patient/p1");
+
+        assertEquals(2, this.evaluations.get());
+    }
+
+    @Test
+    public void populationReportsAreInvalidatedByAnyWrite() {
+        report("population", null);
+        this.changeTracker.resourceCreated(newObservation("p2"));
+        report("population", null);
+
+        assertEquals(2, this.evaluations.get());
+    }
+
+    @Test
+    public void artifactWritesInvalidateEveryReport() {
+        report("patient", "Patient/p1");
+        report("population", null);
+
+        Library library = new Library();
+        library.setId("Library/l1");
+        this.changeTracker.resourceUpdated(null, library);
+        report("patient", "Patient/p1");
+        report("population", null);
+
+        assertEquals(4, this.evaluations.get());
+    }
+
+    @Test
+    public void groupCareGapsAreInMemberOrder() {
+        Parameters parameters = new Parameters();
+        this.provider.groupCareGaps(newCareGapsPlan(new ArrayList<>()), newMembers(25), null, parameters);
+
+        assertEquals(25, parameters.getParameter().size());
+        for (int i = 0; i < 25; i++) {
+            assertEquals("Gaps in Care Report - Patient/p" + i, parameters.getParameter().get(i).getName());
+        }
+    }
+
+    @Test
+    public void groupCareGapsShareContextsOnTheSharedPool() {
+        List<String> threads = Collections.synchronizedList(new ArrayList<>());
+        this.provider.groupCareGaps(newCareGapsPlan(threads), newMembers(40), null, new Parameters());
+
+        // One set of Contexts for each member in flight at once, at most
+        assertTrue(threads.size() > 0);
+        assertTrue("Created " + threads.size() + " sets of contexts",
+                threads.size() <= HapiProperties.getMeasureEvaluationCareGapsThreads());
+        threads.forEach(x -> assertTrue(x, x.startsWith("measure-evaluation-")));
+    }
+
+    @Test
+    public void groupCareGapsRunOnTheCallingThreadWithASingleThreadPool() {
+        MeasureEvaluationExecutor single = new MeasureEvaluationExecutor(1);
+        try {
+            MeasureOperationsProvider provider = new MeasureOperationsProvider(null, null, null, null, null, null,
+                    this.changeTracker, null, null, this.reportCache, single);
+            List<String> threads = Collections.synchronizedList(new ArrayList<>());
+            Parameters parameters = new Parameters();
+            provider.groupCareGaps(newCareGapsPlan(threads), newMembers(5), null, parameters);
+
+            assertEquals(5, parameters.getParameter().size());
+            assertEquals(Collections.singletonList(Thread.currentThread().getName()), threads);
+        } finally {
+            single.shutdown();
+        }
+    }
+
+    @Test
+    public void careGapsPlansReuseReleasedContexts() {
+        MeasureOperationsProvider.CareGapsPlan plan = newCareGapsPlan(new ArrayList<>());
+        List<Context> first = plan.acquireContexts();
+        List<Context> second = plan.acquireContexts();
+        assertNotSame(first, second);
+
+        plan.releaseContexts(first);
+        assertSame(first, plan.acquireContexts());
+    }
+
+    /**
+     * Returns a plan without Measures, so each member's care gaps are an empty
+     * report, whose seed records the thread each set of Contexts is created on.
+     */
+    private static MeasureOperationsProvider.CareGapsPlan newCareGapsPlan(List<String> threads) {
+        MeasureBatchSeed seed = mock(MeasureBatchSeed.class);
+        when(seed.getMeasures()).thenReturn(new ArrayList<>());
+        when(seed.createContexts()).thenAnswer(x -> {
+            threads.add(Thread.currentThread().getName());
+            return new ArrayList<Context>();
+        });
+
+        return new MeasureOperationsProvider.CareGapsPlan(new ArrayList<>(), null, seed);
+    }
+
+    private static List<String> newMembers(int count) {
+        List<String> members = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            members.add("Patient/p" + i);
+        }
+
+        return members;
+    }
+
+    private void report(String reportType, String patientRef) {
+        String key = this.provider.getReportCacheKey(new IdType("Measure/m1"), "2019-01-01", "2019-12-31", null,
+                reportType, patientRef, null, null);
+        this.reportCache.getReport(key, () -> {
+            this.evaluations.incrementAndGet();
+            return new MeasureReport();
+        });
+    }
+
+    private static Observation newObservation(String patientId) {
+        Observation observation = new Observation();
+        observation.setId("Observation/" + patientId + "-obs");
+        observation.setSubject(new Reference("Patient/" + patientId));
+        return observation;
+    }
+}
@@ -0,0 +1,209 @@
+package org.opencds.cqf.r4.servlet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+import org.hl7.fhir.r4.model.Library;
+import org.hl7.fhir.r4.model.Patient;
+import org.hl7.fhir.r4.model.PlanDefinition;
+import org.junit.Test;
+
+public class CdsHooksCacheTest {
+
+    @Test
+    public void resolvesDiscoveryOnce() {
+        TestCache cache = new TestCache();
+
+        JsonObject services = cache.getServices();
+        assertSame(services, cache.getServices());
+        assertEquals("hook", cache.getService("s1").get("hook").getAsString());
+        assertNull(cache.getService("missing"));
+
+        assertEquals(1, cache.resolutions.get());
+        assertEquals(1, cache.getMetrics().get("misses").getAsInt());
+        assertEquals(3, cache.getMetrics().get("hits").getAsInt());
+    }
+
+    @Test
+    public void planDefinitionAndLibraryWritesInvalidate() {
+        TestCache cache = new TestCache();
+        cache.getServices();
+
+        cache.resourceCreated(new Patient());
+        cache.getServices();
+        assertEquals(1, cache.resolutions.get());
+
+        cache.resourceUpdated(new PlanDefinition(), new PlanDefinition());
+        cache.getServices();
+        assertEquals(2, cache.resolutions.get());
+
+        cache.resourceDeleted(new Library());
+        cache.getServices();
+        assertEquals(3, cache.resolutions.get());
+        assertEquals(2, cache.getMetrics().get("invalidations").getAsInt());
+    }
+
+    @Test
+    public void aDiscoveryInvalidatedWhileResolvingIsNotKept() {
+        TestCache cache = new TestCache() {
+            @Override
+            JsonObject resolveServices() {
+                JsonObject services = super.resolveServices();
+                if (this.resolutions.get() == 1) {
+                    invalidate();
+                }
+                return services;
+            }
+        };
+
+        cache.getServices();
+        cache.getServices();
+
+        assertEquals(2, cache.resolutions.get());
+    }
+
+    @Test
+    public void preparesEachPlanOnce() {
+        TestCache cache = new TestCache();
+        AtomicInteger prepared = new AtomicInteger();
+
+        PreparedPlan plan = cache.getPlan("s1", id -> newPlan(prepared));
+        assertSame(plan, cache.getPlan("s1", id -> newPlan(prepared)));
+        assertNotSame(plan, cache.getPlan("s2", id -> newPlan(prepared)));
+
+        assertEquals(2, prepared.get());
+        assertEquals(1, cache.getMetrics().get("planHits").getAsInt());
+        assertEquals(2, cache.getMetrics().get("planMisses").getAsInt());
+    }
+
+    @Test
+    public void invalidationDropsPreparedPlans() {
+        TestCache cache = new TestCache();
+        AtomicInteger prepared = new AtomicInteger();
+        cache.getPlan("s1", id -> newPlan(prepared));
+
+        cache.resourceUpdated(new Library(), new Library());
+        cache.getPlan("s1", id -> newPlan(prepared));
+
+        assertEquals(2, prepared.get());
+    }
+
+    @Test
+    public void concurrentRequestsWaitForOnePreparation() throws Exception {
+        TestCache cache = new TestCache();
+        AtomicInteger prepared = new AtomicInteger();
+        CountDownLatch preparing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService threads = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<PreparedPlan>> plans = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                plans.add(threads.submit(() -> cache.getPlan("s1", id -> {
+                    preparing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    return newPlan(prepared);
+                })));
+            }
+
+            assertTrue(preparing.await(10, TimeUnit.SECONDS));
+            // Let the other threads reach the pending plan
+            Thread.sleep(50);
+            release.countDown();
+
+            PreparedPlan plan = plans.get(0).get();
+            for (Future<PreparedPlan> other : plans) {
+                assertSame(plan, other.get());
+            }
+            assertEquals(1, prepared.get());
+        } finally {
+            threads.shutdownNow();
+        }
+    }
+
+    @Test
+    public void failedPreparationsAreNotKept() {
+        TestCache cache = new TestCache();
+        AtomicInteger prepared = new AtomicInteger();
+        IllegalArgumentException failure = new IllegalArgumentException("no library");
+
+        try {
+            cache.getPlan("s1", id -> {
+                throw failure;
+            });
+            fail();
+        } catch (IllegalArgumentException e) {
+            assertSame(failure, e);
+        }
+
+        cache.getPlan("s1", id -> newPlan(prepared));
+        assertEquals(1, prepared.get());
+    }
+
+    @Test
+    public void errorsAreRethrownAndNotKept() {
+        TestCache cache = new TestCache();
+        AtomicInteger prepared = new AtomicInteger();
+        StackOverflowError failure = new StackOverflowError();
+
+        try {
+            cache.getPlan("s1", id -> {
+                throw failure;
+            });
+            fail();
+        } catch (StackOverflowError e) {
+            assertSame(failure, e);
+        }
+
+        // A pending plan left behind would make this wait forever
+        cache.getPlan("s1", id -> newPlan(prepared));
+        assertEquals(1, prepared.get());
+        assertEquals(0, cache.getMetrics().get("planHits").getAsInt());
+    }
+
+    private static PreparedPlan newPlan(AtomicInteger prepared) {
+        prepared.incrementAndGet();
+        return new PreparedPlan(new PlanDefinition(), null, null, null, null, null);
+    }
+
+    static class TestCache extends CdsHooksCache {
+        final AtomicInteger resolutions = new AtomicInteger();
+
+        TestCache() {
+            super(null);
+        }
+
+        @Override
+        JsonObject resolveServices() {
+            this.resolutions.incrementAndGet();
+            JsonObject service = new JsonObject();
+            service.addProperty("id", "s1");
+            service.addProperty("hook", "hook");
+            JsonArray array = new JsonArray();
+            array.add(service);
+            JsonObject services = new JsonObject();
+            services.add("services", array);
+            return services;
+        }
+    }
+}